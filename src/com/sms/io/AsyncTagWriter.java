@@ -0,0 +1,327 @@
+package com.sms.io;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.flv.impl.FLVWriter;
+import com.sms.server.Configuration;
+import com.sms.server.util.CustomizableThreadFactory;
+import com.sms.server.util.SystemTimer;
+
+/**
+ * Async Tag Writer
+ * <p>
+ * Writes the tags of a recording on the writer threads shared by all recordings instead of the
+ * publisher thread. Tags go through a lock-free ring, a writer thread takes them in batches,
+ * sorts each batch by timestamp and hands it to the wrapped writer, which buffers them into
+ * large writes. Tags older than the last written one are dropped. The written tags are committed
+ * together at most every record.commit_interval ms. The publisher never waits for the disk, when
+ * the ring is full video is dropped up to the next key frame.
+ * @author pengliren
+ *
+ */
+public class AsyncTagWriter implements ITagWriter {
+
+	private static Logger log = LoggerFactory.getLogger(AsyncTagWriter.class);
+
+	/**
+	 * Tags taken from the ring and sorted at a time
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	private static final ScheduledExecutorService executor = Executors.newScheduledThreadPool(Configuration.RECORD_WRITER_THREADS, new CustomizableThreadFactory("RecordWriterExecutor-"));
+
+	private static final Comparator<ITag> TIMESTAMP_ORDER = new Comparator<ITag>() {
+		@Override
+		public int compare(ITag o1, ITag o2) {
+			int t1 = o1.getTimestamp();
+			int t2 = o2.getTimestamp();
+			return (t1 < t2 ? -1 : (t1 == t2 ? 0 : 1));
+		}
+	};
+
+	private final ITagWriter writer;
+
+	private final TagRing ring;
+
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private volatile boolean closed;
+
+	// set when the ring overflowed, video is dropped up to the next key frame
+	private volatile boolean waitKeyFrame;
+
+	private volatile boolean commitScheduled;
+
+	// writer thread only
+	private final ITag[] batch = new ITag[BATCH_SIZE];
+
+	private boolean dirty;
+
+	private boolean failed;
+
+	// tags older than the last written one would go backwards in the file
+	private int lastWrittenTs = -1;
+
+	private long lastCommit = SystemTimer.currentTimeMillis();
+
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	private final Runnable commitTask = new Runnable() {
+		public void run() {
+			commitScheduled = false;
+			schedule();
+		}
+	};
+
+	/**
+	 * @param writer writer of the file, used by the writer threads only from now on
+	 */
+	public AsyncTagWriter(ITagWriter writer) {
+		this.writer = writer;
+		this.ring = new TagRing(Configuration.RECORD_QUEUE_SIZE);
+		if (writer instanceof FLVWriter) {
+			try {
+				((FLVWriter) writer).setWriteBufferSize(Configuration.RECORD_WRITE_BUFFER_SIZE * 1024);
+			} catch (IOException e) {
+				log.info("write buffer not set {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Queue a tag, the body must not be modified until the tag is written.
+	 *
+	 * @param tag tag
+	 * @return false if the tag has been dropped
+	 */
+	public boolean writeTag(ITag tag) {
+		if (closed) {
+			return false;
+		}
+		if (waitKeyFrame && tag.getDataType() == ITag.TYPE_VIDEO) {
+			if (!isKeyFrame(tag)) {
+				droppedCount.incrementAndGet();
+				return false;
+			}
+			waitKeyFrame = false;
+		}
+		if (!ring.offer(tag)) {
+			waitKeyFrame = true;
+			if (droppedCount.incrementAndGet() % 1000 == 1) {
+				log.warn("record queue full, {} tags dropped so far", droppedCount.get());
+			}
+			return false;
+		}
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Write the queued tags and close the wrapped writer on a writer thread.
+	 */
+	public void close() {
+		closed = true;
+		schedule();
+	}
+
+	private static boolean isKeyFrame(ITag tag) {
+		IoBuffer body = tag.getBody();
+		return body != null && body.remaining() > 0 && (body.get(body.position()) & ITag.MASK_VIDEO_FRAMETYPE) >> 4 == ITag.FLAG_FRAMETYPE_KEYFRAME;
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				executor.execute(drainTask);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				log.warn("record writer rejected: {}", e.getMessage());
+			}
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			// tags queued before the close are seen by the drain below
+			boolean closing = closed;
+			int count;
+			while ((count = take()) > 0) {
+				Arrays.sort(batch, 0, count, TIMESTAMP_ORDER);
+				for (int i = 0; i < count; i++) {
+					write(batch[i]);
+					batch[i] = null;
+				}
+				// a writer catching up still commits on time
+				if (dirty && SystemTimer.currentTimeMillis() - lastCommit >= Configuration.RECORD_COMMIT_INTERVAL) {
+					commit();
+				}
+			}
+			if (closing) {
+				// stays scheduled, nothing runs after the close
+				commit();
+				doClose();
+				return;
+			}
+			if (dirty && !commitScheduled) {
+				// commit a stream that stopped sending
+				commitScheduled = true;
+				executor.schedule(commitTask, Configuration.RECORD_COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+			scheduled.set(false);
+			// a tag queued or a close after the last check would not wake us up
+			if ((ring.isEmpty() && closed == closing) || !scheduled.compareAndSet(false, true)) {
+				break;
+			}
+		}
+	}
+
+	private int take() {
+		int count = 0;
+		ITag tag;
+		while (count < BATCH_SIZE && (tag = ring.poll()) != null) {
+			batch[count++] = tag;
+		}
+		return count;
+	}
+
+	private void write(ITag tag) {
+		if (failed) {
+			return;
+		}
+		int ts = tag.getTimestamp();
+		if (ts < lastWrittenTs) {
+			// out of order across batches
+			droppedCount.incrementAndGet();
+			return;
+		}
+		try {
+			if (doWrite(tag)) {
+				dirty = true;
+				lastWrittenTs = ts;
+			}
+		} catch (ClosedChannelException e) {
+			// the channel we tried to write to is closed, we should not try again on that writer
+			failed = true;
+			log.error("The writer is no longer able to write to the file");
+		} catch (IOException e) {
+			log.warn("Error writing tag {}", e.getMessage());
+			if (e.getCause() instanceof ClosedChannelException) {
+				failed = true;
+				log.error("The writer is no longer able to write to the file");
+			}
+		}
+	}
+
+	private void commit() {
+		if (dirty && !failed) {
+			try {
+				doCommit();
+			} catch (IOException e) {
+				log.warn("Error committing tags {}", e.getMessage());
+			}
+		}
+		dirty = false;
+		lastCommit = SystemTimer.currentTimeMillis();
+	}
+
+	/**
+	 * Write a tag, called on the writer thread in timestamp order within a batch.
+	 *
+	 * @param tag tag
+	 * @return true if the tag has been written
+	 * @throws IOException if the tag cannot be written
+	 */
+	protected boolean doWrite(ITag tag) throws IOException {
+		return writer.writeTag(tag);
+	}
+
+	/**
+	 * Make the written tags visible to the readers of the file, called on the writer thread.
+	 *
+	 * @throws IOException if the tags cannot be written
+	 */
+	protected void doCommit() throws IOException {
+		if (writer instanceof FLVWriter) {
+			((FLVWriter) writer).flush();
+		}
+	}
+
+	/**
+	 * Close the file once everything has been written, called on the writer thread.
+	 */
+	protected void doClose() {
+		writer.close();
+	}
+
+	/**
+	 * Return the timestamp of the last tag written, only to be used on the writer thread.
+	 *
+	 * @return timestamp, -1 if none
+	 */
+	protected int getLastWrittenTimestamp() {
+		return lastWrittenTs;
+	}
+
+	/**
+	 * Return the wrapped writer, only to be used on the writer thread.
+	 *
+	 * @return writer
+	 */
+	protected ITagWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Return the number of tags dropped because the ring was full or they came too late.
+	 *
+	 * @return dropped tags
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public IStreamableFile getFile() {
+		return writer.getFile();
+	}
+
+	public int getOffset() {
+		return writer.getOffset();
+	}
+
+	public long getBytesWritten() {
+		return writer.getBytesWritten();
+	}
+
+	/**
+	 * Does nothing, the wrapped writer writes the header when it opens the file.
+	 */
+	public void writeHeader() throws IOException {
+	}
+
+	public boolean writeTag(byte type, IoBuffer data) throws IOException {
+		return false;
+	}
+
+	public boolean writeStream(byte[] b) {
+		return false;
+	}
+}
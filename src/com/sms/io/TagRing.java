@@ -0,0 +1,66 @@
+package com.sms.io;
+
+import com.sms.server.util.RingSequencer;
+
+/**
+ * Tag Ring
+ * <p>
+ * Bounded ring of tags with many producers and a single consumer, sequenced by a
+ * {@link RingSequencer}. Neither side takes a lock.
+ * @author pengliren
+ *
+ */
+public class TagRing {
+
+	private final RingSequencer sequencer;
+
+	private final ITag[] tags;
+
+	/**
+	 * @param capacity ring capacity, rounded up to a power of two
+	 */
+	public TagRing(int capacity) {
+		sequencer = new RingSequencer(capacity);
+		tags = new ITag[sequencer.getCapacity()];
+	}
+
+	/**
+	 * Queue a tag.
+	 *
+	 * @param tag tag
+	 * @return false if the ring is full
+	 */
+	public boolean offer(ITag tag) {
+		long seq = sequencer.claim();
+		if (seq < 0) {
+			return false;
+		}
+		tags[sequencer.index(seq)] = tag;
+		sequencer.publish(seq);
+		return true;
+	}
+
+	/**
+	 * Take the oldest tag. Consumer only.
+	 *
+	 * @return tag, null if the ring is empty
+	 */
+	public ITag poll() {
+		int idx = sequencer.peek();
+		if (idx < 0) {
+			return null;
+		}
+		ITag tag = tags[idx];
+		tags[idx] = null;
+		sequencer.remove();
+		return tag;
+	}
+
+	public boolean isEmpty() {
+		return sequencer.isEmpty();
+	}
+
+	public int getCapacity() {
+		return sequencer.getCapacity();
+	}
+}
@@ -20,6 +20,7 @@ import org.apache.mina.core.buffer.IoBuffer;
 
 import com.sms.io.amf3.ByteArray;
 import com.sms.io.object.BaseInput;
+import com.sms.io.object.BeanSerializer;
 import com.sms.io.object.DataTypes;
 import com.sms.io.object.Deserializer;
 import com.sms.io.object.RecordSet;
@@ -460,7 +461,7 @@ public class Input extends BaseInput implements com.sms.io.object.Input {
 	protected Object readBean(Object bean) {
 		log.debug("read bean");
 		storeReference(bean);
-		Class theClass = bean.getClass();
+		BeanSerializer serializer = BeanSerializer.getSerializer(bean.getClass());
 		while (hasMoreProperties()) {
 			String name = readPropertyName();
 			Type type = getPropertyType(bean, name);
@@ -469,6 +470,7 @@ public class Input extends BaseInput implements com.sms.io.object.Input {
 			log.debug("val: {}", property);
 			//log.debug("val: "+property.getClass().getName());
 			if (property != null) {
+				boolean set = false;
 				try {
 					if (type instanceof Class) {
 						Class t = (Class) type;
@@ -476,11 +478,19 @@ public class Input extends BaseInput implements com.sms.io.object.Input {
 							property = ConversionUtils.convert(property, t);
 						}
 					}
-					final Field field = theClass.getField(name);
-					field.set(bean, property);
+					final Field field = serializer.getField(name);
+					if (field != null) {
+						field.set(bean, property);
+						set = true;
+					}
 				} catch (Exception ex2) {
+					// set as a bean property
+				}
+				if (!set) {
 					try {
-						BeanUtils.setProperty(bean, name, property);
+						if (!serializer.setProperty(bean, name, property)) {
+							BeanUtils.setProperty(bean, name, property);
+						}
 					} catch (Exception ex) {
 						log.error("Error mapping property: {} ({})", name, property);
 					}
@@ -684,24 +694,24 @@ public class Input extends BaseInput implements com.sms.io.object.Input {
 	}
 
 	protected Type getPropertyType(Object instance, String propertyName) {
-		try {
-			if (instance != null) {
-				Field field = instance.getClass().getField(propertyName);
-				return field.getGenericType();
-			} else {
-				// instance is null for anonymous class, use default type
-			}
-		} catch (NoSuchFieldException e1) {
+		if (instance == null) {
+			// instance is null for anonymous class, use default type
+			return Object.class;
+		}
+		Type type = BeanSerializer.getSerializer(instance.getClass()).getPropertyType(propertyName);
+		if (type != null) {
+			return type;
+		}
+		if (propertyName.indexOf('.') >= 0 || propertyName.indexOf('[') >= 0 || propertyName.indexOf('(') >= 0) {
+			// nested, indexed or mapped property
 			try {
 				BeanUtilsBean beanUtilsBean = BeanUtilsBean.getInstance();
 				PropertyUtilsBean propertyUtils = beanUtilsBean.getPropertyUtils();
 				PropertyDescriptor propertyDescriptor = propertyUtils.getPropertyDescriptor(instance, propertyName);
 				return propertyDescriptor.getReadMethod().getGenericReturnType();
-			} catch (Exception e2) {
+			} catch (Exception e) {
 				// nothing
 			}
-		} catch (Exception e) {
-			// ignore other exceptions
 		}
 		// return Object class type by default
 		return Object.class;
@@ -1,14 +1,10 @@
 package com.sms.io.amf;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.TimeZone;
 import java.util.Vector;
 
@@ -18,9 +14,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
-import com.sms.annotations.Anonymous;
 import com.sms.io.amf3.ByteArray;
 import com.sms.io.object.BaseOutput;
+import com.sms.io.object.BeanSerializer;
 import com.sms.io.object.ICustomSerializable;
 import com.sms.io.object.RecordSet;
 import com.sms.io.object.Serializer;
@@ -37,12 +33,6 @@ public class Output extends BaseOutput implements com.sms.io.object.Output {
 	 */
 	private static ObjectCache stringCache;
 
-	private static ObjectCache serializeCache;
-
-	private static ObjectCache fieldCache;
-
-	private static ObjectCache getterCache;
-
 	/**
 	 * Output buffer
 	 */
@@ -245,27 +235,22 @@ public class Output extends BaseOutput implements com.sms.io.object.Output {
 	}
 
 	/** {@inheritDoc} */
-	@SuppressWarnings({ "rawtypes" })
 	public void writeObject(Object object) {
 		if (checkWriteReference(object)) {
 			return;
 		}
 		storeReference(object);
-		// Create new map out of bean properties
-		BeanMap beanMap = new BeanMap(object);
-		// Set of bean attributes
-		Set set = beanMap.keySet();
-		if ((set.size() == 0) || (set.size() == 1 && beanMap.containsKey("class"))) {
-			// BeanMap is empty or can only access "class" attribute, skip it
+		BeanSerializer serializer = BeanSerializer.getSerializer(object.getClass());
+		if (!serializer.isBean()) {
+			// no bean property or only the "class" attribute, skip it
 			writeArbitraryObject(object);
 			return;
 		}
 
 		// Write out either start of object marker for class name or "empty" start of object marker
-		Class<?> objectClass = object.getClass();
-		if (!objectClass.isAnnotationPresent(Anonymous.class)) {
+		if (!serializer.isAnonymous()) {
 			buf.put(AMF.TYPE_CLASS_OBJECT);
-			putString(buf, Serializer.getClassName(objectClass));
+			putString(buf, serializer.getEncodedClassName());
 		} else {
 			buf.put(AMF.TYPE_OBJECT);
 		}
@@ -278,21 +263,16 @@ public class Output extends BaseOutput implements com.sms.io.object.Output {
 			return;
 		}
 
-		// Iterate thru entries and write out property names with separators
-		for (Object key : set) {
-			String fieldName = key.toString();
-			log.debug("Field name: {} class: {}", fieldName, objectClass);
-
-			Field field = getField(objectClass, fieldName);
-			Method getter = getGetter(objectClass, beanMap, fieldName);
-
-			// Check if the Field corresponding to the getter/setter pair is transient
-			if (!serializeField(objectClass, fieldName, field, getter)) {
+		// Write out the property names with their values, the transient ones are not in the serializer
+		for (BeanSerializer.Property property : serializer.getProperties()) {
+			Object value;
+			try {
+				value = property.getValue(object);
+			} catch (IllegalAccessException err) {
 				continue;
 			}
-
-			putString(buf, fieldName);
-			Serializer.serialize(this, field, getter, object, beanMap.get(key));
+			putString(buf, property.getEncodedName());
+			Serializer.serialize(this, property.getField(), property.getGetter(), object, value);
 		}
 		// Write out end of object mark
 		buf.put((byte) 0x00);
@@ -300,82 +280,6 @@ public class Output extends BaseOutput implements com.sms.io.object.Output {
 		buf.put(AMF.TYPE_END_OF_OBJECT);
 	}
 
-	@SuppressWarnings("unchecked")
-	protected boolean serializeField(Class<?> objectClass, String keyName, Field field, Method getter) {
-		//		to prevent, NullPointerExceptions, get the element first and check if it's null. 
-		Object element = getSerializeCache().get(objectClass.toString());
-		Map<String, Boolean> serializeMap = (element == null ? null : (Map<String, Boolean>) element);
-		if (serializeMap == null) {
-			serializeMap = new HashMap<String, Boolean>();
-			getSerializeCache().put(objectClass.toString(), serializeMap);
-		}
-
-		Boolean serialize;
-		if (getSerializeCache().isKeyInCache(keyName)) {
-			serialize = serializeMap.get(keyName);
-		} else {
-			serialize = Serializer.serializeField(keyName, field, getter);
-			serializeMap.put(keyName, serialize);
-		}
-
-		return serialize;
-	}
-
-	@SuppressWarnings("unchecked")
-	protected Field getField(Class<?> objectClass, String keyName) {
-		//again, to prevent null pointers, check if the element exists first.
-		Object element = getFieldCache().get(objectClass.toString());
-		Map<String, Field> fieldMap = (element == null ? null : (Map<String, Field>) element);
-		if (fieldMap == null) {
-			fieldMap = new HashMap<String, Field>();
-			getFieldCache().put(objectClass.toString(), fieldMap);
-		}
-
-		Field field = null;
-
-		if (fieldMap.containsKey(keyName)) {
-			field = fieldMap.get(keyName);
-		} else {
-			for (Class<?> clazz = objectClass; !clazz.equals(Object.class); clazz = clazz.getSuperclass()) {
-				Field[] fields = clazz.getDeclaredFields();
-				if (fields.length > 0) {
-					for (Field fld : fields) {
-						if (fld.getName().equals(keyName)) {
-							field = fld;
-							break;
-						}
-					}
-				}
-			}
-
-			fieldMap.put(keyName, field);
-		}
-
-		return field;
-	}
-
-	@SuppressWarnings("unchecked")
-	protected Method getGetter(Class<?> objectClass, BeanMap beanMap, String keyName) {
-		//check element to prevent null pointer
-		Object element = getGetterCache().get(objectClass.toString());
-		Map<String, Method> getterMap = (element == null ? null : (Map<String, Method>) element);
-		
-		if (getterMap == null) {
-			getterMap = new HashMap<String, Method>();
-			getGetterCache().put(objectClass.toString(), getterMap);
-		}
-
-		Method getter;
-		if (getterMap.containsKey(keyName)) {
-			getter = getterMap.get(keyName);
-		} else {
-			getter = beanMap.getReadMethod(keyName);
-			getterMap.put(keyName, getter);
-		}
-
-		return getter;
-	}
-
 	/** {@inheritDoc} */
 	public void writeObject(Map<Object, Object> map) {
 		if (checkWriteReference(map)) {
@@ -405,38 +309,30 @@ public class Output extends BaseOutput implements com.sms.io.object.Output {
 	protected void writeArbitraryObject(Object object) {
 		log.debug("writeObject");
 		// If we need to serialize class information...
-		Class<?> objectClass = object.getClass();
-		if (!objectClass.isAnnotationPresent(Anonymous.class)) {
+		BeanSerializer serializer = BeanSerializer.getSerializer(object.getClass());
+		if (!serializer.isAnonymous()) {
 			// Write out start object marker for class name
 			buf.put(AMF.TYPE_CLASS_OBJECT);
-			putString(buf, Serializer.getClassName(objectClass));
+			putString(buf, serializer.getEncodedClassName());
 		} else {
 			// Write out start object marker without class name
 			buf.put(AMF.TYPE_OBJECT);
 		}
 
-		// Iterate thru fields of an object to build "name-value" map from it
-		for (Field field : objectClass.getFields()) {
-			String fieldName = field.getName();
-
-			log.debug("Field: {} class: {}", field, objectClass);
-			// Check if the Field corresponding to the getter/setter pair is transient
-			if (!serializeField(objectClass, fieldName, field, null)) {
-				continue;
-			}
-
+		// Write out the public fields of the object, the transient ones are not in the serializer
+		for (BeanSerializer.Property property : serializer.getProperties()) {
 			Object value;
 			try {
 				// Get field value
-				value = field.get(object);
+				value = property.getValue(object);
 			} catch (IllegalAccessException err) {
 				// Swallow on private and protected properties access exception
 				continue;
 			}
 			// Write out prop name
-			putString(buf, fieldName);
+			putString(buf, property.getEncodedName());
 			// Write out
-			Serializer.serialize(this, field, null, object, value);
+			Serializer.serialize(this, property.getField(), null, object, value);
 		}
 		// Write out end of object marker
 		buf.put((byte) 0x00);
@@ -507,7 +403,15 @@ public class Output extends BaseOutput implements com.sms.io.object.Output {
 	 * @param string      String to write
 	 */
 	public static void putString(IoBuffer buf, String string) {
-		final byte[] encoded = encodeString(string);
+		putString(buf, encodeString(string));
+	}
+
+	/**
+	 * Write out a string already encoded
+	 * @param buf         Byte buffer to write to
+	 * @param encoded     UTF-8 bytes of the string
+	 */
+	protected static void putString(IoBuffer buf, byte[] encoded) {
 		buf.putShort((short) encoded.length);
 		buf.put(encoded);
 	}
@@ -554,27 +458,4 @@ public class Output extends BaseOutput implements com.sms.io.object.Output {
 		return stringCache;
 	}
 
-	protected static ObjectCache getSerializeCache() {
-		if (serializeCache == null) {
-			serializeCache = CacheManager.getInstance().getCache("com.sms.io.amf.Output.serializeCache");
-		}
-
-		return serializeCache;
-	}
-
-	protected static ObjectCache getFieldCache() {
-		if (fieldCache == null) {
-			fieldCache = CacheManager.getInstance().getCache("com.sms.io.amf.Output.fieldCache");
-		}
-
-		return fieldCache;
-	}
-
-	protected static ObjectCache getGetterCache() {
-		if (getterCache == null) {
-			getterCache = CacheManager.getInstance().getCache("com.sms.io.amf.Output.getterCache");
-		}
-
-		return getterCache;
-	}
 }
\ No newline at end of file
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
 import com.sms.io.amf.AMF;
+import com.sms.io.object.BeanSerializer;
 import com.sms.io.object.DataTypes;
 import com.sms.io.object.Deserializer;
 import com.sms.io.utils.ArrayUtils;
@@ -710,6 +711,7 @@ public class Input extends com.sms.io.amf.Input implements com.sms.io.object.Inp
 				if (result != null) {
 					storeReference(tempRefId, result);
 					Class resultClass = result.getClass();
+					BeanSerializer serializer = BeanSerializer.getSerializer(resultClass);
 					pending.resolveProperties(result);
 					for (Map.Entry<String, Object> entry : properties.entrySet()) {
 						// Resolve circular references
@@ -724,18 +726,27 @@ public class Input extends com.sms.io.amf.Input implements com.sms.io.object.Inp
 							continue;
 						}
 						if (value != null) {
+							boolean set = false;
 							try {
-								final Field field = resultClass.getField(key);
-								final Class fieldType = field.getType();
-								if (!fieldType.isAssignableFrom(value.getClass())) {
-									value = ConversionUtils.convert(value, fieldType);
-								} else if (value instanceof Enum) {
-									value = Enum.valueOf(fieldType, value.toString());
+								final Field field = serializer.getField(key);
+								if (field != null) {
+									final Class fieldType = field.getType();
+									if (!fieldType.isAssignableFrom(value.getClass())) {
+										value = ConversionUtils.convert(value, fieldType);
+									} else if (value instanceof Enum) {
+										value = Enum.valueOf(fieldType, value.toString());
+									}
+									field.set(result, value);
+									set = true;
 								}
-								field.set(result, value);
 							} catch (Exception e) {
+								// set as a bean property
+							}
+							if (!set) {
 								try {
-									BeanUtils.setProperty(result, key, value);
+									if (!serializer.setProperty(result, key, value)) {
+										BeanUtils.setProperty(result, key, value);
+									}
 								} catch (IllegalAccessException ex) {
 									log.warn("Error mapping key: {} value: {}", key, value);
 								} catch (InvocationTargetException ex) {
@@ -1,25 +1,21 @@
 package com.sms.io.amf3;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
 
-import org.apache.commons.beanutils.BeanMap;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 
-import com.sms.annotations.Anonymous;
 import com.sms.compatibility.messages.ObjectProxy;
 import com.sms.io.amf.AMF;
+import com.sms.io.object.BeanSerializer;
 import com.sms.io.object.RecordSet;
 import com.sms.io.object.Serializer;
 import com.sms.io.object.UnsignedInt;
@@ -337,35 +333,30 @@ public class Output extends com.sms.io.amf.Output implements com.sms.io.object.O
 	/** {@inheritDoc} */
 	@Override
 	protected void writeArbitraryObject(Object object) {
-		Class<?> objectClass = object.getClass();
+		BeanSerializer serializer = BeanSerializer.getSerializer(object.getClass());
 		// If we need to serialize class information...
-		if (!objectClass.isAnnotationPresent(Anonymous.class)) {
-			putString(Serializer.getClassName(objectClass));
+		// an empty class name is written like no class name
+		if (!serializer.isAnonymous() && serializer.getClassName().length() > 0) {
+			putString(serializer.getClassName(), serializer.getEncodedClassName());
 		} else {
 			putString("");
 		}
 		// Store key/value pairs
 		amf3_mode += 1;
-		// Iterate thru fields of an object to build "name-value" map from it
-		for (Field field : objectClass.getFields()) {
-			String fieldName = field.getName();
-			log.debug("Field: {} class: {}", field, objectClass);
-			// Check if the Field corresponding to the getter/setter pair is transient
-			if (!serializeField(objectClass, fieldName, field, null)) {
-				continue;
-			}
+		// Write out the public fields of the object, the transient ones are not in the serializer
+		for (BeanSerializer.Property property : serializer.getProperties()) {
 			Object value;
 			try {
 				// Get field value
-				value = field.get(object);
+				value = property.getValue(object);
 			} catch (IllegalAccessException err) {
 				// Swallow on private and protected properties access exception
 				continue;
 			}
 			// Write out prop name
-			putString(fieldName);
+			putString(property.getName(), property.getEncodedName());
 			// Write out
-			Serializer.serialize(this, field, null, object, value);
+			Serializer.serialize(this, property.getField(), null, object, value);
 		}
 		amf3_mode -= 1;
 		// Write out end of object marker
@@ -373,7 +364,6 @@ public class Output extends com.sms.io.amf.Output implements com.sms.io.object.O
 	}
 
 	/** {@inheritDoc} */
-	@SuppressWarnings({ "rawtypes" })
 	public void writeObject(Object object) {
 		writeAMF3();
 		buf.put(AMF3.TYPE_OBJECT);
@@ -401,36 +391,31 @@ public class Output extends com.sms.io.amf.Output implements com.sms.io.object.O
 		// We store the properties using key/value pairs
 		int type = AMF3.TYPE_OBJECT_VALUE << 2 | 1 << 1 | 1;
 		putInteger(type);
-		// Create new map out of bean properties
-		BeanMap beanMap = new BeanMap(object);
-		// Set of bean attributes
-		Set set = beanMap.keySet();
-		if ((set.size() == 0) || (set.size() == 1 && beanMap.containsKey("class"))) {
-			// BeanMap is empty or can only access "class" attribute, skip it
+		BeanSerializer serializer = BeanSerializer.getSerializer(object.getClass());
+		if (!serializer.isBean()) {
+			// no bean property or only the "class" attribute, skip it
 			writeArbitraryObject(object);
 			return;
 		}
 		// Write out either start of object marker for class name or "empty" start of object marker
-		Class<?> objectClass = object.getClass();
-		if (!objectClass.isAnnotationPresent(Anonymous.class)) {
+		// an empty class name is written like no class name
+		if (!serializer.isAnonymous() && serializer.getClassName().length() > 0) {
 			// classname
-			putString(Serializer.getClassName(object.getClass()));
+			putString(serializer.getClassName(), serializer.getEncodedClassName());
 		} else {
 			putString("");
 		}
-		// Store key/value pairs
+		// Store key/value pairs, the transient ones are not in the serializer
 		amf3_mode += 1;
-		for (Object key : set) {
-			String fieldName = key.toString();
-			log.debug("Field name: {} class: {}", fieldName, objectClass);
-			Field field = getField(objectClass, fieldName);
-			Method getter = getGetter(objectClass, beanMap, fieldName);
-			// Check if the Field corresponding to the getter/setter pair is transient
-			if (!serializeField(objectClass, fieldName, field, getter)) {
+		for (BeanSerializer.Property property : serializer.getProperties()) {
+			Object value;
+			try {
+				value = property.getValue(object);
+			} catch (IllegalAccessException err) {
 				continue;
 			}
-			putString(fieldName);
-			Serializer.serialize(this, field, getter, object, beanMap.get(key));
+			putString(property.getName(), property.getEncodedName());
+			Serializer.serialize(this, property.getField(), property.getGetter(), object, value);
 		}
 		amf3_mode -= 1;
 		// End of object marker
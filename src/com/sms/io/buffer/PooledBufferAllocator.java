@@ -0,0 +1,484 @@
+package com.sms.io.buffer;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.AbstractIoBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+import org.apache.mina.core.buffer.SimpleBufferAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.jmx.JMXAgent;
+import com.sms.jmx.mxbeans.PooledBufferAllocatorMXBean;
+import com.sms.server.Configuration;
+
+/**
+ * Size class pooled buffer allocator
+ * <p>
+ * Buffers are rounded up to a power of two size class and recycled through a small per thread
+ * cache backed by a bounded shared pool, so the hot paths (rtmp codec, hls segmenter, file
+ * readers) stop allocating a new buffer for every packet.
+ * <p>
+ * Pooled buffers are only recycled by {@link #release(IoBuffer)} from the code owning them,
+ * {@link IoBuffer#free()} does nothing: read-only views of a buffer are commonly handed to other
+ * consumers and the old code frees buffers those may still be reading. A buffer written to a
+ * session is released once it has been sent, see {@link #retain(IoBuffer)} for views.
+ * @author pengliren
+ *
+ */
+public class PooledBufferAllocator implements IoBufferAllocator, PooledBufferAllocatorMXBean {
+
+	private static final Logger log = LoggerFactory.getLogger(PooledBufferAllocator.class);
+
+	private static final int MIN_SIZE_SHIFT = 6;
+
+	private static final int MAX_SHARED_PER_CLASS = 4096;
+
+	private static final int THREAD_CACHE_COUNT = 16;
+
+	private static final int THREAD_CACHE_CLASS_BYTES = 256 * 1024;
+
+	private static final class SingletonHolder {
+		private static final PooledBufferAllocator INSTANCE = new PooledBufferAllocator(Configuration.BUFFER_POOL_DIRECT,
+				Configuration.BUFFER_POOL_MAX_SIZE * 1024, Configuration.BUFFER_POOL_MAX_CACHED * 1024L * 1024L,
+				Configuration.BUFFER_LEAK_DETECTION_INTERVAL);
+	}
+
+	public static PooledBufferAllocator getInstance() {
+		return SingletonHolder.INSTANCE;
+	}
+
+	private final boolean direct;
+
+	private final int maxPooledSize;
+
+	private final long maxCachedBytes;
+
+	private final int leakDetectionInterval;
+
+	// shared chunks per size class, null for classes that are not kept
+	private final List<ArrayBlockingQueue<ByteBuffer>> shared;
+
+	private final int[] threadCacheCapacity;
+
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+		@Override
+		protected ThreadCache initialValue() {
+			return new ThreadCache(threadCacheCapacity);
+		}
+	};
+
+	private final SimpleBufferAllocator unpooled = new SimpleBufferAllocator();
+
+	private final ReferenceQueue<Object> leakQueue = new ReferenceQueue<Object>();
+
+	private final Set<LeakTracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+
+	private final AtomicLong sharedBytes = new AtomicLong();
+
+	private final AtomicLong allocationCount = new AtomicLong();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong unpooledCount = new AtomicLong();
+
+	private final AtomicLong releaseCount = new AtomicLong();
+
+	private final AtomicLong leakCount = new AtomicLong();
+
+	/**
+	 * Create a pool
+	 *
+	 * @param direct pool direct buffers
+	 * @param maxPooledSize largest pooled size in bytes, rounded up to a power of two
+	 * @param maxCachedBytes memory kept in the shared pool
+	 * @param leakDetectionInterval track one out of this many buffers for leaks, 0 to disable
+	 */
+	public PooledBufferAllocator(boolean direct, int maxPooledSize, long maxCachedBytes, int leakDetectionInterval) {
+		this.direct = direct;
+		this.maxPooledSize = Math.max(1 << MIN_SIZE_SHIFT, normalize(maxPooledSize));
+		this.maxCachedBytes = maxCachedBytes;
+		this.leakDetectionInterval = leakDetectionInterval;
+		int classes = sizeClass(this.maxPooledSize) + 1;
+		shared = new ArrayList<ArrayBlockingQueue<ByteBuffer>>(classes);
+		threadCacheCapacity = new int[classes];
+		for (int i = 0; i < classes; i++) {
+			int size = sizeOf(i);
+			long count = Math.min(MAX_SHARED_PER_CLASS, maxCachedBytes / size);
+			shared.add(count > 0 ? new ArrayBlockingQueue<ByteBuffer>((int) count) : null);
+			threadCacheCapacity[i] = Math.min(THREAD_CACHE_COUNT, THREAD_CACHE_CLASS_BYTES / size);
+		}
+		JMXAgent.registerMBean(this, this.getClass().getName(), PooledBufferAllocatorMXBean.class);
+	}
+
+	/**
+	 * Allocate a buffer from the shared pool, or a plain heap buffer when pooling is disabled.
+	 * The returned buffer has its limit set to the given capacity and must be handed back with
+	 * {@link #release(IoBuffer)}.
+	 *
+	 * @param capacity minimum capacity
+	 * @return buffer
+	 */
+	public static IoBuffer acquire(int capacity) {
+		if (!Configuration.BUFFER_POOL) {
+			return IoBuffer.allocate(capacity, false);
+		}
+		return getInstance().allocate(capacity, Configuration.BUFFER_POOL_DIRECT);
+	}
+
+	/**
+	 * Add a reference to the pooled buffer backing the given buffer or view, for every view written
+	 * on its own. Does nothing for buffers that are not pooled.
+	 *
+	 * @param buffer buffer
+	 * @return the given buffer
+	 */
+	public static IoBuffer retain(IoBuffer buffer) {
+		if (buffer instanceof PooledBuffer) {
+			((PooledBuffer) buffer).root.refs.incrementAndGet();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Return true if the given buffer or view is backed by a pooled buffer.
+	 *
+	 * @param buffer buffer
+	 * @return true if pooled
+	 */
+	public static boolean isPooled(IoBuffer buffer) {
+		return buffer instanceof PooledBuffer;
+	}
+
+	/**
+	 * Drop a reference to the pooled buffer backing the given buffer or view, the memory returns to
+	 * the pool with the last one. Does nothing for buffers that are not pooled.
+	 *
+	 * @param buffer buffer, may be null
+	 */
+	public static void release(IoBuffer buffer) {
+		if (buffer instanceof PooledBuffer) {
+			PooledBuffer root = ((PooledBuffer) buffer).root;
+			int refs = root.refs.decrementAndGet();
+			if (refs == 0) {
+				root.allocator.recycle(root);
+			} else if (refs < 0) {
+				log.warn("Pooled buffer released more than once: {}", root);
+			}
+		}
+	}
+
+	/** {@inheritDoc} */
+	public IoBuffer allocate(int capacity, boolean direct) {
+		if (direct != this.direct || capacity > maxPooledSize) {
+			unpooledCount.incrementAndGet();
+			return unpooled.allocate(capacity, direct);
+		}
+		reportLeaks();
+		long count = allocationCount.incrementAndGet();
+		PooledBuffer buf = new PooledBuffer(this, take(capacity), capacity);
+		if (leakDetectionInterval > 0 && count % leakDetectionInterval == 0) {
+			buf.tracker = new LeakTracker(buf, leakQueue, capacity);
+			trackers.add(buf.tracker);
+		}
+		return buf;
+	}
+
+	/** {@inheritDoc} */
+	public ByteBuffer allocateNioBuffer(int capacity, boolean direct) {
+		// called when a pooled buffer expands, the new chunk is handed back with the buffer
+		if (direct != this.direct || capacity > maxPooledSize) {
+			return unpooled.allocateNioBuffer(capacity, direct);
+		}
+		return take(capacity);
+	}
+
+	/** {@inheritDoc} */
+	public IoBuffer wrap(ByteBuffer nioBuffer) {
+		return unpooled.wrap(nioBuffer);
+	}
+
+	/** {@inheritDoc} */
+	public void dispose() {
+		for (ArrayBlockingQueue<ByteBuffer> queue : shared) {
+			if (queue != null) {
+				queue.clear();
+			}
+		}
+		sharedBytes.set(0);
+	}
+
+	/** {@inheritDoc} */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/** {@inheritDoc} */
+	public int getMaxPooledSize() {
+		return maxPooledSize;
+	}
+
+	/** {@inheritDoc} */
+	public long getAllocationCount() {
+		return allocationCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public double getHitRate() {
+		long total = allocationCount.get();
+		return (total == 0 ? 1.0 : (double) hitCount.get() / total);
+	}
+
+	/** {@inheritDoc} */
+	public long getUnpooledCount() {
+		return unpooledCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getReleaseCount() {
+		return releaseCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getOutstandingCount() {
+		return allocationCount.get() - releaseCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getSharedPoolBytes() {
+		return sharedBytes.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getLeakCount() {
+		return leakCount.get();
+	}
+
+	/**
+	 * Take a cleared chunk of the size class fitting the given capacity, recycled chunks are
+	 * handed out as a fresh duplicate
+	 */
+	private ByteBuffer take(int capacity) {
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer chunk = threadCache.get().poll(sizeClass);
+		ArrayBlockingQueue<ByteBuffer> queue = shared.get(sizeClass);
+		if (chunk == null && queue != null) {
+			chunk = queue.poll();
+			if (chunk != null) {
+				sharedBytes.addAndGet(-chunk.capacity());
+			}
+		}
+		if (chunk == null) {
+			int size = sizeOf(sizeClass);
+			chunk = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			return chunk;
+		}
+		hitCount.incrementAndGet();
+		// a duplicate is big endian and has its own position and limit
+		chunk = chunk.duplicate();
+		chunk.clear();
+		return chunk;
+	}
+
+	private void recycle(PooledBuffer root) {
+		releaseCount.incrementAndGet();
+		if (root.tracker != null) {
+			trackers.remove(root.tracker);
+			root.tracker.clear();
+			root.tracker = null;
+		}
+		// the session still resets the position of a buffer after it has been sent,
+		// buffers never share their nio buffer with a later user of the chunk
+		ByteBuffer chunk = root.buf;
+		int sizeClass = sizeClass(chunk.capacity());
+		if (chunk.isDirect() != direct || chunk.isReadOnly() || chunk.capacity() > maxPooledSize || sizeOf(sizeClass) != chunk.capacity()) {
+			// unpooled chunk of an expanded buffer
+			return;
+		}
+		if (threadCache.get().offer(sizeClass, chunk)) {
+			return;
+		}
+		ArrayBlockingQueue<ByteBuffer> queue = shared.get(sizeClass);
+		if (queue != null && sharedBytes.get() + chunk.capacity() <= maxCachedBytes && queue.offer(chunk)) {
+			sharedBytes.addAndGet(chunk.capacity());
+		}
+	}
+
+	private void reportLeaks() {
+		LeakTracker tracker;
+		while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+			if (trackers.remove(tracker)) {
+				leakCount.incrementAndGet();
+				log.warn("Pooled buffer of {} bytes was collected without being released, allocated at", tracker.capacity, tracker.site);
+			}
+		}
+	}
+
+	private static int normalize(int capacity) {
+		int size = 1 << MIN_SIZE_SHIFT;
+		while (size < capacity && size > 0) {
+			size <<= 1;
+		}
+		return size > 0 ? size : Integer.MAX_VALUE;
+	}
+
+	private static int sizeClass(int capacity) {
+		if (capacity <= (1 << MIN_SIZE_SHIFT)) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SIZE_SHIFT;
+	}
+
+	private static int sizeOf(int sizeClass) {
+		return 1 << (sizeClass + MIN_SIZE_SHIFT);
+	}
+
+	/**
+	 * Per thread chunk stacks, filled by the releasing thread
+	 */
+	private static final class ThreadCache {
+
+		private final ByteBuffer[][] stacks;
+
+		private final int[] counts;
+
+		ThreadCache(int[] capacity) {
+			stacks = new ByteBuffer[capacity.length][];
+			counts = new int[capacity.length];
+			for (int i = 0; i < capacity.length; i++) {
+				stacks[i] = new ByteBuffer[capacity[i]];
+			}
+		}
+
+		ByteBuffer poll(int sizeClass) {
+			int count = counts[sizeClass];
+			if (count == 0) {
+				return null;
+			}
+			ByteBuffer chunk = stacks[sizeClass][--count];
+			stacks[sizeClass][count] = null;
+			counts[sizeClass] = count;
+			return chunk;
+		}
+
+		boolean offer(int sizeClass, ByteBuffer chunk) {
+			int count = counts[sizeClass];
+			if (count == stacks[sizeClass].length) {
+				return false;
+			}
+			stacks[sizeClass][count] = chunk;
+			counts[sizeClass] = count + 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Allocation site of a sampled buffer, enqueued once the buffer is unreachable
+	 */
+	private static final class LeakTracker extends PhantomReference<Object> {
+
+		private final int capacity;
+
+		private final Throwable site = new Throwable("Pooled buffer allocation");
+
+		LeakTracker(Object referent, ReferenceQueue<Object> queue, int capacity) {
+			super(referent, queue);
+			this.capacity = capacity;
+		}
+	}
+
+	/**
+	 * Buffer backed by a pooled chunk. Views share the reference count of the root buffer.
+	 */
+	private static final class PooledBuffer extends AbstractIoBuffer {
+
+		private final PooledBufferAllocator allocator;
+
+		private final PooledBuffer root;
+
+		private final AtomicInteger refs;
+
+		private ByteBuffer buf;
+
+		private LeakTracker tracker;
+
+		PooledBuffer(PooledBufferAllocator allocator, ByteBuffer buf, int capacity) {
+			super(allocator, capacity);
+			this.allocator = allocator;
+			this.root = this;
+			this.refs = new AtomicInteger(1);
+			this.buf = buf;
+			buf.limit(capacity);
+		}
+
+		PooledBuffer(PooledBuffer parent, ByteBuffer buf) {
+			super(parent);
+			this.allocator = parent.allocator;
+			this.root = parent.root;
+			this.refs = null;
+			this.buf = buf;
+		}
+
+		@Override
+		public ByteBuffer buf() {
+			return buf;
+		}
+
+		@Override
+		protected void buf(ByteBuffer buf) {
+			// the previous chunk may still be read through a view, leave it to the gc
+			this.buf = buf;
+		}
+
+		@Override
+		protected IoBuffer duplicate0() {
+			return new PooledBuffer(this, buf.duplicate());
+		}
+
+		@Override
+		protected IoBuffer slice0() {
+			return new PooledBuffer(this, buf.slice());
+		}
+
+		@Override
+		protected IoBuffer asReadOnlyBuffer0() {
+			return new PooledBuffer(this, buf.asReadOnlyBuffer());
+		}
+
+		@Override
+		public byte[] array() {
+			return buf.array();
+		}
+
+		@Override
+		public int arrayOffset() {
+			return buf.arrayOffset();
+		}
+
+		@Override
+		public boolean hasArray() {
+			return buf.hasArray();
+		}
+
+		@Override
+		public void free() {
+			// handed back with release
+		}
+	}
+}
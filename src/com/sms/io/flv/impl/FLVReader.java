@@ -25,6 +25,7 @@ import com.sms.io.ITagReader;
 import com.sms.io.IoConstants;
 import com.sms.io.amf.Input;
 import com.sms.io.amf.Output;
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.io.flv.FLVHeader;
 import com.sms.io.flv.IKeyFrameDataAnalyzer;
 import com.sms.io.object.Deserializer;
@@ -313,7 +314,8 @@ public class FLVReader implements IoConstants, ITagReader, IKeyFrameDataAnalyzer
 						in = IoBuffer.allocate(bufferSize, true);
 						break;
 					default:
-						in = IoBuffer.allocate(bufferSize);
+						// pooled, released on close
+						in = PooledBufferAllocator.acquire(bufferSize);
 				}
 				channel.read(in.buf());
 				in.flip();
@@ -609,7 +611,7 @@ public class FLVReader implements IoConstants, ITagReader, IKeyFrameDataAnalyzer
 	public synchronized void close() {
 		log.debug("Reader close");
 		if (in != null) {
-			in.free();
+			PooledBufferAllocator.release(in);
 			in = null;
 		}
 		if (channel != null) {
@@ -100,6 +100,11 @@ public class FLVWriter implements ITagWriter {
 	
 	private FileChannel channel;
 
+	/**
+	 * Tags waiting to be written with the next large write, null to write every tag right away
+	 */
+	private ByteBuffer writeBuffer;
+
 	/**
 	 * Creates writer implementation with given file and last tag
 	 *
@@ -154,6 +159,33 @@ public class FLVWriter implements ITagWriter {
 		header.clear();
 	}
 
+	/**
+	 * Collect the tags in a buffer of the given size and write them together, when it is full
+	 * or on {@link #flush()}.
+	 *
+	 * @param size buffer size in bytes, 0 to write every tag right away
+	 * @throws IOException if the buffered tags cannot be written
+	 */
+	public void setWriteBufferSize(int size) throws IOException {
+		flush();
+		writeBuffer = (size > 0 ? ByteBuffer.allocateDirect(size) : null);
+	}
+
+	/**
+	 * Write the buffered tags to the file.
+	 *
+	 * @throws IOException if the tags cannot be written
+	 */
+	public void flush() throws IOException {
+		if (writeBuffer != null && writeBuffer.position() > 0) {
+			writeBuffer.flip();
+			while (writeBuffer.hasRemaining()) {
+				channel.write(writeBuffer);
+			}
+			writeBuffer.clear();
+		}
+	}
+
 	/** {@inheritDoc}
 	 */
 	public IStreamableFile getFile() {
@@ -237,10 +269,8 @@ public class FLVWriter implements ITagWriter {
 				byte dataType = tag.getDataType();
 				// set a var holding the entire tag size including the previous tag length
 				int totalTagSize = TAG_HEADER_LENGTH + bodySize + 4;
-				// create a buffer for this tag
-				ByteBuffer tagBuffer = ByteBuffer.allocate(totalTagSize);
-				// get the current file offset
-				long fileOffset = channel.position();
+				// get the current file offset, buffered tags included
+				long fileOffset = channel.position() + (writeBuffer != null ? writeBuffer.position() : 0);
 				log.debug("Current file offset: {} expected offset: {}", fileOffset, prevBytesWritten);
 				// if we're writing non-meta tags do seeking and tag size update
 				if (dataType != ITag.TYPE_METADATA) {
@@ -248,7 +278,9 @@ public class FLVWriter implements ITagWriter {
 						log.debug("Seeking to expected offset");
 						// it's necessary to seek to the length of the file
 						// so that we can append new tags
+						flush();
 						channel.position(prevBytesWritten);
+						fileOffset = prevBytesWritten;
 					}
 					// dont reset previous tag size on metadata
 					if (previousTagSize != tag.getPreviousTagSize()) {
@@ -257,20 +289,29 @@ public class FLVWriter implements ITagWriter {
 					}
 				}
 				int timestamp = tag.getTimestamp() + offset;
-				// create an array big enough
-				byte[] bodyBuf = new byte[bodySize];
-				// put the bytes into the array
-				tag.getBody().get(bodyBuf);
+				ByteBuffer body = tag.getBody().buf();
+				int bodyStart = body.position();
 				// get the audio or video codec identifier
 				if (dataType == ITag.TYPE_AUDIO && audioCodecId == -1) {
-					int id = bodyBuf[0] & 0xff; // must be unsigned
+					int id = body.get(bodyStart) & 0xff; // must be unsigned
 					audioCodecId = (id & ITag.MASK_SOUND_FORMAT) >> 4;
 					log.debug("Audio codec id: {}", audioCodecId);
 				} else if (dataType == ITag.TYPE_VIDEO && videoCodecId == -1) {
-					int id = bodyBuf[0] & 0xff; // must be unsigned
+					int id = body.get(bodyStart) & 0xff; // must be unsigned
 					videoCodecId = id & ITag.MASK_VIDEO_CODEC;
 					log.debug("Video codec id: {}", videoCodecId);
 				}
+				// append to the write buffer, tags larger than the buffer are written on their own
+				ByteBuffer tagBuffer;
+				if (writeBuffer != null && totalTagSize <= writeBuffer.capacity()) {
+					if (writeBuffer.remaining() < totalTagSize) {
+						flush();
+					}
+					tagBuffer = writeBuffer;
+				} else {
+					flush();
+					tagBuffer = ByteBuffer.allocate(totalTagSize);
+				}
 				// Data Type
 				tagBuffer.put(dataType); //1
 				// Body Size - Length of the message. Number of bytes after StreamID to end of tag 
@@ -281,24 +322,25 @@ public class FLVWriter implements ITagWriter {
 				// Stream id
 				IOUtils.writeMediumInt(tagBuffer, 0); //3
 				// get the body
-				tagBuffer.put(bodyBuf);
+				int bodyLimit = body.limit();
+				body.limit(bodyStart + bodySize);
+				tagBuffer.put(body);
+				body.limit(bodyLimit);
 				// update previous tag size
 				previousTagSize = TAG_HEADER_LENGTH + bodySize;
 				// we add the tag size
 				tagBuffer.putInt(previousTagSize);
-				// flip so we can process from the beginning
-				tagBuffer.flip();
-				if (log.isDebugEnabled()) {
-					//StringBuilder sb = new StringBuilder();
-					//HexDump.dumpHex(sb, tagBuffer.array());
-					//log.debug("\n{}", sb);
+				if (tagBuffer != writeBuffer) {
+					// flip so we can process from the beginning
+					tagBuffer.flip();
+					// write the tag
+					while (tagBuffer.hasRemaining()) {
+						channel.write(tagBuffer);
+					}
 				}
-				// write the tag
-				channel.write(tagBuffer);
-				//writeTagData(tagBuffer, false);
-				bytesWritten = channel.size();
+				// the meta data is rewritten in place on close
+				bytesWritten = Math.max(prevBytesWritten, fileOffset + totalTagSize);
 				log.debug("Bytes written: {} tag size: {}", bytesWritten, 4);
-				tagBuffer.clear();
 				// update the duration
 				duration = Math.max(duration, timestamp);
 				log.debug("Writer duration: {}", duration);
@@ -329,7 +371,8 @@ public class FLVWriter implements ITagWriter {
 		log.debug("close");
 		try {
 			// keep track of where the pointer is before we update the header and meta
-			//writeTagData(null, true);
+			flush();
+			writeBuffer = null;
 			long tail = bytesWritten;
 			// set to where the flv header goes
 			channel.position(0);
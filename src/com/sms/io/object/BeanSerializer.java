@@ -0,0 +1,381 @@
+package com.sms.io.object;
+
+import java.beans.IndexedPropertyDescriptor;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.beanutils.BeanUtilsBean;
+import org.apache.commons.beanutils.DynaBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.annotations.Anonymous;
+import com.sms.io.amf.AMF;
+
+/**
+ * Bean Serializer
+ * <p>
+ * Properties of a class resolved once for the amf inputs and outputs instead of per object. The
+ * readable properties are kept in the order of a BeanMap of the class, or the public fields when
+ * there are none, with their names encoded and method handles reading them. The property types,
+ * public fields and write methods are kept for the beans being read.
+ * @author pengliren
+ *
+ */
+public final class BeanSerializer {
+
+	private static Logger log = LoggerFactory.getLogger(BeanSerializer.class);
+
+	private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	// held by the class itself, so it does not keep the class and its loader from being unloaded
+	private static final ClassValue<BeanSerializer> serializers = new ClassValue<BeanSerializer>() {
+		@Override
+		protected BeanSerializer computeValue(Class<?> type) {
+			return new BeanSerializer(type);
+		}
+	};
+
+	private final Class<?> type;
+
+	private final String className;
+
+	private final byte[] encodedClassName;
+
+	private final boolean anonymous;
+
+	// false when the class has no readable property but "class", its public fields are written then
+	private final boolean bean;
+
+	private final Property[] properties;
+
+	private final Map<String, Type> propertyTypes = new HashMap<String, Type>();
+
+	private final Map<String, Field> fields = new HashMap<String, Field>();
+
+	private final Map<String, Setter> setters = new HashMap<String, Setter>();
+
+	private BeanSerializer(Class<?> type) {
+		this.type = type;
+		this.className = Serializer.getClassName(type);
+		this.encodedClassName = encode(className);
+		this.anonymous = type.isAnnotationPresent(Anonymous.class);
+		for (Field field : type.getFields()) {
+			// the first one is the one found by Class.getField
+			if (!fields.containsKey(field.getName())) {
+				fields.put(field.getName(), field);
+			}
+		}
+		// same order as the key set of a BeanMap
+		HashMap<String, Method> readMethods = new HashMap<String, Method>();
+		try {
+			for (PropertyDescriptor descriptor : Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+				if (descriptor.getReadMethod() != null) {
+					readMethods.put(descriptor.getName(), descriptor.getReadMethod());
+				}
+			}
+		} catch (IntrospectionException e) {
+			log.warn("Error introspecting {}: {}", type, e.getMessage());
+		}
+		this.bean = !(readMethods.isEmpty() || (readMethods.size() == 1 && readMethods.containsKey("class")));
+		List<Property> list = new ArrayList<Property>();
+		if (bean) {
+			for (Map.Entry<String, Method> entry : readMethods.entrySet()) {
+				String name = entry.getKey();
+				Field field = getDeclaredField(type, name);
+				if (Serializer.serializeField(name, field, entry.getValue())) {
+					list.add(new Property(name, field, entry.getValue()));
+				}
+			}
+		} else {
+			for (Field field : type.getFields()) {
+				if (Serializer.serializeField(field.getName(), field, null)) {
+					list.add(new Property(field.getName(), field, null));
+				}
+			}
+		}
+		this.properties = list.toArray(new Property[list.size()]);
+		// BeanUtils puts the properties of maps and dyna beans into them
+		boolean plain = !Map.class.isAssignableFrom(type) && !DynaBean.class.isAssignableFrom(type);
+		BeanUtilsBean beanUtils = BeanUtilsBean.getInstance();
+		for (PropertyDescriptor descriptor : beanUtils.getPropertyUtils().getPropertyDescriptors(type)) {
+			String name = descriptor.getName();
+			if (descriptor.getReadMethod() != null) {
+				propertyTypes.put(name, descriptor.getReadMethod().getGenericReturnType());
+			}
+			if (plain && descriptor.getWriteMethod() != null && !(descriptor instanceof IndexedPropertyDescriptor)) {
+				Setter setter = Setter.create(descriptor, beanUtils);
+				if (setter != null) {
+					setters.put(name, setter);
+				}
+			}
+		}
+		for (Field field : fields.values()) {
+			propertyTypes.put(field.getName(), field.getGenericType());
+		}
+	}
+
+	/**
+	 * Return the serializer of a class, it is resolved on first use.
+	 *
+	 * @param type class
+	 * @return serializer
+	 */
+	public static BeanSerializer getSerializer(Class<?> type) {
+		return serializers.get(type);
+	}
+
+	private static byte[] encode(String string) {
+		ByteBuffer buf = AMF.CHARSET.encode(string);
+		byte[] encoded = new byte[buf.limit()];
+		buf.get(encoded);
+		return encoded;
+	}
+
+	/**
+	 * Field of the property declared by the class or its super classes, the super class wins.
+	 */
+	private static Field getDeclaredField(Class<?> type, String name) {
+		Field field = null;
+		for (Class<?> clazz = type; clazz != null && !clazz.equals(Object.class); clazz = clazz.getSuperclass()) {
+			for (Field fld : clazz.getDeclaredFields()) {
+				if (fld.getName().equals(name)) {
+					field = fld;
+					break;
+				}
+			}
+		}
+		return field;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	/**
+	 * @return class name written for the objects of the class
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * @return class name encoded in UTF-8
+	 */
+	public byte[] getEncodedClassName() {
+		return encodedClassName;
+	}
+
+	/**
+	 * @return true if the objects are written without their class name
+	 */
+	public boolean isAnonymous() {
+		return anonymous;
+	}
+
+	/**
+	 * @return true if the properties are bean properties, false if they are public fields
+	 */
+	public boolean isBean() {
+		return bean;
+	}
+
+	/**
+	 * @return properties to write, the ones not to be serialized are left out
+	 */
+	public Property[] getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Return the type of a property, the public field first, then the read method.
+	 *
+	 * @param name property name
+	 * @return generic type, null if the class has no such property
+	 */
+	public Type getPropertyType(String name) {
+		return propertyTypes.get(name);
+	}
+
+	/**
+	 * Return a public field like {@link Class#getField(String)} without the exception.
+	 *
+	 * @param name field name
+	 * @return field, null if none
+	 */
+	public Field getField(String name) {
+		return fields.get(name);
+	}
+
+	/**
+	 * Set a property through its write method when the value is of the property type, BeanUtils
+	 * would not convert it then.
+	 *
+	 * @param bean bean of the class
+	 * @param name property name
+	 * @param value value, not null
+	 * @return false if the property has to be set by BeanUtils
+	 * @throws InvocationTargetException if the write method throws
+	 */
+	public boolean setProperty(Object bean, String name, Object value) throws InvocationTargetException {
+		Setter setter = setters.get(name);
+		if (setter == null || !setter.accepts(value)) {
+			return false;
+		}
+		try {
+			setter.handle.invokeExact(bean, value);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+		return true;
+	}
+
+	/**
+	 * Property written for the objects of a class
+	 */
+	public static final class Property {
+
+		private final String name;
+
+		private final byte[] encodedName;
+
+		private final Field field;
+
+		private final Method getter;
+
+		// null when the getter or field cannot be looked up, it is read by reflection then
+		private final MethodHandle handle;
+
+		Property(String name, Field field, Method getter) {
+			this.name = name;
+			this.encodedName = encode(name);
+			this.field = field;
+			this.getter = getter;
+			MethodHandle mh = null;
+			try {
+				if (getter != null) {
+					mh = MethodHandles.publicLookup().unreflect(getter);
+				} else {
+					mh = MethodHandles.publicLookup().unreflectGetter(field);
+				}
+				mh = mh.asType(GETTER_TYPE);
+			} catch (IllegalAccessException e) {
+				// public member of a class not visible from here
+				mh = null;
+			}
+			this.handle = mh;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return name encoded in UTF-8
+		 */
+		public byte[] getEncodedName() {
+			return encodedName;
+		}
+
+		/**
+		 * @return field of the property, null if none
+		 */
+		public Field getField() {
+			return field;
+		}
+
+		/**
+		 * @return read method, null for a public field
+		 */
+		public Method getGetter() {
+			return getter;
+		}
+
+		/**
+		 * Read the property of an object. A failing read method gives null like a BeanMap does.
+		 *
+		 * @param object object of the class
+		 * @return value
+		 * @throws IllegalAccessException if the public field cannot be read
+		 */
+		public Object getValue(Object object) throws IllegalAccessException {
+			if (getter == null) {
+				if (handle == null) {
+					return field.get(object);
+				}
+				try {
+					return (Object) handle.invokeExact(object);
+				} catch (Throwable t) {
+					throw new IllegalAccessException(t.toString());
+				}
+			}
+			try {
+				if (handle == null) {
+					return getter.invoke(object);
+				}
+				return (Object) handle.invokeExact(object);
+			} catch (Throwable t) {
+				log.warn("Error reading property {} of {}: {}", new Object[] { name, object.getClass(), t });
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Write method of a property, used for the values BeanUtils would set as they are
+	 */
+	private static final class Setter {
+
+		private final Class<?> valueType;
+
+		// the value has to be of the type itself, its converter is not a plain cast
+		private final boolean exact;
+
+		private final MethodHandle handle;
+
+		private Setter(Class<?> valueType, boolean exact, MethodHandle handle) {
+			this.valueType = valueType;
+			this.exact = exact;
+			this.handle = handle;
+		}
+
+		static Setter create(PropertyDescriptor descriptor, BeanUtilsBean beanUtils) {
+			Class<?> propertyType = descriptor.getPropertyType();
+			if (propertyType == null || propertyType.isArray()) {
+				return null;
+			}
+			Class<?> valueType = MethodType.methodType(propertyType).wrap().returnType();
+			// primitives, their wrappers and strings are set as they are when of the exact type
+			boolean simple = valueType == String.class || MethodType.methodType(valueType).unwrap().returnType().isPrimitive();
+			if (!simple && beanUtils.getConvertUtils().lookup(propertyType) != null) {
+				// dates and the like are copied by their converters
+				return null;
+			}
+			try {
+				MethodHandle mh = MethodHandles.publicLookup().unreflect(descriptor.getWriteMethod()).asType(SETTER_TYPE);
+				return new Setter(valueType, simple, mh);
+			} catch (IllegalAccessException e) {
+				return null;
+			}
+		}
+
+		boolean accepts(Object value) {
+			return exact ? value.getClass() == valueType : valueType.isInstance(value);
+		}
+	}
+}
@@ -23,6 +23,9 @@ public class FLV2MPEGTSChunkWriter implements IFLV2MPEGTSWriter {
 	
 	private IoBuffer data;
 	
+	// position of the data not handed out by flushPart yet
+	private int partMark;
+	
 	private boolean init = false;
 	
 	private FLV2MPEGTSWriter flv2tsWriter;
@@ -70,6 +73,7 @@ public class FLV2MPEGTSChunkWriter implements IFLV2MPEGTSWriter {
 	public void startChunkTS(MpegtsSegment segment) {
 		
 		this.data = segment.getBuffer();
+		this.partMark = data.position();
 		if (isEncrypt) {
 			encryptor.init(segment.getEncKeyBytes(), segment.getSequence());
 		}
@@ -81,10 +85,30 @@ public class FLV2MPEGTSChunkWriter implements IFLV2MPEGTSWriter {
 	public void startChunkTS(IoBuffer data) {
 		
 		this.data = data;		
+		this.partMark = data.position();
 		initTsHeader();
 		log.debug("ts chunk start!");
 	}
 	
+	/**
+	 * Return a copy of the ts data written since the previous call, for low latency parts.
+	 * Only meaningful for unencrypted chunks.
+	 * 
+	 * @return read-only block or null if nothing was written
+	 */
+	public IoBuffer flushPart() {
+		int position = data.position();
+		if (position <= partMark) return null;
+		IoBuffer src = data.duplicate();
+		src.limit(position);
+		src.position(partMark);
+		IoBuffer block = IoBuffer.allocate(position - partMark, false);
+		block.put(src);
+		block.flip();
+		partMark = position;
+		return block.asReadOnlyBuffer();
+	}
+	
 	/**
 	 * end write chunk ts
 	 */
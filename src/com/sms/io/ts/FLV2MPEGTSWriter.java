@@ -8,9 +8,8 @@ import static com.sms.io.ts.TransportStreamUtils.fillPAT;
 import static com.sms.io.ts.TransportStreamUtils.fillPMT;
 import static com.sms.io.ts.TransportStreamUtils.videoCodecToStreamType;
 
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
@@ -31,6 +30,10 @@ import com.sms.server.stream.codec.VideoCodec;
 
 /**
  * FLV TO Mpeg2TS
+ * <p>
+ * Nothing is allocated per frame, the nal units are copied from the frame straight into the
+ * reused ts packet, the start codes and delimiters are shared constants and grouped audio is
+ * collected in a reused payload.
  * @author pengliren
  *
  */
@@ -48,8 +51,29 @@ public class FLV2MPEGTSWriter {
 	
 	private byte audioStreamID = (byte) 0xC0;
 	
+	private static final byte[] START_CODE = { 0x00, 0x00, 0x00, 0x01 };
+	
+	// access unit delimiters by frame type
+	private static final byte[] AUD_KEY = { 0x00, 0x00, 0x00, 0x01, 0x09, 16 };
+	
+	private static final byte[] AUD_INTER = { 0x00, 0x00, 0x00, 0x01, 0x09, 48 };
+	
+	private static final byte[] AUD_DISPOSABLE = { 0x00, 0x00, 0x00, 0x01, 0x09, 80 };
+	
 	private byte[] block = new byte[TS_PACKETLEN];
 	
+	// pes payload of the current video frame, data null means the frame itself
+	private byte[][] fragmentData = new byte[32][];
+	
+	private int[] fragmentOffset = new int[32];
+	
+	private int[] fragmentLen = new int[32];
+	
+	private int fragmentCount;
+	
+	// view of the current video frame
+	private ByteBuffer source;
+	
 	protected long videoCCounter = -1L;
 	
 	protected long audioCCounter = -1L;
@@ -116,50 +140,38 @@ public class FLV2MPEGTSWriter {
 	
 	public void handleVideo(VideoData data) {
 		
-		IoBuffer dataBuff = data.getData().asReadOnlyBuffer();
-		dataBuff.mark();
+		IoBuffer dataBuff = data.getData();
+		int start = dataBuff.position();
+		int dataLen = dataBuff.remaining();
 		long ts90 = data.getTimestamp() * TIME_SCALE;
 		lastVideoTimecode = ts90;
-		int dataLen = dataBuff.remaining();
-		byte[] dataBytes = new byte[dataLen];
-		dataBuff.get(dataBytes);
-		dataBuff.reset();		
-		if (dataBuff.remaining() >= 2) {
-			int firstByte = dataBuff.get();
-			int secondByte = dataBuff.get();
+		if (dataLen >= 2) {
+			int firstByte = dataBuff.get(start);
+			int secondByte = dataBuff.get(start + 1);
 			int codec = FLVUtils.getVideoCodec(firstByte);
 			int frameType = FLVUtils.getFrameType(firstByte);
-			int paloadLen = 0;
-			int naluNum = 0;
 			videoCodec = codec;
 			if ((codec == VideoCodec.AVC.getId()) && (secondByte != 1)) {
-				if (secondByte == 0) {
-					dataBuff.position(0);
-					if (h264CodecConfigPart == null) {
-						h264CodecConfigPart = H264Utils.breakApartAVCC(dataBuff);
-						dataBuff.position(5);
-					}
+				if (secondByte == 0 && h264CodecConfigPart == null) {
+					IoBuffer config = dataBuff.duplicate();
+					config.position(start);
+					h264CodecConfigPart = H264Utils.breakApartAVCC(config);
 				}
 			} else if (codec == VideoCodec.AVC.getId()) {
-				int cts = BufferUtils.byteArrayToInt(dataBytes, 2, 3) * TIME_SCALE;
+				int cts = (((dataBuff.get(start + 2) & 0xFF) << 16) | ((dataBuff.get(start + 3) & 0xFF) << 8) | (dataBuff.get(start + 4) & 0xFF)) * TIME_SCALE;
 				long ts = ts90 + cts;
-				int ptdDtsFlag = 1;
-				int loop = 5;
-				int naluLen;
-				dataBuff.position(5);
-				List<TSPacketFragment> tsPacketList = new ArrayList<TSPacketFragment>();
-				byte[] h264Startcode = new byte[4]; // h264 start code 0x00 0x00
-				h264Startcode[3] = 1; // 0x00 0x01
+				int end = start + dataLen;
 				int sps = 0;
 				int pps = 0;
 				int pd = 0;
-
-				while (loop + 4 <= dataLen) {
-					naluLen = BufferUtils.byteArrayToInt(dataBytes, loop, 4);
+				
+				// find the nal units present before laying out the pes payload
+				int loop = start + 5;
+				while (loop + 4 <= end) {
+					int naluLen = dataBuff.getInt(loop);
 					loop += 4;
-
-					if ((naluLen <= 0) || (loop + naluLen > dataLen))break;
-					int naluType = dataBytes[loop] & 0x1F;
+					if ((naluLen <= 0) || (loop + naluLen > end)) break;
+					int naluType = dataBuff.get(loop) & 0x1F;
 					if (naluType == 7) { // sps
 						sps = 1;
 					} else if (naluType == 8) { // pps
@@ -167,252 +179,278 @@ public class FLV2MPEGTSWriter {
 					} else if (naluType == 9) { // pd
 						pd = 1;
 					}
-
-					tsPacketList.add(new TSPacketFragment(h264Startcode, 0, h264Startcode.length));
-					tsPacketList.add(new TSPacketFragment(dataBytes, loop, naluLen));
-					paloadLen += (naluLen + h264Startcode.length);
-					naluNum++;
 					loop += naluLen;
-
-					if (loop >= dataLen) break;
 				}
-
-				int idx = 0;
+				
+				fragmentCount = 0;
+				int paloadLen = 0;
 				if (pd == 0) {
-					byte[] annex = new byte[6];
-					annex[3] = 0x01;
-					annex[4] = 0x09;
-					if (frameType == 1) annex[5] = 16;
-					else if (frameType == 3) annex[5] = 80;
-					else annex[5] = 48;
-					tsPacketList.add(idx, new TSPacketFragment(annex, 0, annex.length));
-					idx++;
-					paloadLen += annex.length;
-					naluNum++;
-					naluLen = 1;
-				} else {
-					idx = 2;
+					paloadLen += addFragment(frameType == 1 ? AUD_KEY : (frameType == 3 ? AUD_DISPOSABLE : AUD_INTER), 0, AUD_KEY.length);
 				}
-
-				// sps and pps
-				if (frameType == 1 && (pps == 0 || pd == 0)) {
-					if (frameType == 1 && sps == 0 && h264CodecConfigPart != null && h264CodecConfigPart.getSps() != null) {
-						byte[] h264SpsStartcode = new byte[4];
-						h264SpsStartcode[3] = 1;
-						tsPacketList.add(idx, new TSPacketFragment(h264SpsStartcode, 0, h264SpsStartcode.length));
-						idx++;
-						tsPacketList.add(idx, new TSPacketFragment(h264CodecConfigPart.getSps(), 0, h264CodecConfigPart.getSps().length));
-						idx++;
-						paloadLen += (h264CodecConfigPart.getSps().length + h264SpsStartcode.length);
-						naluNum++;
-						naluLen = 1;
-					}
-
-					if (frameType == 1 && pps == 0 && h264CodecConfigPart != null && h264CodecConfigPart.getPpss() != null) {
-						List<byte[]> ppss = h264CodecConfigPart .getPpss();
-						for (byte[] b : ppss) {
-							byte[] h264PpsStartcode = new byte[4]; 
-							h264PpsStartcode[3] = 1;
-							tsPacketList.add(idx, new TSPacketFragment(h264PpsStartcode, 0, h264PpsStartcode.length));
-							idx++;
-							tsPacketList.add(idx, new TSPacketFragment(b, 0, b.length));
-							idx++;
-							paloadLen += (b.length + h264PpsStartcode.length);
-							naluNum++;
-							naluLen = 1;
-						}
+				// sps and pps go after the access unit delimiter
+				boolean addConfig = frameType == 1 && (pps == 0 || pd == 0) && h264CodecConfigPart != null;
+				int configAt = pd == 0 ? fragmentCount : 2;
+				loop = start + 5;
+				while (loop + 4 <= end) {
+					if (addConfig && fragmentCount >= configAt) {
+						paloadLen += addConfig(sps, pps);
+						addConfig = false;
 					}
+					int naluLen = dataBuff.getInt(loop);
+					loop += 4;
+					if ((naluLen <= 0) || (loop + naluLen > end)) break;
+					paloadLen += addFragment(START_CODE, 0, START_CODE.length);
+					paloadLen += addFragment(null, loop, naluLen);
+					loop += naluLen;
+				}
+				if (addConfig && fragmentCount >= configAt) {
+					paloadLen += addConfig(sps, pps);
 				}
 
-				if (naluNum > 0) {
-					TSPacketFragment tsPacket = (TSPacketFragment) tsPacketList.remove(0);
-					int offset = ((TSPacketFragment) tsPacket).getOffset();
-					int len = ((TSPacketFragment) tsPacket).getLen();
-					byte[] buff = ((TSPacketFragment) tsPacket).getBuffer();
-					long pcr = getPCRTimecode();
-					int paloadReadedLen = 0;
-					int stt = 1; // pay_load_unit_start_indicator
-					int pesPayloadWritten = 0;
-					while (true) {
-						int unReadPayloadLen = paloadLen - paloadReadedLen;
-						stt = 1;
-						int atf = 1; // adaption_field_control
-						int readPayloadLen = 0;
-						if (unReadPayloadLen > 32725) unReadPayloadLen = 32725; //maxPesDataLen is 32725
+				if (fragmentCount > 0) {
+					source = dataBuff.buf().duplicate();
+					writeVideoPackets(ts90, ts, frameType, paloadLen);
+					source = null;
+				}
+			} else {
+				log.debug("video data is not h264/avc!");
+			}
+		}
+	}
+	
+	private int addConfig(int sps, int pps) {
+		
+		int len = 0;
+		if (sps == 0 && h264CodecConfigPart.getSps() != null) {
+			len += addFragment(START_CODE, 0, START_CODE.length);
+			len += addFragment(h264CodecConfigPart.getSps(), 0, h264CodecConfigPart.getSps().length);
+		}
+		if (pps == 0 && h264CodecConfigPart.getPpss() != null) {
+			for (byte[] b : h264CodecConfigPart.getPpss()) {
+				len += addFragment(START_CODE, 0, START_CODE.length);
+				len += addFragment(b, 0, b.length);
+			}
+		}
+		return len;
+	}
+	
+	/**
+	 * add a piece of the pes payload
+	 * @param data bytes, null for the source frame
+	 * @param offset
+	 * @param len
+	 * @return len
+	 */
+	private int addFragment(byte[] data, int offset, int len) {
+		
+		if (fragmentCount == fragmentData.length) {
+			int capacity = fragmentCount * 2;
+			fragmentData = Arrays.copyOf(fragmentData, capacity);
+			fragmentOffset = Arrays.copyOf(fragmentOffset, capacity);
+			fragmentLen = Arrays.copyOf(fragmentLen, capacity);
+		}
+		fragmentData[fragmentCount] = data;
+		fragmentOffset[fragmentCount] = offset;
+		fragmentLen[fragmentCount] = len;
+		fragmentCount++;
+		return len;
+	}
+	
+	private void copyFragment(int fragment, int from, int pos, int len) {
+		
+		byte[] data = fragmentData[fragment];
+		if (data != null) {
+			System.arraycopy(data, fragmentOffset[fragment] + from, block, pos, len);
+		} else {
+			source.position(fragmentOffset[fragment] + from);
+			source.get(block, pos, len);
+		}
+	}
+	
+	private void writeVideoPackets(long ts90, long ts, int frameType, int paloadLen) {
+		
+		int ptdDtsFlag = 1;
+		int fragment = 0;
+		int len = fragmentLen[0];
+		long pcr = getPCRTimecode();
+		int paloadReadedLen = 0;
+		int stt = 1; // pay_load_unit_start_indicator
+		int pesPayloadWritten = 0;
+		while (true) {
+			int unReadPayloadLen = paloadLen - paloadReadedLen;
+			stt = 1;
+			int atf = 1; // adaption_field_control
+			int readPayloadLen = 0;
+			if (unReadPayloadLen > 32725) unReadPayloadLen = 32725; //maxPesDataLen is 32725
 
-						while (true) {
-							int tsIdx = 0;
-							// ts header 4 byte
-							block[tsIdx] = SYNCBYTE; // ts header start sync_byte 
-							tsIdx++;
-							block[tsIdx] = (byte) ((stt != 0 ? 64 : 0) + (0x1F & videoPID >> 8));
-							tsIdx++;
-							block[tsIdx] = (byte) (videoPID & 0xFF);
-							tsIdx++;
-							if (videoCCounter == -1L)
-								videoCCounter = 1L;
-							else
-								videoCCounter += 1L;
-							block[tsIdx] = (byte) (int) (16L + (videoCCounter & 0xF)); // ts header end 
-							
-							tsIdx++;
-							int pesHeaderLen = 0;
-							if (stt != 0)
-								pesHeaderLen = 9 + (ptdDtsFlag != 0 ? 10 : 5);
-							int tsPaloadLen = TS_PACKETLEN - tsIdx - pesHeaderLen;
-							if (tsPaloadLen > unReadPayloadLen - readPayloadLen)
-								tsPaloadLen = unReadPayloadLen - readPayloadLen;
-							int atfLen;
-							int fillNullLen;
-							long tempts;
+			while (true) {
+				int tsIdx = 0;
+				// ts header 4 byte
+				block[tsIdx] = SYNCBYTE; // ts header start sync_byte 
+				tsIdx++;
+				block[tsIdx] = (byte) ((stt != 0 ? 64 : 0) + (0x1F & videoPID >> 8));
+				tsIdx++;
+				block[tsIdx] = (byte) (videoPID & 0xFF);
+				tsIdx++;
+				if (videoCCounter == -1L)
+					videoCCounter = 1L;
+				else
+					videoCCounter += 1L;
+				block[tsIdx] = (byte) (int) (16L + (videoCCounter & 0xF)); // ts header end 
+				
+				tsIdx++;
+				int pesHeaderLen = 0;
+				if (stt != 0)
+					pesHeaderLen = 9 + (ptdDtsFlag != 0 ? 10 : 5);
+				int tsPaloadLen = TS_PACKETLEN - tsIdx - pesHeaderLen;
+				if (tsPaloadLen > unReadPayloadLen - readPayloadLen)
+					tsPaloadLen = unReadPayloadLen - readPayloadLen;
+				int atfLen;
+				int fillNullLen;
+				long tempts;
 
-							if (atf != 0) {
-								int thirdByte = 3;
-								block[thirdByte] = (byte) (block[thirdByte] | 0x20);
-								atfLen = 8;
-								tsPaloadLen = TS_PACKETLEN - tsIdx - pesHeaderLen - atfLen;
-								if (tsPaloadLen > unReadPayloadLen - readPayloadLen)
-									tsPaloadLen = unReadPayloadLen - readPayloadLen;
-								fillNullLen = 0;
-								if (tsIdx + tsPaloadLen + pesHeaderLen + atfLen < TS_PACKETLEN)
-									fillNullLen = TS_PACKETLEN - (tsIdx + tsPaloadLen + pesHeaderLen + atfLen);
-								block[tsIdx] = (byte) (atfLen - 1 + fillNullLen & 0xFF);
-								tsIdx++;
-								block[tsIdx] = (byte) ((isFirstVideoPacket ? 0x80 : 16) | (frameType == 1 ? 64 : 0));
-								tsIdx++;
-								tempts = pcr;
-								tempts <<= 7;
-								byte[] pcrData = BufferUtils.longToByteArray(tempts);
-								block[tsIdx + 4] = (byte) ((pcrData[7] & 0x80) + 126);
-								block[tsIdx + 3] = (byte) (pcrData[6] & 0xFF);
-								block[tsIdx + 2] = (byte) (pcrData[5] & 0xFF);
-								block[tsIdx + 1] = (byte) (pcrData[4] & 0xFF);
-								block[tsIdx] = (byte) (pcrData[3] & 0xFF);
-								tsIdx += 6;
-								if (fillNullLen > 0) {
-									System.arraycopy(TransportStreamUtils.FILL, 0, block, tsIdx, fillNullLen);
-									tsIdx += fillNullLen;
-								}
-								tsPaloadLen = TS_PACKETLEN - tsIdx - pesHeaderLen;
-								if (tsPaloadLen > unReadPayloadLen - readPayloadLen)
-									tsPaloadLen = unReadPayloadLen - readPayloadLen;
-								atf = 0;
-							} else if (tsIdx + tsPaloadLen + pesHeaderLen < TS_PACKETLEN) {
-								atfLen = TS_PACKETLEN - (tsIdx + tsPaloadLen + pesHeaderLen);
-								int third = 3;
-								block[third] = (byte) (block[third] | 0x20);
-								if (atfLen > 1) {
-									atfLen--;
-									block[tsIdx] = (byte) (atfLen & 0xFF);
-									tsIdx++;
-									block[tsIdx] = 0;
-									tsIdx++;
-									atfLen--;
-									if (atfLen > 0)
-										System.arraycopy(TransportStreamUtils.FILL, 0, block, tsIdx, atfLen);
-									tsIdx += atfLen;
-								} else {
-									block[tsIdx] = 0;
-									tsIdx++;
-								}
-							}
-							if (stt != 0) { // pay_load_unit_start_indicator = 1
-								block[tsIdx] = 0;
-								tsIdx++;
-								block[tsIdx] = 0;
-								tsIdx++;
-								block[tsIdx] = 1;
-								tsIdx++;
-								block[tsIdx] = videoStreamID;
-								tsIdx++;
-								atfLen = ptdDtsFlag != 0 ? 10 : 5;
-								fillNullLen = unReadPayloadLen + atfLen + 3;
-								if (fillNullLen >= 65536)
-									log.warn("toolong: {}", fillNullLen);
-								BufferUtils.intToByteArray(fillNullLen, block, tsIdx, 2);
-								tsIdx += 2;
-								block[tsIdx] = (byte) 0x84;
-								tsIdx++;
-								block[tsIdx] = (byte) (ptdDtsFlag != 0 ? 0xC0 : 0x80);
-								tsIdx++;
-								block[tsIdx] = (byte) atfLen;
-								tsIdx++;
-								tempts = ts;
-								block[tsIdx + 4] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
-								tempts >>= 7;
-								block[tsIdx + 3] = (byte) (int) (tempts & 0xFF);
-								tempts >>= 8;
-								block[tsIdx + 2] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
-								tempts >>= 7;
-								block[tsIdx + 1] = (byte) (int) (tempts & 0xFF);
-								tempts >>= 8;
-								block[tsIdx] = (byte) (int) (((tempts & 0x7) << 1) + 1L + (ptdDtsFlag != 0 ? 48 : 32));
-								tsIdx += 5;
-								if (ptdDtsFlag != 0) {
-									tempts = ts90;
-									block[tsIdx + 4] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
-									tempts >>= 7;
-									block[tsIdx + 3] = (byte) (int) (tempts & 0xFF);
-									tempts >>= 8;
-									block[tsIdx + 2] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
-									tempts >>= 7;
-									block[tsIdx + 1] = (byte) (int) (tempts & 0xFF);
-									tempts >>= 8;
-									block[tsIdx] = (byte) (int) (((tempts & 0x7) << 1) + 1L + (ptdDtsFlag != 0 ? 16 : 32));
-									tsIdx += 5;
-								}
-							}
+				if (atf != 0) {
+					int thirdByte = 3;
+					block[thirdByte] = (byte) (block[thirdByte] | 0x20);
+					atfLen = 8;
+					tsPaloadLen = TS_PACKETLEN - tsIdx - pesHeaderLen - atfLen;
+					if (tsPaloadLen > unReadPayloadLen - readPayloadLen)
+						tsPaloadLen = unReadPayloadLen - readPayloadLen;
+					fillNullLen = 0;
+					if (tsIdx + tsPaloadLen + pesHeaderLen + atfLen < TS_PACKETLEN)
+						fillNullLen = TS_PACKETLEN - (tsIdx + tsPaloadLen + pesHeaderLen + atfLen);
+					block[tsIdx] = (byte) (atfLen - 1 + fillNullLen & 0xFF);
+					tsIdx++;
+					block[tsIdx] = (byte) ((isFirstVideoPacket ? 0x80 : 16) | (frameType == 1 ? 64 : 0));
+					tsIdx++;
+					tempts = pcr;
+					tempts <<= 7;
+					block[tsIdx + 4] = (byte) ((tempts & 0x80) + 126);
+					block[tsIdx + 3] = (byte) (tempts >> 8);
+					block[tsIdx + 2] = (byte) (tempts >> 16);
+					block[tsIdx + 1] = (byte) (tempts >> 24);
+					block[tsIdx] = (byte) (tempts >> 32);
+					tsIdx += 6;
+					if (fillNullLen > 0) {
+						System.arraycopy(TransportStreamUtils.FILL, 0, block, tsIdx, fillNullLen);
+						tsIdx += fillNullLen;
+					}
+					tsPaloadLen = TS_PACKETLEN - tsIdx - pesHeaderLen;
+					if (tsPaloadLen > unReadPayloadLen - readPayloadLen)
+						tsPaloadLen = unReadPayloadLen - readPayloadLen;
+					atf = 0;
+				} else if (tsIdx + tsPaloadLen + pesHeaderLen < TS_PACKETLEN) {
+					atfLen = TS_PACKETLEN - (tsIdx + tsPaloadLen + pesHeaderLen);
+					int third = 3;
+					block[third] = (byte) (block[third] | 0x20);
+					if (atfLen > 1) {
+						atfLen--;
+						block[tsIdx] = (byte) (atfLen & 0xFF);
+						tsIdx++;
+						block[tsIdx] = 0;
+						tsIdx++;
+						atfLen--;
+						if (atfLen > 0)
+							System.arraycopy(TransportStreamUtils.FILL, 0, block, tsIdx, atfLen);
+						tsIdx += atfLen;
+					} else {
+						block[tsIdx] = 0;
+						tsIdx++;
+					}
+				}
+				if (stt != 0) { // pay_load_unit_start_indicator = 1
+					block[tsIdx] = 0;
+					tsIdx++;
+					block[tsIdx] = 0;
+					tsIdx++;
+					block[tsIdx] = 1;
+					tsIdx++;
+					block[tsIdx] = videoStreamID;
+					tsIdx++;
+					atfLen = ptdDtsFlag != 0 ? 10 : 5;
+					fillNullLen = unReadPayloadLen + atfLen + 3;
+					if (fillNullLen >= 65536)
+						log.warn("toolong: {}", fillNullLen);
+					BufferUtils.intToByteArray(fillNullLen, block, tsIdx, 2);
+					tsIdx += 2;
+					block[tsIdx] = (byte) 0x84;
+					tsIdx++;
+					block[tsIdx] = (byte) (ptdDtsFlag != 0 ? 0xC0 : 0x80);
+					tsIdx++;
+					block[tsIdx] = (byte) atfLen;
+					tsIdx++;
+					tempts = ts;
+					block[tsIdx + 4] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
+					tempts >>= 7;
+					block[tsIdx + 3] = (byte) (int) (tempts & 0xFF);
+					tempts >>= 8;
+					block[tsIdx + 2] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
+					tempts >>= 7;
+					block[tsIdx + 1] = (byte) (int) (tempts & 0xFF);
+					tempts >>= 8;
+					block[tsIdx] = (byte) (int) (((tempts & 0x7) << 1) + 1L + (ptdDtsFlag != 0 ? 48 : 32));
+					tsIdx += 5;
+					if (ptdDtsFlag != 0) {
+						tempts = ts90;
+						block[tsIdx + 4] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
+						tempts >>= 7;
+						block[tsIdx + 3] = (byte) (int) (tempts & 0xFF);
+						tempts >>= 8;
+						block[tsIdx + 2] = (byte) (int) (((tempts & 0x7F) << 1) + 1L);
+						tempts >>= 7;
+						block[tsIdx + 1] = (byte) (int) (tempts & 0xFF);
+						tempts >>= 8;
+						block[tsIdx] = (byte) (int) (((tempts & 0x7) << 1) + 1L + (ptdDtsFlag != 0 ? 16 : 32));
+						tsIdx += 5;
+					}
+				}
 
-							while (true) {
-								atfLen = tsPaloadLen;
-								if (atfLen > len - pesPayloadWritten)
-									atfLen = len - pesPayloadWritten;
-								System.arraycopy(buff, offset + pesPayloadWritten, block, tsIdx, atfLen);
-								pesPayloadWritten += atfLen;
-								tsIdx += atfLen;
-								paloadReadedLen += atfLen;
-								tsPaloadLen -= atfLen;
-								readPayloadLen += atfLen;
-								if (pesPayloadWritten >= len) {
-									pesPayloadWritten = 0;
-									if (tsPacketList.size() > 0) {
-										tsPacket = (TSPacketFragment) tsPacketList.remove(0);
-										offset = ((TSPacketFragment) tsPacket).getOffset();
-										len = ((TSPacketFragment) tsPacket).getLen();
-										buff = ((TSPacketFragment) tsPacket).getBuffer();
-									}
-								}
-								if (tsIdx >= TS_PACKETLEN || readPayloadLen >= unReadPayloadLen || paloadReadedLen >= paloadLen) break;
-							}
-							stt = 0;
-							writer.nextBlock(ts90, block);
-							isFirstVideoPacket = false;
-							if (readPayloadLen >= unReadPayloadLen || paloadReadedLen >= paloadLen) break;
+				while (true) {
+					atfLen = tsPaloadLen;
+					if (atfLen > len - pesPayloadWritten)
+						atfLen = len - pesPayloadWritten;
+					copyFragment(fragment, pesPayloadWritten, tsIdx, atfLen);
+					pesPayloadWritten += atfLen;
+					tsIdx += atfLen;
+					paloadReadedLen += atfLen;
+					tsPaloadLen -= atfLen;
+					readPayloadLen += atfLen;
+					if (pesPayloadWritten >= len) {
+						pesPayloadWritten = 0;
+						if (fragment + 1 < fragmentCount) {
+							fragment++;
+							len = fragmentLen[fragment];
 						}
-						if (paloadReadedLen >= paloadLen) break;
 					}
+					if (tsIdx >= TS_PACKETLEN || readPayloadLen >= unReadPayloadLen || paloadReadedLen >= paloadLen) break;
 				}
-			} else {
-				log.debug("video data is not h264/avc!");
+				stt = 0;
+				writer.nextBlock(ts90, block);
+				isFirstVideoPacket = false;
+				if (readPayloadLen >= unReadPayloadLen || paloadReadedLen >= paloadLen) break;
 			}
+			if (paloadReadedLen >= paloadLen) break;
 		}
+		// drop the references to the config
+		Arrays.fill(fragmentData, 0, fragmentCount, null);
+		fragmentCount = 0;
 	}
 	
 	public void handleAudio(AudioData data) {
 		
-		IoBuffer dataBuff = data.getData().asReadOnlyBuffer();
-		dataBuff.mark();
+		IoBuffer dataBuff = data.getData();
+		int start = dataBuff.position();
 		int dataLen = dataBuff.remaining();
-		byte[] dataBytes = new byte[dataLen];
-		dataBuff.get(dataBytes);
-		dataBuff.reset();
-		byte firstByte = dataBuff.get();
-		byte secondByte = dataBuff.get();
+		if (dataLen < 2) return;
+		byte firstByte = dataBuff.get(start);
+		byte secondByte = dataBuff.get(start + 1);
 		int codecId = FLVUtils.getAudioCodec(firstByte);
 		audioCodec = codecId;
 		if (codecId == AudioCodec.AAC.getId() && secondByte != 1) {
 			if (secondByte == 0) {
-				AACFrame tempFrame = AACUtils.decodeAACCodecConfig(dataBuff);
+				IoBuffer config = dataBuff.duplicate();
+				config.position(start + 2);
+				AACFrame tempFrame = AACUtils.decodeAACCodecConfig(config);
 				if (aacFrame == null && tempFrame != null) {
 					aacFrame = tempFrame;
 				}
@@ -443,23 +481,22 @@ public class FLV2MPEGTSWriter {
 				}
 				
 				// aacFram size = 7 byte(adts header) + aac data size - 2 byte(0xAF 0x00)
-				aacFrame.setSize(7 + dataBytes.length - 2);
-				byte[] adts = new byte[7];
-				AACUtils.frameToADTSBuffer(aacFrame, adts, 0);
-				
-				waitingAudio.fragments.add(new TSPacketFragment(adts, 0, adts.length));
-				waitingAudio.size += adts.length;
-				waitingAudio.fragments.add(new TSPacketFragment(dataBytes, 2, dataBytes.length - 2));
-				waitingAudio.size += dataBytes.length - 2;
+				aacFrame.setSize(7 + dataLen - 2);
+				byte[] payload = waitingAudio.reserve(7 + dataLen - 2);
+				AACUtils.frameToADTSBuffer(aacFrame, payload, waitingAudio.size);
+				copy(dataBuff, start + 2, payload, waitingAudio.size + 7, dataLen - 2);
+				waitingAudio.size += 7 + dataLen - 2;
 				waitingAudio.codec = codecId;				
 			} else if(codecId == AudioCodec.MP3.getId()) {
 				
+				byte[] payload = waitingAudio.reserve(dataLen - 1);
+				copy(dataBuff, start + 1, payload, waitingAudio.size, dataLen - 1);
 				try {
 					if (mp3HeaderBuf == null) {
 						mp3HeaderBuf = new byte[4];
 						mp3HeaderData = new MP3HeaderData();
 					}
-					System.arraycopy(dataBytes, 1, mp3HeaderBuf, 0, 4);
+					System.arraycopy(payload, waitingAudio.size, mp3HeaderBuf, 0, 4);
 					int syncData = MP3BufferedDecoder.syncHeader((byte)0, mp3HeaderBuf, mp3HeaderData);
 					if(syncData != 0) {
 						MP3BufferedDecoder.decodeHeader(syncData, 0, mp3HeaderData);
@@ -485,8 +522,7 @@ public class FLV2MPEGTSWriter {
 					log.error("mp3 header parse fail: {}", e.toString());
 				}
 				
-				waitingAudio.fragments.add(new TSPacketFragment(dataBytes, 1, dataBytes.length - 1));
-	            waitingAudio.size += dataBytes.length - 1;
+	            waitingAudio.size += dataLen - 1;
 	            waitingAudio.codec = codecId;
 			}
 			
@@ -502,6 +538,20 @@ public class FLV2MPEGTSWriter {
 		}
 	}
 	
+	/**
+	 * copy without moving the position of a buffer other outputs may be reading
+	 */
+	private static void copy(IoBuffer src, int index, byte[] dst, int offset, int len) {
+		
+		if (src.hasArray()) {
+			System.arraycopy(src.array(), src.arrayOffset() + index, dst, offset, len);
+		} else {
+			ByteBuffer buf = src.buf().duplicate();
+			buf.position(index);
+			buf.get(dst, offset, len);
+		}
+	}
+	
 	/**
 	 *  write mult audio packets
 	 * @param waitingAudio
@@ -514,11 +564,7 @@ public class FLV2MPEGTSWriter {
 		long ts90 = waitingAudio.timecode;
 		int ptdDtsFlag = 0;
 		int totalWritten = 0;
-		TSPacketFragment packetFragment = (TSPacketFragment) waitingAudio.fragments.remove(0);
-		int writtenLen = 0;
-		int offset = packetFragment.getOffset();
-		int len = packetFragment.getLen();
-		byte[] data = packetFragment.getBuffer();
+		byte[] data = waitingAudio.payload;
 		int stt = 1; // Payload unit start indicator.
 		while (true) {
 			
@@ -602,26 +648,8 @@ public class FLV2MPEGTSWriter {
 					pos += 5;
 				}
 			}
-			while (true) {
-				total = count;
-				if (total > len - writtenLen)
-					total = len - writtenLen;
-				System.arraycopy(data, offset + writtenLen, block, pos, total);
-				writtenLen += total;
-				pos += total;
-				totalWritten += total;
-				count -= total;
-				if (writtenLen >= len) {
-					writtenLen = 0;
-					if (waitingAudio.fragments.size() > 0) {
-						packetFragment = (TSPacketFragment) waitingAudio.fragments.remove(0);
-						offset = packetFragment.getOffset();
-						len = packetFragment.getLen();
-						data = packetFragment.getBuffer();
-					}
-				}
-				if (pos >= TS_PACKETLEN || totalWritten >= size) break;
-			}
+			System.arraycopy(data, totalWritten, block, pos, count);
+			totalWritten += count;
 			stt = 0;
 			writer.nextBlock(ts90, block);
 			if (totalWritten >= size) break;
@@ -681,7 +709,7 @@ public class FLV2MPEGTSWriter {
 
 
 	/**
-	 * 
+	 * audio frames grouped into one pes, copied into a payload reused for every group
 	 * @author pengliren
 	 *
 	 */
@@ -692,17 +720,27 @@ public class FLV2MPEGTSWriter {
 		int count = 0;
 		int size = 0;
 		int codec = 0;
-		List<TSPacketFragment> fragments = new ArrayList<TSPacketFragment>();
+		byte[] payload = new byte[4096];
 
 		WaitingAudio() {
 		}
 
+		/**
+		 * make room for len more bytes
+		 * @return payload
+		 */
+		byte[] reserve(int len) {
+			if (size + len > payload.length) {
+				payload = Arrays.copyOf(payload, Math.max(payload.length * 2, size + len));
+			}
+			return payload;
+		}
+
 		public void clear() {
 			timecode = -1L;
 			lastTimecode = -1L;
 			count = 0;
 			size = 0;
-			fragments.clear();
 		}
 
 		public boolean isEmpty() {
@@ -0,0 +1,241 @@
+package com.sms.io.ts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.sms.io.ITag;
+import com.sms.io.flv.impl.FLVReader;
+import com.sms.io.flv.impl.Tag;
+import com.sms.server.net.rtmp.event.AudioData;
+import com.sms.server.net.rtmp.event.IRTMPEvent;
+import com.sms.server.net.rtmp.event.VideoData;
+
+/**
+ * flv to ts writer equivalence and benchmark
+ * <p>
+ * Muxes a fixed set of generated AVC, AAC and MP3 frames from heap, direct and read-only buffers,
+ * checks the TS output is the same for all of them and matches the digest of the writer before
+ * the per frame allocations were removed, then reports throughput and allocation per frame.
+ * An flv file given as first argument is benchmarked as well.
+ * @author pengliren
+ *
+ */
+public class FLV2MPEGTSWriterTest {
+
+	// md5 of the generated frames muxed by the previous writer
+	private static final String EXPECTED_MD5 = "fa421e8a66e5c430a7c0c034310b6bb8";
+
+	private static final int FRAME_COUNT = 2000;
+
+	private static final int ROUNDS = 5;
+
+	private static final byte[] AVC_CONFIG = {0x17, 0, 0, 0, 0, 1, 0x42, 0, 0x1e, (byte) 0xff, (byte) 0xe1, 0, 4, 0x67, 0x42, 0, 0x1e, 1, 0, 2, 0x68, (byte) 0xce};
+
+	private static final byte[] AAC_CONFIG = {(byte) 0xaf, 0, 0x12, 0x10};
+
+	private static final IFLV2MPEGTSWriter DISCARD = new IFLV2MPEGTSWriter() {
+
+		@Override
+		public void nextBlock(long ts, byte[] block) {
+		}
+	};
+
+	private static class Collector implements IFLV2MPEGTSWriter {
+
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public void nextBlock(long ts, byte[] block) {
+			out.write(block, 0, block.length);
+		}
+	}
+
+	/**
+	 * Generate frames: every 50th video frame is a keyframe, nalus up to 60KB, access unit
+	 * delimiters, sps and pps in band now and then, aac and mp3 audio in between
+	 */
+	private static List<ITag> generate() {
+
+		Random r = new Random(7);
+		List<ITag> tags = new ArrayList<ITag>();
+		for (int i = 0; i < FRAME_COUNT; i++) {
+			ByteArrayOutputStream f = new ByteArrayOutputStream();
+			if (r.nextInt(3) < 2) {
+				int frameType = i % 50 == 0 ? 1 : (r.nextInt(5) == 0 ? 3 : 2);
+				int cts = r.nextInt(3000);
+				f.write((frameType << 4) | 7);
+				f.write(1);
+				f.write(cts >> 16);
+				f.write(cts >> 8);
+				f.write(cts);
+				int nalus = 1 + r.nextInt(4);
+				for (int k = 0; k < nalus; k++) {
+					int len = 1 + r.nextInt(r.nextInt(10) == 0 ? 60000 : 3000);
+					int type = (k == 0 && r.nextBoolean()) ? 9 : (r.nextInt(10) == 0 ? (7 + r.nextInt(2)) : (frameType == 1 ? 5 : 1));
+					if (type == 9) len = 2;
+					byte[] nalu = new byte[len];
+					r.nextBytes(nalu);
+					nalu[0] = (byte) type;
+					f.write(len >>> 24);
+					f.write(len >>> 16);
+					f.write(len >>> 8);
+					f.write(len);
+					f.write(nalu, 0, len);
+				}
+				tags.add(tag(ITag.TYPE_VIDEO, i * 20, f.toByteArray()));
+			} else {
+				byte[] b = new byte[2 + r.nextInt(700)];
+				r.nextBytes(b);
+				if (r.nextInt(4) == 0) { // mp3
+					b[0] = 0x2f;
+					b[1] = (byte) 0xff;
+					if (b.length > 2) b[2] = (byte) 0xfb;
+				} else {
+					b[0] = (byte) 0xaf;
+					b[1] = 1;
+				}
+				tags.add(tag(ITag.TYPE_AUDIO, i * 20, b));
+			}
+		}
+		return tags;
+	}
+
+	private static ITag tag(byte dataType, int timestamp, byte[] body) {
+
+		return new Tag(dataType, timestamp, body.length, IoBuffer.wrap(body), 0);
+	}
+
+	/**
+	 * Wrap a body behind 3 bytes of garbage, so the writer has to honour the buffer position
+	 */
+	private static IoBuffer wrap(byte[] body, boolean readOnly, boolean direct) {
+
+		IoBuffer buf = IoBuffer.allocate(body.length + 3, direct);
+		buf.put(new byte[3]);
+		buf.put(body);
+		buf.flip();
+		buf.position(3);
+		return readOnly ? buf.asReadOnlyBuffer() : buf;
+	}
+
+	private static List<IRTMPEvent> toEvents(List<ITag> tags, boolean readOnly, boolean direct) {
+
+		List<IRTMPEvent> events = new ArrayList<IRTMPEvent>(tags.size());
+		for (ITag tag : tags) {
+			byte[] body = new byte[tag.getBodySize()];
+			tag.getBody().duplicate().get(body);
+			IRTMPEvent event;
+			if (tag.getDataType() == ITag.TYPE_VIDEO) {
+				event = new VideoData(wrap(body, readOnly, direct));
+			} else {
+				event = new AudioData(wrap(body, readOnly, direct));
+			}
+			event.setTimestamp(tag.getTimestamp());
+			events.add(event);
+		}
+		return events;
+	}
+
+	private static void mux(FLV2MPEGTSWriter writer, List<IRTMPEvent> events) {
+
+		for (IRTMPEvent event : events) {
+			if (event instanceof VideoData) {
+				IoBuffer data = ((VideoData) event).getData();
+				int pos = data.position();
+				writer.handleVideo((VideoData) event);
+				if (data.position() != pos) {
+					throw new IllegalStateException("video buffer position moved at " + event.getTimestamp());
+				}
+			} else {
+				writer.handleAudio((AudioData) event);
+			}
+		}
+	}
+
+	private static String md5(byte[] data) throws Exception {
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("MD5").digest(data)) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	private static boolean verify(List<ITag> tags) throws Exception {
+
+		String reference = null;
+		boolean ok = true;
+		for (int mode = 0; mode < 4; mode++) {
+			boolean readOnly = (mode & 1) != 0;
+			boolean direct = (mode & 2) != 0;
+			Collector out = new Collector();
+			mux(new FLV2MPEGTSWriter(out, IoBuffer.wrap(AVC_CONFIG), IoBuffer.wrap(AAC_CONFIG)), toEvents(tags, readOnly, direct));
+			String digest = md5(out.out.toByteArray());
+			System.out.println(String.format("%-6s %-9s %d bytes md5 %s", direct ? "direct" : "heap", readOnly ? "read-only" : "writable", out.out.size(), digest));
+			if (reference == null) {
+				reference = digest;
+			} else if (!reference.equals(digest)) {
+				ok = false;
+			}
+		}
+		if (!reference.equals(EXPECTED_MD5)) {
+			System.out.println("expected md5 " + EXPECTED_MD5);
+			ok = false;
+		}
+		return ok;
+	}
+
+	private static void benchmark(String name, List<IRTMPEvent> events) {
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+		long tid = Thread.currentThread().getId();
+		// first round warms up
+		for (int round = 0; round < 2; round++) {
+			FLV2MPEGTSWriter writer = new FLV2MPEGTSWriter(DISCARD, IoBuffer.wrap(AVC_CONFIG), IoBuffer.wrap(AAC_CONFIG));
+			long bytes = allocations != null ? allocations.getThreadAllocatedBytes(tid) : 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < ROUNDS; i++) {
+				mux(writer, events);
+			}
+			long elapsed = System.nanoTime() - start;
+			long frames = (long) events.size() * ROUNDS;
+			if (round > 0) {
+				System.out.println(String.format("%s: %d frames/s, %s bytes allocated per frame", name, (long) (frames / (elapsed / 1e9)),
+						allocations != null ? String.valueOf((allocations.getThreadAllocatedBytes(tid) - bytes) / frames) : "?"));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		List<ITag> tags = generate();
+		boolean ok = verify(tags);
+		System.out.println(ok ? "ts output unchanged" : "ts output differs");
+		benchmark("generated", toEvents(tags, true, false));
+
+		if (args.length > 0) {
+			List<ITag> fileTags = new ArrayList<ITag>();
+			FLVReader reader = new FLVReader(new File(args[0]));
+			ITag tag;
+			while (reader.hasMoreTags()) {
+				tag = reader.readTag();
+				if (tag != null && (tag.getDataType() == ITag.TYPE_AUDIO || tag.getDataType() == ITag.TYPE_VIDEO)) {
+					fileTags.add(tag);
+				}
+			}
+			reader.close();
+			benchmark(args[0], toEvents(fileTags, true, false));
+		}
+
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,26 @@
+package com.sms.io.ts;
+
+import com.sms.server.api.stream.IBroadcastStream;
+
+/**
+ * Output of the muxed ts of a live stream, called on a tap thread, one call at a time.
+ * @author pengliren
+ *
+ */
+public interface IMpegtsTapListener {
+
+	/**
+	 * Next run of ts packets, runs may be dropped up to the next key frame if the output falls behind.
+	 * 
+	 * @param stream
+	 * @param run
+	 */
+	public void runReceived(IBroadcastStream stream, MpegtsRun run);
+	
+	/**
+	 * The output has been unsubscribed, no run follows.
+	 * 
+	 * @param stream
+	 */
+	public void tapClosed(IBroadcastStream stream);
+}
@@ -0,0 +1,59 @@
+package com.sms.io.ts;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Run of 188 byte ts packets muxed from one frame of a live stream, shared by all outputs of
+ * the stream and never modified once published.
+ * @author pengliren
+ *
+ */
+public class MpegtsRun {
+
+	private final byte[] data;
+	
+	private final long timestamp;
+	
+	private final long pcr;
+	
+	private final boolean keyFrame;
+	
+	/**
+	 * @param data ts packets
+	 * @param timestamp frame timestamp in ms
+	 * @param pcr pcr of the stream after the frame, 90khz
+	 * @param keyFrame true for a video key frame, the run starts with the PAT and PMT then
+	 */
+	public MpegtsRun(byte[] data, long timestamp, long pcr, boolean keyFrame) {
+		this.data = data;
+		this.timestamp = timestamp;
+		this.pcr = pcr;
+		this.keyFrame = keyFrame;
+	}
+
+	/**
+	 * @return ts packets, must not be modified
+	 */
+	public byte[] getBytes() {
+		return data;
+	}
+	
+	/**
+	 * @return read-only view of the ts packets
+	 */
+	public IoBuffer getData() {
+		return IoBuffer.wrap(data).asReadOnlyBuffer();
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getPCR() {
+		return pcr;
+	}
+
+	public boolean isKeyFrame() {
+		return keyFrame;
+	}
+}
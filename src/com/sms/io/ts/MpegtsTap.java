@@ -0,0 +1,304 @@
+package com.sms.io.ts;
+
+import static com.sms.io.ts.TransportStreamUtils.TIME_SCALE;
+import static com.sms.io.ts.TransportStreamUtils.TS_PACKETLEN;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.server.Configuration;
+import com.sms.server.api.stream.IAudioStreamCodec;
+import com.sms.server.api.stream.IBroadcastStream;
+import com.sms.server.api.stream.IStreamCodecInfo;
+import com.sms.server.api.stream.IStreamListener;
+import com.sms.server.api.stream.IStreamPacket;
+import com.sms.server.api.stream.IVideoStreamCodec;
+import com.sms.server.net.rtmp.event.AudioData;
+import com.sms.server.net.rtmp.event.VideoData;
+import com.sms.server.net.rtmp.event.VideoData.FrameType;
+import com.sms.server.util.CustomizableThreadFactory;
+import com.sms.server.util.SystemTimer;
+
+/**
+ * Mpegts Tap
+ * <p>
+ * Muxes a live stream to ts once for all of its ts outputs, hls and multicast. Every frame is
+ * muxed on the publisher thread into a run of ts packets, the run is queued to each output and
+ * handed to it on the tap threads, so a slow output never holds the publisher. An output that
+ * falls behind by ts.tap_queue_size runs loses them up to the next key frame, or up to the next
+ * run of an audio only stream. The PAT and PMT
+ * are repeated before every key frame and at least every 100 ms.
+ * @author pengliren
+ *
+ */
+public class MpegtsTap implements IStreamListener, IFLV2MPEGTSWriter {
+
+	private static Logger log = LoggerFactory.getLogger(MpegtsTap.class);
+	
+	/**
+	 * Runs handed to an output before the others get their turn
+	 */
+	private static final int BATCH_SIZE = 64;
+	
+	private static final long PAT_INTERVAL = 100;
+	
+	private static final ExecutorService executor = Executors.newFixedThreadPool(Configuration.TS_TAP_THREADS, new CustomizableThreadFactory("MpegtsTapExecutor-"));
+	
+	private static final ConcurrentMap<IBroadcastStream, MpegtsTap> taps = new ConcurrentHashMap<IBroadcastStream, MpegtsTap>();
+	
+	private final IBroadcastStream stream;
+	
+	private final CopyOnWriteArrayList<Output> outputs = new CopyOnWriteArrayList<Output>();
+	
+	// publisher thread only
+	private FLV2MPEGTSWriter writer;
+	
+	private byte[] run = new byte[64 * TS_PACKETLEN];
+	
+	private int runLength;
+	
+	private long lastPAT = -1L;
+	
+	// whether the stream carries video, an audio only stream resyncs on any run
+	private boolean hasVideo;
+	
+	private MpegtsTap(IBroadcastStream stream) {
+		this.stream = stream;
+	}
+	
+	/**
+	 * Add an output of a stream, the stream is muxed from its next frame on.
+	 * 
+	 * @param stream
+	 * @param listener
+	 */
+	public static synchronized void subscribe(IBroadcastStream stream, IMpegtsTapListener listener) {
+		MpegtsTap tap = taps.get(stream);
+		if (tap == null) {
+			tap = new MpegtsTap(stream);
+			taps.put(stream, tap);
+			stream.addStreamListener(tap);
+		}
+		tap.outputs.add(tap.new Output(listener));
+	}
+	
+	/**
+	 * Remove an output of a stream, the queued runs are handed to it before it is closed.
+	 * The muxing stops with the last output.
+	 * 
+	 * @param stream
+	 * @param listener
+	 */
+	public static synchronized void unsubscribe(IBroadcastStream stream, IMpegtsTapListener listener) {
+		MpegtsTap tap = taps.get(stream);
+		if (tap == null) return;
+		for (Output output : tap.outputs) {
+			if (output.listener == listener) {
+				tap.outputs.remove(output);
+				output.close();
+			}
+		}
+		if (tap.outputs.isEmpty()) {
+			taps.remove(stream);
+			stream.removeStreamListener(tap);
+		}
+	}
+	
+	@Override
+	public void packetReceived(IBroadcastStream stream, IStreamPacket packet) {
+		
+		if (!(packet instanceof VideoData || packet instanceof AudioData) || outputs.isEmpty()) return;
+		if (writer == null) {
+			createWriter();
+		}
+		boolean keyFrame = false;
+		if (packet instanceof VideoData) {
+			hasVideo = true;
+			IoBuffer data = packet.getData();
+			// frames only, not the decoder configuration
+			keyFrame = ((VideoData) packet).getFrameType() == FrameType.KEYFRAME && data.remaining() > 1 && data.get(data.position() + 1) == 1;
+		}
+		runLength = 0;
+		long now = SystemTimer.currentTimeMillis();
+		if (keyFrame || lastPAT == -1L || now - lastPAT > PAT_INTERVAL) {
+			lastPAT = now;
+			writer.addPAT(packet.getTimestamp() * TIME_SCALE);
+		}
+		if (packet instanceof VideoData) {
+			writer.handleVideo((VideoData) packet);
+		} else {
+			writer.handleAudio((AudioData) packet);
+		}
+		if (runLength == 0) return;
+		MpegtsRun tsRun = new MpegtsRun(Arrays.copyOf(run, runLength), packet.getTimestamp(), writer.getLastPCRTimecode(), keyFrame);
+		boolean resync = keyFrame || !hasVideo;
+		for (Output output : outputs) {
+			output.offer(tsRun, resync);
+		}
+	}
+	
+	private void createWriter() {
+		
+		IoBuffer videoConfig = null;
+		IoBuffer audioConfig = null;
+		IStreamCodecInfo codecInfo = stream.getCodecInfo();
+		hasVideo = codecInfo != null && codecInfo.hasVideo();
+		if (hasVideo) {
+			IVideoStreamCodec videoCodecInfo = codecInfo.getVideoCodec();
+			if (videoCodecInfo != null && videoCodecInfo.getDecoderConfiguration() != null) {
+				videoConfig = videoCodecInfo.getDecoderConfiguration().asReadOnlyBuffer();
+			}
+		}
+		if (codecInfo != null && codecInfo.hasAudio()) {
+			IAudioStreamCodec audioCodecInfo = codecInfo.getAudioCodec();
+			if (audioCodecInfo != null && audioCodecInfo.getDecoderConfiguration() != null) {
+				audioConfig = audioCodecInfo.getDecoderConfiguration().asReadOnlyBuffer();
+			}
+		}
+		writer = new FLV2MPEGTSWriter(this, videoConfig, audioConfig);
+		writer.setLastPCRTimecode(0);
+		log.info("mpegts tap of stream {}", stream.getPublishedName());
+	}
+	
+	@Override
+	public void nextBlock(long ts, byte[] block) {
+		if (runLength + block.length > run.length) {
+			run = Arrays.copyOf(run, run.length * 2);
+		}
+		System.arraycopy(block, 0, run, runLength, block.length);
+		runLength += block.length;
+	}
+	
+	/**
+	 * Output of the tap, its runs are handed over by one tap thread at a time
+	 */
+	private class Output implements Runnable {
+		
+		final IMpegtsTapListener listener;
+		
+		final ConcurrentLinkedQueue<MpegtsRun> queue = new ConcurrentLinkedQueue<MpegtsRun>();
+		
+		final AtomicInteger size = new AtomicInteger();
+		
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		
+		volatile boolean closed;
+		
+		// publisher thread only, set when the queue overflowed
+		boolean waitKeyFrame;
+		
+		long droppedCount;
+		
+		// tap thread only
+		boolean done;
+		
+		Output(IMpegtsTapListener listener) {
+			this.listener = listener;
+		}
+		
+		/**
+		 * @param tsRun run
+		 * @param resync whether the output can start over with this run after an overflow
+		 */
+		void offer(MpegtsRun tsRun, boolean resync) {
+			if (closed) return;
+			if (waitKeyFrame) {
+				if (!resync) {
+					droppedCount++;
+					return;
+				}
+				waitKeyFrame = false;
+			}
+			if (size.get() >= Configuration.TS_TAP_QUEUE_SIZE) {
+				waitKeyFrame = true;
+				if (droppedCount++ % 1000 == 0) {
+					log.warn("ts output {} of stream {} is behind, {} runs dropped so far", new Object[] { listener, stream.getPublishedName(), droppedCount });
+				}
+				return;
+			}
+			queue.offer(tsRun);
+			size.incrementAndGet();
+			schedule();
+		}
+		
+		void close() {
+			closed = true;
+			schedule();
+		}
+		
+		void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+					log.warn("ts tap rejected: {}", e.getMessage());
+				}
+			}
+		}
+		
+		@Override
+		public void run() {
+			if (done) return;
+			int count = 0;
+			MpegtsRun tsRun;
+			while (count < BATCH_SIZE && (tsRun = queue.poll()) != null) {
+				size.decrementAndGet();
+				count++;
+				deliver(tsRun);
+			}
+			if (count == BATCH_SIZE) {
+				// still scheduled, the other outputs go first
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+				}
+				return;
+			}
+			if (closed) {
+				// runs queued right before the close
+				while ((tsRun = queue.poll()) != null) {
+					deliver(tsRun);
+				}
+				// stays scheduled, nothing runs after the close
+				done = true;
+				try {
+					listener.tapClosed(stream);
+				} catch (Exception e) {
+					log.error("Error while closing ts output {}", listener, e);
+				}
+				return;
+			}
+			scheduled.set(false);
+			// a run queued or a close after the last check would not wake us up
+			if ((!queue.isEmpty() || closed) && scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					scheduled.set(false);
+				}
+			}
+		}
+		
+		private void deliver(MpegtsRun tsRun) {
+			try {
+				listener.runReceived(stream, tsRun);
+			} catch (Exception e) {
+				log.error("Error while writing ts output {}", listener, e);
+			}
+		}
+	}
+}
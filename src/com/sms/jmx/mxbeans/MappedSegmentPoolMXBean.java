@@ -0,0 +1,44 @@
+package com.sms.jmx.mxbeans;
+
+import javax.management.MXBean;
+
+@MXBean
+public interface MappedSegmentPoolMXBean {
+
+	/**
+	 * Budget of mapped bytes
+	 * @return                  size in bytes
+	 */
+	public long getMaxBytes();
+
+	/**
+	 * Bytes currently mapped, cached or in use
+	 * @return                  size in bytes
+	 */
+	public long getMappedBytes();
+
+	/**
+	 * Number of cached mappings
+	 * @return                  segment count
+	 */
+	public int getSegmentCount();
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	public double getHitRate();
+
+	/**
+	 * Number of unused mappings dropped to honor the budget
+	 * @return                  eviction count
+	 */
+	public long getEvictionCount();
+
+	/**
+	 * Number of files read from disk because the budget was exhausted by mappings in use
+	 * @return                  rejected count
+	 */
+	public long getRejectedCount();
+
+}
@@ -0,0 +1,38 @@
+package com.sms.jmx.mxbeans;
+
+import javax.management.MXBean;
+
+@MXBean
+public interface ObjectCacheMXBean {
+
+	/**
+	 * Number of cached entries
+	 * @return                  entry count
+	 */
+	public int getSize();
+
+	/**
+	 * Total weight of the cached entries
+	 * @return                  weighted size
+	 */
+	public long getWeightedSize();
+
+	/**
+	 * Maximum total weight, 0 if the cache is unbounded
+	 * @return                  maximum weight
+	 */
+	public long getMaximumWeight();
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	/**
+	 * Number of entries evicted to honor the maximum weight
+	 * @return                  eviction count
+	 */
+	public long getEvictionCount();
+
+	public double getHitRate();
+
+}
@@ -0,0 +1,60 @@
+package com.sms.jmx.mxbeans;
+
+import javax.management.MXBean;
+
+@MXBean
+public interface PooledBufferAllocatorMXBean {
+
+	public boolean isDirect();
+
+	/**
+	 * Largest pooled buffer size, larger buffers are allocated per use
+	 * @return                  size in bytes
+	 */
+	public int getMaxPooledSize();
+
+	/**
+	 * Number of buffers handed out by the pool
+	 * @return                  allocation count
+	 */
+	public long getAllocationCount();
+
+	/**
+	 * Number of allocations served from a thread cache or the shared pool
+	 * @return                  hit count
+	 */
+	public long getHitCount();
+
+	public double getHitRate();
+
+	/**
+	 * Number of buffers too large to be pooled
+	 * @return                  unpooled allocation count
+	 */
+	public long getUnpooledCount();
+
+	/**
+	 * Number of buffers handed back to the pool
+	 * @return                  release count
+	 */
+	public long getReleaseCount();
+
+	/**
+	 * Number of buffers handed out and not released yet
+	 * @return                  outstanding count
+	 */
+	public long getOutstandingCount();
+
+	/**
+	 * Memory held by the shared pool
+	 * @return                  size in bytes
+	 */
+	public long getSharedPoolBytes();
+
+	/**
+	 * Number of sampled buffers collected by the gc without being released
+	 * @return                  leak count
+	 */
+	public long getLeakCount();
+
+}
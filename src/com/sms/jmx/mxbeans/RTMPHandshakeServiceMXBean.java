@@ -0,0 +1,42 @@
+package com.sms.jmx.mxbeans;
+
+import javax.management.MXBean;
+
+@MXBean
+public interface RTMPHandshakeServiceMXBean {
+
+	/**
+	 * Handshakes answered during the last second
+	 * @return                  handshakes per second
+	 */
+	public long getHandshakesPerSecond();
+
+	public long getHandshakeCount();
+
+	/**
+	 * Handshakes waiting for a handshake thread
+	 * @return                  queued handshakes
+	 */
+	public int getQueuedHandshakes();
+
+	/**
+	 * Handshakes dropped because the connection was closed while they were queued
+	 * @return                  dropped count
+	 */
+	public long getDroppedCount();
+
+	/**
+	 * Pre-generated DH key pairs ready for use
+	 * @return                  key pair count
+	 */
+	public int getKeyPoolSize();
+
+	public int getKeyPoolCapacity();
+
+	/**
+	 * Key pairs generated on the handshake thread because the pool was empty
+	 * @return                  miss count
+	 */
+	public long getKeyPoolMissCount();
+
+}
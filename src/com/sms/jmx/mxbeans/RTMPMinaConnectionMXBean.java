@@ -41,6 +41,21 @@ public interface RTMPMinaConnectionMXBean {
 	public long getPendingMessages();
 
 	public long getPendingVideoMessages(int streamId);
+
+	public long getPendingBytes();
+
+	/**
+	 * Number of audio and video messages dropped on a stream because the client could not keep up
+	 * @param streamId          stream id
+	 * @return                  dropped messages
+	 */
+	public long getDroppedFrames(int streamId);
+
+	/**
+	 * Estimated time for queued data to reach the client
+	 * @return                  delay in ms, -1 if not known yet
+	 */
+	public long getSendDelay();
 	
     public void invokeMethod(String method);
 
@@ -48,6 +48,10 @@ public final class Configuration {
 	public static int HLS_SEGMENT_MAX = 3;
 	public static int HLS_SEGMENT_TIME = 10;
 	public static boolean HLS_ENCRYPT = false;
+	public static int HLS_PART_TIME = 0;
+	public static int HLS_VOD_CACHE_MAXSIZE = 1024;
+	public static int TS_TAP_THREADS = 4;
+	public static int TS_TAP_QUEUE_SIZE = 1024;
 
 	public static String RTMP_HOST = "0.0.0.0";
 	public static int RTMP_PORT = 1935;
@@ -64,6 +68,13 @@ public final class Configuration {
 	public static int RTMP_DEFAULT_CLIENT_BANDWIDTH = 10000000;
 	public static int RTMP_CLIENT_BANDWIDTH_LIMIT_TYPE = 2;
 	public static boolean RTMP_BANDWIDTH_DETECTION = true;
+	public static int RTMP_WRITE_COALESCE_SIZE = 0;
+	public static int RTMP_CONGESTION_DROP_DISPOSABLE = 0;
+	public static int RTMP_CONGESTION_DROP_INTER = 0;
+	public static int RTMP_CONGESTION_DROP_ALL = 0;
+	public static int RTMP_CONGESTION_MAX_QUEUE = 0;
+	public static int RTMP_HANDSHAKE_THREADS = 2;
+	public static int RTMP_HANDSHAKE_KEY_POOL_SIZE = 256;
 	
 	public static String RTSP_HOST = "0.0.0.0";
 	public static int RTSP_PORT = 554;
@@ -86,9 +97,22 @@ public final class Configuration {
 	public static int FILECACHE_PURGE = 10;
 	public static int CACHE_INTERVAL = 10;
 	
+	public static boolean BUFFER_POOL = false;
+	public static boolean BUFFER_POOL_DIRECT = true;
+	public static int BUFFER_POOL_MAX_SIZE = 8192;
+	public static int BUFFER_POOL_MAX_CACHED = 256;
+	public static int BUFFER_LEAK_DETECTION_INTERVAL = 128;
+	
 	
 	public static int MULTICAST_EXECUTOR_THREADS = 4;
 	public static int UNICAST_EXECUTOR_THREADS = 4;
+	public static int UDP_SEND_QUEUE_SIZE = 8192;
+	public static boolean MULTICAST_PACING = true;
+	
+	public static int RECORD_WRITER_THREADS = 4;
+	public static int RECORD_QUEUE_SIZE = 2048;
+	public static int RECORD_WRITE_BUFFER_SIZE = 256;
+	public static long RECORD_COMMIT_INTERVAL = 500;
 	
 	public static String MGR_CONN_URL = "";
 	public static String MGR_SHARE_DIR = "";
@@ -231,6 +255,26 @@ public final class Configuration {
 			if (hlsSegmentTimeProp != null) {
 				HLS_SEGMENT_TIME = Integer.parseInt(hlsSegmentTimeProp);
 			}
+			
+			String hlsPartTimeProp = prop.getProperty("hls.part_time");
+			if (hlsPartTimeProp != null) {
+				HLS_PART_TIME = Integer.parseInt(hlsPartTimeProp);
+			}
+			
+			String hlsVodCacheMaxsizeProp = prop.getProperty("hls.vod_cache_maxsize");
+			if (hlsVodCacheMaxsizeProp != null) {
+				HLS_VOD_CACHE_MAXSIZE = Integer.parseInt(hlsVodCacheMaxsizeProp);
+			}
+			
+			String tsTapThreadsProp = prop.getProperty("ts.tap_threads");
+			if (tsTapThreadsProp != null) {
+				TS_TAP_THREADS = Integer.parseInt(tsTapThreadsProp);
+			}
+			
+			String tsTapQueueSizeProp = prop.getProperty("ts.tap_queue_size");
+			if (tsTapQueueSizeProp != null) {
+				TS_TAP_QUEUE_SIZE = Integer.parseInt(tsTapQueueSizeProp);
+			}
 
 			String rtmpHostProp = prop.getProperty("rtmp.host");
 			if (rtmpHostProp != null) {
@@ -308,6 +352,41 @@ public final class Configuration {
 				RTMP_BANDWIDTH_DETECTION = Boolean.parseBoolean(rtmpBandwidthDetectionProp);
 			}
 			
+			String rtmpWriteCoalesceSizeProp = prop.getProperty("rtmp.write_coalesce_size");
+			if (rtmpWriteCoalesceSizeProp != null) {
+				RTMP_WRITE_COALESCE_SIZE = Integer.parseInt(rtmpWriteCoalesceSizeProp);
+			}
+			
+			String rtmpCongestionDropDisposableProp = prop.getProperty("rtmp.congestion_drop_disposable");
+			if (rtmpCongestionDropDisposableProp != null) {
+				RTMP_CONGESTION_DROP_DISPOSABLE = Integer.parseInt(rtmpCongestionDropDisposableProp);
+			}
+			
+			String rtmpCongestionDropInterProp = prop.getProperty("rtmp.congestion_drop_inter");
+			if (rtmpCongestionDropInterProp != null) {
+				RTMP_CONGESTION_DROP_INTER = Integer.parseInt(rtmpCongestionDropInterProp);
+			}
+			
+			String rtmpCongestionDropAllProp = prop.getProperty("rtmp.congestion_drop_all");
+			if (rtmpCongestionDropAllProp != null) {
+				RTMP_CONGESTION_DROP_ALL = Integer.parseInt(rtmpCongestionDropAllProp);
+			}
+			
+			String rtmpCongestionMaxQueueProp = prop.getProperty("rtmp.congestion_max_queue");
+			if (rtmpCongestionMaxQueueProp != null) {
+				RTMP_CONGESTION_MAX_QUEUE = Integer.parseInt(rtmpCongestionMaxQueueProp);
+			}
+			
+			String rtmpHandshakeThreadsProp = prop.getProperty("rtmp.handshake_threads");
+			if (rtmpHandshakeThreadsProp != null) {
+				RTMP_HANDSHAKE_THREADS = Integer.parseInt(rtmpHandshakeThreadsProp);
+			}
+			
+			String rtmpHandshakeKeyPoolSizeProp = prop.getProperty("rtmp.handshake_key_pool_size");
+			if (rtmpHandshakeKeyPoolSizeProp != null) {
+				RTMP_HANDSHAKE_KEY_POOL_SIZE = Integer.parseInt(rtmpHandshakeKeyPoolSizeProp);
+			}
+			
 			String rtspHostProp = prop.getProperty("rtsp.host");
 			if (rtspHostProp != null) {
 				RTSP_HOST = rtspHostProp;
@@ -388,6 +467,31 @@ public final class Configuration {
 				CACHE_INTERVAL = Integer.parseInt(cacheIntervalProp);
 			}
 			
+			String bufferPoolProp = prop.getProperty("buffer.pool");
+			if (bufferPoolProp != null) {
+				BUFFER_POOL = Boolean.parseBoolean(bufferPoolProp);
+			}
+			
+			String bufferPoolDirectProp = prop.getProperty("buffer.pool_direct");
+			if (bufferPoolDirectProp != null) {
+				BUFFER_POOL_DIRECT = Boolean.parseBoolean(bufferPoolDirectProp);
+			}
+			
+			String bufferPoolMaxSizeProp = prop.getProperty("buffer.pool_max_size");
+			if (bufferPoolMaxSizeProp != null) {
+				BUFFER_POOL_MAX_SIZE = Integer.parseInt(bufferPoolMaxSizeProp);
+			}
+			
+			String bufferPoolMaxCachedProp = prop.getProperty("buffer.pool_max_cached");
+			if (bufferPoolMaxCachedProp != null) {
+				BUFFER_POOL_MAX_CACHED = Integer.parseInt(bufferPoolMaxCachedProp);
+			}
+			
+			String bufferLeakDetectionIntervalProp = prop.getProperty("buffer.leak_detection_interval");
+			if (bufferLeakDetectionIntervalProp != null) {
+				BUFFER_LEAK_DETECTION_INTERVAL = Integer.parseInt(bufferLeakDetectionIntervalProp);
+			}
+			
 			String udpPortStartProp = prop.getProperty("udp.port_start");
 			if(udpPortStartProp != null) {
 				UDP_PORT_START = Integer.parseInt(udpPortStartProp);
@@ -403,6 +507,36 @@ public final class Configuration {
 				UNICAST_EXECUTOR_THREADS = Integer.parseInt(unicastExecutorThreadsProp);
 			}
 			
+			String udpSendQueueSizeProp = prop.getProperty("udp.send_queue_size");
+			if(udpSendQueueSizeProp != null) {
+				UDP_SEND_QUEUE_SIZE = Integer.parseInt(udpSendQueueSizeProp);
+			}
+			
+			String multicastPacingProp = prop.getProperty("multicast.pacing");
+			if(multicastPacingProp != null) {
+				MULTICAST_PACING = Boolean.parseBoolean(multicastPacingProp);
+			}
+			
+			String recordWriterThreadsProp = prop.getProperty("record.writer_threads");
+			if(recordWriterThreadsProp != null) {
+				RECORD_WRITER_THREADS = Integer.parseInt(recordWriterThreadsProp);
+			}
+			
+			String recordQueueSizeProp = prop.getProperty("record.queue_size");
+			if(recordQueueSizeProp != null) {
+				RECORD_QUEUE_SIZE = Integer.parseInt(recordQueueSizeProp);
+			}
+			
+			String recordWriteBufferSizeProp = prop.getProperty("record.write_buffer_size");
+			if(recordWriteBufferSizeProp != null) {
+				RECORD_WRITE_BUFFER_SIZE = Integer.parseInt(recordWriteBufferSizeProp);
+			}
+			
+			String recordCommitIntervalProp = prop.getProperty("record.commit_interval");
+			if(recordCommitIntervalProp != null) {
+				RECORD_COMMIT_INTERVAL = Long.parseLong(recordCommitIntervalProp);
+			}
+			
 			String mgrUrlProp = prop.getProperty("plugins.mgr_url");
 			if (mgrUrlProp != null) {
 				MGR_CONN_URL = mgrUrlProp;
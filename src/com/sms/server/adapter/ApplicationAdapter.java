@@ -80,15 +80,14 @@ public class ApplicationAdapter extends MultiThreadedApplicationAdapter {
 	public void streamPublishStart(IBroadcastStream stream) {
 		/*
 		MpegtsSegmenterService ss = MpegtsSegmenterService.getInstance();
-		stream.addStreamListener(ss);
+		MpegtsTap.subscribe(stream, ss);
 		
-		test multicast stream
+		test multicast stream, it shares the ts muxed for hls
 		MulticastOutgoingService ms = MulticastOutgoingService.getInstance();
 		UDPDatagramConfig config = new UDPDatagramConfig();
 		config.setReceiveBufferSize(8192);
 		config.setSendBufferSize(8192);
 		ms.register(stream, config, "229.0.0.1", 1234);
-		stream.addStreamListener(ms);
 		super.streamPublishStart(stream);*/
 	}
 	
@@ -96,11 +95,9 @@ public class ApplicationAdapter extends MultiThreadedApplicationAdapter {
 	public void streamBroadcastClose(IBroadcastStream stream) {
 		/*
 		MpegtsSegmenterService ss = MpegtsSegmenterService.getInstance();
-		stream.removeStreamListener(ss);
-		ss.removeSegment(stream.getScope().getName(), stream.getPublishedName());
+		MpegtsTap.unsubscribe(stream, ss);
 		
 		MulticastOutgoingService ms = MulticastOutgoingService.getInstance();
-		stream.removeStreamListener(ms);
 		ms.unregister(stream.getPublishedName());
 		super.streamBroadcastClose(stream);*/
 	}
@@ -1,11 +1,14 @@
 package com.sms.server.cache;
 
+import java.io.File;
 import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.jmx.JMXAgent;
+import com.sms.jmx.mxbeans.ObjectCacheMXBean;
 import com.sms.server.Configuration;
 import com.sms.server.api.scheduling.IScheduledJob;
 import com.sms.server.api.scheduling.ISchedulingService;
@@ -20,6 +23,16 @@ public class CacheManager {
 		
 	private static final Logger log = LoggerFactory.getLogger(CacheManager.class);
 	
+	/**
+	 * Maximum number of entries of the AMF serializer caches
+	 */
+	private static final int AMF_CACHE_MAXSIZE = 10000;
+	
+	/**
+	 * Maximum number of entries of the HLS VOD segment index cache
+	 */
+	private static final int HLS_INDEX_CACHE_MAXSIZE = 1000;
+	
 	private ConcurrentHashMap<String, ObjectCache> items = new ConcurrentHashMap<String, ObjectCache>();
 
 	private static final class SingletonHolder {
@@ -51,18 +64,59 @@ public class CacheManager {
 	}
 	
 	private void constructDefault() {
-		if (getCache("com.sms.io.amf.Output.stringCache") == null) 
-			items.put("com.sms.io.amf.Output.stringCache", new ObjectCache());
-		if (getCache("com.sms.io.amf.Output.getterCache") == null)
-			items.put("com.sms.io.amf.Output.getterCache", new ObjectCache());
-		if (getCache("com.sms.io.amf.Output.fieldCache") == null)
-			items.put("com.sms.io.amf.Output.fieldCache", new ObjectCache());
-		if (getCache("com.sms.io.amf.Output.serializeCache") == null)
-			items.put("com.sms.io.amf.Output.serializeCache", new ObjectCache());
-		if (getCache("com.sms.server.stream.seek.fileCache") == null)
-			items.put("com.sms.server.stream.seek.fileCache", new ObjectCache());
-		if (getCache("com.sms.server.stream.hls.fileCache") == null)
-			items.put("com.sms.server.stream.hls.fileCache", new ObjectCache());
+		long fileCacheBytes = Configuration.FILECACHE_MAXSIZE * 1024L * 1024L;
+		addCache("com.sms.io.amf.Output.stringCache", new ObjectCache(AMF_CACHE_MAXSIZE));
+		// readers are only kept as copy() templates and closed by whoever opened them, never on eviction
+		addCache("com.sms.server.stream.hls.fileCache", new ObjectCache(fileCacheBytes, new MemoryWeigher(), null));
+		addCache("com.sms.server.stream.hls.indexCache", new ObjectCache(HLS_INDEX_CACHE_MAXSIZE));
+		addCache("com.sms.server.stream.hls.segmentCache", new ObjectCache(Configuration.HLS_VOD_CACHE_MAXSIZE * 1024L * 1024L, new FileWeigher(), new FileEvictionListener()));
+	}
+	
+	/**
+	 * Register a cache, unless one is registered under the key already
+	 * 
+	 * @param key cache key
+	 * @param cache cache
+	 * @return the cache registered under the key
+	 */
+	public ObjectCache addCache(String key, ObjectCache cache) {
+		ObjectCache previous = items.putIfAbsent(key, cache);
+		if (previous != null) {
+			return previous;
+		}
+		JMXAgent.registerMBean(cache, cache.getClass().getName(), ObjectCacheMXBean.class, key);
+		return cache;
+	}
+	
+	/**
+	 * Weighs cached files by their length on disk
+	 */
+	private static class FileWeigher implements IWeigher {
+
+		@Override
+		public int weigh(String key, Object value) {
+			if (value instanceof File) {
+				return (int) Math.min(Integer.MAX_VALUE, ((File) value).length());
+			}
+			return 1;
+		}
+	}
+	
+	/**
+	 * Deletes the cached files leaving the cache
+	 */
+	private static class FileEvictionListener implements IEvictionListener {
+
+		@Override
+		public void onEviction(String key, Object value, ObjectCache.EvictionCause cause) {
+			// a replacing entry refers to the same file
+			if (cause != ObjectCache.EvictionCause.REPLACED && value instanceof File) {
+				log.debug("delete cached file {} ({})", key, cause);
+				if (!((File) value).delete()) {
+					log.debug("cached file {} already deleted", key);
+				}
+			}
+		}
 	}
 	
 	private class CacheCollectorJob implements IScheduledJob {
@@ -0,0 +1,19 @@
+package com.sms.server.cache;
+
+/**
+ * Notified of entries leaving the cache, used to release the resources
+ * held by cached values.
+ * @author pengliren
+ *
+ */
+public interface IEvictionListener {
+
+	/**
+	 * Entry was removed from the cache, called outside of the cache locks.
+	 *
+	 * @param key entry key
+	 * @param value entry value
+	 * @param cause why the entry was removed
+	 */
+	public void onEviction(String key, Object value, ObjectCache.EvictionCause cause);
+}
@@ -0,0 +1,19 @@
+package com.sms.server.cache;
+
+/**
+ * Calculates the weight of cache entries, the cache evicts entries once
+ * the sum of the weights exceeds its maximum weight.
+ * @author pengliren
+ *
+ */
+public interface IWeigher {
+
+	/**
+	 * Return the weight of an entry, it must not change while cached.
+	 *
+	 * @param key entry key
+	 * @param value entry value
+	 * @return weight, values below 1 count as 1
+	 */
+	public int weigh(String key, Object value);
+}
@@ -0,0 +1,40 @@
+package com.sms.server.cache;
+
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.sms.io.ITagReader;
+
+/**
+ * Weighs cache entries by their approximate memory footprint in bytes.
+ * @author pengliren
+ *
+ */
+public class MemoryWeigher implements IWeigher {
+
+	/**
+	 * Estimated index size of a tag reader per second of media (keyframe, sample and position tables)
+	 */
+	private static final int READER_BYTES_PER_SECOND = 8192;
+
+	/**
+	 * Minimum weight of a tag reader, covers its read buffer
+	 */
+	private static final int READER_MIN_BYTES = 65536;
+
+	/** {@inheritDoc} */
+	public int weigh(String key, Object value) {
+		if (value instanceof ByteBuffer) {
+			return ((ByteBuffer) value).capacity();
+		} else if (value instanceof IoBuffer) {
+			return ((IoBuffer) value).capacity();
+		} else if (value instanceof byte[]) {
+			return ((byte[]) value).length;
+		} else if (value instanceof ITagReader) {
+			long seconds = ((ITagReader) value).getDuration() / 1000;
+			return (int) Math.min(Integer.MAX_VALUE, Math.max(READER_MIN_BYTES, seconds * READER_BYTES_PER_SECOND));
+		}
+		return 1;
+	}
+}
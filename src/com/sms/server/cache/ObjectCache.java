@@ -1,39 +1,76 @@
 package com.sms.server.cache;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.jmx.mxbeans.ObjectCacheMXBean;
 import com.sms.server.util.SystemTimer;
 
 /**
  * Cache Object
+ * <p>
+ * Weight bounded cache with segmented LRU eviction. New entries go to the probation
+ * segment and are promoted to the protected segment when they are hit again, so a
+ * burst of one-off entries cannot flush the frequently used ones. Lookups are served
+ * from a concurrent map; the recency order is only updated when the eviction lock is
+ * free, a contended read simply skips the reordering.
  * @author pengliren
  *
  */
-public class ObjectCache {
+public class ObjectCache implements ObjectCacheMXBean {
 
 	private static final Logger log = LoggerFactory.getLogger(CacheManager.class);
-	
+
 	private static int DEFAULT_EXPIRE_TIME = 1200;
-	
-	private class CacheItem {
+
+	/**
+	 * Share of the maximum weight reserved for the protected segment
+	 */
+	private static final double PROTECTED_RATIO = 0.8;
+
+	/**
+	 * Why an entry left the cache
+	 */
+	public static enum EvictionCause {
+		EXPLICIT, REPLACED, EXPIRED, SIZE
+	}
+
+	private static final IWeigher SINGLETON_WEIGHER = new IWeigher() {
+		public int weigh(String key, Object value) {
+			return 1;
+		}
+	};
+
+	private static class CacheItem {
+		private final String key;
+		private final Object object;
+		private final int weight;
 		private int expire = DEFAULT_EXPIRE_TIME;
-		private long accessTime = 0;
-		private Object object = null;
+		private volatile long accessTime = 0;
 
-		public CacheItem(Object object) {
+		// guarded by the eviction lock
+		private boolean protect;
+		private CacheItem prev;
+		private CacheItem next;
+
+		public CacheItem(String key, Object object, int weight) {
+			this.key = key;
 			this.object = object;
+			this.weight = weight;
 			this.accessTime = SystemTimer.currentTimeMillis();
 		}
 
-		public CacheItem(Object object, int expire) {
-			this.object = object;
+		public CacheItem(String key, Object object, int weight, int expire) {
+			this(key, object, weight);
 			this.expire = expire;
-			this.accessTime = SystemTimer.currentTimeMillis();
 		}
 
 		public void access() {
@@ -44,79 +81,368 @@ public class ObjectCache {
 			if (expire == -1)
 				return false;
 			else
-				return (accessTime + expire * 1000) < SystemTimer.currentTimeMillis();
+				return (accessTime + expire * 1000L) < SystemTimer.currentTimeMillis();
 		}
 
 		public Object getObject() {
 			return object;
 		}
 
+		public boolean isLinked() {
+			return next != null;
+		}
 	}
-	
+
 	private ConcurrentHashMap<String, CacheItem> items = new ConcurrentHashMap<String, CacheItem>();
 
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	// sentinels of the two segments, head.next is the most recently used entry
+	private final CacheItem probation = sentinel();
+
+	private final CacheItem protect = sentinel();
+
+	private final long maximumWeight;
+
+	private final long maximumProtectedWeight;
+
+	private final IWeigher weigher;
+
+	private final IEvictionListener listener;
+
+	private long weightedSize;
+
+	private long protectedWeightedSize;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * Create an unbounded cache
+	 */
 	public ObjectCache() {
+		this(0, null, null);
+	}
+
+	/**
+	 * Create a cache holding at most the given number of entries
+	 *
+	 * @param maximumSize maximum number of entries, 0 for unbounded
+	 */
+	public ObjectCache(long maximumSize) {
+		this(maximumSize, null, null);
 	}
-	
+
+	/**
+	 * Create a weight bounded cache
+	 *
+	 * @param maximumWeight maximum total weight, 0 for unbounded
+	 * @param weigher weigher of the entries, each entry weighs 1 if null
+	 * @param listener notified of every entry leaving the cache, may be null
+	 */
+	public ObjectCache(long maximumWeight, IWeigher weigher, IEvictionListener listener) {
+		this.maximumWeight = maximumWeight;
+		this.maximumProtectedWeight = (long) (maximumWeight * PROTECTED_RATIO);
+		this.weigher = (weigher == null ? SINGLETON_WEIGHER : weigher);
+		this.listener = listener;
+	}
+
 	public void collect() {
 		// check all cache item
-		Iterator<String> it = items.keySet().iterator();
-		while (it.hasNext()) {
-			String key = it.next();
-			CacheItem item = items.get(key);
-
-			// timeout
-			if (item.isExpired()) {
-				log.debug("cache {} isExpired and remove!", key);
-				it.remove();
+		List<CacheItem> removed = new ArrayList<CacheItem>();
+		evictionLock.lock();
+		try {
+			Iterator<CacheItem> it = items.values().iterator();
+			while (it.hasNext()) {
+				CacheItem item = it.next();
+				// timeout
+				if (item.isExpired()) {
+					log.debug("cache {} isExpired and remove!", item.key);
+					it.remove();
+					unlink(item);
+					removed.add(item);
+				}
 			}
+		} finally {
+			evictionLock.unlock();
 		}
-
+		notifyListener(removed, EvictionCause.EXPIRED);
 	}
-	
+
 	public Object get(String key) {
-		Object obj = null;
-		if (items.containsKey(key)) {
-			CacheItem item = items.get(key);
-			// check for timeout
-			if (!item.isExpired()) {
-				item.access();
-				obj = item.getObject();
-			} else {
-				items.remove(key);
+		CacheItem item = items.get(key);
+		if (item == null) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		// check for timeout
+		if (item.isExpired()) {
+			missCount.incrementAndGet();
+			if (remove(item)) {
+				notifyListener(item, EvictionCause.EXPIRED);
 			}
+			return null;
 		}
-
-		return obj;
+		hitCount.incrementAndGet();
+		item.access();
+		if (evictionLock.tryLock()) {
+			try {
+				onAccess(item);
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+		return item.getObject();
 	}
-	
+
 	public Set<String> getKeys() {
-		
+
 		return items.keySet();
 	}
 
 	public void put(String key, Object obj) {
-		items.put(key, new CacheItem(obj));
+		put(key, new CacheItem(key, obj, weigh(key, obj)));
 	}
 
 	public void put(String key, Object obj, int expire) {
-		items.put(key, new CacheItem(obj, expire));
+		put(key, new CacheItem(key, obj, weigh(key, obj), expire));
+	}
+
+	private void put(String key, CacheItem item) {
+		if (maximumWeight > 0 && item.weight > maximumWeight) {
+			log.debug("cache {} is too large ({}) and not cached", key, item.weight);
+			remove(key);
+			notifyListener(item, EvictionCause.SIZE);
+			return;
+		}
+		CacheItem old;
+		List<CacheItem> evicted;
+		evictionLock.lock();
+		try {
+			old = items.put(key, item);
+			if (old != null) {
+				unlink(old);
+			}
+			linkFirst(probation, item);
+			weightedSize += item.weight;
+			evicted = evict();
+		} finally {
+			evictionLock.unlock();
+		}
+		if (old != null && old.getObject() != item.getObject()) {
+			notifyListener(old, EvictionCause.REPLACED);
+		}
+		notifyListener(evicted, EvictionCause.SIZE);
 	}
 
 	public void remove(String key) {
-		items.remove(key);
+		CacheItem item = items.get(key);
+		if (item != null && remove(item)) {
+			notifyListener(item, EvictionCause.EXPLICIT);
+		}
+	}
+
+	/**
+	 * Remove the entry only if it still holds the given object, so a stale entry found by
+	 * one caller does not drop the fresh one another caller put meanwhile.
+	 *
+	 * @param key key
+	 * @param obj cached object expected
+	 * @return true if the entry was removed
+	 */
+	public boolean remove(String key, Object obj) {
+		CacheItem item = items.get(key);
+		if (item != null && item.getObject() == obj && remove(item)) {
+			notifyListener(item, EvictionCause.EXPLICIT);
+			return true;
+		}
+		return false;
 	}
-	
+
 	public void removeAll() {
-		
-		items.clear();
+		List<CacheItem> removed;
+		evictionLock.lock();
+		try {
+			removed = new ArrayList<CacheItem>(items.values());
+			items.clear();
+			for (CacheItem item : removed) {
+				unlink(item);
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		notifyListener(removed, EvictionCause.EXPLICIT);
 	}
-	
+
 	public boolean isKeyInCache(String key) {
-		
-		for(String temp : items.keySet()) {
-			if(temp.equals(key)) return true;
+
+		return items.containsKey(key);
+	}
+
+	/** {@inheritDoc} */
+	public int getSize() {
+		return items.size();
+	}
+
+	/** {@inheritDoc} */
+	public long getWeightedSize() {
+		evictionLock.lock();
+		try {
+			return weightedSize;
+		} finally {
+			evictionLock.unlock();
 		}
-		return false;
+	}
+
+	/** {@inheritDoc} */
+	public long getMaximumWeight() {
+		return maximumWeight;
+	}
+
+	/** {@inheritDoc} */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return (total == 0 ? 1.0 : (double) hits / total);
+	}
+
+	private int weigh(String key, Object obj) {
+		return Math.max(1, weigher.weigh(key, obj));
+	}
+
+	/**
+	 * Remove the given entry if it is still mapped
+	 *
+	 * @param item cache entry
+	 * @return true if it was removed by this call
+	 */
+	private boolean remove(CacheItem item) {
+		evictionLock.lock();
+		try {
+			if (items.remove(item.key, item)) {
+				unlink(item);
+				return true;
+			}
+			return false;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Promote a probation entry to the protected segment or refresh a protected one,
+	 * demoting the least recently used protected entries if the segment overflows.
+	 */
+	private void onAccess(CacheItem item) {
+		if (!item.isLinked()) {
+			// removed in the meantime
+			return;
+		}
+		detach(item);
+		if (!item.protect) {
+			item.protect = true;
+			protectedWeightedSize += item.weight;
+		}
+		linkFirst(protect, item);
+		while (maximumProtectedWeight > 0 && protectedWeightedSize > maximumProtectedWeight && protect.prev != protect) {
+			CacheItem demoted = protect.prev;
+			detach(demoted);
+			demoted.protect = false;
+			protectedWeightedSize -= demoted.weight;
+			linkFirst(probation, demoted);
+		}
+	}
+
+	/**
+	 * Evict the least recently used entries until the cache fits its maximum weight,
+	 * probation entries go first.
+	 *
+	 * @return evicted entries
+	 */
+	private List<CacheItem> evict() {
+		List<CacheItem> evicted = null;
+		while (maximumWeight > 0 && weightedSize > maximumWeight) {
+			CacheItem victim = (probation.prev != probation) ? probation.prev : protect.prev;
+			if (victim == protect) {
+				break;
+			}
+			items.remove(victim.key, victim);
+			unlink(victim);
+			evictionCount.incrementAndGet();
+			if (evicted == null) {
+				evicted = new ArrayList<CacheItem>();
+			}
+			evicted.add(victim);
+		}
+		return evicted;
+	}
+
+	private void linkFirst(CacheItem head, CacheItem item) {
+		item.prev = head;
+		item.next = head.next;
+		head.next.prev = item;
+		head.next = item;
+	}
+
+	private void detach(CacheItem item) {
+		item.prev.next = item.next;
+		item.next.prev = item.prev;
+		item.prev = null;
+		item.next = null;
+	}
+
+	private void unlink(CacheItem item) {
+		if (!item.isLinked()) {
+			return;
+		}
+		detach(item);
+		weightedSize -= item.weight;
+		if (item.protect) {
+			item.protect = false;
+			protectedWeightedSize -= item.weight;
+		}
+	}
+
+	private void notifyListener(List<CacheItem> removed, EvictionCause cause) {
+		if (removed != null) {
+			for (CacheItem item : removed) {
+				notifyListener(item, cause);
+			}
+		}
+	}
+
+	private void notifyListener(CacheItem item, EvictionCause cause) {
+		if (listener != null) {
+			try {
+				listener.onEviction(item.key, item.getObject(), cause);
+			} catch (Exception e) {
+				log.warn("cache eviction listener failed for {}", item.key, e);
+			}
+		}
+	}
+
+	private static CacheItem sentinel() {
+		CacheItem head = new CacheItem(null, null, 0, -1);
+		head.prev = head;
+		head.next = head;
+		return head;
 	}
 }
@@ -36,17 +36,26 @@ public abstract class BaseHTTPService implements IHTTPService {
 	@Override
 	public void sendError(HTTPRequest req, HTTPResponse resp, HTTPResponseStatus status) {
 		commitResponse(req, resp, null, status);
-		writeData(false, resp, true);
+		writeData((HTTPMinaConnection)SMS.getConnectionLocal(), false, resp, true);
 	}
 	
 	@Override
-	public void commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data) {
+	public WriteFuture commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data) {
 		
-		commitResponse(req, resp, data, HTTPResponseStatus.OK);
+		return commitResponse(req, resp, data, HTTPResponseStatus.OK);
 	}
 	
 	@Override
-	public void commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data, HTTPResponseStatus status) {	
+	public WriteFuture commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data, HTTPResponseStatus status) {	
+		
+		return commitResponse((HTTPMinaConnection)SMS.getConnectionLocal(), req, resp, data, status);
+	}
+	
+	/**
+	 * Commit the response on the given connection, for responses completed outside
+	 * of the thread that received the request.
+	 */
+	protected WriteFuture commitResponse(HTTPMinaConnection conn, HTTPRequest req, HTTPResponse resp, IoBuffer data, HTTPResponseStatus status) {	
 		
 		resp.setStatus(status);
 		
@@ -61,12 +70,10 @@ public abstract class BaseHTTPService implements IHTTPService {
 			resp.setHeader(CONNECTION, KEEP_ALIVE);
 		}
 		
-		writeData(isKeepAlive, resp, false);
+		return writeData(conn, isKeepAlive, resp, false);
 	}
 	
-	private void writeData(boolean isKeepAlive, HTTPResponse resp, boolean isClose) {
-		
-		HTTPMinaConnection conn = (HTTPMinaConnection)SMS.getConnectionLocal();	
+	private WriteFuture writeData(HTTPMinaConnection conn, boolean isKeepAlive, HTTPResponse resp, boolean isClose) {
 		
 		WriteFuture future = conn.write(resp);
 		
@@ -78,6 +85,7 @@ public abstract class BaseHTTPService implements IHTTPService {
 				}
 			});
 		} 
+		return future;
 	}
 	
 	@Override
@@ -12,6 +12,7 @@ import com.sms.server.api.stream.IClientStream;
 import com.sms.server.api.stream.IPlaylistSubscriberStream;
 import com.sms.server.api.stream.ISingleItemSubscriberStream;
 import com.sms.server.api.stream.IStreamCapableConnection;
+import com.sms.server.net.http.message.HTTPChunk;
 
 /**
  * HTTP Mina Connection
@@ -54,7 +55,7 @@ public class HTTPMinaConnection extends BaseConnection implements IStreamCapable
 	
 	public void messageSent(Object message) {
 
-		if (message instanceof IoBuffer) {
+		if (message instanceof IoBuffer || message instanceof HTTPChunk) {
 			pendings.decrementAndGet();
 		}
 	}
@@ -1,6 +1,7 @@
 package com.sms.server.net.http;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
 
 import com.sms.server.api.IScope;
 import com.sms.server.net.http.message.HTTPRequest;
@@ -20,9 +21,9 @@ public interface IHTTPService {
 
 	public void handleRequest(HTTPRequest req, HTTPResponse resp, IScope scope) throws Exception;
 	
-	public void commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data, HTTPResponseStatus status);
+	public WriteFuture commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data, HTTPResponseStatus status);
 	
-	public void commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data);
+	public WriteFuture commitResponse(HTTPRequest req, HTTPResponse resp, IoBuffer data);
 
     public void start();
 
@@ -5,6 +5,7 @@ import java.nio.charset.CharacterCodingException;
 import java.util.Map;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
 
 import com.sms.server.net.http.message.HTTPChunk;
@@ -21,15 +22,17 @@ import com.sms.server.util.CharsetUtil;
  */
 public abstract class HTTPMessageEncoder extends ProtocolEncoderAdapter {
 
-	private static final IoBuffer LAST_CHUNK = IoBuffer.allocate(10).setAutoExpand(true);
+	private static final IoBuffer LAST_CHUNK = IoBuffer.wrap(new byte[] { '0', '\r', '\n', '\r', '\n' }).asReadOnlyBuffer();
 	
-	private volatile boolean chunked;
+	/**
+	 * Whether the last message written to the session is chunked, the encoder is shared by the sessions
+	 */
+	private static final String CHUNKED_KEY = HTTPMessageEncoder.class.getName() + ".chunked";
 	
 	public HTTPMessageEncoder() throws CharacterCodingException {		
-		LAST_CHUNK.putString("0\r\n\r\n", CharsetUtil.US_ASCII.newEncoder());
 	}
 	
-	protected IoBuffer encodeBuffer(Object msg) throws Exception {
+	protected IoBuffer encodeBuffer(IoSession session, Object msg) throws Exception {
 		
 		if (msg instanceof HTTPMessage) {
             HTTPMessage m = (HTTPMessage) msg;
@@ -40,9 +43,14 @@ public abstract class HTTPMessageEncoder extends ProtocolEncoderAdapter {
                 if (!HTTPCodecUtil.isTransferEncodingChunked(m)) {
                     m.addHeader(Names.TRANSFER_ENCODING, Values.CHUNKED);
                 }
-                chunked = this.chunked = true;
+                chunked = true;
             } else {
-                chunked = this.chunked = HTTPCodecUtil.isTransferEncodingChunked(m);
+                chunked = HTTPCodecUtil.isTransferEncodingChunked(m);
+            }
+            if (chunked) {
+            	session.setAttribute(CHUNKED_KEY, Boolean.TRUE);
+            } else {
+            	session.removeAttribute(CHUNKED_KEY);
             }
             IoBuffer header = IoBuffer.allocate(2048).setAutoExpand(true);
             encodeInitialLine(header, m);
@@ -64,9 +72,9 @@ public abstract class HTTPMessageEncoder extends ProtocolEncoderAdapter {
 
         if (msg instanceof HTTPChunk) {
             HTTPChunk chunk = (HTTPChunk) msg;
-            if (chunked) {
+            if (session.containsAttribute(CHUNKED_KEY)) {
                 if (chunk.isLast()) {
-                    chunked = false;
+                    session.removeAttribute(CHUNKED_KEY);
                     if (chunk instanceof HTTPChunkTrailer) {
                         IoBuffer trailer = IoBuffer.allocate(2048).setAutoExpand(true);
                         trailer.put((byte) '0');
@@ -75,16 +83,15 @@ public abstract class HTTPMessageEncoder extends ProtocolEncoderAdapter {
                         encodeTrailingHeaders(trailer, (HTTPChunkTrailer) chunk);
                         trailer.put(HTTPCodecUtil.CR);
                         trailer.put(HTTPCodecUtil.LF);
-                        return trailer;
+                        return trailer.flip();
                     } else {
                         return LAST_CHUNK.duplicate();
                     }
                 } else {                	
-                    IoBuffer content = chunk.getContent();
-                    content.flip();
-                    int contentLength = content.remaining();
-                    IoBuffer temp = IoBuffer.allocate(2048).setAutoExpand(true);
-                    temp.putString(Integer.toHexString(contentLength), CharsetUtil.US_ASCII.newEncoder());
+                    IoBuffer content = chunk.getContent().duplicate();
+                    byte[] size = Integer.toHexString(content.remaining()).getBytes(CharsetUtil.US_ASCII);
+                    IoBuffer temp = IoBuffer.allocate(size.length + content.remaining() + 4);
+                    temp.put(size);
                     temp.put(HTTPCodecUtil.CRLF);
                     temp.put(content);
                     temp.put(HTTPCodecUtil.CRLF);
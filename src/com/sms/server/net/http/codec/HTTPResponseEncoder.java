@@ -26,7 +26,7 @@ public class HTTPResponseEncoder extends HTTPMessageEncoder {
 
 		IoBuffer buf;
 		try {
-			buf = encodeBuffer(message);
+			buf = encodeBuffer(session, message);
 			if (buf != null) {
 				out.write(buf);
 				out.mergeAll();
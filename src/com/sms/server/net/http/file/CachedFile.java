@@ -0,0 +1,232 @@
+package com.sms.server.net.http.file;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.IStreamableFileFactory;
+import com.sms.io.IStreamableFileService;
+import com.sms.io.ITagReader;
+import com.sms.io.StreamableFileFactory;
+import com.sms.io.flv.IKeyFrameDataAnalyzer;
+import com.sms.io.flv.IKeyFrameDataAnalyzer.KeyFrameMeta;
+import com.sms.server.util.SystemTimer;
+
+/**
+ * Open file served by the static file service
+ * <p>
+ * The descriptor is shared by concurrent requests, file regions are read with positional
+ * transfers. The file cache holds one reference and every request retains another one
+ * until its regions are written, the descriptor is closed by whoever releases it last.
+ * @author pengliren
+ *
+ */
+public class CachedFile {
+
+	private static Logger log = LoggerFactory.getLogger(CachedFile.class);
+	
+	// interval in milliseconds between two checks of the file on disk
+	private static final long CHECK_INTERVAL = 1000;
+	
+	private final File file;
+	
+	private final RandomAccessFile raf;
+	
+	private final long length;
+	
+	private final long lastModified;
+	
+	private final String contentType;
+	
+	private final AtomicInteger refCount = new AtomicInteger(1);
+	
+	private volatile long checkedTime;
+	
+	// flv keyframe positions and end of the header tags, loaded on first seek
+	private volatile long[] keyframePositions;
+	
+	private volatile long headerEnd;
+	
+	public CachedFile(File file) throws FileNotFoundException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		long len;
+		try {
+			len = raf.length();
+		} catch (IOException e) {
+			len = file.length();
+		}
+		this.length = len;
+		this.lastModified = file.lastModified();
+		String extn = MimetypesFileTypeMap.getExtension(file.getPath());
+		this.contentType = MimetypesFileTypeMap.getContentType(extn);
+		this.checkedTime = SystemTimer.currentTimeMillis();
+	}
+	
+	public File getFile() {
+		return file;
+	}
+
+	public FileChannel getChannel() {
+		return raf.getChannel();
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+	
+	/**
+	 * Whether the file on disk is still the opened one, checked at most once per second
+	 */
+	public boolean isValid() {
+		long now = SystemTimer.currentTimeMillis();
+		if (now - checkedTime < CHECK_INTERVAL) {
+			return true;
+		}
+		checkedTime = now;
+		// lastModified is 0 once the file is gone
+		return file.lastModified() == lastModified && file.length() == length;
+	}
+	
+	/**
+	 * Add a reference unless the file has already been closed
+	 * 
+	 * @return true if the reference was added
+	 */
+	public boolean retain() {
+		for (;;) {
+			int count = refCount.get();
+			if (count <= 0) {
+				return false;
+			}
+			if (refCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Drop a reference, the file is closed with the last one.
+	 */
+	public void release() {
+		if (refCount.decrementAndGet() == 0) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				log.info("file close exception : {}", e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Return the position of the last keyframe at or before the given flv byte position
+	 * 
+	 * @param position requested position
+	 * @return keyframe position, or -1 if the whole file should be sent
+	 */
+	public long getKeyframePosition(long position) {
+		long[] positions = getKeyframePositions();
+		int idx = Arrays.binarySearch(positions, position);
+		if (idx < 0) {
+			idx = -idx - 2;
+		}
+		if (idx < 0 || positions[idx] <= headerEnd) {
+			return -1;
+		}
+		return positions[idx];
+	}
+	
+	/**
+	 * @return length of the flv header and of the metadata and decoder configuration tags before the first frame
+	 */
+	public long getHeaderEnd() {
+		getKeyframePositions();
+		return headerEnd;
+	}
+	
+	private long[] getKeyframePositions() {
+		long[] positions = keyframePositions;
+		if (positions == null) {
+			synchronized (this) {
+				positions = keyframePositions;
+				if (positions == null) {
+					headerEnd = findHeaderEnd();
+					positions = loadKeyframePositions();
+					keyframePositions = positions;
+				}
+			}
+		}
+		return positions;
+	}
+	
+	private long[] loadKeyframePositions() {
+		IStreamableFileFactory factory = StreamableFileFactory.getInstance();
+		IStreamableFileService service = factory.getService(file);
+		ITagReader reader = null;
+		try {
+			if (service != null) {
+				reader = service.getStreamableFile(file).getReader();
+				if (reader instanceof IKeyFrameDataAnalyzer) {
+					KeyFrameMeta meta = ((IKeyFrameDataAnalyzer) reader).analyzeKeyFrames();
+					if (meta != null && !meta.audioOnly && meta.positions != null) {
+						return meta.positions;
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.info("could not analyze keyframes of {} : {}", file, e.getMessage());
+		} finally {
+			if (reader != null) reader.close();
+		}
+		return new long[0];
+	}
+	
+	/**
+	 * Walk the leading script data and sequence header tags. Positions point at the
+	 * previous tag size field in front of each tag, as in the keyframe index.
+	 */
+	private long findHeaderEnd() {
+		long pos = 9;
+		byte[] header = new byte[17];
+		try {
+			while (pos + header.length <= length) {
+				synchronized (raf) {
+					raf.seek(pos);
+					raf.readFully(header);
+				}
+				int type = header[4] & 0x1f;
+				int bodySize = ((header[5] & 0xff) << 16) | ((header[6] & 0xff) << 8) | (header[7] & 0xff);
+				boolean config;
+				if (type == 18) { // script data
+					config = true;
+				} else if (type == 9) { // avc sequence header
+					config = (header[15] & 0x0f) == 7 && header[16] == 0;
+				} else if (type == 8) { // aac sequence header
+					config = ((header[15] & 0xf0) >> 4) == 10 && header[16] == 0;
+				} else {
+					config = false;
+				}
+				if (!config) break;
+				pos += bodySize + 15;
+			}
+		} catch (IOException e) {
+			log.info("could not read flv header of {} : {}", file, e.getMessage());
+		}
+		return pos;
+	}
+}
@@ -4,36 +4,45 @@ import static com.sms.server.net.http.message.HTTPHeaders.isKeepAlive;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.file.DefaultFileRegion;
 import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 
+import com.sms.server.Configuration;
 import com.sms.server.ContextBean;
 import com.sms.server.ScopeContextBean;
 import com.sms.server.api.IScope;
 import com.sms.server.api.SMS;
+import com.sms.server.cache.CacheManager;
+import com.sms.server.cache.IEvictionListener;
+import com.sms.server.cache.ObjectCache;
 import com.sms.server.net.http.BaseHTTPService;
 import com.sms.server.net.http.HTTPMinaConnection;
 import com.sms.server.net.http.IHTTPService;
+import com.sms.server.net.http.codec.QueryStringDecoder;
 import com.sms.server.net.http.message.HTTPHeaders;
 import com.sms.server.net.http.message.HTTPRequest;
 import com.sms.server.net.http.message.HTTPResponse;
 import com.sms.server.net.http.message.HTTPResponseStatus;
 import com.sms.server.util.MatcherUtil;
+import com.sms.server.util.SystemTimer;
 /**
  * http static file Service
+ * <p>
+ * Serves files zero-copy from a cache of open descriptors, with byte ranges and
+ * keyframe aligned flv pseudo-streaming (?start=byte position).
  * @author pengliren
  *
  */
@@ -43,6 +52,27 @@ public class HTTPStaticFileService extends BaseHTTPService implements IHTTPServi
     public static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
     public static final int HTTP_CACHE_SECONDS = 60;
     
+    /**
+     * Maximum number of ranges served in one request, more are ignored
+     */
+    private static final int MAX_RANGES = 16;
+    
+    /**
+     * Maximum number of files kept open
+     */
+    private static final int FD_CACHE_MAXSIZE = 1000;
+    
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+    	@Override
+    	protected SimpleDateFormat initialValue() {
+    		SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+    		dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+    		return dateFormatter;
+    	}
+    };
+    
+    private static ObjectCache fdCache;
+    
 	@Override
 	public void setHeader(HTTPResponse resp) {
 		
@@ -58,68 +88,195 @@ public class HTTPStaticFileService extends BaseHTTPService implements IHTTPServi
 		}
 		final HTTPMinaConnection conn = (HTTPMinaConnection)SMS.getConnectionLocal();
 		final String uri = req.getUri();
-        final String path = sanitizeUri(uri, scope);
+		QueryStringDecoder decoder = new QueryStringDecoder(uri);
+        final String path = sanitizeUri(decoder.getPath(), scope);
         if (path == null) {
             sendError(req, resp, HTTPResponseStatus.FORBIDDEN);
             return;
         }
         
-        File file = new File(path);
-        if (file.isHidden() || !file.exists()) {
-            sendError(req, resp, HTTPResponseStatus.NOT_FOUND);
-            return;
-        }
-        
-        if (file.isDirectory()) {
+        final CachedFile cachedFile = openFile(path);
+        if (cachedFile == null) {
         	sendError(req, resp, HTTPResponseStatus.NOT_FOUND);
-            return;
+        	return;
         }
         
-        if (!file.isFile()) {
-            sendError(req, resp, HTTPResponseStatus.FORBIDDEN);
-            return;
-        }
-        
-        // Cache Validation
-        String ifModifiedSince = req.getHeader(HTTPHeaders.Names.IF_MODIFIED_SINCE);
-        if (ifModifiedSince != null && !ifModifiedSince.equals("")) {
-            SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-            Date ifModifiedSinceDate = dateFormatter.parse(ifModifiedSince);
-
-            // Only compare up to the second because the datetime format we send to the client
-            // does not have milliseconds
-            long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
-            long fileLastModifiedSeconds = file.lastModified() / 1000;
-            if (ifModifiedSinceDateSeconds == fileLastModifiedSeconds) {
-                sendNotModified(req, resp);
-                return;
-            }
-        }
-        
-        final RandomAccessFile raf;
         try {
-            raf = new RandomAccessFile(file, "r");
-        } catch (FileNotFoundException fnfe) {
-            sendError(req, resp, HTTPResponseStatus.NOT_FOUND);
-            return;
+	        // Cache Validation
+	        String ifModifiedSince = req.getHeader(HTTPHeaders.Names.IF_MODIFIED_SINCE);
+	        if (ifModifiedSince != null && !ifModifiedSince.equals("")) {
+	            Date ifModifiedSinceDate = getDateFormat().parse(ifModifiedSince);
+	
+	            // Only compare up to the second because the datetime format we send to the client
+	            // does not have milliseconds
+	            long ifModifiedSinceDateSeconds = ifModifiedSinceDate.getTime() / 1000;
+	            long fileLastModifiedSeconds = cachedFile.getLastModified() / 1000;
+	            if (ifModifiedSinceDateSeconds == fileLastModifiedSeconds) {
+	                sendNotModified(req, resp);
+	                return;
+	            }
+	        }
+	        
+	        setContentTypeHeader(resp, cachedFile);
+	        setDateAndCacheHeaders(resp, cachedFile);
+	        resp.setHeader(HTTPHeaders.Names.ACCEPT_RANGES, "bytes");
+	        
+	        List<String> start = decoder.getParameters().get("start");
+	        if (start != null && start.size() > 0 && StringUtils.endsWithIgnoreCase(path, ".flv")) {
+	        	sendFLVFrom(conn, req, resp, cachedFile, start.get(0));
+	        	return;
+	        }
+	        
+	        String range = req.getHeader(HTTPHeaders.Names.RANGE);
+	        if (range != null && isRangeApplicable(req, cachedFile)) {
+	        	List<long[]> ranges = parseRange(range, cachedFile.getLength());
+	        	if (ranges == null) {
+	        		resp.setHeader(HTTPHeaders.Names.CONTENT_RANGE, "bytes */" + cachedFile.getLength());
+	        		sendError(req, resp, HTTPResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+	        		return;
+	        	}
+	        	if (!ranges.isEmpty()) {
+	        		sendRanges(conn, req, resp, cachedFile, ranges);
+	        		return;
+	        	}
+	        }
+	        
+	        HTTPHeaders.setContentLength(resp, cachedFile.getLength());
+	        sendRegions(conn, req, resp, cachedFile, new Object[] { new long[] { 0, cachedFile.getLength() } });
+        } finally {
+        	cachedFile.release();
         }
-       
-        long fileLength = raf.length();
-        HTTPHeaders.setContentLength(resp, fileLength);
-        setContentTypeHeader(resp, file);
-        setDateAndCacheHeaders(resp, file);
-        conn.write(resp);       
-       
-        final boolean isKeepAlive = isKeepAlive(req); 
-        
-        WriteFuture writeFuture = conn.write(new DefaultFileRegion(raf.getChannel()));
-        writeFuture.addListener(new IoFutureListener<WriteFuture>() {
-            public void operationComplete(WriteFuture future) {
-            	try {
-					raf.close();
-				} catch (IOException e) {
-					log.info("file close exception : {}", e.getMessage());
+	}
+	
+	/**
+	 * Return the open file of the path with a reference added, the caller must release it
+	 * 
+	 * @return open file or null if it is not a regular readable file
+	 */
+	private CachedFile openFile(String path) {
+		
+		CachedFile cachedFile = (CachedFile) getFdCache().get(path);
+		if (cachedFile != null) {
+			if (cachedFile.isValid() && cachedFile.retain()) {
+				return cachedFile;
+			}
+			getFdCache().remove(path, cachedFile);
+		}
+		
+		File file = new File(path);
+		if (file.isHidden() || !file.isFile()) {
+			return null;
+		}
+		try {
+			cachedFile = new CachedFile(file);
+		} catch (FileNotFoundException fnfe) {
+			return null;
+		}
+		// one reference for the cache, one for the caller
+		cachedFile.retain();
+		getFdCache().put(path, cachedFile, Configuration.FILECACHE_PURGE * 60);
+		return cachedFile;
+	}
+	
+	/**
+	 * FLV pseudo-streaming, the header tags followed by the file from the last keyframe
+	 * at or before the requested byte position.
+	 */
+	private void sendFLVFrom(HTTPMinaConnection conn, HTTPRequest req, HTTPResponse resp, CachedFile cachedFile, String start) {
+		
+		long position;
+		try {
+			position = Long.parseLong(start);
+		} catch (NumberFormatException e) {
+			sendError(req, resp, HTTPResponseStatus.BAD_REQUEST);
+			return;
+		}
+		long keyframe = cachedFile.getKeyframePosition(position);
+		long length = cachedFile.getLength();
+		if (keyframe < 0) {
+			HTTPHeaders.setContentLength(resp, length);
+			sendRegions(conn, req, resp, cachedFile, new Object[] { new long[] { 0, length } });
+		} else {
+			long headerEnd = cachedFile.getHeaderEnd();
+			HTTPHeaders.setContentLength(resp, headerEnd + length - keyframe);
+			sendRegions(conn, req, resp, cachedFile, new Object[] { new long[] { 0, headerEnd }, new long[] { keyframe, length - keyframe } });
+		}
+	}
+	
+	/**
+	 * Send a single range, or a multipart/byteranges response for several ranges
+	 */
+	private void sendRanges(HTTPMinaConnection conn, HTTPRequest req, HTTPResponse resp, CachedFile cachedFile, List<long[]> ranges) {
+		
+		long length = cachedFile.getLength();
+		resp.setStatus(HTTPResponseStatus.PARTIAL_CONTENT);
+		if (ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			resp.setHeader(HTTPHeaders.Names.CONTENT_RANGE, String.format("bytes %d-%d/%d", range[0], range[0] + range[1] - 1, length));
+			HTTPHeaders.setContentLength(resp, range[1]);
+			sendRegions(conn, req, resp, cachedFile, new Object[] { range });
+			return;
+		}
+		String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(cachedFile.getLastModified());
+		String type = cachedFile.getContentType() != null ? cachedFile.getContentType() : "application/octet-stream";
+		Object[] parts = new Object[ranges.size() * 2 + 1];
+		long contentLength = 0;
+		int i = 0;
+		for (long[] range : ranges) {
+			String partHeader = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: bytes %d-%d/%d\r\n\r\n", 
+					boundary, type, range[0], range[0] + range[1] - 1, length);
+			IoBuffer buf = IoBuffer.wrap(partHeader.getBytes());
+			contentLength += buf.remaining() + range[1];
+			parts[i++] = buf;
+			parts[i++] = range;
+		}
+		IoBuffer end = IoBuffer.wrap(String.format("\r\n--%s--\r\n", boundary).getBytes());
+		contentLength += end.remaining();
+		parts[i] = end;
+		resp.setHeader(HTTPHeaders.Names.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+		HTTPHeaders.setContentLength(resp, contentLength);
+		sendRegions(conn, req, resp, cachedFile, parts);
+	}
+	
+	/**
+	 * Write the response followed by the given parts, {offset, length} file regions or buffers.
+	 * The file is retained until the last part is written.
+	 */
+	private void sendRegions(final HTTPMinaConnection conn, HTTPRequest req, HTTPResponse resp, final CachedFile cachedFile, Object[] parts) {
+		
+		final boolean isKeepAlive = isKeepAlive(req);
+		if (isKeepAlive) {
+			resp.setHeader(HTTPHeaders.Names.CONNECTION, HTTPHeaders.Values.KEEP_ALIVE);
+		}
+		conn.write(resp);
+		WriteFuture writeFuture = null;
+		cachedFile.retain();
+		try {
+			for (Object part : parts) {
+				if (part instanceof IoBuffer) {
+					writeFuture = conn.write(part);
+				} else {
+					long[] region = (long[]) part;
+					writeFuture = conn.write(new DefaultFileRegion(cachedFile.getChannel(), region[0], region[1]));
 				}
+			}
+		} catch (RuntimeException e) {
+			// drop the parts already queued with the session
+			conn.getHttpSession().close(true);
+			cachedFile.release();
+			throw e;
+		}
+		if (writeFuture == null) {
+			cachedFile.release();
+			if (!isKeepAlive) {
+				conn.getHttpSession().close(true);
+			}
+			return;
+		}
+		// every part is queued, the last one completes after the others
+		writeFuture.addListener(new IoFutureListener<WriteFuture>() {
+            public void operationComplete(WriteFuture future) {
+            	cachedFile.release();
             	if(!isKeepAlive) {
             		conn.getHttpSession().close(true);
                 }
@@ -127,6 +284,87 @@ public class HTTPStaticFileService extends BaseHTTPService implements IHTTPServi
         });
 	}
 	
+	/**
+	 * If-Range only allows the range when the validator still matches the file
+	 */
+	private boolean isRangeApplicable(HTTPRequest req, CachedFile cachedFile) {
+		
+		String ifRange = req.getHeader(HTTPHeaders.Names.IF_RANGE);
+		if (ifRange == null || ifRange.equals("")) {
+			return true;
+		}
+		try {
+			return getDateFormat().parse(ifRange).getTime() / 1000 == cachedFile.getLastModified() / 1000;
+		} catch (ParseException e) {
+			// entity tags are not generated
+			return false;
+		}
+	}
+	
+	/**
+	 * Parse a bytes Range header
+	 * 
+	 * @param range header value
+	 * @param length file length
+	 * @return {offset, length} ranges, empty to ignore the header, null if none is satisfiable
+	 */
+	private static List<long[]> parseRange(String range, long length) {
+		
+		List<long[]> ranges = new ArrayList<long[]>();
+		if (!range.startsWith("bytes=")) {
+			return ranges;
+		}
+		String[] specs = range.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return ranges;
+		}
+		boolean satisfiable = false;
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return new ArrayList<long[]>();
+			}
+			long first;
+			long last;
+			try {
+				if (dash == 0) { // suffix
+					long suffix = Long.parseLong(spec.substring(1));
+					first = Math.max(0, length - suffix);
+					last = length - 1;
+					if (suffix == 0) continue;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					last = (dash == spec.length() - 1) ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+					if (last < first) {
+						return new ArrayList<long[]>();
+					}
+				}
+			} catch (NumberFormatException e) {
+				return new ArrayList<long[]>();
+			}
+			if (first >= length) {
+				continue;
+			}
+			last = Math.min(last, length - 1);
+			ranges.add(new long[] { first, last - first + 1 });
+			satisfiable = true;
+		}
+		return satisfiable ? ranges : null;
+	}
+	
+	private static SimpleDateFormat getDateFormat() {
+		return DATE_FORMAT.get();
+	}
+	
+	private static ObjectCache getFdCache() {
+		if (fdCache == null) {
+			fdCache = CacheManager.getInstance().addCache("com.sms.server.net.http.file.fdCache", 
+					new ObjectCache(FD_CACHE_MAXSIZE, null, new FileReleaseListener()));
+		}
+		return fdCache;
+	}
+	
 	private static String sanitizeUri(String uri, IScope scope) {
         // Decode the path.
         try {
@@ -180,11 +418,7 @@ public class HTTPStaticFileService extends BaseHTTPService implements IHTTPServi
     }
 	
 	private void setDateHeader(HTTPResponse resp) {
-		SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT,Locale.US);
-		dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-
-		Calendar time = new GregorianCalendar();
-		resp.setHeader(HTTPHeaders.Names.DATE, dateFormatter.format(time.getTime()));
+		resp.setHeader(HTTPHeaders.Names.DATE, getDateFormat().format(new Date(SystemTimer.currentTimeMillis())));
 	}
 	
 	private void sendNotModified(HTTPRequest req, HTTPResponse resp) {
@@ -193,26 +427,36 @@ public class HTTPStaticFileService extends BaseHTTPService implements IHTTPServi
 		commitResponse(req, resp, null, HTTPResponseStatus.NOT_MODIFIED);
 	}
 	
-	private void setContentTypeHeader(HTTPResponse resp, File file) {
-        String extn = MimetypesFileTypeMap.getExtension(file.getPath());
-        String type = MimetypesFileTypeMap.getContentType(extn); 
-		if (type != null) {
-			resp.setHeader(HTTPHeaders.Names.CONTENT_TYPE, MimetypesFileTypeMap.getContentType(extn));
+	private void setContentTypeHeader(HTTPResponse resp, CachedFile file) {
+		if (file.getContentType() != null) {
+			resp.setHeader(HTTPHeaders.Names.CONTENT_TYPE, file.getContentType());
 		}
     }
 	
-	private void setDateAndCacheHeaders(HTTPResponse resp, File fileToCache) {
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+	private void setDateAndCacheHeaders(HTTPResponse resp, CachedFile fileToCache) {
+        SimpleDateFormat dateFormatter = getDateFormat();
+        long now = SystemTimer.currentTimeMillis();
 
         // Date header
-        Calendar time = new GregorianCalendar();
-        resp.setHeader(HTTPHeaders.Names.DATE, dateFormatter.format(time.getTime()));
+        resp.setHeader(HTTPHeaders.Names.DATE, dateFormatter.format(new Date(now)));
 
         // Add cache headers
-        time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-        resp.setHeader(HTTPHeaders.Names.EXPIRES, dateFormatter.format(time.getTime()));
+        resp.setHeader(HTTPHeaders.Names.EXPIRES, dateFormatter.format(new Date(now + HTTP_CACHE_SECONDS * 1000L)));
         resp.setHeader(HTTPHeaders.Names.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
-        resp.setHeader(HTTPHeaders.Names.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
+        resp.setHeader(HTTPHeaders.Names.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.getLastModified())));
     }
+	
+	/**
+	 * Releases the cache reference of the open files leaving the cache
+	 */
+	private static class FileReleaseListener implements IEvictionListener {
+
+		@Override
+		public void onEviction(String key, Object value, ObjectCache.EvictionCause cause) {
+			if (value instanceof CachedFile) {
+				log.debug("release cached file {} ({})", key, cause);
+				((CachedFile) value).release();
+			}
+		}
+	}
 }
@@ -1,10 +1,13 @@
 package com.sms.server.net.http.stream;
 
 import static com.sms.server.net.http.message.HTTPHeaders.Names.CONTENT_TYPE;
+import static com.sms.server.net.http.message.HTTPHeaders.Names.ETAG;
+import static com.sms.server.net.http.message.HTTPHeaders.Names.IF_NONE_MATCH;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.mina.core.buffer.IoBuffer;
@@ -23,6 +26,7 @@ import com.sms.server.api.SMS;
 import com.sms.server.net.http.BaseHTTPService;
 import com.sms.server.net.http.HTTPMinaConnection;
 import com.sms.server.net.http.IHTTPService;
+import com.sms.server.net.http.codec.QueryStringDecoder;
 import com.sms.server.net.http.message.HTTPRequest;
 import com.sms.server.net.http.message.HTTPResponse;
 import com.sms.server.net.http.message.HTTPResponseStatus;
@@ -36,6 +40,10 @@ import com.sms.server.stream.IProviderService.INPUT_TYPE;
  */
 public class HTTPM3U8Service extends BaseHTTPService implements IHTTPService {
 
+	private static final byte[] LIVE_PLAYLIST_EMPTY = "#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-ALLOW-CACHE:NO\n".getBytes();
+	
+	private static final byte[] LIVE_PLAYLIST_ENDED = "#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-ALLOW-CACHE:NO\n#EXT-X-ENDLIST\n".getBytes();
+
 	@Override
 	public void handleRequest(HTTPRequest req, HTTPResponse resp, IScope scope) throws Exception {
 
@@ -67,72 +75,75 @@ public class HTTPM3U8Service extends BaseHTTPService implements IHTTPService {
 	
 	/**
 	 *  play live stream by hls
+	 *  <p>
+	 *  The playlist is rendered by the segmenter on every segment rollover. A request for a
+	 *  segment that is not there yet, the first one or the one given by the _HLS_msn and _HLS_part
+	 *  blocking reload parameters, is answered asynchronously when it is published.
 	 * @param scope
 	 * @param app
 	 * @param streamName
 	 * @param session
 	 * @param resp
 	 */
-	private void playLiveStream(IScope scope, String app, String streamName, HTTPRequest req, HTTPResponse resp) {
+	private void playLiveStream(IScope scope, String app, final String streamName, final HTTPRequest req, final HTTPResponse resp) {
 		
-		HTTPMinaConnection conn = (HTTPMinaConnection)SMS.getConnectionLocal();
+		final HTTPMinaConnection conn = (HTTPMinaConnection)SMS.getConnectionLocal();
 		MpegtsSegmenterService service = MpegtsSegmenterService.getInstance();
-		StringBuilder buff = new StringBuilder();
-		buff.append("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-ALLOW-CACHE:NO\n");
 		if (service.isAvailable(scope, streamName)) {
-
-			int count = service.getSegmentCount(app, streamName);
-    		if (count <= 0) {
-				long maxWaitTime = 2 * service.getSegmentTimeLimit();
-				long start = System.currentTimeMillis();
-				do {
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e) {
-						log.info("waiting thread interruped?");
-						break;
-					}
-					if ((System.currentTimeMillis() - start) >= maxWaitTime) {
-						log.info("Maximum segment wait time exceeded for {}", streamName);
-						break;
-					}
-				} while ((count = service.getSegmentCount(app, streamName)) < 1);
-    		}
-    		
-    		// get the count one last time
-    		count = service.getSegmentCount(app, streamName);    		    	
-    		if (count >= 1) {
-        		//get segment duration in seconds
-        		long segmentDuration = service.getSegmentTimeLimit() / 1000;  	    		
-        		//get the current segment
-        		List<MpegtsSegment> tsSegments = service.getSegmentList(app,streamName);
-        		//get current sequence number
-        		int sequenceNumber = tsSegments.get(0).getSequence();	
-        		// create the heading            
-                buff.append(String.format("#EXT-X-TARGETDURATION:%s\n#EXT-X-MEDIA-SEQUENCE:%s\n", segmentDuration, sequenceNumber));
-                if(service.getSegmentIsEncrypt(app, streamName)) {
-                	if(conn.getHttpSession().getLocalAddress() == null) return;
-                    String address = conn.getHttpSession().getLocalAddress().toString();
-                    String httpAes = String.format("http:/%s/%s/%s/aes", address, app, streamName);
-                	buff.append("#EXT-X-KEY:METHOD=AES-128,URI=\"").append(httpAes).append("\"\n");
-                }
-                for(MpegtsSegment seg : tsSegments) {
-                	buff.append(String.format("#EXTINF:%s, \n%s.ts?type=live\n", segmentDuration, seg.getSequence()));
-                }                
-    		} else {
-    			log.info("Minimum segment count not yet reached, currently at: {}", count);
-    		}
+			int sequence = 1;
+			int partIndex = -1;
+			Map<String, List<String>> params = new QueryStringDecoder(req.getPath()).getParameters();
+			List<String> msn = params.get("_HLS_msn");
+			List<String> part = params.get("_HLS_part");
+			if (msn != null && msn.size() > 0) {
+				LivePlaylist current = service.getPlaylist(app, streamName);
+				try {
+					sequence = Integer.parseInt(msn.get(0));
+					if (part != null && part.size() > 0) partIndex = Integer.parseInt(part.get(0));
+				} catch (NumberFormatException e) {
+					sequence = -1;
+				}
+				// blocking reload is limited to the next two segments
+				if (sequence < 0 || sequence > (current != null ? current.getLastSequence() : 0) + 2) {
+					sendError(req, resp, HTTPResponseStatus.BAD_REQUEST);
+					return;
+				}
+			} else if (part != null) {
+				sendError(req, resp, HTTPResponseStatus.BAD_REQUEST);
+				return;
+			}
+			boolean waiting = service.awaitPlaylist(app, streamName, sequence, partIndex, 2 * service.getSegmentTimeLimit(), new ILivePlaylistListener() {
+				@Override
+				public void playlistReady(LivePlaylist playlist) {
+					sendLivePlaylist(conn, req, resp, playlist);
+				}
+			});
+			if (waiting) return;
+		} 
+		log.info("Stream: {} is not available", streamName);			
+		setHeader(resp);
+		commitResponse(conn, req, resp, IoBuffer.wrap(LIVE_PLAYLIST_ENDED), HTTPResponseStatus.OK);
+	}
+	
+	private void sendLivePlaylist(HTTPMinaConnection conn, HTTPRequest req, HTTPResponse resp, LivePlaylist playlist) {
+		
+		if (conn.getHttpSession().isClosing()) return;
+		setHeader(resp);
+		if (playlist == null) {
+			log.info("Minimum segment count not yet reached");
+			commitResponse(conn, req, resp, IoBuffer.wrap(LIVE_PLAYLIST_EMPTY), HTTPResponseStatus.OK);
+			return;
+		}
+		resp.setHeader(ETAG, playlist.getETag());
+		if (playlist.getETag().equals(req.getHeader(IF_NONE_MATCH))) {
+			commitResponse(conn, req, resp, null, HTTPResponseStatus.NOT_MODIFIED);
 		} else {
-			log.info("Stream: {} is not available", streamName);			
-			buff.append("#EXT-X-ENDLIST\n");
+			commitResponse(conn, req, resp, playlist.getData(), HTTPResponseStatus.OK);
 		}
-		IoBuffer data = IoBuffer.wrap(buff.toString().getBytes());
-		setHeader(resp);
-		commitResponse(req, resp, data);		
 	}
 	
 	/**
-	 * play vod stream by hls and file support flv format
+	 * play vod stream by hls and file support flv format, the segment map is computed once per file
 	 * @param scope
 	 * @param app
 	 * @param streamName
@@ -151,59 +162,29 @@ public class HTTPM3U8Service extends BaseHTTPService implements IHTTPService {
 			if (service != null && (StringUtils.endsWithIgnoreCase(streamName, ".flv") 
 					|| StringUtils.endsWithIgnoreCase(streamName, ".mp4"))) {
 				
-				ITagReader reader = null;
-				IStreamableFile streamFile;
-				try {
-					streamFile = service.getStreamableFile(file);
-					reader = streamFile.getReader();
-					HTTPTSService.getFileCache().put(streamName, reader, Configuration.FILECACHE_PURGE * 60);
-				} catch (IOException e) {
-					log.info("play hls exception {}", e.getMessage());
-					sendError(req, resp, HTTPResponseStatus.BAD_REQUEST);		
-					return;
-				}
-				
-				KeyFrameMeta keymeta = ((IKeyFrameDataAnalyzer) reader).analyzeKeyFrames();
-				long[] positions = keymeta.positions;
-				int[] timestamps = keymeta.timestamps;
-				int duration = Configuration.HLS_SEGMENT_TIME * 1000;
-				int nextTime = duration;
-				long startPos = positions[0];
-				int rest = 0;
-				StringBuilder sb = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n");
-				sb.append("#EXT-X-TARGETDURATION:").append(Configuration.HLS_SEGMENT_TIME).append("\n");
-				sb.append("#EXT-X-MEDIA-SEQUENCE:1\n");
-				int seqNum = 1;
-				float fixDuration = 0;
-				for (int i = 0; i < positions.length; i++) {
-					if (timestamps[i] >= nextTime) {
-						fixDuration = timestamps[i] - nextTime;
-						fixDuration = (duration + fixDuration) / 1000;
-						rest = 0;
-						sb.append("#EXTINF:").append(fixDuration).append(",\n");
-						if (i == (positions.length - 1)) {
-							sb.append(String.format("%s_%s_%d.ts?type=vod\n", startPos, file.length(), seqNum));
-							seqNum++;
-						} else {
-							sb.append(String.format("%s_%s_%d.ts?type=vod\n", startPos, positions[i], seqNum));
-							seqNum++;
-						}
-						startPos = positions[i];
-						nextTime = timestamps[i] + duration; // fix next time
-					} else rest++;
-				}
-				reader.close();
-				// last time < duration
-				if (rest > 0) {
-					// last time = duration - (nexttime - timestamops(lastone))
-					float lastOneDuration = (duration - (nextTime - timestamps[timestamps.length - 1])) / 1000;
-					sb.append("#EXTINF:").append(lastOneDuration).append(",\n");
-					sb.append(String.format("%s_%s_%d.ts?type=vod\n", startPos, file.length(), seqNum));
+				VodSegmentIndex index = VodSegmentIndex.getIndex(file, Configuration.HLS_SEGMENT_TIME);
+				if (index == null) {
+					ITagReader reader = null;
+					IStreamableFile streamFile;
+					try {
+						streamFile = service.getStreamableFile(file);
+						reader = streamFile.getReader();
+						HTTPTSService.getFileCache().put(streamName, reader, Configuration.FILECACHE_PURGE * 60);
+					} catch (IOException e) {
+						log.info("play hls exception {}", e.getMessage());
+						sendError(req, resp, HTTPResponseStatus.BAD_REQUEST);		
+						return;
+					}
+					
+					try {
+						KeyFrameMeta keymeta = ((IKeyFrameDataAnalyzer) reader).analyzeKeyFrames();
+						index = VodSegmentIndex.build(file, Configuration.HLS_SEGMENT_TIME, keymeta);
+					} finally {
+						reader.close();
+					}
 				}
-				sb.append("#EXT-X-ENDLIST\n");
-				IoBuffer data = IoBuffer.wrap(sb.toString().getBytes());
 				setHeader(resp);
-				commitResponse(req, resp, data);	
+				commitResponse(req, resp, index.getPlaylist());	
 			} else {
 				sendError(req, resp, HTTPResponseStatus.NOT_FOUND);
 			}
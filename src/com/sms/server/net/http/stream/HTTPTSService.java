@@ -1,9 +1,13 @@
 package com.sms.server.net.http.stream;
 
+import static com.sms.server.net.http.message.HTTPHeaders.isKeepAlive;
+import static com.sms.server.net.http.message.HTTPHeaders.Names.CONNECTION;
 import static com.sms.server.net.http.message.HTTPHeaders.Names.CONTENT_TYPE;
+import static com.sms.server.net.http.message.HTTPHeaders.Values.KEEP_ALIVE;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -11,6 +15,9 @@ import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
 
 import com.sms.io.IStreamableFile;
 import com.sms.io.IStreamableFileFactory;
@@ -29,6 +36,9 @@ import com.sms.server.net.http.BaseHTTPService;
 import com.sms.server.net.http.HTTPMinaConnection;
 import com.sms.server.net.http.IHTTPService;
 import com.sms.server.net.http.codec.QueryStringDecoder;
+import com.sms.server.net.http.message.DefaultHttpChunk;
+import com.sms.server.net.http.message.HTTPChunk;
+import com.sms.server.net.http.message.HTTPHeaders;
 import com.sms.server.net.http.message.HTTPRequest;
 import com.sms.server.net.http.message.HTTPResponse;
 import com.sms.server.net.http.message.HTTPResponseStatus;
@@ -90,20 +100,104 @@ public class HTTPTSService extends BaseHTTPService implements IHTTPService {
 	private void playLiveTsStream(IScope scope, String app, String streamName, String tsIndex, HTTPRequest req, HTTPResponse resp) {
 		
 		tsIndex = tsIndex.substring(0, tsIndex.lastIndexOf(".ts"));
-		int sequenceNumber = Integer.valueOf(tsIndex);
 		MpegtsSegmenterService service = MpegtsSegmenterService.getInstance();
+		int partSeparator = tsIndex.indexOf('.');
+		if (partSeparator > 0) { // low latency part, {sequence}.{part}.ts
+			if (service.isAvailable(scope, streamName)) {
+				int sequenceNumber = Integer.valueOf(tsIndex.substring(0, partSeparator));
+				int partIndex = Integer.valueOf(tsIndex.substring(partSeparator + 1));
+				playLivePart(service.getPart(app, streamName, sequenceNumber, partIndex), req, resp);
+			}
+			return;
+		}
+		int sequenceNumber = Integer.valueOf(tsIndex);
 		if (service.isAvailable(scope, streamName)) {
-			MpegtsSegment segment = service.getSegment(app, streamName, sequenceNumber);
-			if (segment != null && segment.isClosed()) {
-				IoBuffer data = segment.getBuffer().asReadOnlyBuffer();
-				setHeader(resp);
-				commitResponse(req, resp, data);
+			final MpegtsSegment segment = service.acquireSegment(app, streamName, sequenceNumber);
+			if (segment != null) {
+				WriteFuture future = null;
+				try {
+					IoBuffer data = segment.getBuffer().asReadOnlyBuffer();
+					setHeader(resp);
+					future = commitResponse(req, resp, data);
+				} finally {
+					if (future == null) segment.release();
+				}
+				// keep the segment buffer until it has been written out
+				future.addListener(new IoFutureListener<WriteFuture>() {
+					@Override
+					public void operationComplete(WriteFuture future) {
+						segment.release();
+					}
+				});
 			} else {
 				sendError(req, resp, HTTPResponseStatus.NOT_FOUND);
 			}
 		}
 	}
 	
+	/**
+	 * Send a low latency part, the part being written is streamed with chunked transfer
+	 * encoding as it is produced.
+	 */
+	private void playLivePart(MpegtsPart part, HTTPRequest req, HTTPResponse resp) {
+		
+		if (part == null) {
+			sendError(req, resp, HTTPResponseStatus.NOT_FOUND);
+			return;
+		}
+		IoBuffer data = part.getData();
+		if (data != null) {
+			setHeader(resp);
+			commitResponse(req, resp, data);
+			return;
+		}
+		HTTPMinaConnection conn = (HTTPMinaConnection)SMS.getConnectionLocal();
+		boolean isKeepAlive = isKeepAlive(req);
+		setHeader(resp);
+		resp.setChunked(true);
+		if (isKeepAlive) {
+			resp.setHeader(CONNECTION, KEEP_ALIVE);
+		}
+		conn.write(resp);
+		part.subscribe(new PartStreamer(conn, isKeepAlive));
+	}
+	
+	/**
+	 * Writes the blocks of a part as http chunks
+	 */
+	private static class PartStreamer implements IMpegtsPartListener {
+		
+		private final HTTPMinaConnection conn;
+		
+		private final boolean isKeepAlive;
+		
+		PartStreamer(HTTPMinaConnection conn, boolean isKeepAlive) {
+			this.conn = conn;
+			this.isKeepAlive = isKeepAlive;
+		}
+
+		@Override
+		public void blockAppended(IoBuffer block) {
+			// an empty chunk would end the response
+			if (conn.getHttpSession().isClosing() || block.remaining() == 0) return;
+			conn.write(new DefaultHttpChunk(block));
+		}
+
+		@Override
+		public void partCompleted() {
+			if (conn.getHttpSession().isClosing()) return;
+			WriteFuture future = conn.write(HTTPChunk.LAST_CHUNK);
+			if (!isKeepAlive) {
+				future.addListener(new IoFutureListener<WriteFuture>() {
+					@Override
+					public void operationComplete(WriteFuture future) {
+						future.getSession().close(true);
+					}
+				});
+			}
+		}
+	}
+	
 	private void playVodTsStream(IScope scope, String app, String streamName, String tsIndex, HTTPRequest req, HTTPResponse resp) {
 				
 		Matcher m = pattern.matcher(tsIndex);
@@ -123,15 +217,20 @@ public class HTTPTSService extends BaseHTTPService implements IHTTPService {
 		IStreamableFileService service = factory.getService(file);
 		if (service != null && (StringUtils.endsWithIgnoreCase(streamName, ".flv") 
 					|| StringUtils.endsWithIgnoreCase(streamName, ".mp4"))) {
+			VodSegmentCache segmentCache = VodSegmentCache.getInstance();
+			File cached = segmentCache.get(file, start, end);
+			if (cached != null && sendFile(conn, cached, req, resp)) {
+				return;
+			}
 			IoBuffer data = IoBuffer.allocate(4096).setAutoExpand(true);
 			FLV2MPEGTSChunkWriter writer;
 			boolean audioChecked = false;
 			boolean videoChecked = false;
 			IoBuffer videoConfig = null;
 			IoBuffer audioConfig = null;
+			ITagReader reader = null;
 			try {
 				IStreamableFile streamFile = null;
-				ITagReader reader = null;;
 				if(getFileCache().get(streamName) == null || (reader = ((ITagReader)getFileCache().get(streamName)).copy()) == null) {
 					getFileCache().remove(streamName);
 					streamFile = service.getStreamableFile(file);
@@ -180,14 +279,16 @@ public class HTTPTSService extends BaseHTTPService implements IHTTPService {
 						writer.writeStreamEvent(audioData);		
 					}
 				}
-				reader.close();
 			} catch (IOException e) {
 				log.info("play vod exception {}", e.getMessage());
 				sendError(req, resp, HTTPResponseStatus.BAD_REQUEST);		
 				return;
+			} finally {
+				if (reader != null) reader.close();
 			}
 			writer.endChunkTS();
 			data.flip();
+			segmentCache.put(file, start, end, data);
 			setHeader(resp);
 			commitResponse(req, resp, data);		
 		} else {
@@ -195,6 +296,46 @@ public class HTTPTSService extends BaseHTTPService implements IHTTPService {
 		}
 	}
 	
+	/**
+	 * Send a cached segment file as a file region
+	 * 
+	 * @return false if the file could not be opened
+	 */
+	private boolean sendFile(final HTTPMinaConnection conn, File segment, HTTPRequest req, HTTPResponse resp) {
+		
+		final RandomAccessFile raf;
+		DefaultFileRegion region;
+		try {
+			raf = new RandomAccessFile(segment, "r");
+			region = new DefaultFileRegion(raf.getChannel());
+			HTTPHeaders.setContentLength(resp, raf.length());
+		} catch (IOException e) {
+			// evicted in the meantime
+			return false;
+		}
+		setHeader(resp);
+		final boolean isKeepAlive = isKeepAlive(req);
+		if (isKeepAlive) {
+			resp.setHeader(CONNECTION, KEEP_ALIVE);
+		}
+		conn.write(resp);
+		WriteFuture writeFuture = conn.write(region);
+		writeFuture.addListener(new IoFutureListener<WriteFuture>() {
+			@Override
+			public void operationComplete(WriteFuture future) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					log.info("file close exception : {}", e.getMessage());
+				}
+				if (!isKeepAlive) {
+					conn.getHttpSession().close(true);
+				}
+			}
+		});
+		return true;
+	}
+	
 	public static ObjectCache getFileCache() {
 		if (fileCache == null) {
 			fileCache = CacheManager.getInstance().getCache("com.sms.server.stream.hls.fileCache");
@@ -0,0 +1,18 @@
+package com.sms.server.net.http.stream;
+
+/**
+ * Live Playlist Listener
+ * @author pengliren
+ *
+ */
+public interface ILivePlaylistListener {
+
+	/**
+	 * Called once the requested segment is available, the wait timed out or the stream was unpublished.
+	 * Runs on the publisher or timer thread and must not block.
+	 * 
+	 * @param playlist current playlist, ended with #EXT-X-ENDLIST once the stream was unpublished,
+	 * null if no segment is available
+	 */
+	public void playlistReady(LivePlaylist playlist);
+}
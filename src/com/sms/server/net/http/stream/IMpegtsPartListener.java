@@ -0,0 +1,24 @@
+package com.sms.server.net.http.stream;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Mpegts Partial Segment Listener
+ * @author pengliren
+ *
+ */
+public interface IMpegtsPartListener {
+
+	/**
+	 * Called for every block of the part, including the ones written before subscribing.
+	 * Runs on the publisher thread and must not block.
+	 * 
+	 * @param block read-only ts data
+	 */
+	public void blockAppended(IoBuffer block);
+	
+	/**
+	 * Called once the part is complete.
+	 */
+	public void partCompleted();
+}
@@ -0,0 +1,166 @@
+package com.sms.server.net.http.stream;
+
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Rendered live M3U8 playlist
+ * <p>
+ * Built once per segment rollover and shared by every request until the next one.
+ * @author pengliren
+ *
+ */
+public class LivePlaylist {
+
+	// sequence number of the newest complete segment
+	private final int lastSequence;
+	
+	// sequence number of the segment being written, 0 without low latency parts
+	private final int partSequence;
+	
+	// index of its newest complete part, -1 for none
+	private final int lastPart;
+	
+	private final String etag;
+	
+	private final IoBuffer data;
+	
+	private LivePlaylist(int lastSequence, int partSequence, int lastPart, String etag, IoBuffer data) {
+		this.lastSequence = lastSequence;
+		this.partSequence = partSequence;
+		this.lastPart = lastPart;
+		this.etag = etag;
+		this.data = data;
+	}
+	
+	/**
+	 * Render the playlist of the given segments
+	 * 
+	 * @param segments available segments ordered by sequence number
+	 * @param targetDuration segment duration in seconds
+	 * @param isEncrypt whether the segments are aes encrypted
+	 * @param version playlist version prefix, distinguishes publishing sessions of a stream
+	 * @return rendered playlist
+	 */
+	public static LivePlaylist render(List<MpegtsSegment> segments, long targetDuration, boolean isEncrypt, String version) {
+		
+		int lastSequence = segments.get(segments.size() - 1).getSequence();
+		StringBuilder buff = new StringBuilder(128 + segments.size() * 32);
+		buff.append("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-ALLOW-CACHE:NO\n");
+		buff.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+		buff.append("#EXT-X-MEDIA-SEQUENCE:").append(segments.get(0).getSequence()).append('\n');
+		if (isEncrypt) {
+			// relative to the playlist, served by the aes key service of the stream
+			buff.append("#EXT-X-KEY:METHOD=AES-128,URI=\"aes\"\n");
+		}
+		for (MpegtsSegment seg : segments) {
+			buff.append("#EXTINF:").append(targetDuration).append(", \n");
+			buff.append(seg.getSequence()).append(".ts?type=live\n");
+		}
+		IoBuffer data = IoBuffer.wrap(buff.toString().getBytes()).asReadOnlyBuffer();
+		return new LivePlaylist(lastSequence, 0, -1, String.format("\"%s-%d\"", version, lastSequence), data);
+	}
+	
+	/**
+	 * Render the low latency playlist of the given segments, with the parts of the newest
+	 * complete segment and of the segment being written, followed by the preload hint of
+	 * the part being written.
+	 * 
+	 * @param segments complete segments ordered by sequence number, may be empty
+	 * @param current segment being written
+	 * @param targetDuration segment duration in seconds
+	 * @param partTarget part duration in milliseconds
+	 * @param version playlist version prefix, distinguishes publishing sessions of a stream
+	 * @return rendered playlist
+	 */
+	public static LivePlaylist renderLowLatency(List<MpegtsSegment> segments, MpegtsSegment current, long targetDuration, long partTarget, String version) {
+		
+		int lastSequence = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).getSequence();
+		int firstSequence = segments.isEmpty() ? current.getSequence() : segments.get(0).getSequence();
+		for (MpegtsSegment seg : segments) {
+			// segments are cut on keyframes and may run longer than the target
+			targetDuration = Math.max(targetDuration, (seg.getDuration() + 999) / 1000);
+		}
+		StringBuilder buff = new StringBuilder(256 + segments.size() * 32);
+		buff.append("#EXTM3U\n#EXT-X-VERSION:6\n");
+		buff.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+		buff.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=").append(formatSeconds(3 * partTarget)).append('\n');
+		buff.append("#EXT-X-PART-INF:PART-TARGET=").append(formatSeconds(partTarget)).append('\n');
+		buff.append("#EXT-X-MEDIA-SEQUENCE:").append(firstSequence).append('\n');
+		for (MpegtsSegment seg : segments) {
+			appendParts(buff, seg);
+			buff.append("#EXTINF:").append(formatSeconds(seg.getDuration())).append(",\n");
+			buff.append(seg.getSequence()).append(".ts?type=live\n");
+		}
+		int lastPart = appendParts(buff, current);
+		buff.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(current.getSequence()).append('.').append(lastPart + 1).append(".ts?type=live\"\n");
+		IoBuffer data = IoBuffer.wrap(buff.toString().getBytes()).asReadOnlyBuffer();
+		String etag = String.format("\"%s-%d-%d\"", version, current.getSequence(), lastPart);
+		return new LivePlaylist(lastSequence, current.getSequence(), lastPart, etag, data);
+	}
+	
+	/**
+	 * @return index of the last complete part appended, -1 for none
+	 */
+	private static int appendParts(StringBuilder buff, MpegtsSegment segment) {
+		int lastPart = -1;
+		for (MpegtsPart part : segment.getParts()) {
+			if (!part.isComplete()) break;
+			buff.append("#EXT-X-PART:DURATION=").append(formatSeconds(part.getDuration()));
+			buff.append(",URI=\"").append(segment.getSequence()).append('.').append(part.getIndex()).append(".ts?type=live\"");
+			if (part.isIndependent()) buff.append(",INDEPENDENT=YES");
+			buff.append('\n');
+			lastPart = part.getIndex();
+		}
+		return lastPart;
+	}
+	
+	private static String formatSeconds(long millis) {
+		return String.format("%d.%03d", millis / 1000, millis % 1000);
+	}
+	
+	/**
+	 * Return the playlist of the ended stream, without the preload hint and with
+	 * #EXT-X-ENDLIST appended
+	 * 
+	 * @return ended playlist
+	 */
+	public LivePlaylist end() {
+		IoBuffer buf = data.duplicate();
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		String text = new String(bytes);
+		int hint = text.lastIndexOf("#EXT-X-PRELOAD-HINT:");
+		if (hint >= 0) text = text.substring(0, hint);
+		IoBuffer ended = IoBuffer.wrap((text + "#EXT-X-ENDLIST\n").getBytes()).asReadOnlyBuffer();
+		return new LivePlaylist(lastSequence, partSequence, lastPart, etag.substring(0, etag.length() - 1) + "-end\"", ended);
+	}
+	
+	/**
+	 * Whether the playlist announces the given segment, or the given part of it
+	 * 
+	 * @param sequence segment sequence number
+	 * @param part part index, -1 for the whole segment
+	 * @return true if announced
+	 */
+	public boolean contains(int sequence, int part) {
+		if (sequence <= lastSequence) return true;
+		return part >= 0 && sequence == partSequence && part <= lastPart;
+	}
+
+	public int getLastSequence() {
+		return lastSequence;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @return read-only view of the playlist bytes
+	 */
+	public IoBuffer getData() {
+		return data.duplicate();
+	}
+}
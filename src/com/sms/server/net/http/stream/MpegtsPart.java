@@ -0,0 +1,153 @@
+package com.sms.server.net.http.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MPEG2TS Partial Segment Data
+ * <p>
+ * Low latency hls part of a segment. The data is appended in blocks while the part is
+ * written, so readers of the part announced by the preload hint can be streamed the blocks
+ * as they arrive, and joined into one buffer once the part is complete.
+ * @author pengliren
+ *
+ */
+public class MpegtsPart {
+
+	private static Logger log = LoggerFactory.getLogger(MpegtsPart.class);
+	
+	private static final IMpegtsPartListener[] NO_LISTENERS = new IMpegtsPartListener[0];
+	
+	// parent segment seq number
+	private final int sequence;
+	
+	// index of the part in its segment
+	private final int index;
+	
+	// whether the part starts with a keyframe
+	private final boolean independent;
+	
+	// blocks written so far, dropped on completion
+	private List<IoBuffer> blocks = new ArrayList<IoBuffer>();
+	
+	// readers of the in-progress part, replaced on subscribe so it can be notified outside the lock
+	private IMpegtsPartListener[] listeners = NO_LISTENERS;
+	
+	private int length;
+	
+	// duration in milliseconds
+	private volatile long duration;
+	
+	// whole part data, set on completion
+	private volatile IoBuffer data;
+	
+	public MpegtsPart(int sequence, int index, boolean independent) {
+		this.sequence = sequence;
+		this.index = index;
+		this.independent = independent;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public boolean isIndependent() {
+		return independent;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+	
+	public boolean isComplete() {
+		return data != null;
+	}
+	
+	/**
+	 * @return read-only view of the part data or null if not complete yet
+	 */
+	public IoBuffer getData() {
+		IoBuffer buf = data;
+		return buf != null ? buf.duplicate() : null;
+	}
+	
+	/**
+	 * Append a block of ts data, the readers are written to outside the lock
+	 * 
+	 * @param block read-only ts data, not modified afterwards
+	 */
+	public void append(IoBuffer block) {
+		IMpegtsPartListener[] current;
+		synchronized (this) {
+			if (data != null) {
+				log.warn("append to completed part {}.{}", sequence, index);
+				return;
+			}
+			blocks.add(block);
+			length += block.remaining();
+			current = listeners;
+		}
+		for (IMpegtsPartListener listener : current) {
+			listener.blockAppended(block.duplicate());
+		}
+	}
+	
+	/**
+	 * Complete the part and notify its readers
+	 * 
+	 * @param duration part duration in milliseconds
+	 */
+	public void complete(long duration) {
+		IMpegtsPartListener[] current;
+		synchronized (this) {
+			if (data != null) return;
+			IoBuffer buf = IoBuffer.allocate(length, false);
+			for (IoBuffer block : blocks) {
+				buf.put(block.duplicate());
+			}
+			buf.flip();
+			this.duration = duration;
+			this.data = buf.asReadOnlyBuffer();
+			blocks = null;
+			current = listeners;
+			listeners = NO_LISTENERS;
+		}
+		for (IMpegtsPartListener listener : current) {
+			listener.partCompleted();
+		}
+	}
+	
+	/**
+	 * Subscribe to the part data, the blocks already written are replayed first
+	 * and the listener is completed right away if the part is complete. The replay
+	 * holds the lock, so the blocks appended meanwhile follow it.
+	 * 
+	 * @param listener
+	 */
+	public void subscribe(IMpegtsPartListener listener) {
+		IoBuffer complete;
+		synchronized (this) {
+			complete = data;
+			if (complete == null) {
+				for (IoBuffer block : blocks) {
+					listener.blockAppended(block.duplicate());
+				}
+				IMpegtsPartListener[] updated = new IMpegtsPartListener[listeners.length + 1];
+				System.arraycopy(listeners, 0, updated, 0, listeners.length);
+				updated[listeners.length] = listener;
+				listeners = updated;
+				return;
+			}
+		}
+		listener.blockAppended(complete.duplicate());
+		listener.partCompleted();
+	}
+}
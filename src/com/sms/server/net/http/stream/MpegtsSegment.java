@@ -1,9 +1,11 @@
 package com.sms.server.net.http.stream;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.mina.core.buffer.IoBuffer;
 
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.io.utils.HexDump;
 import com.sms.server.util.SystemTimer;
 
@@ -35,11 +37,22 @@ public class MpegtsSegment {
 	private String encKey;
 	
 	private byte[] encKeyBytes;
+	
+	// references count, the segmenter holds the first one
+	private final AtomicInteger refCount = new AtomicInteger(1);
+	
+	private static final MpegtsPart[] NO_PARTS = new MpegtsPart[0];
+	
+	// low latency parts, replaced as a whole when one is added
+	private volatile MpegtsPart[] parts = NO_PARTS;
+	
+	// duration in milliseconds, set when closed
+	private volatile long duration;
 
 	public MpegtsSegment(String name, int sequence) {
 		this.name = name;
 		this.sequence = sequence;
-		buffer = IoBuffer.allocate(1024 * 1024, false);
+		buffer = PooledBufferAllocator.acquire(1024 * 1024);
 		buffer.setAutoExpand(true);		
 	}
 
@@ -83,6 +96,43 @@ public class MpegtsSegment {
 		return encKeyBytes;
 	}
 
+	public long getDuration() {
+		return duration;
+	}
+
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+	
+	/**
+	 * Add a low latency part, only called by the segment writer.
+	 * 
+	 * @param part
+	 */
+	public void addPart(MpegtsPart part) {
+		MpegtsPart[] current = parts;
+		MpegtsPart[] updated = new MpegtsPart[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = part;
+		parts = updated;
+	}
+	
+	public MpegtsPart getPart(int index) {
+		MpegtsPart[] current = parts;
+		return (index >= 0 && index < current.length) ? current[index] : null;
+	}
+	
+	public MpegtsPart[] getParts() {
+		return parts;
+	}
+	
+	/**
+	 * Drop the parts once they are no longer announced in the playlist.
+	 */
+	public void clearParts() {
+		parts = NO_PARTS;
+	}
+
 	public boolean close() {
 		boolean result = false;
 		if (buffer != null) {
@@ -98,13 +148,41 @@ public class MpegtsSegment {
 		return result;
 	}
 
+	/**
+	 * Add a reference unless the segment has already been released by everyone.
+	 * A successful call must be paired with {@link #release()}.
+	 * 
+	 * @return true if the reference was added, false if the segment is gone
+	 */
+	public boolean retain() {
+		for (;;) {
+			int count = refCount.get();
+			if (count <= 0) {
+				return false;
+			}
+			if (refCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Drop a reference, the buffer is disposed with the last one.
+	 */
+	public void release() {
+		if (refCount.decrementAndGet() == 0) {
+			dispose();
+		}
+	}
+
 	/**
 	 * Should be called only when we are completely finished with this segment
 	 * and no longer want it to be available.
 	 */
 	public void dispose() {
 		if (buffer != null) {
-			buffer.free();
+			PooledBufferAllocator.release(buffer);
+			buffer = null;
 		}
 	}
 
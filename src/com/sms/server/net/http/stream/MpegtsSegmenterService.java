@@ -5,48 +5,56 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
-import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sms.io.ts.FLV2MPEGTSChunkWriter;
+import com.sms.io.ts.IMpegtsTapListener;
+import com.sms.io.ts.MpegtsRun;
 import com.sms.io.utils.HexDump;
 import com.sms.server.Configuration;
 import com.sms.server.api.IScope;
-import com.sms.server.api.stream.IAudioStreamCodec;
 import com.sms.server.api.stream.IBroadcastStream;
-import com.sms.server.api.stream.IStreamCodecInfo;
-import com.sms.server.api.stream.IStreamListener;
-import com.sms.server.api.stream.IStreamPacket;
-import com.sms.server.api.stream.IVideoStreamCodec;
-import com.sms.server.net.rtmp.event.AudioData;
-import com.sms.server.net.rtmp.event.IRTMPEvent;
-import com.sms.server.net.rtmp.event.VideoData;
-import com.sms.server.net.rtmp.event.VideoData.FrameType;
+import com.sms.server.util.CustomizableThreadFactory;
+import com.sms.server.util.timer.HashedWheelTimer;
+import com.sms.server.util.timer.Timeout;
+import com.sms.server.util.timer.Timer;
+import com.sms.server.util.timer.TimerTask;
 
 /**
  * FLV TO Mpeg2ts Segmenter
+ * <p>
+ * Cuts the ts muxed by the {@link com.sms.io.ts.MpegtsTap} of a stream into segments, subscribe
+ * it to the tap of the streams to segment.
  * @author pengliren
  *
  */
-public class MpegtsSegmenterService implements IStreamListener {
+public class MpegtsSegmenterService implements IMpegtsTapListener {
 
 	private static Logger log = LoggerFactory.getLogger(MpegtsSegmenterService.class);
 	
 	private static ConcurrentMap<String, ConcurrentHashMap<String, SegmentFacade>> scopeSegMap = new ConcurrentHashMap<String, ConcurrentHashMap<String,SegmentFacade>>();
 	
+	private static Timer timer = new HashedWheelTimer(new CustomizableThreadFactory("HlsPlaylistTimerExecutor-"), 100, TimeUnit.MILLISECONDS);
+	
 	// length of a segment in milliseconds
 	private long segmentTimeLimit = Configuration.HLS_SEGMENT_TIME * 1000;
 	
 	// maximum number of segments to keep available per stream
 	private int maxSegmentsPerFacade = Configuration.HLS_SEGMENT_MAX;
 	
+	// length of a low latency part in milliseconds, 0 disables parts
+	private long partTimeLimit = Configuration.HLS_PART_TIME;
+	
 	private static final class SingletonHolder {
 
 		private static final MpegtsSegmenterService INSTANCE = new MpegtsSegmenterService();
@@ -77,44 +85,105 @@ public class MpegtsSegmenterService implements IStreamListener {
 		this.maxSegmentsPerFacade = maxSegmentsPerFacade;
 	}
 	
+	public long getPartTimeLimit() {
+		return partTimeLimit;
+	}
+
+	public void setPartTimeLimit(long partTimeLimit) {
+		this.partTimeLimit = partTimeLimit;
+	}
+	
 	public int getSegmentCount(String scopeName, String streamName) {
-		ConcurrentHashMap<String, SegmentFacade> segments = scopeSegMap.get(scopeName);
-		if (segments.containsKey(streamName)) {
-			SegmentFacade facade = segments.get(streamName);
-			return facade.getSegmentCount();
-		} else {
-			return 0;
-		}   	
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		return facade != null ? facade.getSegmentCount() : 0;
     }	
 	
 	public MpegtsSegment getSegment(String scopeName, String streamName) {
-		ConcurrentHashMap<String, SegmentFacade> segments = scopeSegMap.get(scopeName);
-		if (segments.containsKey(streamName)) {
-			SegmentFacade facade = segments.get(streamName);
-			return facade.getSegment();
-		} else {
-			return null;
-		}
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		return facade != null ? facade.getSegment() : null;
 	}
 	
 	public MpegtsSegment getSegment(String scopeName, String streamName, int index) {
-		ConcurrentHashMap<String, SegmentFacade> segments = scopeSegMap.get(scopeName);
-		if (segments.containsKey(streamName)) {
-			SegmentFacade facade = segments.get(streamName);
-			return facade.getSegment(index);
-		} else {
-			return null;
-		}
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		return facade != null ? facade.getSegment(index) : null;
+	}
+	
+	/**
+	 * Return a closed segment with a reference added, so it is not disposed while it is served.
+	 * The caller must {@link MpegtsSegment#release()} it when done.
+	 * 
+	 * @param scopeName
+	 * @param streamName
+	 * @param index segment sequence number
+	 * @return retained segment or null if not available
+	 */
+	public MpegtsSegment acquireSegment(String scopeName, String streamName, int index) {
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		return facade != null ? facade.acquireSegment(index) : null;
 	}
 	
+	/**
+	 * Return a low latency part of a segment, the one being written included
+	 * 
+	 * @param scopeName
+	 * @param streamName
+	 * @param index segment sequence number
+	 * @param partIndex part index in the segment
+	 * @return part or null if not available
+	 */
+	public MpegtsPart getPart(String scopeName, String streamName, int index, int partIndex) {
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		return facade != null ? facade.getPart(index, partIndex) : null;
+	}
+	
+	/**
+	 * Return a snapshot of the available segments ordered by sequence number.
+	 * 
+	 * @param scopeName
+	 * @param streamName
+	 * @return segments or null if the stream is not segmented
+	 */
 	public List<MpegtsSegment> getSegmentList(String scopeName, String streamName) {
-		ConcurrentHashMap<String, SegmentFacade> segments = scopeSegMap.get(scopeName);
-		if (segments.containsKey(streamName)) {
-			SegmentFacade facade = segments.get(streamName);
-			return facade.segments;
-		} else {
-			return null;
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		return facade != null ? facade.getSegmentList() : null;
+	}
+	
+	/**
+	 * Return the rendered playlist of a live stream
+	 * 
+	 * @param scopeName
+	 * @param streamName
+	 * @return playlist or null if no segment is available yet
+	 */
+	public LivePlaylist getPlaylist(String scopeName, String streamName) {
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		return facade != null ? facade.playlist : null;
+	}
+	
+	/**
+	 * Notify the listener once the playlist contains the given segment or part, without holding the calling thread.
+	 * The listener is called right away if it is already available.
+	 * 
+	 * @param scopeName
+	 * @param streamName
+	 * @param sequence segment sequence number to wait for
+	 * @param partIndex part index to wait for, -1 for the whole segment
+	 * @param timeout maximum wait in milliseconds
+	 * @param listener
+	 * @return false if the stream is not segmented, the listener is not called then
+	 */
+	public boolean awaitPlaylist(String scopeName, String streamName, int sequence, int partIndex, long timeout, ILivePlaylistListener listener) {
+		SegmentFacade facade = getFacade(scopeName, streamName);
+		if (facade == null) {
+			return false;
 		}
+		facade.awaitPlaylist(sequence, partIndex, timeout, listener);
+		return true;
+	}
+	
+	private SegmentFacade getFacade(String scopeName, String streamName) {
+		ConcurrentHashMap<String, SegmentFacade> segments = scopeSegMap.get(scopeName);
+		return segments != null ? segments.get(streamName) : null;
 	}
 	
 	public boolean isAvailable(IScope scope, String streamName) {
@@ -128,7 +197,7 @@ public class MpegtsSegmenterService implements IStreamListener {
 		return segments.containsKey(streamName);
 	}
 	
-	public void update(IBroadcastStream stream, IScope scope, String name, IRTMPEvent event) {
+	public void update(IBroadcastStream stream, IScope scope, String name, MpegtsRun run) {
 		ConcurrentHashMap<String, SegmentFacade> segments = scopeSegMap.get(scope.getName());
 		if (segments == null) {
 			segments = new ConcurrentHashMap<String, MpegtsSegmenterService.SegmentFacade>();
@@ -140,7 +209,7 @@ public class MpegtsSegmenterService implements IStreamListener {
 			segments.put(name, facade);
 		}
 		try {
-			facade.writeEvent(stream, event);
+			facade.writeRun(run);
 		} catch (IOException e) {
 			log.info("write ts exception {}", e.getMessage());
 		}
@@ -176,34 +245,74 @@ public class MpegtsSegmenterService implements IStreamListener {
 	}
 	
 	@Override
-	public void packetReceived(IBroadcastStream stream, IStreamPacket packet) {
-		if(packet instanceof VideoData || packet instanceof AudioData) this.update(stream, stream.getScope(), stream.getPublishedName(), (IRTMPEvent)packet);
+	public void runReceived(IBroadcastStream stream, MpegtsRun run) {
+		this.update(stream, stream.getScope(), stream.getPublishedName(), run);
+	}
+	
+	@Override
+	public void tapClosed(IBroadcastStream stream) {
+		removeSegment(stream.getScope().getName(), stream.getPublishedName());
 	}
 
+	/**
+	 * Segments of one stream.
+	 * <p>
+	 * Closed segments are published to a fixed-capacity ring indexed by sequence number, written
+	 * only by the tap thread of the stream and read without locking by the http threads. The ring holds
+	 * one reference of each segment, readers that serve a segment retain their own so the buffer
+	 * is disposed by whoever releases it last.
+	 * <p>
+	 * With low latency parts enabled the segment being written is also cut into parts, and the
+	 * playlist is rendered again on every part.
+	 */
 	private class SegmentFacade {
 		
-		List<MpegtsSegment> segments = new ArrayList<MpegtsSegment>();		
+		// closed segments, slot is sequence & mask
+		final AtomicReferenceArray<MpegtsSegment> ring;
+		final int mask;
+		// number of segments kept available
+		final int window;
+		// sequence of the newest published segment, 0 for none
+		volatile int lastSequence;
+		// playlist of the published segments
+		volatile LivePlaylist playlist;
+		// requests waiting for a segment
+		final ConcurrentLinkedQueue<PlaylistWaiter> waiters = new ConcurrentLinkedQueue<PlaylistWaiter>();
+		// distinguishes the playlists of successive publishing sessions
+		final String version = Long.toHexString(System.currentTimeMillis());
+		volatile boolean closed = false;
 		// segment currently being written to
-		MpegtsSegment segment;		
+		volatile MpegtsSegment segment;		
+		// part currently being written to, null without parts
+		MpegtsPart part;
+		long partStartTimeStamp;
+		final long partTimeLimit;
 		// segment index counter
 		AtomicInteger counter = new AtomicInteger();
 		// video and audio packet count
 		AtomicInteger frameCounter = new AtomicInteger();
 		boolean isEncrypt = false;
 		String encKey;
-		FLV2MPEGTSChunkWriter writer;
+		MpegtsSegmentEncryptor encryptor;
 		
 		String streamName;
 		long startTimeStamp = -1L;
 		long lastTimeStamp = 0;
-		IoBuffer videoConfig;
-		IoBuffer audioConfig;
 		
 		SegmentFacade(String streamName, boolean isEncrypt) {
 			this.isEncrypt = isEncrypt;
 			this.streamName = streamName;
+			this.window = Math.max(1, maxSegmentsPerFacade);
+			int capacity = Integer.highestOneBit(window) << 1;
+			this.ring = new AtomicReferenceArray<MpegtsSegment>(capacity);
+			this.mask = capacity - 1;
+			if (MpegtsSegmenterService.this.partTimeLimit > 0 && isEncrypt) {
+				log.info("low latency hls parts are not supported for encrypted stream {}", streamName);
+			}
+			this.partTimeLimit = isEncrypt ? 0 : MpegtsSegmenterService.this.partTimeLimit;
 			if (isEncrypt) {
 				this.encKey = generatKey();
+				this.encryptor = new MpegtsSegmentEncryptor();
 				log.info("http live stream publish, name : {}, is encrypt, enc key : {}", streamName, encKey);
 			} else {
 				log.info("http live stream publish : {}", streamName);
@@ -211,7 +320,7 @@ public class MpegtsSegmenterService implements IStreamListener {
 		}
 		
 		public int getSegmentCount() {
-			return segments.size();
+			return Math.min(lastSequence, window);
 		}
 		
 		public MpegtsSegment getSegment() {
@@ -219,42 +328,205 @@ public class MpegtsSegmenterService implements IStreamListener {
 		}
 		
 		public MpegtsSegment getSegment(int index) {
-
-			for (MpegtsSegment segment : segments) {
-				if (segment.getSequence() == index)
-					return segment;
+			int last = lastSequence;
+			if (index <= 0 || index > last || index <= last - window) {
+				return null;
+			}
+			MpegtsSegment seg = ring.get(index & mask);
+			return (seg != null && seg.getSequence() == index) ? seg : null;
+		}
+		
+		public MpegtsSegment acquireSegment(int index) {
+			MpegtsSegment seg = getSegment(index);
+			if (seg != null && seg.retain()) {
+				// the slot may have been recycled between the lookup and the retain
+				if (ring.get(index & mask) == seg) {
+					return seg;
+				}
+				seg.release();
 			}
 			return null;
 		}
 		
+		public MpegtsPart getPart(int index, int partIndex) {
+			MpegtsSegment seg = segment;
+			if (seg == null || seg.getSequence() != index) {
+				seg = getSegment(index);
+			}
+			return seg != null ? seg.getPart(partIndex) : null;
+		}
+		
+		public List<MpegtsSegment> getSegmentList() {
+			int last = lastSequence;
+			int first = Math.max(1, last - window + 1);
+			List<MpegtsSegment> list = new ArrayList<MpegtsSegment>(last - first + 1);
+			for (int i = first; i <= last; i++) {
+				MpegtsSegment seg = ring.get(i & mask);
+				if (seg != null && seg.getSequence() == i) {
+					list.add(seg);
+				}
+			}
+			return list;
+		}
+		
+		/**
+		 * Make a closed segment available and drop the one leaving the window.
+		 */
+		private void publish(MpegtsSegment closed) {
+			int sequence = closed.getSequence();
+			ring.set(sequence & mask, closed);
+			lastSequence = sequence;
+			MpegtsSegment expired = ring.getAndSet((sequence - window) & mask, null);
+			if (expired != null) {
+				expired.release();
+			}
+			// only the parts of the newest segment are announced
+			MpegtsSegment previous = ring.get((sequence - 1) & mask);
+			if (previous != null && previous.getSequence() == sequence - 1) {
+				previous.clearParts();
+			}
+		}
+		
+		/**
+		 * Render the playlist and complete the requests waiting for it.
+		 */
+		private void updatePlaylist() {
+			LivePlaylist current;
+			if (partTimeLimit > 0) {
+				current = LivePlaylist.renderLowLatency(getSegmentList(), segment, segmentTimeLimit / 1000, partTimeLimit, version);
+			} else if (lastSequence > 0) {
+				current = LivePlaylist.render(getSegmentList(), segmentTimeLimit / 1000, isEncrypt, version);
+			} else {
+				return;
+			}
+			playlist = current;
+			for (PlaylistWaiter waiter : waiters) {
+				if (current.contains(waiter.sequence, waiter.partIndex)) waiter.complete(current);
+			}
+		}
+		
+		private void startPart(MpegtsRun run) {
+			part = new MpegtsPart(segment.getSequence(), segment.getParts().length, run.isKeyFrame());
+			segment.addPart(part);
+			partStartTimeStamp = run.getTimestamp();
+		}
+		
+		private void completePart(long timestamp) {
+			if (part == null) return;
+			part.complete(timestamp - partStartTimeStamp);
+			part = null;
+		}
+		
+		private void startSegment() {
+			segment = new MpegtsSegment(streamName, counter.incrementAndGet());
+			segment.setEncKey(encKey);
+			if (encryptor != null) {
+				encryptor.init(segment.getEncKeyBytes(), segment.getSequence());
+			}
+		}
+		
+		private void endSegment() {
+			if (encryptor != null) {
+				byte[] encData = encryptor.encryptFinal();
+				if (encData != null) segment.getBuffer().put(encData);
+			}
+		}
+		
+		public void awaitPlaylist(int sequence, int partIndex, long timeout, ILivePlaylistListener listener) {
+			// the ended playlist is set before the facade is marked closed
+			boolean ended = closed;
+			LivePlaylist current = playlist;
+			if (ended || (current != null && current.contains(sequence, partIndex))) {
+				listener.playlistReady(current);
+				return;
+			}
+			PlaylistWaiter waiter = new PlaylistWaiter(sequence, partIndex, listener);
+			waiters.add(waiter);
+			waiter.timeout = timer.newTimeout(waiter, timeout, TimeUnit.MILLISECONDS);
+			// the segment may have been published before the waiter was queued
+			ended = closed;
+			current = playlist;
+			if (ended || (current != null && current.contains(sequence, partIndex))) {
+				waiter.complete(current);
+			}
+		}
+		
+		/**
+		 * Pending playlist request, completed exactly once by the publisher, the timer or close
+		 */
+		private class PlaylistWaiter implements TimerTask {
+			
+			final int sequence;
+			final int partIndex;
+			final ILivePlaylistListener listener;
+			final AtomicBoolean done = new AtomicBoolean(false);
+			volatile Timeout timeout;
+			
+			PlaylistWaiter(int sequence, int partIndex, ILivePlaylistListener listener) {
+				this.sequence = sequence;
+				this.partIndex = partIndex;
+				this.listener = listener;
+			}
+			
+			void complete(LivePlaylist current) {
+				if (!done.compareAndSet(false, true)) return;
+				waiters.remove(this);
+				Timeout t = timeout;
+				if (t != null) t.cancel();
+				try {
+					listener.playlistReady(current);
+				} catch (Exception e) {
+					log.info("playlist listener exception {}", e.getMessage());
+				}
+			}
+			
+			@Override
+			public void run(Timeout timeout) throws Exception {
+				if (!done.get()) log.info("Maximum segment wait time exceeded for {}", streamName);
+				complete(playlist);
+			}
+		}
+		
 		public void close() {
-			writer = null;
-			segments.clear();
+			// the last playlist stays available, marked as ended
+			LivePlaylist last = playlist;
+			LivePlaylist ended = last != null ? last.end() : null;
+			playlist = ended;
+			closed = true;
+			for (PlaylistWaiter waiter : waiters) {
+				waiter.complete(ended);
+			}
+			// let the readers of the part being written finish
+			MpegtsPart current = part;
+			if (current != null) current.complete(lastTimeStamp - partStartTimeStamp);
+			if (encryptor != null) encryptor.close();
+			lastSequence = 0;
+			for (int i = 0; i < ring.length(); i++) {
+				MpegtsSegment seg = ring.getAndSet(i, null);
+				if (seg != null) seg.release();
+			}
 			segment = null;
-			videoConfig = null;
-			audioConfig = null;
 			log.info("http live stream unpublish, name : {}", streamName);
 		}
 		
-		public void  writeEvent(IBroadcastStream stream, IRTMPEvent event) throws IOException{	
+		public void writeRun(MpegtsRun run) throws IOException {
 			// fix wait video and audio config 
 			if(frameCounter.get() <= 20) {
 				frameCounter.incrementAndGet();
 				return;
 			}
 			
-			if(startTimeStamp == -1L) startTimeStamp = event.getTimestamp(); 
+			if(startTimeStamp == -1L) startTimeStamp = run.getTimestamp(); 
 			
 			boolean newSegment = false;
 			
-			if (event.getTimestamp() > lastTimeStamp) {
-				lastTimeStamp = event.getTimestamp();
+			if (run.getTimestamp() > lastTimeStamp) {
+				lastTimeStamp = run.getTimestamp();
 			}
 			
 			if (segment == null) {
-				if(event instanceof VideoData && ((VideoData) event).getFrameType() == FrameType.KEYFRAME) {
-					segment = new MpegtsSegment(streamName, counter.incrementAndGet());
-					segment.setEncKey(encKey);
+				if (run.isKeyFrame()) {
+					startSegment();
 					// flag that we created a new segment
 					newSegment = true;
 				} else {
@@ -262,63 +534,40 @@ public class MpegtsSegmenterService implements IStreamListener {
 					return;
 				}
 			} else {
-				long currentSegmentTs = event.getTimestamp() - startTimeStamp; 
-				if ((currentSegmentTs >= segmentTimeLimit) && event instanceof VideoData && ((VideoData) event).getFrameType() == FrameType.KEYFRAME) {
+				long currentSegmentTs = run.getTimestamp() - startTimeStamp; 
+				if ((currentSegmentTs >= segmentTimeLimit) && run.isKeyFrame()) {
 					
-					writer.endChunkTS();
+					completePart(run.getTimestamp());
+					endSegment();
 					// close active segment
+					segment.setDuration(currentSegmentTs);
 					segment.close();
-					segments.add(segment);
-					startTimeStamp = event.getTimestamp();
-					// create a segment
-					segment = new MpegtsSegment(streamName, counter.incrementAndGet());
-					segment.setEncKey(encKey);
+					publish(segment);
+					startTimeStamp = run.getTimestamp();
+					// create a segment, key frame runs start with the PAT and PMT
+					startSegment();
 					newSegment = true;
+				} else if (part != null && run.getTimestamp() - partStartTimeStamp >= partTimeLimit) {
+					completePart(run.getTimestamp());
+					startPart(run);
+					updatePlaylist();
 				}
 			}
 			
-			if (newSegment) {				
-				if (segments.size() > maxSegmentsPerFacade) {
-					// get current segments index minux max
-					int rmNum = segments.size() - maxSegmentsPerFacade;
-					MpegtsSegment seg = null;
-					if(rmNum > 0) {
-						for(int i = 0; i < rmNum; i++) {
-							seg = segments.remove(0);
-							seg.dispose();
-						}
-					}					
-				}
-				
-				// 音视频config信息
-				if (videoConfig == null || audioConfig == null) {
-					IStreamCodecInfo codecInfo = stream.getCodecInfo();
-					IVideoStreamCodec videoCodecInfo = null;
-					if (codecInfo != null && codecInfo.hasVideo()) {
-						videoCodecInfo = codecInfo.getVideoCodec();
-					}
-
-					if (videoCodecInfo != null && videoCodecInfo.getDecoderConfiguration() != null) {
-						videoConfig = videoCodecInfo.getDecoderConfiguration().asReadOnlyBuffer();
-					}
-
-					IAudioStreamCodec audioCodecInfo = null;
-					if (codecInfo != null && codecInfo.hasAudio()) {
-						audioCodecInfo = codecInfo.getAudioCodec();
-					}
-
-					if (audioCodecInfo != null && audioCodecInfo.getDecoderConfiguration() != null) {
-						audioConfig = audioCodecInfo.getDecoderConfiguration().asReadOnlyBuffer();
-					}
-				}
-								
-				if (writer == null) {
-					writer = new FLV2MPEGTSChunkWriter(videoConfig, audioConfig, isEncrypt);
-				}
-				
-				writer.startChunkTS(segment);
+			if (newSegment) {
+				if (partTimeLimit > 0) startPart(run);
+				updatePlaylist();
+			}
+			byte[] data = run.getBytes();
+			if (encryptor != null) {
+				byte[] encData = encryptor.encryptChunk(data, 0, data.length);
+				if (encData != null) segment.getBuffer().put(encData);
+			} else {
+				segment.getBuffer().put(data);
+			}
+			if (part != null) {
+				part.append(run.getData());
 			}
-			writer.writeStreamEvent(event);
 		}
 	}
 	
@@ -0,0 +1,140 @@
+package com.sms.server.net.http.stream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.utils.HexDump;
+import com.sms.server.Configuration;
+import com.sms.server.cache.CacheManager;
+import com.sms.server.cache.ObjectCache;
+
+/**
+ * HLS VOD Segment Cache
+ * <p>
+ * Keeps muxed vod ts segments on disk so repeated requests are sent as a file region
+ * instead of muxing the segment again. The cache is bounded by hls.vod_cache_maxsize,
+ * files are deleted when they leave it.
+ * @author pengliren
+ *
+ */
+public class VodSegmentCache {
+
+	private static Logger log = LoggerFactory.getLogger(VodSegmentCache.class);
+	
+	private final File cacheDir;
+	
+	private final boolean enabled;
+	
+	private ObjectCache segmentCache;
+	
+	private static final class SingletonHolder {
+
+		private static final VodSegmentCache INSTANCE = new VodSegmentCache();
+	}
+	
+	protected VodSegmentCache() {
+		cacheDir = new File(System.getProperty("sms.root"), "cache" + File.separator + "hls");
+		boolean ready = Configuration.HLS_VOD_CACHE_MAXSIZE > 0;
+		if (ready) {
+			if (cacheDir.isDirectory()) {
+				// entries of a previous run are unknown to the cache
+				File[] files = cacheDir.listFiles();
+				if (files != null) {
+					for (File f : files) f.delete();
+				}
+			} else if (!cacheDir.mkdirs()) {
+				log.warn("could not create hls vod cache folder {}", cacheDir);
+				ready = false;
+			}
+		}
+		enabled = ready;
+		if (enabled) {
+			segmentCache = CacheManager.getInstance().getCache("com.sms.server.stream.hls.segmentCache");
+		}
+	}
+	
+	public static VodSegmentCache getInstance() {
+
+		return SingletonHolder.INSTANCE;
+	}
+	
+	/**
+	 * Return the cached segment file
+	 * 
+	 * @param file vod file
+	 * @param start segment start position
+	 * @param end segment end position
+	 * @return segment file or null if not cached
+	 */
+	public File get(File file, long start, long end) {
+		if (!enabled) return null;
+		File segment = (File) segmentCache.get(getKey(file, start, end));
+		return (segment != null && segment.isFile()) ? segment : null;
+	}
+	
+	/**
+	 * Store a muxed segment
+	 * 
+	 * @param file vod file
+	 * @param start segment start position
+	 * @param end segment end position
+	 * @param data segment data, its position is left unchanged
+	 */
+	public void put(File file, long start, long end, IoBuffer data) {
+		if (!enabled) return;
+		String key = getKey(file, start, end);
+		File segment = new File(cacheDir, digest(key) + ".ts");
+		File tmp = null;
+		FileOutputStream out = null;
+		try {
+			tmp = File.createTempFile("seg", ".tmp", cacheDir);
+			out = new FileOutputStream(tmp);
+			FileChannel channel = out.getChannel();
+			IoBuffer src = data.duplicate();
+			while (src.hasRemaining()) {
+				channel.write(src.buf());
+			}
+			out.close();
+			out = null;
+			// concurrent requests of the same segment write the same content
+			if (!tmp.renameTo(segment) && !segment.isFile()) {
+				log.info("could not cache hls segment {}", segment);
+				return;
+			}
+			segmentCache.put(key, segment, Configuration.FILECACHE_PURGE * 60);
+		} catch (IOException e) {
+			log.info("could not cache hls segment {} : {}", key, e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			if (tmp != null && tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+	
+	private static String getKey(File file, long start, long end) {
+		return String.format("%s|%d|%d_%d", file.getAbsolutePath(), file.lastModified(), start, end);
+	}
+	
+	private static String digest(String key) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			return HexDump.encodeHexString(md.digest(key.getBytes()));
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(key.hashCode());
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package com.sms.server.net.http.stream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.flv.IKeyFrameDataAnalyzer.KeyFrameMeta;
+import com.sms.server.cache.CacheManager;
+import com.sms.server.cache.ObjectCache;
+
+/**
+ * HLS VOD Segment Index
+ * <p>
+ * Segment map of a vod file, cut on keyframes every segment duration. It is computed once,
+ * persisted next to the file and kept in memory with the rendered playlist, and is invalid
+ * as soon as the file is modified or the segment duration changes.
+ * @author pengliren
+ *
+ */
+public class VodSegmentIndex {
+
+	private static Logger log = LoggerFactory.getLogger(VodSegmentIndex.class);
+	
+	private static final int MAGIC = 0x534d5348; // SMSH
+	
+	private static final int VERSION = 1;
+	
+	private static final String INDEX_EXTENSION = ".hls";
+	
+	private static ObjectCache indexCache;
+	
+	private final long lastModified;
+	
+	private final long length;
+	
+	// segment duration in seconds
+	private final int segmentTime;
+	
+	private final long[] starts;
+	
+	private final long[] ends;
+	
+	private final float[] durations;
+	
+	private final IoBuffer playlist;
+	
+	private VodSegmentIndex(long lastModified, long length, int segmentTime, long[] starts, long[] ends, float[] durations) {
+		this.lastModified = lastModified;
+		this.length = length;
+		this.segmentTime = segmentTime;
+		this.starts = starts;
+		this.ends = ends;
+		this.durations = durations;
+		this.playlist = render();
+	}
+	
+	/**
+	 * Return the index of the file from memory or from its persisted copy
+	 * 
+	 * @param file vod file
+	 * @param segmentTime segment duration in seconds
+	 * @return index or null if it has to be built
+	 */
+	public static VodSegmentIndex getIndex(File file, int segmentTime) {
+		String key = file.getAbsolutePath();
+		VodSegmentIndex index = (VodSegmentIndex) getIndexCache().get(key);
+		if (index != null && index.isValid(file, segmentTime)) {
+			return index;
+		}
+		index = load(file);
+		if (index != null && index.isValid(file, segmentTime)) {
+			getIndexCache().put(key, index);
+			return index;
+		}
+		return null;
+	}
+	
+	/**
+	 * Build the index of the file from its keyframes, persist and cache it
+	 * 
+	 * @param file vod file
+	 * @param segmentTime segment duration in seconds
+	 * @param keymeta keyframes of the file
+	 * @return index
+	 */
+	public static VodSegmentIndex build(File file, int segmentTime, KeyFrameMeta keymeta) {
+		long[] positions = keymeta.positions;
+		int[] timestamps = keymeta.timestamps;
+		int count = positions.length + 1;
+		long[] starts = new long[count];
+		long[] ends = new long[count];
+		float[] durations = new float[count];
+		int seg = 0;
+		int duration = segmentTime * 1000;
+		int nextTime = duration;
+		long startPos = positions[0];
+		int rest = 0;
+		float fixDuration = 0;
+		for (int i = 0; i < positions.length; i++) {
+			if (timestamps[i] >= nextTime) {
+				fixDuration = timestamps[i] - nextTime;
+				fixDuration = (duration + fixDuration) / 1000;
+				rest = 0;
+				starts[seg] = startPos;
+				ends[seg] = (i == (positions.length - 1)) ? file.length() : positions[i];
+				durations[seg++] = fixDuration;
+				startPos = positions[i];
+				nextTime = timestamps[i] + duration; // fix next time
+			} else rest++;
+		}
+		// last time < duration
+		if (rest > 0) {
+			// last time = duration - (nexttime - timestamops(lastone))
+			float lastOneDuration = (duration - (nextTime - timestamps[timestamps.length - 1])) / 1000;
+			starts[seg] = startPos;
+			ends[seg] = file.length();
+			durations[seg++] = lastOneDuration;
+		}
+		long[] segStarts = new long[seg];
+		long[] segEnds = new long[seg];
+		float[] segDurations = new float[seg];
+		System.arraycopy(starts, 0, segStarts, 0, seg);
+		System.arraycopy(ends, 0, segEnds, 0, seg);
+		System.arraycopy(durations, 0, segDurations, 0, seg);
+		VodSegmentIndex index = new VodSegmentIndex(file.lastModified(), file.length(), segmentTime, segStarts, segEnds, segDurations);
+		index.save(file);
+		getIndexCache().put(file.getAbsolutePath(), index);
+		return index;
+	}
+	
+	private boolean isValid(File file, int segmentTime) {
+		return lastModified == file.lastModified() && length == file.length() && this.segmentTime == segmentTime;
+	}
+	
+	private IoBuffer render() {
+		StringBuilder sb = new StringBuilder(128 + starts.length * 48);
+		sb.append("#EXTM3U\n#EXT-X-VERSION:3\n");
+		sb.append("#EXT-X-TARGETDURATION:").append(segmentTime).append("\n");
+		sb.append("#EXT-X-MEDIA-SEQUENCE:1\n");
+		for (int i = 0; i < starts.length; i++) {
+			sb.append("#EXTINF:").append(durations[i]).append(",\n");
+			sb.append(starts[i]).append('_').append(ends[i]).append('_').append(i + 1).append(".ts?type=vod\n");
+		}
+		sb.append("#EXT-X-ENDLIST\n");
+		return IoBuffer.wrap(sb.toString().getBytes()).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * @return read-only view of the rendered playlist
+	 */
+	public IoBuffer getPlaylist() {
+		return playlist.duplicate();
+	}
+	
+	public int getSegmentCount() {
+		return starts.length;
+	}
+	
+	private void save(File file) {
+		File indexFile = new File(file.getAbsolutePath() + INDEX_EXTENSION);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(lastModified);
+			out.writeLong(length);
+			out.writeInt(segmentTime);
+			out.writeInt(starts.length);
+			for (int i = 0; i < starts.length; i++) {
+				out.writeLong(starts[i]);
+				out.writeLong(ends[i]);
+				out.writeFloat(durations[i]);
+			}
+		} catch (IOException e) {
+			// read-only media folders simply rebuild the index after a restart
+			log.debug("could not save hls index {} : {}", indexFile, e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	private static VodSegmentIndex load(File file) {
+		File indexFile = new File(file.getAbsolutePath() + INDEX_EXTENSION);
+		if (!indexFile.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+			long lastModified = in.readLong();
+			long length = in.readLong();
+			int segmentTime = in.readInt();
+			int count = in.readInt();
+			long[] starts = new long[count];
+			long[] ends = new long[count];
+			float[] durations = new float[count];
+			for (int i = 0; i < count; i++) {
+				starts[i] = in.readLong();
+				ends[i] = in.readLong();
+				durations[i] = in.readFloat();
+			}
+			return new VodSegmentIndex(lastModified, length, segmentTime, starts, ends, durations);
+		} catch (IOException e) {
+			log.info("could not load hls index {} : {}", indexFile, e.getMessage());
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+	
+	private static ObjectCache getIndexCache() {
+		if (indexCache == null) {
+			indexCache = CacheManager.getInstance().getCache("com.sms.server.stream.hls.indexCache");
+		}
+		return indexCache;
+	}
+}
@@ -8,6 +8,7 @@ import com.sms.server.ScopeContextBean;
 import com.sms.server.api.IScope;
 import com.sms.server.api.stream.IClientStream;
 import com.sms.server.api.stream.IRtmpSampleAccess;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.net.rtmp.event.IRTMPEvent;
 import com.sms.server.net.rtmp.event.Invoke;
 import com.sms.server.net.rtmp.event.Notify;
@@ -84,6 +85,7 @@ public class Channel {
     	
     	if (connection == null) {
     		log.warn("Connection is null for channel: {}", id);
+    		ChunkedPayloadCache.release(event);
             return;
         }
 		final IClientStream stream = connection.getStreamByChannelId(id);
@@ -105,6 +107,7 @@ public class Channel {
     private void write(IRTMPEvent event, int streamId) {
 
     	if (connection == null) {
+    		ChunkedPayloadCache.release(event);
             return;
         }
     	
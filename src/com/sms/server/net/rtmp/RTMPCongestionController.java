@@ -0,0 +1,287 @@
+package com.sms.server.net.rtmp;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.server.Configuration;
+import com.sms.server.net.rtmp.event.AudioData;
+import com.sms.server.net.rtmp.event.IRTMPEvent;
+import com.sms.server.net.rtmp.event.VideoData;
+import com.sms.server.net.rtmp.event.VideoData.FrameType;
+import com.sms.server.stream.codec.AudioCodec;
+import com.sms.server.stream.codec.VideoCodec;
+import com.sms.server.util.SystemTimer;
+
+/**
+ *
+* @ClassName: RTMPCongestionController
+* @Description: Drops outgoing audio and video of a connection that cannot keep up with its streams
+* <p>
+* The send delay is estimated from the bytes queued for writing, the rate the connection
+* actually drains them and half the last ping round trip time. The more it grows the more
+* frames are dropped: first disposable frames, then inter frames, then all video. Once an
+* inter frame has been dropped the stream waits for the next key frame. Audio is only dropped
+* when the queue reaches its maximum size, so the memory held per slow client stays bounded.
+* Decoder configuration packets are never dropped.
+* @author pengliren
+*
+ */
+public class RTMPCongestionController {
+
+	private static final Logger log = LoggerFactory.getLogger(RTMPCongestionController.class);
+
+	private static final int LEVEL_NONE = 0;
+
+	private static final int LEVEL_DISPOSABLE = 1;
+
+	private static final int LEVEL_INTER = 2;
+
+	private static final int LEVEL_ALL = 3;
+
+	/**
+	 * Minimum interval in ms between two write rate samples
+	 */
+	private static final long SAMPLE_INTERVAL = 100;
+
+	private final RTMPConnection conn;
+
+	private final long dropDisposableDelay;
+
+	private final long dropInterDelay;
+
+	private final long dropAllDelay;
+
+	private final long maxQueueBytes;
+
+	// write rate estimation, guarded by the connection write lock
+	private long lastSampleTime;
+
+	private long lastWrittenBytes;
+
+	private boolean congested;
+
+	// bytes per ms, negative while unknown
+	private volatile double writeRate = -1;
+
+	private final Set<Integer> keyFrameNeeded = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	private final ConcurrentMap<Integer, AtomicLong> droppedFrames = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	public RTMPCongestionController(RTMPConnection conn) {
+		this(conn, Configuration.RTMP_CONGESTION_DROP_DISPOSABLE, Configuration.RTMP_CONGESTION_DROP_INTER, Configuration.RTMP_CONGESTION_DROP_ALL,
+				Configuration.RTMP_CONGESTION_MAX_QUEUE * 1024L);
+	}
+
+	/**
+	 * @param conn connection
+	 * @param dropDisposableDelay send delay in ms at which disposable frames are dropped, 0 to disable
+	 * @param dropInterDelay send delay in ms at which inter frames are dropped, 0 to disable
+	 * @param dropAllDelay send delay in ms at which all video is dropped, 0 to disable
+	 * @param maxQueueBytes queued bytes at which audio and video are dropped, 0 to disable
+	 */
+	public RTMPCongestionController(RTMPConnection conn, long dropDisposableDelay, long dropInterDelay, long dropAllDelay, long maxQueueBytes) {
+		this.conn = conn;
+		this.dropDisposableDelay = dropDisposableDelay;
+		this.dropInterDelay = dropInterDelay;
+		this.dropAllDelay = dropAllDelay;
+		this.maxQueueBytes = maxQueueBytes;
+	}
+
+	/**
+	 * Return true if the controller may drop anything at all.
+	 *
+	 * @return enabled
+	 */
+	public boolean isEnabled() {
+		return dropDisposableDelay > 0 || dropInterDelay > 0 || dropAllDelay > 0 || maxQueueBytes > 0;
+	}
+
+	/**
+	 * Decide whether an outgoing audio or video message is dropped. Called by the encoder
+	 * while it holds the connection write lock.
+	 *
+	 * @param streamId stream id of the message
+	 * @param message audio or video message
+	 * @return true to drop; false to send
+	 */
+	public boolean dropMessage(int streamId, IRTMPEvent message) {
+		if (!isEnabled()) {
+			return false;
+		}
+		boolean isVideo = message instanceof VideoData;
+		if (!isVideo && !(message instanceof AudioData)) {
+			return false;
+		}
+		if (isConfiguration(message)) {
+			return false;
+		}
+		long queued = conn.getPendingBytes();
+		boolean full = maxQueueBytes > 0 && queued >= maxQueueBytes;
+		int level = full ? LEVEL_ALL : getLevel(queued);
+		boolean drop;
+		if (isVideo) {
+			FrameType frameType = ((VideoData) message).getFrameType();
+			if (level == LEVEL_ALL) {
+				drop = true;
+			} else if (keyFrameNeeded.contains(streamId)) {
+				drop = (frameType != FrameType.KEYFRAME);
+			} else if (level == LEVEL_INTER) {
+				drop = (frameType != FrameType.KEYFRAME);
+			} else {
+				drop = (level == LEVEL_DISPOSABLE && frameType == FrameType.DISPOSABLE_INTERFRAME);
+			}
+			if (drop) {
+				if (frameType != FrameType.DISPOSABLE_INTERFRAME) {
+					// the decoder cannot use anything before the next key frame
+					keyFrameNeeded.add(streamId);
+				}
+			} else if (frameType == FrameType.KEYFRAME && keyFrameNeeded.remove(streamId)) {
+				log.debug("Resuming stream {} with key frame", streamId);
+			}
+		} else {
+			drop = full;
+		}
+		if (drop) {
+			log.debug("Dropping message on stream {}, level: {} queued bytes: {}", new Object[] { streamId, level, queued });
+			AtomicLong count = droppedFrames.get(streamId);
+			if (count == null) {
+				AtomicLong value = new AtomicLong();
+				count = droppedFrames.putIfAbsent(streamId, value);
+				if (count == null) {
+					count = value;
+				}
+			}
+			count.incrementAndGet();
+			conn.messageDropped();
+		}
+		return drop;
+	}
+
+	/**
+	 * Forget the state of a closed stream.
+	 *
+	 * @param streamId stream id
+	 */
+	public void streamClosed(int streamId) {
+		keyFrameNeeded.remove(streamId);
+	}
+
+	/**
+	 * Return the number of audio and video messages dropped on the given stream.
+	 *
+	 * @param streamId stream id
+	 * @return dropped messages
+	 */
+	public long getDroppedFrames(int streamId) {
+		AtomicLong count = droppedFrames.get(streamId);
+		return (count != null ? count.get() : 0);
+	}
+
+	/**
+	 * Return the dropped audio and video messages of all streams by stream id.
+	 *
+	 * @return dropped messages
+	 */
+	public Map<Integer, Long> getDroppedFrames() {
+		Map<Integer, Long> result = new HashMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : droppedFrames.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	/**
+	 * Return the estimated time in ms the last queued byte takes to reach the client.
+	 *
+	 * @return send delay, -1 if the write rate is not known yet
+	 */
+	public long getSendDelay() {
+		return estimateDelay(conn.getPendingBytes());
+	}
+
+	private int getLevel(long queued) {
+		sample(queued);
+		long delay = estimateDelay(queued);
+		if (delay < 0) {
+			return LEVEL_NONE;
+		}
+		if (dropAllDelay > 0 && delay >= dropAllDelay) {
+			return LEVEL_ALL;
+		}
+		if (dropInterDelay > 0 && delay >= dropInterDelay) {
+			return LEVEL_INTER;
+		}
+		if (dropDisposableDelay > 0 && delay >= dropDisposableDelay) {
+			return LEVEL_DISPOSABLE;
+		}
+		return LEVEL_NONE;
+	}
+
+	private long estimateDelay(long queued) {
+		if (queued <= 0) {
+			return 0;
+		}
+		double rate = writeRate;
+		if (rate < 0) {
+			return -1;
+		}
+		if (rate == 0) {
+			// nothing was drained while data was queued
+			return Long.MAX_VALUE;
+		}
+		long delay = (long) (queued / rate);
+		int rtt = conn.getLastPingTime();
+		if (rtt > 0 && delay < Long.MAX_VALUE - rtt) {
+			delay += rtt / 2;
+		}
+		return delay;
+	}
+
+	/**
+	 * Update the write rate, only intervals that start and end with queued data tell how fast
+	 * the client can receive.
+	 */
+	private void sample(long queued) {
+		long now = SystemTimer.currentTimeMillis();
+		long written = conn.getWrittenBytes();
+		if (lastSampleTime == 0) {
+			lastSampleTime = now;
+			lastWrittenBytes = written;
+			congested = queued > 0;
+			return;
+		}
+		long elapsed = now - lastSampleTime;
+		if (elapsed < SAMPLE_INTERVAL) {
+			return;
+		}
+		if (congested && queued > 0) {
+			double rate = (written - lastWrittenBytes) / (double) elapsed;
+			writeRate = (writeRate < 0 ? rate : writeRate * 0.75 + rate * 0.25);
+		}
+		lastSampleTime = now;
+		lastWrittenBytes = written;
+		congested = queued > 0;
+	}
+
+	/**
+	 * AVC and AAC sequence headers configure the decoder and are needed whatever is dropped
+	 */
+	private static boolean isConfiguration(IRTMPEvent message) {
+		IoBuffer data;
+		if (message instanceof VideoData) {
+			data = ((VideoData) message).getData();
+			return data != null && data.limit() > 1 && (data.get(0) & 0x0f) == VideoCodec.AVC.getId() && data.get(1) == 0;
+		}
+		data = ((AudioData) message).getData();
+		return data != null && data.limit() > 1 && ((data.get(0) & 0xf0) >> 4) == AudioCodec.AAC.getId() && data.get(1) == 0;
+	}
+}
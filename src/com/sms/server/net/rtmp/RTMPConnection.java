@@ -181,6 +181,16 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
 	 */
 	private ConcurrentMap<Integer, AtomicInteger> pendingVideos = new ConcurrentHashMap<Integer, AtomicInteger>();
 
+	/**
+	 * Drops outgoing media when the client cannot keep up.
+	 */
+	private final RTMPCongestionController congestionController = new RTMPCongestionController(this);
+
+	/**
+	 * Listeners run once after the next message has been written.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> writeListeners = new ConcurrentLinkedQueue<Runnable>();
+
 	/**
 	 * Number of streams used.
 	 */
@@ -700,6 +710,7 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
 			} else {
 				log.trace("DeferredResults collection was null");
 			}
+			writeListeners.clear();
 			if (pendingVideos != null) {
 				pendingVideos.clear();
 				pendingVideos = null;
@@ -781,6 +792,7 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
 		if (streamId > 0) {
 			if (streams.get(streamId - 1) != null) {
 				pendingVideos.remove(streamId);
+				congestionController.streamClosed(streamId);
 				usedStreams.decrementAndGet();
 				streams.remove(streamId - 1);
 				streamBuffers.remove(streamId - 1);
@@ -1025,6 +1037,46 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
 			}
 		}
 		writtenMessages.incrementAndGet();
+		// listeners added while running are left for the next message
+		for (int i = writeListeners.size(); i > 0; i--) {
+			Runnable listener = writeListeners.poll();
+			if (listener == null) {
+				break;
+			}
+			try {
+				listener.run();
+			} catch (Exception e) {
+				log.warn("Exception in write listener", e);
+			}
+		}
+	}
+
+	/**
+	 * Run the listener once after the next message has been written, used to wait
+	 * for the write queue to drain without polling it.
+	 * 
+	 * @param listener listener
+	 */
+	public void addWriteListener(Runnable listener) {
+		writeListeners.add(listener);
+	}
+
+	/**
+	 * Return the number of bytes queued for writing.
+	 * 
+	 * @return pending bytes
+	 */
+	public long getPendingBytes() {
+		return 0;
+	}
+
+	/**
+	 * Return the controller dropping outgoing media when the client cannot keep up.
+	 * 
+	 * @return congestion controller
+	 */
+	public RTMPCongestionController getCongestionController() {
+		return congestionController;
 	}
 
 	/**
@@ -1065,6 +1117,26 @@ public abstract class RTMPConnection extends BaseConnection implements IStreamCa
 		}
 	}
 
+	/**
+	 * Send a shared object message already encoded for the encoding of this connection.
+	 * 
+	 * @param name
+	 * @param currentVersion
+	 * @param persistent
+	 * @param body read-only body shared with the other connections of the same encoding
+	 */
+	public void sendSharedObjectMessage(String name, int currentVersion, boolean persistent, IoBuffer body) {
+		Channel channel = getChannel((byte) 3);
+		SharedObjectMessage syncMessage = encoding == Encoding.AMF3 ? new FlexSharedObjectMessage(null, name, currentVersion, persistent) : new SharedObjectMessage(null, name,
+				currentVersion, persistent);
+		syncMessage.setBody(body);
+		try {
+			channel.write(syncMessage);
+		} catch (Exception e) {
+			log.warn("Exception sending shared object", e);
+		}
+	}
+
 	/** {@inheritDoc} */
 	public void ping() {
 		long newPingTime = SystemTimer.currentTimeMillis();
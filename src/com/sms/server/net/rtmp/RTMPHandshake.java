@@ -4,7 +4,6 @@ import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.KeySpec;
@@ -14,7 +13,6 @@ import javax.crypto.Cipher;
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
 import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
 import javax.crypto.spec.DHPublicKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -102,7 +100,32 @@ public abstract class RTMPHandshake implements IHandshake {
 	// clients public key
 	protected byte[] outgoingPublicKey;
 	
-	private Mac hmacSHA256;
+	// hmac and key factory of the thread, set up once
+	private static final ThreadLocal<Mac> hmacSHA256 = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				return Mac.getInstance("HmacSHA256");
+			} catch (SecurityException e) {
+				log.error("Security exception when getting HMAC", e);
+			} catch (NoSuchAlgorithmException e) {
+				log.error("HMAC SHA256 does not exist");
+			}
+			return null;
+		}
+	};
+
+	private static final ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>() {
+		@Override
+		protected KeyFactory initialValue() {
+			try {
+				return KeyFactory.getInstance("DH");
+			} catch (NoSuchAlgorithmException e) {
+				log.error("DH key factory does not exist");
+			}
+			return null;
+		}
+	};
 	
 	static {
 		//get security provider
@@ -111,13 +134,6 @@ public abstract class RTMPHandshake implements IHandshake {
 	
 	public RTMPHandshake() {
 		log.debug("Handshake ctor");
-		try {
-			hmacSHA256 = Mac.getInstance("HmacSHA256");
-		} catch (SecurityException e) {
-			log.error("Security exception when getting HMAC", e);
-		} catch (NoSuchAlgorithmException e) {
-			log.error("HMAC SHA256 does not exist");
-		}
 		//create our server handshake bytes
 		createHandshakeBytes();
 	}
@@ -132,8 +148,9 @@ public abstract class RTMPHandshake implements IHandshake {
 	public byte[] calculateHMAC_SHA256(byte[] input, byte[] key) {
 		byte[] output = null;
 		try {
-			hmacSHA256.init(new SecretKeySpec(key, "HmacSHA256"));
-			output = hmacSHA256.doFinal(input);
+			Mac hmac = hmacSHA256.get();
+			hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+			output = hmac.doFinal(input);
 		} catch (InvalidKeyException e) {
 			log.error("Invalid key", e);
 		}
@@ -151,8 +168,9 @@ public abstract class RTMPHandshake implements IHandshake {
 	public byte[] calculateHMAC_SHA256(byte[] input, byte[] key, int length) {
 		byte[] output = null;
 		try {
-			hmacSHA256.init(new SecretKeySpec(key, 0, length, "HmacSHA256"));
-			output = hmacSHA256.doFinal(input);
+			Mac hmac = hmacSHA256.get();
+			hmac.init(new SecretKeySpec(key, 0, length, "HmacSHA256"));
+			output = hmac.doFinal(input);
 		} catch (InvalidKeyException e) {
 			log.error("Invalid key", e);
 		}
@@ -160,17 +178,15 @@ public abstract class RTMPHandshake implements IHandshake {
 	}
 	
 	/**
-	 * Creates a Diffie-Hellman key pair.
+	 * Takes a Diffie-Hellman key pair, pre-generated by the {@link RTMPHandshakeService} when
+	 * it has one.
 	 * 
 	 * @return dh keypair
 	 */
 	protected KeyPair generateKeyPair() {
 		KeyPair keyPair = null;
-		DHParameterSpec keySpec = new DHParameterSpec(DH_MODULUS, DH_BASE);
 		try {
-			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
-			keyGen.initialize(keySpec);
-			keyPair = keyGen.generateKeyPair();
+			keyPair = RTMPHandshakeService.getInstance().takeKeyPair();
 		    keyAgreement = KeyAgreement.getInstance("DH");
 		    keyAgreement.init(keyPair.getPrivate());
 		} catch (Exception e) {
@@ -214,9 +230,8 @@ public abstract class RTMPHandshake implements IHandshake {
 	protected static byte[] getSharedSecret(byte[] otherPublicKeyBytes, KeyAgreement agreement) {
 		BigInteger otherPublicKeyInt = new BigInteger(1, otherPublicKeyBytes);
 		try {
-			KeyFactory keyFactory = KeyFactory.getInstance("DH");
 			KeySpec otherPublicKeySpec = new DHPublicKeySpec(otherPublicKeyInt, RTMPHandshake.DH_MODULUS, RTMPHandshake.DH_BASE);
-			PublicKey otherPublicKey = keyFactory.generatePublic(otherPublicKeySpec);
+			PublicKey otherPublicKey = keyFactory.get().generatePublic(otherPublicKeySpec);
 			agreement.doPhase(otherPublicKey, true);
 		} catch (Exception e) {
 			log.error("Exception getting the shared secret", e);
@@ -0,0 +1,224 @@
+package com.sms.server.net.rtmp;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.spec.DHParameterSpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.jmx.JMXAgent;
+import com.sms.jmx.mxbeans.RTMPHandshakeServiceMXBean;
+import com.sms.server.Configuration;
+import com.sms.server.util.CustomizableThreadFactory;
+
+/**
+ * RTMP Handshake Service
+ * <p>
+ * Answers the handshakes of incoming connections on threads of their own, so a storm of
+ * reconnecting players does not hold up the media of the connected ones on the rtmp workers.
+ * The DH key pairs of the handshakes are generated ahead of time by a background thread into a
+ * bounded pool, every key pair is handed out once. When the pool runs dry the key pair is
+ * generated on the handshake thread.
+ * @author pengliren
+ *
+ */
+public class RTMPHandshakeService implements RTMPHandshakeServiceMXBean {
+
+	private static Logger log = LoggerFactory.getLogger(RTMPHandshakeService.class);
+
+	private static final ThreadLocal<KeyPairGenerator> keyPairGenerator = new ThreadLocal<KeyPairGenerator>() {
+		@Override
+		protected KeyPairGenerator initialValue() {
+			try {
+				KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
+				keyGen.initialize(new DHParameterSpec(RTMPHandshake.DH_MODULUS, RTMPHandshake.DH_BASE));
+				return keyGen;
+			} catch (Exception e) {
+				log.error("Error creating keypair generator", e);
+				return null;
+			}
+		}
+	};
+
+	private final ThreadPoolExecutor executor;
+
+	private final ScheduledExecutorService keyExecutor;
+
+	private final ArrayBlockingQueue<KeyPair> keyPool;
+
+	private final AtomicBoolean refilling = new AtomicBoolean();
+
+	private final AtomicLong handshakeCount = new AtomicLong();
+
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private final AtomicLong keyPoolMissCount = new AtomicLong();
+
+	private volatile long handshakesPerSecond;
+
+	private long lastHandshakeCount;
+
+	private final Runnable refillTask = new Runnable() {
+		public void run() {
+			refill();
+		}
+	};
+
+	private static final class SingletonHolder {
+
+		private static final RTMPHandshakeService INSTANCE = new RTMPHandshakeService(Configuration.RTMP_HANDSHAKE_THREADS, Configuration.RTMP_HANDSHAKE_KEY_POOL_SIZE);
+	}
+
+	public static RTMPHandshakeService getInstance() {
+
+		return SingletonHolder.INSTANCE;
+	}
+
+	/**
+	 * @param threads handshake threads, 0 to answer handshakes on the calling thread
+	 * @param keyPoolSize pre-generated key pairs, 0 to generate them on the handshake thread
+	 */
+	private RTMPHandshakeService(int threads, int keyPoolSize) {
+		if (threads > 0) {
+			executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new CustomizableThreadFactory("RtmpHandshakeExecutor-"));
+		} else {
+			executor = null;
+		}
+		keyPool = (keyPoolSize > 0 ? new ArrayBlockingQueue<KeyPair>(keyPoolSize) : null);
+		keyExecutor = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("RtmpHandshakeKeyExecutor-"));
+		keyExecutor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				long count = handshakeCount.get();
+				handshakesPerSecond = count - lastHandshakeCount;
+				lastHandshakeCount = count;
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+		scheduleRefill();
+		JMXAgent.registerMBean(this, this.getClass().getName(), RTMPHandshakeServiceMXBean.class);
+	}
+
+	/**
+	 * Run a handshake on a handshake thread, or on the calling thread without any.
+	 *
+	 * @param task handshake
+	 */
+	public void execute(Runnable task) {
+		if (executor != null) {
+			try {
+				executor.execute(task);
+				return;
+			} catch (RejectedExecutionException e) {
+				log.warn("handshake rejected: {}", e.getMessage());
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Count an answered handshake.
+	 */
+	public void handshakeDone() {
+		handshakeCount.incrementAndGet();
+	}
+
+	/**
+	 * Count a handshake dropped because its connection was closed before it ran.
+	 */
+	public void handshakeDropped() {
+		droppedCount.incrementAndGet();
+	}
+
+	/**
+	 * Take a DH key pair never used before, from the pool when it has one.
+	 *
+	 * @return key pair, null if it cannot be generated
+	 */
+	public KeyPair takeKeyPair() {
+		if (keyPool != null) {
+			KeyPair keyPair = keyPool.poll();
+			if (keyPool.size() < keyPool.remainingCapacity()) {
+				// below half
+				scheduleRefill();
+			}
+			if (keyPair != null) {
+				return keyPair;
+			}
+			keyPoolMissCount.incrementAndGet();
+		}
+		return generateKeyPair();
+	}
+
+	private static KeyPair generateKeyPair() {
+		KeyPairGenerator keyGen = keyPairGenerator.get();
+		return (keyGen != null ? keyGen.generateKeyPair() : null);
+	}
+
+	private void scheduleRefill() {
+		if (keyPool != null && refilling.compareAndSet(false, true)) {
+			try {
+				keyExecutor.execute(refillTask);
+			} catch (RejectedExecutionException e) {
+				refilling.set(false);
+			}
+		}
+	}
+
+	private void refill() {
+		try {
+			while (keyPool.remainingCapacity() > 0) {
+				KeyPair keyPair = generateKeyPair();
+				if (keyPair == null || !keyPool.offer(keyPair)) {
+					break;
+				}
+			}
+		} finally {
+			refilling.set(false);
+		}
+	}
+
+	/** {@inheritDoc} */
+	public long getHandshakesPerSecond() {
+		return handshakesPerSecond;
+	}
+
+	/** {@inheritDoc} */
+	public long getHandshakeCount() {
+		return handshakeCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public int getQueuedHandshakes() {
+		return (executor != null ? executor.getQueue().size() : 0);
+	}
+
+	/** {@inheritDoc} */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/** {@inheritDoc} */
+	public int getKeyPoolSize() {
+		return (keyPool != null ? keyPool.size() : 0);
+	}
+
+	/** {@inheritDoc} */
+	public int getKeyPoolCapacity() {
+		return (keyPool != null ? keyPool.size() + keyPool.remainingCapacity() : 0);
+	}
+
+	/** {@inheritDoc} */
+	public long getKeyPoolMissCount() {
+		return keyPoolMissCount.get();
+	}
+}
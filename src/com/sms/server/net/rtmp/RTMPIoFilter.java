@@ -1,15 +1,20 @@
 package com.sms.server.net.rtmp;
 
+import java.nio.ByteBuffer;
+
 import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.filterchain.IoFilterAdapter;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteException;
 import org.apache.mina.core.write.WriteRequest;
 import org.apache.mina.core.write.WriteRequestWrapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.server.net.rtmp.codec.RTMP;
 import com.sms.server.net.rtmp.message.Constants;
 import com.sms.server.net.rtmp.protocol.ProtocolState;
@@ -17,13 +22,21 @@ import com.sms.server.net.rtmp.protocol.ProtocolState;
 /**
  *  
 * @ClassName: RTMPIoFilter
-* @Description: RTMP IO filter
+* @Description: RTMP IO filter. RTMPE data is ciphered in place when the buffer belongs to the
+* session, shared read-only buffers are ciphered into a pooled buffer released once sent.
 * @author pengliren
 *
  */
 public class RTMPIoFilter extends IoFilterAdapter {
 
 	private static final Logger log = LoggerFactory.getLogger(RTMPIoFilter.class);
+
+	private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[8192];
+		}
+	};
 	
 	@Override
 	public void messageReceived(NextFilter nextFilter, IoSession session, Object obj) throws Exception {
@@ -86,18 +99,20 @@ public class RTMPIoFilter extends IoFilterAdapter {
 			IoBuffer message = (IoBuffer) obj;
 			if (rtmp.getState() == RTMP.STATE_HANDSHAKE) {
 				//skip the first 1536
-				byte[] handshakeReply = new byte[Constants.HANDSHAKE_SIZE];
-				message.get(handshakeReply);
+				message.skip(Constants.HANDSHAKE_SIZE);
 				// TODO verify reply, for now just set to connected
 				rtmp.setState(RTMP.STATE_CONNECTED);
 			}
 			log.debug("Decrypting buffer: {}", message);
-			byte[] encrypted = new byte[message.remaining()];
-			message.get(encrypted);
-			message.clear();
-			message.free();
-			byte[] plain = cipher.update(encrypted);
-			IoBuffer messageDecrypted = IoBuffer.wrap(plain);
+			IoBuffer messageDecrypted;
+			if (message.isReadOnly()) {
+				messageDecrypted = IoBuffer.allocate(message.remaining());
+				update(cipher, message, messageDecrypted);
+			} else {
+				// the buffer of a read is ours alone
+				messageDecrypted = message;
+				update(cipher, message, message);
+			}
 			log.debug("Decrypted buffer: {}", messageDecrypted);
 			nextFilter.messageReceived(session, messageDecrypted);
 		} else {
@@ -116,23 +131,103 @@ public class RTMPIoFilter extends IoFilterAdapter {
 				log.debug("Buffer was empty");
 			} else {
 				log.debug("Encrypting buffer: {}", message);
-				byte[] plain = new byte[message.remaining()];
-				message.get(plain);
-				message.clear();
-				message.free();
-				//encrypt and write
-				byte[] encrypted = cipher.update(plain);
-				IoBuffer messageEncrypted = IoBuffer.wrap(encrypted);
-				log.debug("Encrypted buffer: {}", messageEncrypted);
-				nextFilter.filterWrite(session, new EncryptedWriteRequest(request, messageEncrypted));
+				if (PooledBufferAllocator.isPooled(message) && !message.isReadOnly()) {
+					// encoded for this session only, released once sent
+					update(cipher, message, message);
+					log.debug("Encrypted buffer: {}", message);
+					nextFilter.filterWrite(session, new PooledWriteRequest(request));
+				} else {
+					// shared chunks must stay as they are
+					IoBuffer messageEncrypted = PooledBufferAllocator.acquire(message.remaining());
+					update(cipher, message, messageEncrypted);
+					PooledBufferAllocator.release(message);
+					log.debug("Encrypted buffer: {}", messageEncrypted);
+					nextFilter.filterWrite(session, new EncryptedWriteRequest(request, messageEncrypted));
+				}
 			}
 		} else {
 			log.trace("Not encrypting write request");
-			nextFilter.filterWrite(session, request);
+			Object message = request.getMessage();
+			if (message instanceof IoBuffer && PooledBufferAllocator.isPooled((IoBuffer) message)) {
+				nextFilter.filterWrite(session, new PooledWriteRequest(request));
+			} else {
+				nextFilter.filterWrite(session, request);
+			}
+		}
+	}
+
+	/**
+	 * Cipher the remaining bytes of the input into the output, the position of the input is left
+	 * as it is. With the same buffer for both the bytes are replaced in place, otherwise the output
+	 * is flipped for reading. The cipher allocates temporary arrays for direct and read-only buffers,
+	 * those go through a scratch array of the thread instead.
+	 */
+	private static void update(Cipher cipher, IoBuffer input, IoBuffer output) throws ShortBufferException {
+		ByteBuffer in = input.buf().duplicate();
+		ByteBuffer out = (input == output ? in.duplicate() : output.buf());
+		if (in.hasArray() && out.hasArray()) {
+			cipher.update(in, out);
+		} else {
+			byte[] buf = scratch.get();
+			while (in.hasRemaining()) {
+				int len = Math.min(in.remaining(), buf.length);
+				in.get(buf, 0, len);
+				cipher.update(buf, 0, len, buf, 0);
+				out.put(buf, 0, len);
+			}
+		}
+		if (input != output) {
+			output.flip();
+		}
+	}
+
+	@Override
+	public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+		if (writeRequest instanceof PooledWriteRequest) {
+			// the data has been written out, hand the buffer back
+			PooledBufferAllocator.release((IoBuffer) writeRequest.getMessage());
+			WriteRequest parent = ((PooledWriteRequest) writeRequest).getParentRequest();
+			if (!parent.isEncoded()) {
+				nextFilter.messageSent(session, parent);
+			}
+		} else {
+			nextFilter.messageSent(session, writeRequest);
+		}
+	}
+
+	@Override
+	public void exceptionCaught(NextFilter nextFilter, IoSession session, Throwable cause) throws Exception {
+		if (cause instanceof WriteException) {
+			// requests dropped from the queue of a closed session are never sent
+			for (WriteRequest request : ((WriteException) cause).getRequests()) {
+				if (request instanceof PooledWriteRequest) {
+					PooledBufferAllocator.release((IoBuffer) request.getMessage());
+				}
+			}
+		}
+		nextFilter.exceptionCaught(session, cause);
+	}
+
+	/**
+	 * Pooled buffer released once sent. Unlike encoded requests it is reported as sent through
+	 * the chain, encoded parents are not passed further.
+	 */
+	private static class PooledWriteRequest extends WriteRequestWrapper {
+
+		private PooledWriteRequest(WriteRequest writeRequest) {
+			super(writeRequest);
+		}
+
+		@Override
+		public boolean isEncoded() {
+			return false;
 		}
 	}
 
-	private static class EncryptedWriteRequest extends WriteRequestWrapper {
+	/**
+	 * Encrypted copy of a shared buffer, a pooled buffer as well.
+	 */
+	private static class EncryptedWriteRequest extends PooledWriteRequest {
 		private final IoBuffer encryptedMessage;
 
 		private EncryptedWriteRequest(WriteRequest writeRequest, IoBuffer encryptedMessage) {
@@ -21,6 +21,7 @@ import com.sms.jmx.JMXFactory;
 import com.sms.jmx.mxbeans.RTMPMinaConnectionMXBean;
 import com.sms.server.Configuration;
 import com.sms.server.api.IScope;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.net.rtmp.codec.RTMP;
 import com.sms.server.net.rtmp.event.ClientBW;
 import com.sms.server.net.rtmp.event.ServerBW;
@@ -237,11 +238,41 @@ public class RTMPMinaConnection extends RTMPConnection implements RTMPMinaConnec
 	@Override
 	public long getPendingMessages() {
 		if (ioSession != null) {
-			return ioSession.getScheduledWriteMessages();
+			long pending = ioSession.getScheduledWriteMessages();
+			// messages held back behind coalesced data
+			RTMPWriteCoalescingFilter coalescer = (RTMPWriteCoalescingFilter) ioSession.getFilterChain().get(RTMPWriteCoalescingFilter.NAME);
+			if (coalescer != null) {
+				pending += coalescer.getPendingMessages();
+			}
+			return pending;
 		}
 		return 0;
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public long getPendingBytes() {
+		if (ioSession != null) {
+			long pending = ioSession.getScheduledWriteBytes();
+			RTMPWriteCoalescingFilter coalescer = (RTMPWriteCoalescingFilter) ioSession.getFilterChain().get(RTMPWriteCoalescingFilter.NAME);
+			if (coalescer != null) {
+				pending += coalescer.getPendingBytes();
+			}
+			return pending;
+		}
+		return 0;
+	}
+
+	/** {@inheritDoc} */
+	public long getDroppedFrames(int streamId) {
+		return getCongestionController().getDroppedFrames(streamId);
+	}
+
+	/** {@inheritDoc} */
+	public long getSendDelay() {
+		return getCongestionController().getSendDelay();
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public long getReadBytes() {
@@ -322,9 +353,12 @@ public class RTMPMinaConnection extends RTMPConnection implements RTMPMinaConnec
 	/** {@inheritDoc} */
 	@Override
 	public void write(Packet out) {
-		if (ioSession != null) {
+		if (ioSession != null && !ioSession.isClosing()) {
 			writingMessage(out);
 			ioSession.write(out);
+		} else {
+			// never reaches the encoder
+			ChunkedPayloadCache.release(out.getMessage());
 		}
 	}
 }
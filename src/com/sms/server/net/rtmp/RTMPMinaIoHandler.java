@@ -13,10 +13,13 @@ import org.apache.mina.filter.logging.LoggingFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.buffer.PooledBufferAllocator;
+import com.sms.server.Configuration;
 import com.sms.server.api.IConnection;
 import com.sms.server.api.SMS;
 import com.sms.server.net.rtmp.codec.RTMP;
 import com.sms.server.net.rtmp.codec.RTMPMinaCodecFactory;
+import com.sms.server.net.rtmp.codec.RTMPMinaProtocolDecoder;
 import com.sms.server.net.rtmp.message.Constants;
 import com.sms.server.net.rtmp.protocol.ProtocolState;
 
@@ -57,6 +60,10 @@ public class RTMPMinaIoHandler extends IoHandlerAdapter {
 		session.setAttribute(ProtocolState.SESSION_KEY, rtmp);
 		//add rtmp filter
 		session.getFilterChain().addFirst("rtmpFilter", new RTMPIoFilter());		
+		//coalesce encoded packets ahead of the encryption
+		if (Configuration.RTMP_WRITE_COALESCE_SIZE > 0) {
+			session.getFilterChain().addAfter("rtmpFilter", RTMPWriteCoalescingFilter.NAME, new RTMPWriteCoalescingFilter(Configuration.RTMP_WRITE_COALESCE_SIZE));
+		}
 		//add protocol filter next
 		session.getFilterChain().addLast("protocolFilter", new ProtocolCodecFilter(codecFactory));
 		if (log.isTraceEnabled()) {
@@ -127,7 +134,9 @@ public class RTMPMinaIoHandler extends IoHandlerAdapter {
 				session.removeAttribute(RTMPConnection.RTMPE_CIPHER_OUT);
 			}
 			rtmpConnManager.removeConnection(conn.getId());
-		}		
+		}
+		// hand the decoding buffer back to the pool
+		PooledBufferAllocator.release((IoBuffer) session.removeAttribute(RTMPMinaProtocolDecoder.BUFFER_KEY));
 	}
 
 	/**
@@ -138,49 +147,67 @@ public class RTMPMinaIoHandler extends IoHandlerAdapter {
 	 * @param session
 	 *            I/O session, that is, connection between two endpoints
 	 */
-	protected void rawBufferRecieved(IoBuffer in, IoSession session) {
+	protected void rawBufferRecieved(final IoBuffer in, final IoSession session) {
 		log.debug("rawBufferRecieved: {}", in);
 		final RTMP rtmp = (RTMP) session.getAttribute(ProtocolState.SESSION_KEY);
 		log.debug("state: {}", rtmp);
 		final RTMPMinaConnection conn = (RTMPMinaConnection) session.getAttribute(RTMPConnection.RTMP_CONNECTION_KEY);
-		RTMPHandshake handshake = (RTMPHandshake) session.getAttribute(RTMPConnection.RTMP_HANDSHAKE);
+		final RTMPHandshake handshake = (RTMPHandshake) session.getAttribute(RTMPConnection.RTMP_HANDSHAKE);
 		if (handshake != null) {
-			IoBuffer out = null;
-			conn.getWriteLock().lock();
-			try {
-				if (rtmp.getMode() == RTMP.MODE_SERVER) {
-					if (rtmp.getState() != RTMP.STATE_HANDSHAKE) {
-						log.warn("Raw buffer after handshake, something odd going on");
-					}
-					log.debug("Handshake - server phase 1 - size: {}", in.remaining());
-				} else {
-					log.debug("Handshake - client phase 2 - size: {}", in.remaining());
-				}
-				out = handshake.doHandshake(in);
-			} finally {
-				conn.getWriteLock().unlock();
-				if (out != null) {
-					log.debug("Output: {}", out);
-					session.write(out);
-					//if we are connected and doing encryption, add the ciphers
-					if (rtmp.getState() == RTMP.STATE_CONNECTED) {
-						// remove handshake from session now that we are connected
-						//session.removeAttribute(RTMPConnection.RTMP_HANDSHAKE);
-		    			// if we are using encryption then put the ciphers in the session
-		        		if (handshake.getHandshakeType() == RTMPConnection.RTMP_ENCRYPTED) {
-		        			log.debug("Adding ciphers to the session");
-		        			session.setAttribute(RTMPConnection.RTMPE_CIPHER_IN, handshake.getCipherIn());
-		        			session.setAttribute(RTMPConnection.RTMPE_CIPHER_OUT, handshake.getCipherOut());
-		        		}	
+			if (rtmp.getMode() == RTMP.MODE_SERVER) {
+				// the client waits for our answer, nothing else arrives meanwhile
+				RTMPHandshakeService.getInstance().execute(new Runnable() {
+					public void run() {
+						if (session.isClosing()) {
+							RTMPHandshakeService.getInstance().handshakeDropped();
+							return;
+						}
+						handshake(in, session, rtmp, conn, handshake);
+						RTMPHandshakeService.getInstance().handshakeDone();
 					}
-				}
-			}		
+				});
+			} else {
+				handshake(in, session, rtmp, conn, handshake);
+			}
 		} else {
 			log.warn("Handshake was not found for this connection: {}", conn);
 			log.debug("RTMP state: {} Session: {}", rtmp, session);
 		}
 	}
 
+	private void handshake(IoBuffer in, IoSession session, RTMP rtmp, RTMPMinaConnection conn, RTMPHandshake handshake) {
+		IoBuffer out = null;
+		conn.getWriteLock().lock();
+		try {
+			if (rtmp.getMode() == RTMP.MODE_SERVER) {
+				if (rtmp.getState() != RTMP.STATE_HANDSHAKE) {
+					log.warn("Raw buffer after handshake, something odd going on");
+				}
+				log.debug("Handshake - server phase 1 - size: {}", in.remaining());
+			} else {
+				log.debug("Handshake - client phase 2 - size: {}", in.remaining());
+			}
+			out = handshake.doHandshake(in);
+		} finally {
+			conn.getWriteLock().unlock();
+			if (out != null) {
+				log.debug("Output: {}", out);
+				session.write(out);
+				//if we are connected and doing encryption, add the ciphers
+				if (rtmp.getState() == RTMP.STATE_CONNECTED) {
+					// remove handshake from session now that we are connected
+					//session.removeAttribute(RTMPConnection.RTMP_HANDSHAKE);
+	    			// if we are using encryption then put the ciphers in the session
+	        		if (handshake.getHandshakeType() == RTMPConnection.RTMP_ENCRYPTED) {
+	        			log.debug("Adding ciphers to the session");
+	        			session.setAttribute(RTMPConnection.RTMPE_CIPHER_IN, handshake.getCipherIn());
+	        			session.setAttribute(RTMPConnection.RTMPE_CIPHER_OUT, handshake.getCipherOut());
+	        		}	
+				}
+			}
+		}
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public void messageReceived(IoSession session, Object message) throws Exception {
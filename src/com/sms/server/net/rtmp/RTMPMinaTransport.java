@@ -39,6 +39,8 @@ public class RTMPMinaTransport {
 			IoBuffer.setAllocator(new SimpleBufferAllocator());
 		}
 		
+		// fill the handshake key pool before the first players arrive
+		RTMPHandshakeService.getInstance();
 		acceptor = new NioSocketAcceptor(Configuration.RTMP_IO_THREADS);		
 		ioHandler = new RTMPMinaIoHandler();
 		acceptor.setHandler(ioHandler);
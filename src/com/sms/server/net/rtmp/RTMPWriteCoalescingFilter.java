@@ -0,0 +1,182 @@
+package com.sms.server.net.rtmp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.apache.mina.core.write.WriteToClosedSessionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.buffer.PooledBufferAllocator;
+
+/**
+ *
+* @ClassName: RTMPWriteCoalescingFilter
+* @Description: Coalesces encoded RTMP packets into one write while the session is busy writing
+* <p>
+* An encoded packet is written as is when the session has nothing queued. Packets encoded while
+* earlier messages are still queued could not be sent any sooner, their data is copied into one
+* buffer that is written when the next queued message has been sent or when it reaches the
+* maximum size. The end of message markers keep their place behind the data, so packet order,
+* write futures and the pending messages count are preserved. Large packets are never copied.
+* @author pengliren
+*
+ */
+public class RTMPWriteCoalescingFilter extends IoFilterAdapter {
+
+	private static final Logger log = LoggerFactory.getLogger(RTMPWriteCoalescingFilter.class);
+
+	public static final String NAME = "writeCoalescer";
+
+	private final int maxSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// coalesced data, guarded by the lock
+	private IoBuffer pending;
+
+	// message markers queued behind the coalesced data, guarded by the lock
+	private final List<WriteRequest> deferred = new ArrayList<WriteRequest>();
+
+	private volatile int pendingMessages;
+
+	private volatile int pendingBytes;
+
+	/**
+	 * @param maxSize size in bytes at which coalesced data is written, larger packets are written as is
+	 */
+	public RTMPWriteCoalescingFilter(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Return the number of messages held back behind coalesced data.
+	 *
+	 * @return pending messages
+	 */
+	public int getPendingMessages() {
+		return pendingMessages;
+	}
+
+	/**
+	 * Return the number of coalesced bytes not written yet.
+	 *
+	 * @return pending bytes
+	 */
+	public int getPendingBytes() {
+		return pendingBytes;
+	}
+
+	@Override
+	public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest request) throws Exception {
+		Object message = request.getMessage();
+		lock.lock();
+		try {
+			if (message instanceof IoBuffer) {
+				IoBuffer buf = (IoBuffer) message;
+				// only encoded data is coalesced, its write future is not used
+				if (request.isEncoded() && buf.remaining() < maxSize && (pending != null || session.getScheduledWriteMessages() > 0)) {
+					if (pending == null) {
+						pending = PooledBufferAllocator.acquire(maxSize);
+						pending.setAutoExpand(true);
+					}
+					pending.put(buf);
+					pendingBytes = pending.position();
+					PooledBufferAllocator.release(buf);
+					if (pending.position() >= maxSize) {
+						flush(nextFilter, session);
+					}
+					return;
+				}
+				if (!buf.hasRemaining() && pending != null) {
+					deferred.add(request);
+					pendingMessages = deferred.size();
+					return;
+				}
+			}
+			flush(nextFilter, session);
+			nextFilter.filterWrite(session, request);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void messageSent(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws Exception {
+		// a queued message has been sent, whatever piled up in the meantime goes out as one write
+		lock.lock();
+		try {
+			flush(nextFilter, session);
+		} finally {
+			lock.unlock();
+		}
+		if (!(writeRequest instanceof CoalescedWriteRequest)) {
+			nextFilter.messageSent(session, writeRequest);
+		}
+	}
+
+	@Override
+	public void filterClose(NextFilter nextFilter, IoSession session) throws Exception {
+		lock.lock();
+		try {
+			flush(nextFilter, session);
+		} finally {
+			lock.unlock();
+		}
+		nextFilter.filterClose(session);
+	}
+
+	@Override
+	public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+		lock.lock();
+		try {
+			if (pending != null) {
+				PooledBufferAllocator.release(pending);
+				pending = null;
+				pendingBytes = 0;
+			}
+			for (WriteRequest request : deferred) {
+				request.getFuture().setException(new WriteToClosedSessionException(request));
+			}
+			deferred.clear();
+			pendingMessages = 0;
+		} finally {
+			lock.unlock();
+		}
+		nextFilter.sessionClosed(session);
+	}
+
+	private void flush(NextFilter nextFilter, IoSession session) {
+		if (pending != null) {
+			IoBuffer data = pending;
+			pending = null;
+			pendingBytes = 0;
+			data.flip();
+			log.trace("Writing {} coalesced bytes and {} messages", data.remaining(), deferred.size());
+			nextFilter.filterWrite(session, new CoalescedWriteRequest(data));
+		}
+		if (!deferred.isEmpty()) {
+			for (WriteRequest request : deferred) {
+				nextFilter.filterWrite(session, request);
+			}
+			deferred.clear();
+			pendingMessages = 0;
+		}
+	}
+
+	/**
+	 * Coalesced data, not reported as sent to the rest of the chain
+	 */
+	private static class CoalescedWriteRequest extends DefaultWriteRequest {
+
+		private CoalescedWriteRequest(IoBuffer data) {
+			super(data);
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.sms.server.net.rtmp.codec;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.utils.BufferUtils;
+import com.sms.server.net.rtmp.RTMPUtils;
+import com.sms.server.net.rtmp.event.AudioData;
+import com.sms.server.net.rtmp.event.IRTMPEvent;
+import com.sms.server.net.rtmp.event.VideoData;
+import com.sms.server.net.rtmp.message.Constants;
+
+/**
+ * Pre-chunked body of a live audio or video packet, shared by all subscribers of a stream.
+ * <p>
+ * The payload is split at the write chunk size, with continuation chunk headers in between,
+ * once per (chunk size, channel id, extended timestamp) combination. Connections that agree on
+ * these values only encode their own message header and write a read-only view of the shared
+ * chunks, instead of re-chunking and copying the payload per connection.
+ * <p>
+ * Other protocols can attach their own encoding of the packet the same way, RTSP viewers keep
+ * the RTP payloads there so they only write their own RTP header.
+ * <p>
+ * The broadcast stream holds the initial reference while it pushes the packet to its
+ * subscribers and every packet the payload is attached to retains another one, released
+ * when the packet is encoded or dropped. The cached chunks are dropped once the last
+ * reference is released.
+ */
+public class ChunkedPayloadCache implements Constants {
+
+	private static Logger log = LoggerFactory.getLogger(ChunkedPayloadCache.class);
+
+	private static final Entry[] EMPTY = new Entry[0];
+
+	/**
+	 * Read-only view of the packet payload
+	 */
+	private final IoBuffer payload;
+
+	/**
+	 * References count
+	 */
+	private final AtomicInteger refcount = new AtomicInteger(1);
+
+	/**
+	 * Encoded variants, replaced as a whole when a new one is added
+	 */
+	private volatile Entry[] entries = EMPTY;
+
+	/**
+	 * Payload of another protocol, the RTP payloads of the packet
+	 */
+	private volatile Object attachment;
+
+	/**
+	 * Create payload cache for the given packet payload
+	 *
+	 * @param payload packet payload
+	 */
+	public ChunkedPayloadCache(IoBuffer payload) {
+		IoBuffer data = payload.asReadOnlyBuffer();
+		if (data.position() != 0) {
+			data.flip();
+		} else {
+			data.rewind();
+		}
+		this.payload = data;
+	}
+
+	/**
+	 * Add a reference.
+	 *
+	 * @return this cache
+	 */
+	public ChunkedPayloadCache retain() {
+		refcount.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Drop a reference, the cached chunks are discarded with the last one.
+	 */
+	public void release() {
+		int count = refcount.decrementAndGet();
+		if (count == 0) {
+			// chunks may still be queued for writing, leave them to the gc
+			synchronized (this) {
+				entries = EMPTY;
+				attachment = null;
+			}
+		} else if (count < 0) {
+			log.warn("Chunked payload released more often than retained");
+			refcount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drop the reference held by an audio or video event, if any. The event no longer
+	 * refers to the shared payload afterwards, so releasing it again does nothing.
+	 *
+	 * @param event event
+	 */
+	public static void release(IRTMPEvent event) {
+		ChunkedPayloadCache chunkedPayload = null;
+		if (event instanceof VideoData) {
+			chunkedPayload = ((VideoData) event).getChunkedPayload();
+			((VideoData) event).setChunkedPayload(null);
+		} else if (event instanceof AudioData) {
+			chunkedPayload = ((AudioData) event).getChunkedPayload();
+			((AudioData) event).setChunkedPayload(null);
+		}
+		if (chunkedPayload != null) {
+			chunkedPayload.release();
+		}
+	}
+
+	/**
+	 * Return the size of the continuation chunk header following every chunk but the last.
+	 *
+	 * @param channelId channel id
+	 * @param extendedTimestamp extended timestamp, 0 for none
+	 * @return header size in bytes
+	 */
+	public static int getContinuationSize(int channelId, int extendedTimestamp) {
+		return (channelId <= 63 ? 1 : (channelId <= 320 ? 2 : 3)) + (extendedTimestamp != 0 ? 4 : 0);
+	}
+
+	/**
+	 * Return the payload size in bytes.
+	 *
+	 * @return payload size
+	 */
+	public int getPayloadSize() {
+		return payload.limit();
+	}
+
+	/**
+	 * Return the chunked body for the given chunking parameters, encoding it on first use.
+	 * The body starts right after the message header and contains the continuation chunk
+	 * headers between payload chunks.
+	 *
+	 * @param chunkSize write chunk size
+	 * @param channelId channel id
+	 * @param extendedTimestamp extended timestamp repeated in continuation headers, 0 for none
+	 * @return read-only view of the chunked body
+	 */
+	public IoBuffer getChunks(int chunkSize, int channelId, int extendedTimestamp) {
+		for (Entry entry : entries) {
+			if (entry.matches(chunkSize, channelId, extendedTimestamp)) {
+				return entry.chunks.asReadOnlyBuffer();
+			}
+		}
+		return encode(chunkSize, channelId, extendedTimestamp);
+	}
+
+	private synchronized IoBuffer encode(int chunkSize, int channelId, int extendedTimestamp) {
+		// another connection might have encoded it while we were waiting
+		Entry[] current = entries;
+		for (Entry entry : current) {
+			if (entry.matches(chunkSize, channelId, extendedTimestamp)) {
+				return entry.chunks.asReadOnlyBuffer();
+			}
+		}
+		IoBuffer data = payload.duplicate();
+		int dataLen = data.limit();
+		int numChunks = (dataLen + chunkSize - 1) / chunkSize;
+		int continuationSize = getContinuationSize(channelId, extendedTimestamp);
+		IoBuffer chunks = IoBuffer.allocate(dataLen + (numChunks > 0 ? (numChunks - 1) * continuationSize : 0), false);
+		for (int i = 0; i < numChunks - 1; i++) {
+			BufferUtils.put(chunks, data, chunkSize);
+			RTMPUtils.encodeHeaderByte(chunks, HEADER_CONTINUE, channelId);
+			if (extendedTimestamp != 0) {
+				chunks.putInt(extendedTimestamp);
+			}
+		}
+		BufferUtils.put(chunks, data, data.remaining());
+		chunks.flip();
+		log.trace("Encoded {} chunks of size {} for channel {}", new Object[] { numChunks, chunkSize, channelId });
+		if (refcount.get() <= 0) {
+			// released already, do not keep it around
+			return chunks;
+		}
+		Entry[] updated = new Entry[current.length + 1];
+		System.arraycopy(current, 0, updated, 0, current.length);
+		updated[current.length] = new Entry(chunkSize, channelId, extendedTimestamp, chunks);
+		entries = updated;
+		return chunks.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Return the payload other protocols attached to the packet, if any.
+	 *
+	 * @return attachment or null
+	 */
+	public Object getAttachment() {
+		return attachment;
+	}
+
+	/**
+	 * Replace the attachment if it is still the expected one. Once the last reference is
+	 * released the attachment is not kept, the update is reported as done all the same.
+	 *
+	 * @param expected attachment read before
+	 * @param updated new attachment
+	 * @return false if the attachment was changed in the meantime
+	 */
+	public synchronized boolean compareAndSetAttachment(Object expected, Object updated) {
+		if (attachment != expected) {
+			return false;
+		}
+		if (refcount.get() > 0) {
+			attachment = updated;
+		}
+		return true;
+	}
+
+	/**
+	 * Chunked body for one set of chunking parameters
+	 */
+	private static final class Entry {
+
+		final int chunkSize;
+
+		final int channelId;
+
+		final int extendedTimestamp;
+
+		final IoBuffer chunks;
+
+		Entry(int chunkSize, int channelId, int extendedTimestamp, IoBuffer chunks) {
+			this.chunkSize = chunkSize;
+			this.channelId = channelId;
+			this.extendedTimestamp = extendedTimestamp;
+			this.chunks = chunks;
+		}
+
+		boolean matches(int chunkSize, int channelId, int extendedTimestamp) {
+			return this.chunkSize == chunkSize && this.channelId == channelId && this.extendedTimestamp == extendedTimestamp;
+		}
+	}
+
+}
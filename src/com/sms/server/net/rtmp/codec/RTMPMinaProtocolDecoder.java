@@ -8,6 +8,7 @@ import org.apache.mina.filter.codec.ProtocolCodecException;
 import org.apache.mina.filter.codec.ProtocolDecoderAdapter;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
 
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.server.api.SMS;
 import com.sms.server.net.rtmp.RTMPConnection;
 import com.sms.server.net.rtmp.message.Constants;
@@ -18,6 +19,11 @@ import com.sms.server.net.rtmp.protocol.ProtocolState;
  */
 public class RTMPMinaProtocolDecoder extends ProtocolDecoderAdapter {
 
+	/**
+	 * Session attribute holding the not yet decoded data
+	 */
+	public static final String BUFFER_KEY = "buffer";
+
 	private RTMPProtocolDecoder decoder = new RTMPProtocolDecoder();
 	
 	/** {@inheritDoc} */
@@ -29,11 +35,12 @@ public class RTMPMinaProtocolDecoder extends ProtocolDecoderAdapter {
 		conn.getWriteLock().lock();
 		try {
 			//create a buffer and store it on the session
-			IoBuffer buf = (IoBuffer) session.getAttribute("buffer");
+			IoBuffer buf = (IoBuffer) session.getAttribute(BUFFER_KEY);
 			if (buf == null) {
-				buf = IoBuffer.allocate(Constants.HANDSHAKE_SIZE);
+				// pooled, released when the session is closed
+				buf = PooledBufferAllocator.acquire(Constants.HANDSHAKE_SIZE);
 				buf.setAutoExpand(true);
-				session.setAttribute("buffer", buf);
+				session.setAttribute(BUFFER_KEY, buf);
 			}
 			buf.put(in);
 			buf.flip();
@@ -10,9 +10,12 @@ import org.apache.mina.filter.codec.ProtocolEncoderOutput;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.server.api.IConnection;
 import com.sms.server.api.SMS;
 import com.sms.server.net.rtmp.RTMPConnection;
+import com.sms.server.net.rtmp.message.Header;
+import com.sms.server.net.rtmp.message.Packet;
 import com.sms.server.net.rtmp.protocol.ProtocolState;
 
 /**
@@ -33,6 +36,8 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
 
 		RTMPConnection conn = (RTMPConnection) session.getAttribute(RTMPConnection.RTMP_CONNECTION_KEY);
 		final IConnection prevConn = SMS.getConnectionLocal();
+		// the encoder is shared, dropping decisions are taken for this connection
+		SMS.setConnectionLocal(conn);
 		conn.getWriteLock().lock();
 		try {
 
@@ -40,6 +45,24 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
 			// generated data to prevent two packages to the same channel
 			// to be sent in different order thus resulting in wrong
 			// headers being generated.
+			final IoBuffer[] shared = (message instanceof Packet) ? encoder.encodeSharedPacket((RTMP) state, (Packet) message) : null;
+			if (shared != null) {
+				if (shared.length > 0) {
+					// header and shared chunked body, large bodies are written in slices like the other packets
+					out.write(shared[0]);
+					IoBuffer chunks = shared[1];
+					if (chunks.remaining() <= targetChunkSize * 2) {
+						out.write(chunks);
+					} else {
+						Header header = ((Packet) message).getHeader();
+						int chunkSize = ((RTMP) state).getWriteChunkSize();
+						int continuationSize = ChunkedPayloadCache.getContinuationSize(header.getChannelId(), header.getExtendedTimestamp());
+						int sentChunks = Chunker.sliceAndWrite(out, chunks, chunkSize + continuationSize, targetChunkSize);
+						log.trace("Wrote {} shared chunks", sentChunks);
+					}
+				}
+				return;
+			}
 			final IoBuffer buf = encoder.encode(state, message);
 			if (buf != null) {
 				int requestedWriteChunkSize = conn.getState().getWriteChunkSize();
@@ -59,6 +82,8 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
 					*/
 					int sentChunks = Chunker.chunkAndWrite(out, buf, requestedWriteChunkSize, targetChunkSize);
 					log.trace("Wrote {} chunks", sentChunks);
+					// every chunk holds its own reference to the pooled buffer
+					PooledBufferAllocator.release(buf);
 				}
 			} else {
 				log.trace("Response buffer was null after encoding");
@@ -75,20 +100,6 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
 		return encoder;
 	}
     
-	/**
-	 * Setter for baseTolerance
-	 * */
-	public void setBaseTolerance(long baseTolerance) {
-		encoder.setBaseTolerance(baseTolerance);
-	}
-	
-	/**
-	 * Setter for dropLiveFuture
-	 * */
-	public void setDropLiveFuture (boolean dropLiveFuture) {
-		encoder.setDropLiveFuture(dropLiveFuture);
-	}    
-	
 	/**
 	 * @return the targetChunkSize
 	 */
@@ -150,12 +161,27 @@ public class RTMPMinaProtocolEncoder extends ProtocolEncoderAdapter {
 					length = remaining;
 				}
 				// send it
-				out.write(message.getSlice(length));
+				out.write(PooledBufferAllocator.retain(message.getSlice(length)));
 				sentChunks++;
 			} while (message.hasRemaining());
 			return sentChunks;
 		}
 		
+		/**
+		 * Write a shared chunked body in slices of whole chunks. The body holds no message header,
+		 * every chunk but the last is followed by its continuation header.
+		 */
+		public static int sliceAndWrite(ProtocolEncoderOutput out, IoBuffer chunks, int unitSize, int desiredSize) {
+			int sentChunks = 0;
+			int sliceSize = Math.max(1, desiredSize / unitSize) * unitSize;
+			while (chunks.hasRemaining()) {
+				// read-only views of the shared body, nothing to release
+				out.write(chunks.getSlice(Math.min(sliceSize, chunks.remaining())));
+				sentChunks++;
+			}
+			return sentChunks;
+		}
+
 		private static int getDataSize(byte basicHeader) {
 			final int streamId = basicHeader & 0x0000003F;
 			final int headerType = (basicHeader >> 6) & 0x00000003;
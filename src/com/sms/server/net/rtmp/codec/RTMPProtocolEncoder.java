@@ -9,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sms.io.amf.Output;
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.io.object.Serializer;
 import com.sms.io.utils.BufferUtils;
 import com.sms.server.api.IConnection;
@@ -16,7 +17,6 @@ import com.sms.server.api.SMS;
 import com.sms.server.api.IConnection.Encoding;
 import com.sms.server.api.service.IPendingServiceCall;
 import com.sms.server.api.service.IServiceCall;
-import com.sms.server.api.stream.IClientStream;
 import com.sms.server.exception.ClientDetailsException;
 import com.sms.server.net.rtmp.RTMPConnection;
 import com.sms.server.net.rtmp.RTMPUtils;
@@ -37,7 +37,6 @@ import com.sms.server.net.rtmp.event.ServerBW;
 import com.sms.server.net.rtmp.event.SetBuffer;
 import com.sms.server.net.rtmp.event.Unknown;
 import com.sms.server.net.rtmp.event.VideoData;
-import com.sms.server.net.rtmp.event.VideoData.FrameType;
 import com.sms.server.net.rtmp.message.Constants;
 import com.sms.server.net.rtmp.message.Header;
 import com.sms.server.net.rtmp.message.Packet;
@@ -49,6 +48,7 @@ import com.sms.server.net.rtmp.status.StatusObject;
 import com.sms.server.service.Call;
 import com.sms.server.so.ISharedObjectEvent;
 import com.sms.server.so.ISharedObjectMessage;
+import com.sms.server.so.SharedObjectMessage;
 
 /**
  * RTMP protocol encoder encodes RTMP messages and packets to byte buffers.
@@ -57,30 +57,6 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 
 	protected static Logger log = LoggerFactory.getLogger(RTMPProtocolEncoder.class);
 
-	/**
-	 * Tolerance (in milliseconds) for late media on streams. A set of levels based on this
-	 * value will be determined. 
-	 */
-	private long baseTolerance = 15000;
-
-	/**
-	 * Middle tardiness level, between base and this value disposable frames
-	 * will be dropped. Between this and highest value regular interframes
-	 * will be dropped.
-	 */
-	private long midTolerance = baseTolerance + (long) (baseTolerance * 0.3);
-
-	/**
-	 * Highest tardiness level before dropping key frames
-	 */
-	private long highestTolerance = baseTolerance + (long) (baseTolerance * 0.6);
-
-	/**
-	 * Indicates if we should drop live packets with future timestamp 
-	 * (i.e, when publisher bandwidth is limited) - EXPERIMENTAL
-	 * */
-	private boolean dropLiveFuture = false;
-
 	/**
 	 * Encodes object with given protocol state to byte buffer
 	 * 
@@ -144,7 +120,7 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 				int chunkHeaderSize = 7;
 				int numChunks = (int) Math.ceil(dataLen / (float) chunkSize);
 				int bufSize = dataLen + headerSize + (numChunks > 0 ? (numChunks - 1) * chunkHeaderSize : 0);
-				out = IoBuffer.allocate(bufSize, false);
+				out = PooledBufferAllocator.acquire(bufSize);
 
 				encodeHeader(rtmp, header, lastHeader, out);
 				if (numChunks == 1) {
@@ -168,20 +144,64 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 				data = null;
 			}
 		}
+		// a shared payload is not used on this path, drop its reference
+		ChunkedPayloadCache.release(message);
 		message.release();
 		return out;
 	}
 
 	/**
-	 * Determine if this message should be dropped for lateness. Live publish data
-	 * does not come through this section, only outgoing data does.
-	 * 
-	 * - determine latency between server and client using ping
-	 * - ping timestamp is unsigned int (4 bytes) and is set from value on sender
-	 * 
-	 * 1st drop disposable frames - lowest mark
-	 * 2nd drop interframes - middle
-	 * 3rd drop key frames - high mark
+	 * Encode live audio or video packet whose payload is shared with other subscribers.
+	 * Only the message header is encoded for this connection, the chunked body is taken
+	 * from the shared payload cache and is not copied.
+	 *
+	 * @param rtmp        RTMP protocol state
+	 * @param packet      RTMP packet
+	 * @return            Message header followed by the chunked body, empty if the packet was dropped
+	 *                    or null if the packet has no shared payload
+	 */
+	public IoBuffer[] encodeSharedPacket(RTMP rtmp, Packet packet) {
+		final IRTMPEvent message = packet.getMessage();
+		final ChunkedPayloadCache chunkedPayload;
+		if (message instanceof VideoData) {
+			chunkedPayload = ((VideoData) message).getChunkedPayload();
+		} else if (message instanceof AudioData) {
+			chunkedPayload = ((AudioData) message).getChunkedPayload();
+		} else {
+			chunkedPayload = null;
+		}
+		if (chunkedPayload == null) {
+			return null;
+		}
+		IoBuffer[] result = new IoBuffer[0];
+		final Header header = packet.getHeader();
+		final int channelId = header.getChannelId();
+		try {
+			if (!dropMessage(rtmp, channelId, message)) {
+				header.setSize(chunkedPayload.getPayloadSize());
+				Header lastHeader = rtmp.getLastWriteHeader(channelId);
+				rtmp.setLastWriteHeader(channelId, header);
+				rtmp.setLastWritePacket(channelId, packet);
+				// maximum header size with extended timestamp
+				IoBuffer out = PooledBufferAllocator.acquire(18);
+				encodeHeader(rtmp, header, lastHeader, out);
+				out.flip();
+				// the chunks are cached per chunk size, this connection gets its own write chunk size
+				IoBuffer chunks = chunkedPayload.getChunks(rtmp.getWriteChunkSize(), channelId, header.getExtendedTimestamp());
+				result = new IoBuffer[] { out, chunks };
+			}
+		} finally {
+			ChunkedPayloadCache.release(message);
+			message.release();
+		}
+		return result;
+	}
+
+	/**
+	 * Determine if this message should be dropped because the client cannot keep up.
+	 * Live publish data does not come through this section, only outgoing data does.
+	 * The decision is taken by the congestion controller of the connection, based on
+	 * the data queued for writing and the ping round trip time.
 	 * 
 	 * @param rtmp the protocol state
 	 * @param channelId the channel ID
@@ -189,123 +209,39 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 	 * @return true to drop; false to send
 	 */
 	protected boolean dropMessage(RTMP rtmp, int channelId, IRTMPEvent message) {
-		//whether or not the packet will be dropped
-		boolean drop = false;
-		//FixedBy: plr
-		//skip dropMessage in encoder,
-		if(drop == false) return drop;
 		// we only drop in server mode
-		if (rtmp.getMode() == RTMP.MODE_SERVER) {
-			//whether or not the packet is video data
-			boolean isVideo = false;
-			if (message instanceof Ping) {
-				final Ping pingMessage = (Ping) message;
-				if (pingMessage.getEventType() == Ping.STREAM_PLAYBUFFER_CLEAR) {
-					// client buffer cleared, make sure to reset timestamps for this stream
-					final int channel = (4 + ((pingMessage.getValue2() - 1) * 5));
-					rtmp.setLastTimestampMapping(channel, null);
-					rtmp.setLastTimestampMapping(channel + 1, null);
-					rtmp.setLastTimestampMapping(channel + 2, null);
-				}
-				// never drop pings
-				return false;
-			}
-			//we only drop audio or video data
-			if ((isVideo = message instanceof VideoData) || message instanceof AudioData) {
-				if (message.getTimestamp() == 0) {
-					// never drop initial packages, also this could be the first packet after
-					// MP4 seeking and therefore mess with the timestamp mapping
-					return false;
-				}
-				//determine working type
-				boolean isLive = message.getSourceType() == Constants.SOURCE_TYPE_LIVE;
-				log.trace("Connection type: {}", (isLive ? "Live" : "VOD"));
-				long timestamp = (message.getTimestamp() & 0xFFFFFFFFL);
-				LiveTimestampMapping mapping = rtmp.getLastTimestampMapping(channelId);
-				// just get the current time ONCE per packet
-				long now = System.currentTimeMillis();
-				if (mapping == null || timestamp < mapping.getLastStreamTime()) {
-					log.debug("Resetting clock time ({}) to stream time ({})", now, timestamp);
-					// either first time through, or time stamps were reset
-					mapping = new LiveTimestampMapping(now, timestamp);
-					rtmp.setLastTimestampMapping(channelId, mapping);
-				}
-				mapping.setLastStreamTime(timestamp);
-				long clockTimeOfMessage = mapping.getClockStartTime() + timestamp - mapping.getStreamStartTime();
-				//determine tardiness / how late it is
-				long tardiness = clockTimeOfMessage - now;
-				//TDJ: EXPERIMENTAL dropping for LIVE packets in future (default false)
-				if (isLive && dropLiveFuture) {
-					tardiness = Math.abs(tardiness);
-				}
-				//subtract the ping time / latency from the tardiness value
-				IConnection conn = SMS.getConnectionLocal();
-				log.debug("Connection: {}", conn);
-				if (conn != null) {
-					log.debug("Last ping time for connection: {}", conn.getLastPingTime());
-					tardiness -= conn.getLastPingTime();
-					//subtract the buffer time
-					RTMPConnection rtmpConn = (RTMPConnection) conn;
-					int streamId = rtmpConn.getStreamIdForChannel(channelId);
-					IClientStream stream = rtmpConn.getStreamById(streamId);
-					if (stream != null) {
-						int clientBufferDuration = stream.getClientBufferDuration();
-						if (clientBufferDuration > 0) {
-							//two times the buffer duration seems to work best with vod
-							if (!isLive) {
-								tardiness -= clientBufferDuration * 2;
-							} else {
-								tardiness -= clientBufferDuration;
-							}
-						}
-						log.debug("Client buffer duration: {}", clientBufferDuration);
-					}
-				} else {
-					log.debug("Connection is null");
-				}
-
-				//TODO: how should we differ handling based on live or vod?
-
-				//TODO: if we are VOD do we "pause" the provider when we are consistently late?
-
-				log.debug("Packet timestamp: {}; tardiness: {}; now: {}; message clock time: {}, dropLiveFuture: {}", new Object[] { timestamp, tardiness, now, clockTimeOfMessage,
-						dropLiveFuture });
-				//anything coming in less than the base will be allowed to pass, it will not be
-				//dropped or manipulated
-				if (tardiness < baseTolerance) {
-					//frame is below lowest bounds, let it go
-				} else if (tardiness > highestTolerance) {
-					//frame is really late, drop it no matter what type
-					log.debug("Dropping late message: {}", message);
-					//if we're working with video, indicate that we will need a key frame to proceed
-					if (isVideo) {
-						mapping.setKeyFrameNeeded(true);
-					}
-					//drop it
-					drop = true;
-				} else {
-					if (isVideo) {
-						VideoData video = (VideoData) message;
-						if (video.getFrameType() == FrameType.KEYFRAME) {
-							//if its a key frame the inter and disposible checks can be skipped
-							log.debug("Resuming stream with key frame; message: {}", message);
-							mapping.setKeyFrameNeeded(false);
-						} else if (tardiness >= baseTolerance && tardiness < midTolerance) {
-							//drop disposable frames
-							if (video.getFrameType() == FrameType.DISPOSABLE_INTERFRAME) {
-								log.debug("Dropping disposible frame; message: {}", message);
-								drop = true;
-							}
-						} else if (tardiness >= midTolerance && tardiness <= highestTolerance) {
-							//drop inter-frames and disposable frames
-							log.debug("Dropping disposible or inter frame; message: {}", message);
-							drop = true;
-						}
-					}
-				}
+		if (rtmp.getMode() != RTMP.MODE_SERVER) {
+			return false;
+		}
+		if (message instanceof Ping) {
+			final Ping pingMessage = (Ping) message;
+			if (pingMessage.getEventType() == Ping.STREAM_PLAYBUFFER_CLEAR) {
+				// client buffer cleared, make sure to reset timestamps for this stream
+				final int channel = (4 + ((pingMessage.getValue2() - 1) * 5));
+				rtmp.setLastTimestampMapping(channel, null);
+				rtmp.setLastTimestampMapping(channel + 1, null);
+				rtmp.setLastTimestampMapping(channel + 2, null);
 			}
-			log.debug("Drop data: {}", drop);
+			// never drop pings
+			return false;
+		}
+		// we only drop audio or video data
+		if (!(message instanceof VideoData) && !(message instanceof AudioData)) {
+			return false;
+		}
+		if (message.getTimestamp() == 0) {
+			// never drop initial packages, also this could be the first packet after
+			// MP4 seeking and therefore mess with the timestamp mapping
+			return false;
 		}
+		IConnection conn = SMS.getConnectionLocal();
+		if (!(conn instanceof RTMPConnection)) {
+			log.debug("Connection is null");
+			return false;
+		}
+		RTMPConnection rtmpConn = (RTMPConnection) conn;
+		boolean drop = rtmpConn.getCongestionController().dropMessage(rtmpConn.getStreamIdForChannel(channelId), message);
+		log.trace("Drop data: {}", drop);
 		return drop;
 	}
 
@@ -585,28 +521,74 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 
 	/** {@inheritDoc} */
 	public IoBuffer encodeFlexSharedObject(ISharedObjectMessage so, RTMP rtmp) {
+		IoBuffer body = getEncodedBody(so);
+		if (body != null) {
+			return body;
+		}
+		return encodeFlexSharedObject(so, rtmp.getEncoding());
+	}
+
+	/**
+	 * Encode a flex shared object message with the given object encoding.
+	 *
+	 * @param so shared object message
+	 * @param encoding object encoding of the connection
+	 * @return encoded message
+	 */
+	public IoBuffer encodeFlexSharedObject(ISharedObjectMessage so, Encoding encoding) {
 		final IoBuffer out = IoBuffer.allocate(128);
 		out.setAutoExpand(true);
 		// use the originators so.objectEncoding setting
-		if (rtmp.getEncoding() == Encoding.AMF3) {
+		if (encoding == Encoding.AMF3) {
 			log.debug("Setting encoding as AMF3");
 			out.put((byte) 0x03);
 		} else {
 			log.debug("Setting encoding as AMF0");
 			out.put((byte) 0x00);
 		}
-		doEncodeSharedObject(so, rtmp, out);
+		doEncodeSharedObject(so, encoding, out);
 		return out;
 	}
 
 	/** {@inheritDoc} */
 	public IoBuffer encodeSharedObject(ISharedObjectMessage so, RTMP rtmp) {
+		IoBuffer body = getEncodedBody(so);
+		if (body != null) {
+			return body;
+		}
+		return encodeSharedObject(so, rtmp.getEncoding());
+	}
+
+	/**
+	 * Encode a shared object message with the given object encoding.
+	 *
+	 * @param so shared object message
+	 * @param encoding object encoding of the connection
+	 * @return encoded message
+	 */
+	public IoBuffer encodeSharedObject(ISharedObjectMessage so, Encoding encoding) {
 		final IoBuffer out = IoBuffer.allocate(128);
 		out.setAutoExpand(true);
-		doEncodeSharedObject(so, rtmp, out);
+		doEncodeSharedObject(so, encoding, out);
 		return out;
 	}
 
+	/**
+	 * Return a view of the body the message has been encoded to once for all the connections.
+	 *
+	 * @param so shared object message
+	 * @return body view, null if the message has to be encoded
+	 */
+	private IoBuffer getEncodedBody(ISharedObjectMessage so) {
+		if (so instanceof SharedObjectMessage) {
+			IoBuffer body = ((SharedObjectMessage) so).getBody();
+			if (body != null) {
+				return body.duplicate();
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Perform the actual encoding of the shared object contents.
 	 *
@@ -615,6 +597,17 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 	 * @param out output buffer
 	*/
 	public void doEncodeSharedObject(ISharedObjectMessage so, RTMP rtmp, IoBuffer out) {
+		doEncodeSharedObject(so, rtmp.getEncoding(), out);
+	}
+
+	/**
+	 * Perform the actual encoding of the shared object contents.
+	 *
+	 * @param so shared object
+	 * @param encoding object encoding of the connection
+	 * @param out output buffer
+	 */
+	public void doEncodeSharedObject(ISharedObjectMessage so, Encoding encoding, IoBuffer out) {
 		final Output output = new com.sms.io.amf.Output(out);
 		final Output amf3output = new com.sms.io.amf3.Output(out);
 		output.putString(so.getName());
@@ -657,7 +650,7 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 							out.skip(4); // we will be back
 							String key = (String) o;
 							output.putString(key);
-							if (rtmp.getEncoding() == Encoding.AMF3) {
+							if (encoding == Encoding.AMF3) {
 								Serializer.serialize(amf3output, initialData.get(key));
 							} else {
 								Serializer.serialize(output, initialData.get(key));
@@ -670,7 +663,7 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 						mark = out.position();
 						out.skip(4); // we will be back
 						output.putString(event.getKey());
-						if (rtmp.getEncoding() == Encoding.AMF3) {
+						if (encoding == Encoding.AMF3) {
 							Serializer.serialize(amf3output, event.getValue());
 						} else {
 							Serializer.serialize(output, event.getValue());
@@ -688,7 +681,7 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 					out.skip(4);
 					// Serialize name of the handler to call...
 					Serializer.serialize(output, event.getKey());
-					if (rtmp.getEncoding() == Encoding.AMF3) {
+					if (encoding == Encoding.AMF3) {
 						// ...and the arguments
 						for (Object arg : (List<?>) event.getValue()) {
 							Serializer.serialize(amf3output, arg);
@@ -721,7 +714,7 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 					mark = out.position();
 					out.skip(4); // we will be back
 					output.putString(event.getKey());
-					if (rtmp.getEncoding() == Encoding.AMF3) {
+					if (encoding == Encoding.AMF3) {
 						Serializer.serialize(amf3output, event.getValue());
 					} else {
 						Serializer.serialize(output, event.getValue());
@@ -964,26 +957,4 @@ public class RTMPProtocolEncoder implements Constants, IEventEncoder {
 		return result;
 	}
 
-	private void updateTolerance() {
-		midTolerance = baseTolerance + (long) (baseTolerance * 0.3);
-		highestTolerance = baseTolerance + (long) (baseTolerance * 0.6);
-	}
-
-	public void setBaseTolerance(long baseTolerance) {
-		this.baseTolerance = baseTolerance;
-		//update high and low tolerance
-		updateTolerance();
-	}
-
-	/**
-	 *   Setter for dropLiveFuture
-	 * */
-	public void setDropLiveFuture(boolean dropLiveFuture) {
-		this.dropLiveFuture = dropLiveFuture;
-	}
-
-	public long getBaseTolerance() {
-		return baseTolerance;
-	}
-
 }
@@ -11,6 +11,7 @@ import java.io.ObjectOutputStream;
 import org.apache.mina.core.buffer.IoBuffer;
 
 import com.sms.server.api.stream.IStreamPacket;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.stream.IStreamData;
 
 public class AudioData extends BaseEvent implements IStreamData<AudioData>, IStreamPacket {
@@ -19,6 +20,11 @@ public class AudioData extends BaseEvent implements IStreamData<AudioData>, IStr
 
 	protected IoBuffer data;
 
+	/**
+	 * Pre-chunked payload shared with the other subscribers of a live stream
+	 */
+	protected transient ChunkedPayloadCache chunkedPayload;
+
 	/**
 	 * Data type
 	 */
@@ -71,6 +77,24 @@ public class AudioData extends BaseEvent implements IStreamData<AudioData>, IStr
 		this.data = data;
 	}
 
+	/**
+	 * Getter for the shared pre-chunked payload
+	 *
+	 * @return shared payload or null when this packet is encoded on its own
+	 */
+	public ChunkedPayloadCache getChunkedPayload() {
+		return chunkedPayload;
+	}
+
+	/**
+	 * Setter for the shared pre-chunked payload
+	 *
+	 * @param chunkedPayload shared payload
+	 */
+	public void setChunkedPayload(ChunkedPayloadCache chunkedPayload) {
+		this.chunkedPayload = chunkedPayload;
+	}
+
 	public void setData(byte[] data) {
 		this.data = IoBuffer.allocate(data.length);
 		this.data.put(data).flip();
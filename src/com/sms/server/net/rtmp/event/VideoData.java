@@ -12,6 +12,7 @@ import org.apache.mina.core.buffer.IoBuffer;
 
 import com.sms.io.IoConstants;
 import com.sms.server.api.stream.IStreamPacket;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.stream.IStreamData;
 
 /**
@@ -32,6 +33,11 @@ public class VideoData extends BaseEvent implements IoConstants, IStreamData<Vid
      */
     protected IoBuffer data;
 
+    /**
+     * Pre-chunked payload shared with the other subscribers of a live stream
+     */
+    protected transient ChunkedPayloadCache chunkedPayload;
+
     /**
      * Data type
      */
@@ -108,6 +114,24 @@ public class VideoData extends BaseEvent implements IoConstants, IStreamData<Vid
 		}		
 	}
 
+    /**
+     * Getter for the shared pre-chunked payload
+     *
+     * @return shared payload or null when this packet is encoded on its own
+     */
+    public ChunkedPayloadCache getChunkedPayload() {
+		return chunkedPayload;
+	}
+
+    /**
+     * Setter for the shared pre-chunked payload
+     *
+     * @param chunkedPayload shared payload
+     */
+    public void setChunkedPayload(ChunkedPayloadCache chunkedPayload) {
+		this.chunkedPayload = chunkedPayload;
+	}
+
     public void setData(byte[] data) {
     	this.data = IoBuffer.allocate(data.length);
 		this.data.put(data).flip();
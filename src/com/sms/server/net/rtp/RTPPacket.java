@@ -52,16 +52,21 @@ public class RTPPacket extends BaseRTPPacket {
     private byte[] buff;
 
 	/**
-	 * Construct a new RtpPacket reading the fields from a ByteBuffer
+	 * Construct a new RtpPacket reading the fields from a ByteBuffer, the payload is
+	 * found at {@link #getOffset()} in {@link #getPayload()}
 	 * 
 	 * @param buffer
 	 *            the buffer containing the packet
 	 */
 
 	public RTPPacket(IoBuffer buffer) {
-		int len = buffer.limit();
+		int len = buffer.remaining();
         buff = new byte[len];
         buffer.get(buff, 0, len);
+        if (len < 12) {
+        	payload = buff;
+        	return;
+        }
 
         int b = buff[0] & 0xff;
 
@@ -93,8 +98,18 @@ public class RTPPacket extends BaseRTPPacket {
         ssrc <<= 8;
         ssrc |= (buff[11] & 0xff);
 
-        payload = new byte[len - 12];
-        System.arraycopy(buff, 12, payload, 0, payload.length);
+        // the payload is not copied, it is read at offset in the packet
+        int end = len;
+        offset = 12 + cc * 4;
+        if (extensions && offset + 4 <= end) {
+        	offset += 4 + (((buff[offset + 2] & 0xff) << 8) | (buff[offset + 3] & 0xff)) * 4;
+        }
+        if (padding && end > offset) {
+        	end -= buff[end - 1] & 0xff;
+        }
+        payload = buff;
+        length = Math.max(end - offset, 0);
+        isValid = version == 2 && offset <= end;
 	}
 
 	public RTPPacket(byte payloadType, int seqNumber, int timestamp, long ssrc, byte[] payload) {
@@ -173,7 +188,7 @@ public class RTPPacket extends BaseRTPPacket {
 		sb.append("RTP Packet[marker=").append(marker);
 		sb.append(", seq=").append(seqNumber);
 		sb.append(", timestamp=").append(timestamp);
-		sb.append(", payload_size=").append(payload.length);
+		sb.append(", payload_size=").append(length);
 		sb.append(", payload=").append(payloadType).append("]");
         return sb.toString();
     }
@@ -260,6 +275,15 @@ public class RTPPacket extends BaseRTPPacket {
 		this.ssrc = ssrc;
 	}
 
+	/**
+	 * Return the offset of the payload in {@link #getPayload()}.
+	 * 
+	 * @return payload offset
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
 	public int getLength() {
 		return length;
 	}
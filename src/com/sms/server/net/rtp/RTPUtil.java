@@ -143,35 +143,48 @@ public class RTPUtil {
 			sps = spsppss[0];
 			ppss = ArrayUtils.remove(spsppss, 0);
 			byte[] spsBuff = Base64.decodeBase64(sps.getBytes());
-			int confLen = 2 + 3 + 5 + 1 + 2 + spsBuff.length + 3 + 10;
-			IoBuffer config = IoBuffer.allocate(confLen).setAutoExpand(true);
-			config.put((byte) 0x17);
-			config.put((byte) 0x00);
-			config.put((byte) 0x00);
-			config.put((byte) 0x00);
-			config.put((byte) 0x00);
-			config.put((byte) 0x01);
-			config.put((byte) spsBuff[1]);
-			config.put((byte) spsBuff[2]);
-			config.put((byte) spsBuff[3]);
-			config.put((byte) 0xFF);
-			config.put((byte) 0xE1);
-			config.putShort((short) spsBuff.length);
-			config.put(spsBuff);
-			// pps size
-			config.put((byte) ppss.length);
-			byte[] ppsBuff;
-			for(String pps : ppss) {				
-				ppsBuff = Base64.decodeBase64(pps.getBytes());
-				config.putShort((short) ppsBuff.length);
-				config.put(ppsBuff);
+			byte[][] ppsBuffs = new byte[ppss.length][];
+			for(int i = 0; i < ppss.length; i++) {				
+				ppsBuffs[i] = Base64.decodeBase64(ppss[i].getBytes());
 			}
-			config.flip();
-			return config;
+			return encodeAVCConfig(spsBuff, ppsBuffs);
 		}
 		return null;
 	}
 	
+	/**
+	 * h264 sps and pps to rtmp config
+	 * @param spsBuff sps nalu
+	 * @param ppsBuffs pps nalus
+	 * @return
+	 */
+	public static IoBuffer encodeAVCConfig(byte[] spsBuff, byte[][] ppsBuffs) {
+		
+		int confLen = 2 + 3 + 5 + 1 + 2 + spsBuff.length + 3 + 10;
+		IoBuffer config = IoBuffer.allocate(confLen).setAutoExpand(true);
+		config.put((byte) 0x17);
+		config.put((byte) 0x00);
+		config.put((byte) 0x00);
+		config.put((byte) 0x00);
+		config.put((byte) 0x00);
+		config.put((byte) 0x01);
+		config.put((byte) spsBuff[1]);
+		config.put((byte) spsBuff[2]);
+		config.put((byte) spsBuff[3]);
+		config.put((byte) 0xFF);
+		config.put((byte) 0xE1);
+		config.putShort((short) spsBuff.length);
+		config.put(spsBuff);
+		// pps size
+		config.put((byte) ppsBuffs.length);
+		for(byte[] ppsBuff : ppsBuffs) {				
+			config.putShort((short) ppsBuff.length);
+			config.put(ppsBuff);
+		}
+		config.flip();
+		return config;
+	}
+	
 	/**
 	 * decode aac sdp to rtmp config
 	 * @param configure
@@ -240,12 +253,12 @@ public class RTPUtil {
 		return timescale; 
 	}
 	
-	//97 MPA/48000/2
+	//97 MPA/48000/2, the channel count is optional
 	public static int decodeRtpmapAudioTimescale(String rtpmap) {
 		
 		int timescale = -1;
 		String[] segments = rtpmap.split("/");
-		if(segments.length == 3) {
+		if(segments.length >= 2) {
 			timescale = Integer.parseInt(segments[1]);
 		}
 		return timescale; 
@@ -12,7 +12,21 @@ import com.sms.server.net.rtp.RTPPacket;
  */
 public interface IRTPDePacketizer {
 
-	public IoBuffer handleRTPPacket(RTPPacket packet);
+	/**
+	 * Handle a rtp packet of the track, the frames it completes are passed to the listener.
+	 * 
+	 * @param packet rtp packet
+	 */
+	public void handleRTPPacket(RTPPacket packet);
 	
-	public void handleRTCPPacket();
+	/**
+	 * Handle a rtcp packet of the track, sender reports map its timestamps to the wall clock.
+	 * 
+	 * @param data rtcp compound packet
+	 */
+	public void handleRTCPPacket(IoBuffer data);
+	
+	public long getPacketCount();
+	
+	public long getLostCount();
 }
@@ -0,0 +1,19 @@
+package com.sms.server.net.rtp.depacketizer;
+
+import com.sms.server.net.rtmp.event.IRTMPEvent;
+
+/**
+ * RTP DePacketizer Listener Interface
+ * @author pengliren
+ *
+ */
+public interface IRTPDePacketizerListener {
+
+	/**
+	 * Called for every frame rebuilt from the rtp packets, an audio or video data event
+	 * timestamped on the timeline of the session.
+	 * 
+	 * @param frame frame
+	 */
+	public void frameReceived(IRTMPEvent frame);
+}
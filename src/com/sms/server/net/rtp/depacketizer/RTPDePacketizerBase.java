@@ -0,0 +1,142 @@
+package com.sms.server.net.rtp.depacketizer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.sms.server.net.rtp.RTPPacket;
+
+/**
+ * RTP DePacketizer Base
+ * <p>
+ * Reorders the packets of a track and maps their timestamps to the session timeline in ms.
+ * The 32 bit rtp timestamps are extended so they do not wrap. Until the first sender report the
+ * track starts at the arrival of its first packet, then it follows the wall clock of the sender.
+ * @author pengliren
+ *
+ */
+public abstract class RTPDePacketizerBase implements IRTPDePacketizer {
+
+	/**
+	 * Packets held waiting for a missing one
+	 */
+	private static final int JITTER_DEPTH = 16;
+
+	private static final int RTCP_SR = 200;
+
+	protected final IRTPDePacketizerListener listener;
+
+	protected final int clockRate;
+
+	private final RTPSessionClock clock;
+
+	private final RTPJitterBuffer jitterBuffer = new RTPJitterBuffer(64, JITTER_DEPTH);
+
+	private int lastSeq = -1;
+
+	// extended rtp timestamp of the first packet, -1 until then
+	private long firstTimestamp = -1;
+
+	private long lastTimestamp;
+
+	// time of the first packet on the session timeline
+	private long offset;
+
+	private long packetCount;
+
+	private long lostCount;
+
+	public RTPDePacketizerBase(IRTPDePacketizerListener listener, RTPSessionClock clock, int clockRate) {
+		this.listener = listener;
+		this.clock = clock;
+		this.clockRate = clockRate;
+	}
+
+	@Override
+	public void handleRTPPacket(RTPPacket packet) {
+		if (!packet.isValid() || !jitterBuffer.put(packet)) {
+			return;
+		}
+		RTPPacket next;
+		while ((next = jitterBuffer.poll()) != null) {
+			int seq = next.getSeqNumber();
+			int missing = (lastSeq < 0 ? 0 : (seq - lastSeq - 1) & 0xffff);
+			lastSeq = seq;
+			lostCount += missing;
+			packetCount++;
+			handlePacket(next, missing > 0);
+		}
+	}
+
+	/**
+	 * Handle the next packet in sequence number order.
+	 *
+	 * @param packet rtp packet
+	 * @param lost true if packets are missing before this one
+	 */
+	protected abstract void handlePacket(RTPPacket packet, boolean lost);
+
+	@Override
+	public void handleRTCPPacket(IoBuffer data) {
+		// compound packet, sender report carries ntp and rtp time of the same instant
+		while (data.remaining() >= 4) {
+			int start = data.position();
+			int pt = data.get(start + 1) & 0xff;
+			int len = ((data.getUnsignedShort(start + 2)) + 1) * 4;
+			if (len > data.remaining()) {
+				break;
+			}
+			if (pt == RTCP_SR && len >= 28) {
+				long ntpSeconds = data.getUnsignedInt(start + 8);
+				long ntpFraction = data.getUnsignedInt(start + 12);
+				long rtpTimestamp = data.getUnsignedInt(start + 16);
+				senderReport(ntpSeconds * 1000 + ((ntpFraction * 1000) >>> 32), rtpTimestamp);
+			}
+			data.position(start + len);
+		}
+	}
+
+	private void senderReport(long ntpTime, long rtpTimestamp) {
+		if (firstTimestamp < 0) {
+			return;
+		}
+		long timestamp = lastTimestamp + (int) (rtpTimestamp - (lastTimestamp & 0xffffffffL));
+		long ntpStart = ntpTime - (timestamp - firstTimestamp) * 1000 / clockRate;
+		offset = clock.sync(ntpStart, offset);
+	}
+
+	/**
+	 * Extend a rtp timestamp so it does not wrap, packets must be given in order.
+	 *
+	 * @param rtpTimestamp 32 bit rtp timestamp
+	 * @return extended timestamp
+	 */
+	protected long extend(long rtpTimestamp) {
+		if (firstTimestamp < 0) {
+			firstTimestamp = rtpTimestamp;
+			lastTimestamp = rtpTimestamp;
+			offset = clock.getElapsed();
+			return rtpTimestamp;
+		}
+		lastTimestamp += (int) (rtpTimestamp - (lastTimestamp & 0xffffffffL));
+		return lastTimestamp;
+	}
+
+	/**
+	 * Return the time of an extended timestamp on the session timeline.
+	 *
+	 * @param timestamp extended rtp timestamp
+	 * @return time in ms
+	 */
+	protected int toTime(long timestamp) {
+		return (int) (offset + (timestamp - firstTimestamp) * 1000 / clockRate);
+	}
+
+	@Override
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	@Override
+	public long getLostCount() {
+		return lostCount;
+	}
+}
@@ -0,0 +1,149 @@
+package com.sms.server.net.rtp.depacketizer;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.sms.server.net.rtmp.event.AudioData;
+import com.sms.server.net.rtp.RTPPacket;
+
+/**
+ * RTP DePacketizer MPEG4 AAC
+ * <p>
+ * RFC3640 mpeg4-generic packets, any number of access units per packet behind their AU headers,
+ * or one access unit fragmented over packets up to the marker bit. Every access unit becomes an
+ * audio data with its own timestamp, 1024 samples after the previous one.
+ * @author pengliren
+ *
+ */
+public class RTPDePacketizerMPEG4AAC extends RTPDePacketizerBase {
+
+	private static final int SAMPLES_PER_FRAME = 1024;
+
+	private static final int[] SAMPLE_RATES = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+	// AAC-hbr unless the fmtp says otherwise
+	private int sizeLength = 13;
+
+	private int indexLength = 3;
+
+	private int indexDeltaLength = 3;
+
+	// access unit fragmented over packets
+	private byte[] fragment = new byte[0];
+
+	private int fragmentLength;
+
+	private int fragmentSize = -1;
+
+	private long lastTimestamp = -1;
+
+	/**
+	 * @param listener frame listener
+	 * @param clock session clock
+	 * @param clockRate rtp clock rate, the sample rate of the config is used if unknown
+	 * @param config rtmp decoder configuration from the sdp, may be null
+	 * @param fmtp sdp fmtp attribute, may be null
+	 */
+	public RTPDePacketizerMPEG4AAC(IRTPDePacketizerListener listener, RTPSessionClock clock, int clockRate, IoBuffer config, String fmtp) {
+		super(listener, clock, clockRate > 0 ? clockRate : getSampleRate(config));
+		if (fmtp != null) {
+			sizeLength = getParameter(fmtp, "sizelength", sizeLength);
+			indexLength = getParameter(fmtp, "indexlength", indexLength);
+			indexDeltaLength = getParameter(fmtp, "indexdeltalength", indexDeltaLength);
+		}
+	}
+
+	private static int getParameter(String fmtp, String name, int defaultValue) {
+		Matcher m = Pattern.compile("(?i)" + name + "=(\\d+)").matcher(fmtp);
+		return m.find() ? Integer.parseInt(m.group(1)) : defaultValue;
+	}
+
+	private static int getSampleRate(IoBuffer config) {
+		if (config != null && config.remaining() >= 4) {
+			// AudioSpecificConfig after the 2 bytes of the rtmp header
+			int index = ((config.get(config.position() + 2) & 0x07) << 1) | ((config.get(config.position() + 3) & 0x80) >> 7);
+			if (index < SAMPLE_RATES.length) {
+				return SAMPLE_RATES[index];
+			}
+		}
+		return 44100;
+	}
+
+	@Override
+	protected void handlePacket(RTPPacket packet, boolean lost) {
+		long timestamp = extend(packet.getTimestamp());
+		// a fragmented access unit starts with the first packet of its timestamp
+		boolean first = !lost && timestamp != lastTimestamp;
+		lastTimestamp = timestamp;
+		byte[] data = packet.getPayload();
+		int offset = packet.getOffset();
+		int end = offset + packet.getLength();
+		if (end - offset < 2) {
+			return;
+		}
+		int headersLength = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+		int bitPos = (offset + 2) * 8;
+		int bitEnd = bitPos + headersLength;
+		int pos = offset + 2 + (headersLength + 7) / 8;
+		if (pos > end) {
+			return;
+		}
+		for (int i = 0; bitPos + sizeLength <= bitEnd; i++) {
+			int size = readBits(data, bitPos, sizeLength);
+			bitPos += sizeLength + (i == 0 ? indexLength : indexDeltaLength);
+			if (i == 0 && size > end - pos) {
+				// fragment of an access unit, every fragment carries its header
+				appendFragment(data, pos, end - pos, size, first);
+				if (packet.getMarker() && fragmentSize >= 0 && fragmentLength >= fragmentSize) {
+					frame(fragment, 0, fragmentSize, timestamp);
+					fragmentSize = -1;
+				}
+				return;
+			}
+			if (pos + size > end) {
+				break;
+			}
+			frame(data, pos, size, timestamp + i * SAMPLES_PER_FRAME);
+			pos += size;
+		}
+		fragmentSize = -1;
+	}
+
+	private void appendFragment(byte[] data, int pos, int length, int size, boolean first) {
+		if (first) {
+			fragmentSize = size;
+			fragmentLength = 0;
+			if (fragment.length < size) {
+				fragment = new byte[size];
+			}
+		} else if (fragmentSize != size) {
+			// the start is missing
+			fragmentSize = -1;
+			return;
+		}
+		int n = Math.min(length, size - fragmentLength);
+		System.arraycopy(data, pos, fragment, fragmentLength, n);
+		fragmentLength += n;
+	}
+
+	private void frame(byte[] data, int pos, int size, long timestamp) {
+		IoBuffer aacData = IoBuffer.allocate(2 + size);
+		aacData.put((byte) 0xaf);
+		aacData.put((byte) 0x01);
+		aacData.put(data, pos, size);
+		aacData.flip();
+		AudioData aData = new AudioData(aacData);
+		aData.setTimestamp(toTime(timestamp));
+		listener.frameReceived(aData);
+	}
+
+	private static int readBits(byte[] data, int bitPos, int count) {
+		int value = 0;
+		for (int i = 0; i < count; i++, bitPos++) {
+			value = (value << 1) | ((data[bitPos >> 3] >> (7 - (bitPos & 7))) & 1);
+		}
+		return value;
+	}
+}
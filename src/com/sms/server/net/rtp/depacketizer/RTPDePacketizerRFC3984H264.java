@@ -0,0 +1,273 @@
+package com.sms.server.net.rtp.depacketizer;
+
+import java.util.Arrays;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.server.net.rtmp.event.VideoData;
+import com.sms.server.net.rtp.RTPPacket;
+import com.sms.server.net.rtp.RTPUtil;
+
+/**
+ * RTP DePacketizer RFC3984 H264
+ * <p>
+ * Rebuilds access units from single NAL unit, STAP-A and FU-A packets. The NAL units of an
+ * access unit are not copied while it is collected, only their place in the packets is kept,
+ * they are copied once into the video data when the access unit is complete. An access unit
+ * ends with the marker bit or when the timestamp changes. A fragmented NAL unit with a lost
+ * packet is dropped. In band SPS and PPS are sent as a new decoder configuration when they
+ * change.
+ * @author pengliren
+ *
+ */
+public class RTPDePacketizerRFC3984H264 extends RTPDePacketizerBase {
+
+	private static Logger log = LoggerFactory.getLogger(RTPDePacketizerRFC3984H264.class);
+
+	private static final int NALU_TYPE_IDR = 5;
+	private static final int NALU_TYPE_SPS = 7;
+	private static final int NALU_TYPE_PPS = 8;
+	private static final int NALU_TYPE_AUD = 9;
+	private static final int NALU_TYPE_STAPA = 24;
+	private static final int NALU_TYPE_FUA = 28;
+
+	// segments of the access unit, a NAL unit is one or more segments
+	private byte[][] segData = new byte[16][];
+	private int[] segOffset = new int[16];
+	private int[] segLength = new int[16];
+	private boolean[] segStart = new boolean[16];
+	private int segCount;
+
+	private int[] naluSizes = new int[16];
+	private int naluCount;
+	private int naluSize;
+	private boolean naluStart;
+
+	// bytes of the access unit with the length prefixes
+	private int auSize;
+	private long auTimestamp = -1;
+	private boolean auKeyFrame;
+
+	// segment index at the start of the fragmented NAL unit, -1 outside of one
+	private int fuStart = -1;
+
+	private byte[] sps;
+	private byte[] pps;
+	private boolean configChanged;
+
+	/**
+	 * @param listener frame listener
+	 * @param clock session clock
+	 * @param clockRate rtp clock rate
+	 * @param config current decoder configuration from the sdp, may be null
+	 */
+	public RTPDePacketizerRFC3984H264(IRTPDePacketizerListener listener, RTPSessionClock clock, int clockRate, IoBuffer config) {
+		super(listener, clock, clockRate > 0 ? clockRate : 90000);
+		if (config != null) {
+			parseConfig(config);
+		}
+	}
+
+	/**
+	 * Keep the SPS and PPS of a rtmp decoder configuration, so only changes are sent again
+	 */
+	private void parseConfig(IoBuffer config) {
+		try {
+			int pos = config.position() + 5 + 6;
+			int spsLength = config.getUnsignedShort(pos);
+			sps = new byte[spsLength];
+			for (int i = 0; i < spsLength; i++) {
+				sps[i] = config.get(pos + 2 + i);
+			}
+			pos += 2 + spsLength + 1;
+			int ppsLength = config.getUnsignedShort(pos);
+			pps = new byte[ppsLength];
+			for (int i = 0; i < ppsLength; i++) {
+				pps[i] = config.get(pos + 2 + i);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			sps = null;
+			pps = null;
+		}
+	}
+
+	@Override
+	protected void handlePacket(RTPPacket packet, boolean lost) {
+		if (lost && fuStart >= 0) {
+			dropFragment();
+		}
+		long timestamp = extend(packet.getTimestamp());
+		if (timestamp != auTimestamp) {
+			// the previous access unit had no marker
+			endAccessUnit();
+			auTimestamp = timestamp;
+		}
+		byte[] data = packet.getPayload();
+		int offset = packet.getOffset();
+		int length = packet.getLength();
+		if (length < 1) {
+			return;
+		}
+		int naluType = data[offset] & 0x1F;
+		if (naluType >= 1 && naluType <= 23) { // Single NALU Packet
+			addNalu(data, offset, length);
+		} else if (naluType == NALU_TYPE_STAPA) {
+			int pos = offset + 1;
+			int end = offset + length;
+			while (pos + 2 <= end) {
+				int size = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+				pos += 2;
+				if (size == 0 || pos + size > end) {
+					break;
+				}
+				addNalu(data, pos, size);
+				pos += size;
+			}
+		} else if (naluType == NALU_TYPE_FUA) {
+			if (length < 2) {
+				return;
+			}
+			int fuHeader = data[offset + 1] & 0xFF;
+			if ((fuHeader & 0x80) != 0) { // FU start
+				if (fuStart >= 0) {
+					dropFragment();
+				}
+				// the nalu header replaces the fu header, the fu indicator is skipped
+				data[offset + 1] = (byte) ((data[offset] & 0xE0) | (fuHeader & 0x1F));
+				if ((fuHeader & 0x1F) == NALU_TYPE_IDR) {
+					auKeyFrame = true;
+				}
+				fuStart = segCount;
+				startNalu();
+				addSegment(data, offset + 1, length - 1);
+			} else if (fuStart >= 0) {
+				addSegment(data, offset + 2, length - 2);
+			}
+			if ((fuHeader & 0x40) != 0 && fuStart >= 0) { // FU end
+				endNalu();
+				fuStart = -1;
+			}
+		} else {
+			log.debug("rtp h264 unsupported packet type: {}", naluType);
+		}
+		if (packet.getMarker()) {
+			endAccessUnit();
+		}
+	}
+
+	private void addNalu(byte[] data, int offset, int length) {
+		int naluType = data[offset] & 0x1F;
+		switch (naluType) {
+		case NALU_TYPE_SPS:
+			if (sps == null || !equals(sps, data, offset, length)) {
+				sps = Arrays.copyOfRange(data, offset, offset + length);
+				configChanged = true;
+			}
+			return;
+		case NALU_TYPE_PPS:
+			if (pps == null || !equals(pps, data, offset, length)) {
+				pps = Arrays.copyOfRange(data, offset, offset + length);
+				configChanged = true;
+			}
+			return;
+		case NALU_TYPE_AUD:
+			return;
+		case NALU_TYPE_IDR:
+			auKeyFrame = true;
+			break;
+		default:
+			break;
+		}
+		startNalu();
+		addSegment(data, offset, length);
+		endNalu();
+	}
+
+	private static boolean equals(byte[] a, byte[] data, int offset, int length) {
+		if (a.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (a[i] != data[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void startNalu() {
+		naluSize = 0;
+		naluStart = true;
+	}
+
+	private void addSegment(byte[] data, int offset, int length) {
+		if (segCount == segData.length) {
+			int capacity = segCount * 2;
+			segData = Arrays.copyOf(segData, capacity);
+			segOffset = Arrays.copyOf(segOffset, capacity);
+			segLength = Arrays.copyOf(segLength, capacity);
+			segStart = Arrays.copyOf(segStart, capacity);
+		}
+		segData[segCount] = data;
+		segOffset[segCount] = offset;
+		segLength[segCount] = length;
+		segStart[segCount] = naluStart;
+		segCount++;
+		naluStart = false;
+		naluSize += length;
+	}
+
+	private void endNalu() {
+		if (naluCount == naluSizes.length) {
+			naluSizes = Arrays.copyOf(naluSizes, naluCount * 2);
+		}
+		naluSizes[naluCount++] = naluSize;
+		auSize += 4 + naluSize;
+	}
+
+	private void dropFragment() {
+		for (int i = fuStart; i < segCount; i++) {
+			segData[i] = null;
+		}
+		segCount = fuStart;
+		fuStart = -1;
+	}
+
+	private void endAccessUnit() {
+		if (fuStart >= 0) {
+			dropFragment();
+		}
+		if (configChanged && sps != null && pps != null && sps.length > 3) {
+			configChanged = false;
+			VideoData config = new VideoData(RTPUtil.encodeAVCConfig(sps, new byte[][] { pps }));
+			config.setTimestamp(toTime(auTimestamp));
+			listener.frameReceived(config);
+		}
+		if (naluCount > 0) {
+			IoBuffer videoData = IoBuffer.allocate(5 + auSize);
+			videoData.put(auKeyFrame ? (byte) 0x17 : (byte) 0x27);
+			videoData.put((byte) 0x01);
+			videoData.put((byte) 0);
+			videoData.put((byte) 0);
+			videoData.put((byte) 0);
+			int nalu = 0;
+			for (int i = 0; i < segCount; i++) {
+				if (segStart[i]) {
+					videoData.putInt(naluSizes[nalu++]);
+				}
+				videoData.put(segData[i], segOffset[i], segLength[i]);
+				segData[i] = null;
+			}
+			videoData.flip();
+			VideoData vData = new VideoData(videoData);
+			vData.setTimestamp(toTime(auTimestamp));
+			listener.frameReceived(vData);
+		}
+		segCount = 0;
+		naluCount = 0;
+		auSize = 0;
+		auKeyFrame = false;
+	}
+}
@@ -0,0 +1,103 @@
+package com.sms.server.net.rtp.depacketizer;
+
+import com.sms.server.net.rtp.RTPPacket;
+
+/**
+ * RTP Jitter Buffer
+ * <p>
+ * Puts the packets of a track back in sequence number order. Packets are kept in a ring indexed
+ * by sequence number, an in order packet goes in and out again without any search. A missing
+ * packet is waited for until the given number of later packets are held, then it is given up.
+ * @author pengliren
+ *
+ */
+public class RTPJitterBuffer {
+
+	private final RTPPacket[] slots;
+
+	private final int mask;
+
+	private final int depth;
+
+	// next sequence number to release, -1 until the first packet
+	private int expected = -1;
+
+	private int count;
+
+	/**
+	 * @param capacity ring capacity, rounded up to a power of two
+	 * @param depth packets held before a missing one is given up
+	 */
+	public RTPJitterBuffer(int capacity, int depth) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.slots = new RTPPacket[size];
+		this.mask = size - 1;
+		this.depth = Math.min(depth, size - 1);
+	}
+
+	/**
+	 * Add a packet.
+	 * 
+	 * @param packet rtp packet
+	 * @return false if the packet is late or a duplicate
+	 */
+	public boolean put(RTPPacket packet) {
+		int seq = packet.getSeqNumber();
+		if (expected < 0) {
+			expected = seq;
+		}
+		int distance = (short) (seq - expected);
+		if (distance < 0) {
+			return false;
+		}
+		if (distance > mask) {
+			// the sender restarted or a long outage, start over from this packet
+			clear();
+			expected = seq;
+		}
+		int idx = seq & mask;
+		if (slots[idx] != null) {
+			return false;
+		}
+		slots[idx] = packet;
+		count++;
+		return true;
+	}
+
+	/**
+	 * Take the next packet in order, skipping the missing ones that have been waited for long enough.
+	 * 
+	 * @return packet or null if the next one has not arrived yet
+	 */
+	public RTPPacket poll() {
+		if (count == 0) {
+			return null;
+		}
+		int idx = expected & mask;
+		while (slots[idx] == null) {
+			if (count <= depth) {
+				return null;
+			}
+			// give up the missing packet
+			expected = (expected + 1) & 0xffff;
+			idx = expected & mask;
+		}
+		RTPPacket packet = slots[idx];
+		slots[idx] = null;
+		count--;
+		expected = (expected + 1) & 0xffff;
+		return packet;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public void clear() {
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = null;
+		}
+		count = 0;
+		expected = -1;
+	}
+}
@@ -0,0 +1,44 @@
+package com.sms.server.net.rtp.depacketizer;
+
+import com.sms.server.util.SystemTimer;
+
+/**
+ * RTP Session Clock
+ * <p>
+ * Timeline shared by the tracks of a session. A track starts at the time its first packet
+ * arrives, once it has a sender report it is placed by the wall clock of the sender instead, so
+ * audio and video stay in sync whatever their arrival. The first track with a sender report
+ * keeps its place, the others are moved to match it.
+ * @author pengliren
+ *
+ */
+public class RTPSessionClock {
+
+	private final long startTime = SystemTimer.currentTimeMillis();
+
+	// sender wall clock in ms at the start of the timeline, -1 until the first sender report
+	private long baseNtp = -1;
+
+	/**
+	 * Return the time elapsed since the session started.
+	 * 
+	 * @return time in ms
+	 */
+	public long getElapsed() {
+		return SystemTimer.currentTimeMillis() - startTime;
+	}
+
+	/**
+	 * Place a track on the timeline by the wall clock of the sender.
+	 * 
+	 * @param ntpStart sender wall clock in ms at the first packet of the track
+	 * @param offset current time of the first packet of the track on the timeline
+	 * @return time of the first packet of the track on the timeline
+	 */
+	public synchronized long sync(long ntpStart, long offset) {
+		if (baseNtp < 0) {
+			baseNtp = ntpStart - offset;
+		}
+		return ntpStart - baseNtp;
+	}
+}
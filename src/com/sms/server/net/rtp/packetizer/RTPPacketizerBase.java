@@ -5,9 +5,11 @@ import java.net.SocketException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.server.net.rtp.RTPPacket;
 import com.sms.server.net.rtp.RTPSSRCGeneratorSingleton;
 import com.sms.server.net.rtsp.RTSPMinaConnection;
@@ -151,5 +153,48 @@ public abstract class RTPPacketizerBase implements IRTPPacketizer {
 		}
 		packetCount.incrementAndGet();
         byteCount.addAndGet(packet.getPayload().length);
-	}	
+	}
+
+	/**
+	 * Write the payloads of a packet, each one with its own RTP header. The payloads may be
+	 * shared with other viewers, only the header is written per viewer.
+	 * 
+	 * @param payloads RTP payloads
+	 * @param ts RTP timestamp
+	 * @param channel interleaved channel
+	 */
+	protected void write(RTPPayloads payloads, long ts, byte channel) {
+		for (int i = 0; i < payloads.getCount(); i++) {
+			int len = payloads.getLength(i);
+			if (isUdp) {
+				// released by the udp sender once sent
+				IoBuffer buf = PooledBufferAllocator.acquire(len + 12);
+				putHeader(buf, payloads.isMarker(i), ts);
+				payloads.copy(i, buf);
+				buf.flip();
+				((IUDPTransportOutgoingConnection) conn).sendMessage(buf, 0);
+			} else {
+				// released by the io handler once sent
+				IoBuffer buf = PooledBufferAllocator.acquire(len + 16);
+				buf.put((byte) '$');
+				buf.put(channel);
+				buf.putShort((short) (len + 12));
+				putHeader(buf, payloads.isMarker(i), ts);
+				payloads.copy(i, buf);
+				buf.flip();
+				((RTSPMinaConnection) conn).write(buf);
+			}
+			packetCount.incrementAndGet();
+			byteCount.addAndGet(len);
+		}
+	}
+
+	private void putHeader(IoBuffer buf, boolean marker, long ts) {
+		// version 2, no padding, no extension, no csrc
+		buf.put((byte) 0x80);
+		buf.put((byte) (marker ? (sdpTypeId | 0x80) : sdpTypeId));
+		buf.putShort((short) getNextSequence());
+		buf.putInt((int) ts);
+		buf.putInt((int) ssrc);
+	}
 }
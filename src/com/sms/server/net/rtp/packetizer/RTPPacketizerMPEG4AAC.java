@@ -12,8 +12,8 @@ import com.sms.io.flv.FLVUtils;
 import com.sms.server.api.stream.IStreamPacket;
 import com.sms.server.media.aac.AACFrame;
 import com.sms.server.media.aac.AACUtils;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.net.rtmp.event.AudioData;
-import com.sms.server.net.rtp.RTPPacket;
 import com.sms.server.stream.codec.AudioCodec;
 
 /**
@@ -50,32 +50,28 @@ public class RTPPacketizerMPEG4AAC extends RTPPacketizerAudioBase implements IRT
 		byte second = dataBuff.get(); 
 		boolean result = FLVUtils.getAudioCodec(first) == AudioCodec.AAC.getId() && second != 0;
 		if(result == false) return;
-		RTPPacket rtpPacket = new RTPPacket();
-		rtpPacket.setChannel((byte) 0x02);
-		rtpPacket.setExtensions(false);
-		rtpPacket.setMarker(true);
-		rtpPacket.setPadding(false);
-		rtpPacket.setTimestamp(ts);
-		rtpPacket.setSeqNumber(getNextSequence());
-		rtpPacket.setSsrc(getSsrc());
-		rtpPacket.setPayloadType(sdpTypeId);
-
-		int ausize = dataBuff.remaining();
-		byte[] payload = new byte[ausize + 4];
-		payload[0] = (byte) 0x00;
-		payload[1] = (byte) 0x10;
-		/* Write the AU header size */
-		byte[] auheader = new byte[2];
-		//au-size 13bit
-		auheader[0] = (byte) ((ausize & 0x1FE0) >> 5);
-		//au-index 3bit
-		auheader[1] = (byte) ((ausize & 0x1F) << 3);
-		payload[2] = auheader[0];
-		payload[3] = auheader[1];
-		dataBuff.get(payload, 4, ausize);
-		rtpPacket.setPayload(payload);
+		// live packets are packetized once for all viewers
+		ChunkedPayloadCache shared = audioData.getChunkedPayload();
+		RTPPayloads payloads = RTPPayloadCache.get(shared, sdpTypeId, maxPacketSize);
+		if (payloads == null) {
+			int ausize = dataBuff.remaining();
+			RTPPayloads.Builder builder = new RTPPayloads.Builder(ausize + 4, 1);
+			builder.begin();
+			builder.put((byte) 0x00);
+			builder.put((byte) 0x10);
+			/* Write the AU header size */
+			//au-size 13bit
+			builder.put((byte) ((ausize & 0x1FE0) >> 5));
+			//au-index 3bit
+			builder.put((byte) ((ausize & 0x1F) << 3));
+			builder.put(dataBuff, dataBuff.position(), ausize);
+			payloads = builder.marker().build();
+			if (shared != null) {
+				payloads = RTPPayloadCache.put(shared, sdpTypeId, maxPacketSize, payloads);
+			}
+		}
 		
-		write(rtpPacket);		
+		write(payloads, ts, (byte) 0x02);
 	}
 
 	@Override
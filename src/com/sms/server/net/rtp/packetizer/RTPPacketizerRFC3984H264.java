@@ -16,8 +16,8 @@ import com.sms.server.api.stream.IStreamPacket;
 import com.sms.server.media.h264.H264CodecConfigInfo;
 import com.sms.server.media.h264.H264CodecConfigParts;
 import com.sms.server.media.h264.H264Utils;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.net.rtmp.event.VideoData;
-import com.sms.server.net.rtp.RTPPacket;
 import com.sms.server.stream.codec.VideoCodec;
 
 /**
@@ -146,93 +146,135 @@ public class RTPPacketizerRFC3984H264 extends RTPPacketizerVideoBase implements
 			int cts = BufferUtils.byteArrayToInt(ctsBytes, 0, 3);
 			long ts = videoData.getTimestamp() + cts;	      
 			ts = Math.round(ts * (timeScale / 1000));
-	        dataBuff.position(5);
-	        int start = 5;
-	        int packetLen;
-	        while (dataBuff.remaining() > 4) {
-				packetLen = dataBuff.getInt();
-				start += 4;
-				if (packetLen <= 0){
-					log.error("AVCPacketType {}", second);
-					log.error("startLen: "+start+" packetLen: "+packetLen+" totalLen: "+len);					
-					break;
+			// live packets are packetized once for all viewers
+			ChunkedPayloadCache shared = videoData.getChunkedPayload();
+			RTPPayloads payloads = RTPPayloadCache.get(shared, sdpTypeId, maxPacketSize);
+			if (payloads == null) {
+				payloads = videoRTMP2RTPH264Payloads(dataBuff, len, second);
+				if (shared != null) {
+					payloads = RTPPayloadCache.put(shared, sdpTypeId, maxPacketSize, payloads);
 				}
-				else if(start + packetLen > len) {
-					log.error("AVCPacketType {}", second);
-					log.error("startLen: "+start+" packetLen: "+packetLen+" totalLen: "+len);
-					packetLen = len - start;				
-				}
-				
-				byte[] nalu = new byte[packetLen];
-				dataBuff.get(nalu);
-				videoRTMP2RTPH264FU(nalu, ts);
-				start += packetLen;
-	            if (start >= len) {
-	            	break;	             
-	            }
+			}
+			if (payloads.getCount() > 0) {
+				write(payloads, ts, (byte) 0x00);
 			}
 		}
 	}
 	
 	/**
-	 * RTMP TO RTP H264 FU Packet
-	 * @param nalu
-	 * @param rtpPackets
+	 * RTMP TO RTP H264 payloads, a NALU is sent as is when it fits in a packet, consecutive small
+	 * NALUs are aggregated into STAP-A packets and large ones are split into FU-A packets
+	 * @param dataBuff
+	 * @param len
+	 * @param avcPacketType
+	 * @return RTPPayloads
 	 */
-	private void videoRTMP2RTPH264FU(byte[] nalu, long ts) {
+	private RTPPayloads videoRTMP2RTPH264Payloads(IoBuffer dataBuff, int len, byte avcPacketType) {
 		
-		int len = nalu.length;
-		IoBuffer naluBuff = IoBuffer.wrap(nalu);
-		if (len <= maxPacketSize) {		
-					
-			if(len < 0) return;
-			RTPPacket rtpPacket = new RTPPacket();
-			rtpPacket.setPayload(nalu);
-			rtpPacket.setChannel((byte) 0x00);		
-			rtpPacket.setMarker(true);
-			rtpPacket.setPadding(false);	
-			rtpPacket.setExtensions(false);
-			rtpPacket.setTimestamp(ts);
-			rtpPacket.setSeqNumber(getNextSequence());
-			rtpPacket.setSsrc(getSsrc());
-			rtpPacket.setPayloadType(sdpTypeId);
-			write(rtpPacket);
-			return;
+		int[] positions = new int[8];
+		int[] sizes = new int[8];
+		int count = 0;
+		dataBuff.position(5);
+		int start = 5;
+		int packetLen;
+		while (dataBuff.remaining() > 4) {
+			packetLen = dataBuff.getInt();
+			start += 4;
+			if (packetLen <= 0){
+				log.error("AVCPacketType {}", avcPacketType);
+				log.error("startLen: "+start+" packetLen: "+packetLen+" totalLen: "+len);					
+				break;
+			}
+			else if(start + packetLen > len) {
+				log.error("AVCPacketType {}", avcPacketType);
+				log.error("startLen: "+start+" packetLen: "+packetLen+" totalLen: "+len);
+				packetLen = len - start;				
+			}
+			if (count == positions.length) {
+				int[] p = new int[count * 2];
+				System.arraycopy(positions, 0, p, 0, count);
+				positions = p;
+				int[] s = new int[count * 2];
+				System.arraycopy(sizes, 0, s, 0, count);
+				sizes = s;
+			}
+			positions[count] = start;
+			sizes[count] = packetLen;
+			count++;
+			start += packetLen;
+			if (start >= len) {
+				break;
+			}
+			dataBuff.position(start);
 		}
 		
-		int totalLen = maxPacketSize - 2; // fix fu last packet not send
-		int fuCount = (int) Math.round(Math.ceil((float) len / (float) totalLen));
+		int fuSize = maxPacketSize - 2; // fix fu last packet not send
+		RTPPayloads.Builder builder = new RTPPayloads.Builder(len + (len / fuSize + count) * 2, len / fuSize + count);
+		int i = 0;
+		while (i < count) {
+			if (sizes[i] > maxPacketSize) {
+				videoRTMP2RTPH264FU(builder, dataBuff, positions[i], sizes[i]);
+				i++;
+				continue;
+			}
+			// aggregate the following NALUs as long as they fit in one packet
+			int j = i;
+			int aggregated = 1;
+			while (j < count && aggregated + 2 + sizes[j] <= maxPacketSize) {
+				aggregated += 2 + sizes[j];
+				j++;
+			}
+			if (j - i <= 1) {
+				builder.begin().put(dataBuff, positions[i], sizes[i]);
+				i++;
+				continue;
+			}
+			// STAP-A header: F bit set if any, highest NRI
+			int forbidden = 0;
+			int nri = 0;
+			for (int k = i; k < j; k++) {
+				byte naluHeader = dataBuff.get(positions[k]);
+				forbidden |= naluHeader & 0x80;
+				nri = Math.max(nri, naluHeader & 0x60);
+			}
+			builder.begin().put((byte) (forbidden | nri | 24));
+			for (int k = i; k < j; k++) {
+				builder.putShort(sizes[k]).put(dataBuff, positions[k], sizes[k]);
+			}
+			i = j;
+		}
+		return builder.marker().build();
+	}
+	
+	/**
+	 * RTMP TO RTP H264 FU payloads
+	 * @param builder
+	 * @param dataBuff
+	 * @param position
+	 * @param len
+	 */
+	private void videoRTMP2RTPH264FU(RTPPayloads.Builder builder, IoBuffer dataBuff, int position, int len) {
 		
-		byte naluHeader = naluBuff.get();
+		int totalLen = maxPacketSize - 2;
+		byte naluHeader = dataBuff.get(position);
 		int naluType = naluHeader & 0x1F;
+		position += 1;
 		len -= 1;
-		RTPPacket rtpPacket;
+		int fuCount = (len + totalLen - 1) / totalLen;
 		for (int i = 0; i < fuCount; i++) {
-			rtpPacket = new RTPPacket();
-			rtpPacket.setChannel((byte) 0x00);
-			rtpPacket.setExtensions(false);
-			rtpPacket.setMarker(false);
-			rtpPacket.setPadding(false);
-			rtpPacket.setTimestamp(ts);
-			rtpPacket.setSeqNumber(getNextSequence());
-			rtpPacket.setSsrc(getSsrc());
-			rtpPacket.setPayloadType(sdpTypeId);
 			int read = Math.min(len, totalLen);
-			byte[] payload = new byte[read + 2];
-			payload[0] = ((byte) ((naluHeader & 0xE0) + 28));//FU indicator
+			builder.begin().put((byte) ((naluHeader & 0xE0) + 28));//FU indicator
 			if (i == 0) {//FU header
-				payload[1] = (byte) ((1 << 7) | naluType);//S = 1；E = 0；R = 0				
+				builder.put((byte) ((1 << 7) | naluType));//S = 1；E = 0；R = 0				
 			} else if (i == (fuCount - 1)) {
-				payload[1] = (byte) ((1 << 6) | naluType);//S = 0；E = 1；R = 0
-				rtpPacket.setMarker(true);
+				builder.put((byte) ((1 << 6) | naluType));//S = 0；E = 1；R = 0
 			} else {
-				payload[1] = ((byte) naluType);//S = 0；E = 0；R = 0
+				builder.put((byte) naluType);//S = 0；E = 0；R = 0
 			}
-			naluBuff.get(payload, 2, read);
+			builder.put(dataBuff, position, read);
+			position += read;
 			len -= read;
-			rtpPacket.setPayload(payload);
-			write(rtpPacket);
-		}		
+		}
 	}
 
 	@Override
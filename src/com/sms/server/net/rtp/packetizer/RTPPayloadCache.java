@@ -0,0 +1,98 @@
+package com.sms.server.net.rtp.packetizer;
+
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
+
+/**
+ * RTP payloads of a live packet, per payload type and maximum packet size.
+ * <p>
+ * Kept as the attachment of the shared {@link ChunkedPayloadCache} of the packet, so RTSP viewers
+ * packetize it once and only write their own RTP header. Instances are not modified, adding a
+ * packetization replaces the attachment.
+ * @author pengliren
+ *
+ */
+public final class RTPPayloadCache {
+
+	private final RTPEntry[] entries;
+
+	private RTPPayloadCache(RTPEntry[] entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * Return the RTP payloads produced for the given packetization, if any.
+	 *
+	 * @param shared shared payload of the packet, may be null
+	 * @param payloadType RTP payload type
+	 * @param maxPacketSize maximum RTP payload size
+	 * @return payloads or null
+	 */
+	public static RTPPayloads get(ChunkedPayloadCache shared, int payloadType, int maxPacketSize) {
+		if (shared == null) {
+			return null;
+		}
+		Object attachment = shared.getAttachment();
+		return attachment instanceof RTPPayloadCache ? ((RTPPayloadCache) attachment).find(payloadType, maxPacketSize) : null;
+	}
+
+	/**
+	 * Keep the RTP payloads for the other viewers.
+	 *
+	 * @param shared shared payload of the packet, may be null
+	 * @param payloadType RTP payload type
+	 * @param maxPacketSize maximum RTP payload size
+	 * @param payloads payloads
+	 * @return payloads to use, the ones added by another viewer in the meantime if any
+	 */
+	public static RTPPayloads put(ChunkedPayloadCache shared, int payloadType, int maxPacketSize, RTPPayloads payloads) {
+		if (shared == null) {
+			return payloads;
+		}
+		for (;;) {
+			Object attachment = shared.getAttachment();
+			RTPEntry[] current = attachment instanceof RTPPayloadCache ? ((RTPPayloadCache) attachment).entries : new RTPEntry[0];
+			for (RTPEntry entry : current) {
+				if (entry.matches(payloadType, maxPacketSize)) {
+					return entry.payloads;
+				}
+			}
+			RTPEntry[] updated = new RTPEntry[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = new RTPEntry(payloadType, maxPacketSize, payloads);
+			if (shared.compareAndSetAttachment(attachment, new RTPPayloadCache(updated))) {
+				return payloads;
+			}
+		}
+	}
+
+	private RTPPayloads find(int payloadType, int maxPacketSize) {
+		for (RTPEntry entry : entries) {
+			if (entry.matches(payloadType, maxPacketSize)) {
+				return entry.payloads;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * RTP payloads for one packetization
+	 */
+	private static final class RTPEntry {
+
+		final int payloadType;
+
+		final int maxPacketSize;
+
+		final RTPPayloads payloads;
+
+		RTPEntry(int payloadType, int maxPacketSize, RTPPayloads payloads) {
+			this.payloadType = payloadType;
+			this.maxPacketSize = maxPacketSize;
+			this.payloads = payloads;
+		}
+
+		boolean matches(int payloadType, int maxPacketSize) {
+			return this.payloadType == payloadType && this.maxPacketSize == maxPacketSize;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.sms.server.net.rtp.packetizer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * RTP payloads of one media packet, stored back to back in one array.
+ * <p>
+ * The payloads do not depend on the viewer, they are produced once per live packet and shared
+ * by all RTSP viewers of the stream, which only write their own RTP header in front of them.
+ * Instances are not modified once built.
+ * @author pengliren
+ *
+ */
+public class RTPPayloads {
+
+	private final byte[] data;
+
+	private final int[] offsets;
+
+	private final boolean[] markers;
+
+	private final int count;
+
+	private RTPPayloads(Builder builder) {
+		this.data = builder.data;
+		this.offsets = builder.offsets;
+		this.markers = builder.markers;
+		this.count = builder.count;
+	}
+
+	/**
+	 * Return the number of RTP payloads.
+	 *
+	 * @return payload count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public int getLength(int index) {
+		return offsets[index + 1] - offsets[index];
+	}
+
+	public boolean isMarker(int index) {
+		return markers[index];
+	}
+
+	/**
+	 * Copy the payload with the given index to the buffer.
+	 *
+	 * @param index payload index
+	 * @param out destination
+	 */
+	public void copy(int index, IoBuffer out) {
+		out.put(data, offsets[index], offsets[index + 1] - offsets[index]);
+	}
+
+	/**
+	 * Return the total size of the payloads in bytes.
+	 *
+	 * @return payloads size
+	 */
+	public int getSize() {
+		return offsets[count];
+	}
+
+	/**
+	 * Builds the payloads of one packet
+	 */
+	public static final class Builder {
+
+		private byte[] data;
+
+		private int[] offsets;
+
+		private boolean[] markers;
+
+		private int count;
+
+		/**
+		 * @param capacity expected size of all payloads in bytes
+		 * @param payloads expected number of payloads
+		 */
+		public Builder(int capacity, int payloads) {
+			data = new byte[Math.max(capacity, 16)];
+			offsets = new int[Math.max(payloads, 1) + 1];
+			markers = new boolean[Math.max(payloads, 1)];
+		}
+
+		/**
+		 * Start a new payload.
+		 *
+		 * @return this builder
+		 */
+		public Builder begin() {
+			if (count + 1 >= offsets.length) {
+				int[] o = new int[offsets.length * 2];
+				System.arraycopy(offsets, 0, o, 0, offsets.length);
+				offsets = o;
+				boolean[] m = new boolean[markers.length * 2];
+				System.arraycopy(markers, 0, m, 0, markers.length);
+				markers = m;
+			}
+			count++;
+			offsets[count] = offsets[count - 1];
+			return this;
+		}
+
+		public Builder put(byte b) {
+			ensure(1);
+			data[offsets[count]++] = b;
+			return this;
+		}
+
+		public Builder putShort(int s) {
+			ensure(2);
+			data[offsets[count]++] = (byte) (s >> 8);
+			data[offsets[count]++] = (byte) s;
+			return this;
+		}
+
+		/**
+		 * Append bytes of the source buffer to the current payload, the source position is not changed.
+		 *
+		 * @param src source buffer
+		 * @param position absolute position of the first byte
+		 * @param length number of bytes
+		 * @return this builder
+		 */
+		public Builder put(IoBuffer src, int position, int length) {
+			ensure(length);
+			IoBuffer view = src.duplicate();
+			view.limit(position + length);
+			view.position(position);
+			view.get(data, offsets[count], length);
+			offsets[count] += length;
+			return this;
+		}
+
+		/**
+		 * Return the size of the current payload.
+		 *
+		 * @return size in bytes
+		 */
+		public int length() {
+			return count == 0 ? 0 : offsets[count] - offsets[count - 1];
+		}
+
+		/**
+		 * Mark the last payload as the last one of the access unit.
+		 *
+		 * @return this builder
+		 */
+		public Builder marker() {
+			if (count > 0) {
+				markers[count - 1] = true;
+			}
+			return this;
+		}
+
+		public RTPPayloads build() {
+			return new RTPPayloads(this);
+		}
+
+		private void ensure(int length) {
+			int size = offsets[count] + length;
+			if (size > data.length) {
+				byte[] d = new byte[Math.max(size, data.length * 2)];
+				System.arraycopy(data, 0, d, 0, offsets[count]);
+				data = d;
+			}
+		}
+	}
+}
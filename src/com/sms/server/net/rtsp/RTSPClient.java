@@ -225,6 +225,7 @@ public class RTSPClient extends IoHandlerAdapter {
 									conn.setAttribute("audioConfig", audioConfig);
 									conn.setAttribute("rtpmapAudioTimescale", RTPUtil.decodeRtpmapAudioTimescale(rtpmap));
 									conn.setAttribute("audioConfig", audioConfig);
+									if(fmtp != null) conn.setAttribute("audioFmtp", fmtp);
 								}
 							}
 						}
@@ -282,6 +283,7 @@ public class RTSPClient extends IoHandlerAdapter {
 					
 					IoBuffer audioConfig = (IoBuffer)conn.getAttribute("audioConfig");
 					if(audioConfig != null) {
+						proxyStream.setAudioFmtp((String)conn.getAttribute("audioFmtp"));
 						proxyStream.setAACConfig(audioConfig);
 						proxyStream.setAudioTimescale((Integer)conn.getAttribute("rtpmapAudioTimescale"));
 					}
@@ -293,10 +295,14 @@ public class RTSPClient extends IoHandlerAdapter {
 			
 		} else if(message instanceof RTSPChannelData) { // handle rtp data
 						
-			RTSPChannelData rtspData = (RTSPChannelData)message;			
-			RTPPacket rtp = new RTPPacket(rtspData.getData());
-			rtp.setChannel(rtspData.getChannel());
-			proxyStream.handleMessage(rtp);			
+			RTSPChannelData rtspData = (RTSPChannelData)message;
+			if((rtspData.getChannel() & 0x01) != 0) { // rtcp
+				proxyStream.handleRTCPMessage(rtspData.getChannel(), rtspData.getData());
+			} else {
+				RTPPacket rtp = new RTPPacket(rtspData.getData());
+				rtp.setChannel(rtspData.getChannel());
+				proxyStream.handleMessage(rtp);
+			}
 		}
 		SMS.setConnectionLocal(null);
 	}
@@ -291,6 +291,7 @@ public final class RTSPCore {
 			
 			IoBuffer audioConfig = (IoBuffer)conn.getAttribute("audioConfig");
 			if(audioConfig != null) {
+				pushStream.setAudioFmtp((String)conn.getAttribute("audioFmtp"));
 				pushStream.setAACConfig(audioConfig);
 				pushStream.setAudioTimescale((Integer)conn.getAttribute("rtpmapAudioTimescale"));
 			}
@@ -355,6 +356,7 @@ public final class RTSPCore {
 				audioConfig = RTPUtil.decodeAudioConfigure(rtpmap, fmtp);
 				conn.setAttribute("audioConfig", audioConfig);
 				conn.setAttribute("rtpmapAudioTimescale", RTPUtil.decodeRtpmapAudioTimescale(rtpmap));
+				if(fmtp != null) conn.setAttribute("audioFmtp", fmtp);
 			}
 		}
 		
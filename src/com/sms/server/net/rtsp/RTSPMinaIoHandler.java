@@ -15,6 +15,7 @@ import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.buffer.PooledBufferAllocator;
 import com.sms.server.api.SMS;
 import com.sms.server.net.http.message.DefaultHttpResponse;
 import com.sms.server.net.http.message.HTTPRequest;
@@ -52,6 +53,15 @@ public class RTSPMinaIoHandler extends IoHandlerAdapter {
 		}
 	}
 
+	@Override
+	public void messageSent(IoSession session, Object message) throws Exception {
+
+		if (message instanceof IoBuffer) {
+			// interleaved rtp packets
+			PooledBufferAllocator.release((IoBuffer) message);
+		}
+	}
+
 	@Override
 	public void messageReceived(IoSession session, Object message) throws Exception {
 		
@@ -93,11 +103,11 @@ public class RTSPMinaIoHandler extends IoHandlerAdapter {
 			byte channel = channelData.getChannel();
 			IoBuffer data = channelData.getData();
 			if(channel == 0x01 || channel == 0x03) {//rtcp
-				//RTCPPacket rtcpPkt = new RTCPPacket();
-				//rtcpPkt.decode(data);
-				//log.info("rtcp packet {}", rtcpPkt);
+				RTSPPushProxyStream pushStream = (RTSPPushProxyStream)conn.getAttribute("pushStream");
+				if(pushStream != null) {
+					pushStream.handleRTCPMessage(channel, data);
+				}
 			} else {//rtp
-				//TODO we need add timescale from sdp parse, but current also not add; 
 				RTPPacket rtpPkt = new RTPPacket(data);
 				rtpPkt.setChannel(channel);
 				//log.info("rtp packet channel {}, len {}, ts {}", new Object[]{rtpPkt.getChannel(), rtpPkt.getPayload().length, rtpPkt.getTimestamp().longValue()});
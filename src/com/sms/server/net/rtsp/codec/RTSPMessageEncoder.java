@@ -36,7 +36,7 @@ public abstract class RTSPMessageEncoder extends HTTPMessageEncoder {
 			if(message instanceof HTTPMessage) {
 				IoBuffer buf;
 				try {
-					buf = encodeBuffer(message);
+					buf = encodeBuffer(session, message);
 					if (buf != null) {					
 						out.write(buf);
 						out.mergeAll();
@@ -4,7 +4,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.mina.core.buffer.IoBuffer;
 
-import com.sms.server.api.stream.IStreamPacket;
+import com.sms.io.ts.MpegtsRun;
 
 /**
  * UDPPacketizer Inteface
@@ -13,7 +13,11 @@ import com.sms.server.api.stream.IStreamPacket;
  */
 public interface IUDPPacketizer {
 
-	public void handleStreamPacket(IStreamPacket packet);
+	/**
+	 * Send a run of ts packets already muxed by the tap of the stream
+	 * @param run
+	 */
+	public void handleRun(MpegtsRun run);
 	
 	public void stop();
 	
@@ -1,5 +1,7 @@
 package com.sms.server.net.udp;
 
+import org.apache.mina.core.buffer.IoBuffer;
+
 /**
  * UDP Sender
  * @author pengliren
@@ -8,4 +10,11 @@ package com.sms.server.net.udp;
 public interface IUDPSender {
 
 	public void handleSendMessage(byte[] data, int pos, int len);
+
+	/**
+	 * Send the remaining bytes of a buffer, it is released by the caller afterwards.
+	 *
+	 * @param data datagram
+	 */
+	public void handleSendMessage(IoBuffer data);
 }
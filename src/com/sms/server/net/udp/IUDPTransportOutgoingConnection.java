@@ -2,6 +2,8 @@ package com.sms.server.net.udp;
 
 import java.net.InetSocketAddress;
 
+import org.apache.mina.core.buffer.IoBuffer;
+
 /**
  * UDP Transport Outgoing Connection
  * @author pengliren
@@ -15,6 +17,25 @@ public interface IUDPTransportOutgoingConnection {
 
 	public void sendMessage(byte[] data, int pos, int len);
 
+	/**
+	 * Send a datagram, not before the given time.
+	 *
+	 * @param data datagram data, must not be modified afterwards
+	 * @param pos offset
+	 * @param len length
+	 * @param sendTime earliest send time, see {@link UDPSender#now()}, 0 to send right away
+	 */
+	public void sendMessage(byte[] data, int pos, int len, long sendTime);
+
+	/**
+	 * Send a pooled buffer, not before the given time. The buffer is released once it has
+	 * been sent or dropped.
+	 *
+	 * @param data datagram, its remaining bytes are sent
+	 * @param sendTime earliest send time, see {@link UDPSender#now()}, 0 to send right away
+	 */
+	public void sendMessage(IoBuffer data, long sendTime);
+
 	public void close();
 
 	public boolean isOpen();
@@ -1,7 +1,12 @@
 package com.sms.server.net.udp;
 
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -62,19 +67,28 @@ public class MulticastOutgoing implements IUDPTransportOutgoing {
 	@Override
 	public IUDPTransportOutgoingConnection connect(UDPDatagramConfig config, InetSocketAddress address) {
 		MulticastOutgoingConnection connection = null;
-		MulticastSocket multicastSocket = null;
+		DatagramChannel datagramChannel = null;
 		lock.writeLock().lock();
 		try {
 			int nextConnectorIdx = getNextConnector();
 			ConnectorHolder connectorHolder = this.connectors[nextConnectorIdx];
-			multicastSocket = new MulticastSocket(address.getPort());
-			multicastSocket.setTrafficClass(config.getTrafficClass());
-			multicastSocket.setReceiveBufferSize(config.getReceiveBufferSize());
-			multicastSocket.setSendBufferSize(config.getSendBufferSize());
-			multicastSocket.setReuseAddress(config.isReuseAddress());
-			multicastSocket.setSoTimeout(config.getMulticastTimeout());
-			multicastSocket.joinGroup(address.getAddress());
-			connection = new MulticastOutgoingConnection(this, multicastSocket, address, connectorHolder.sender, nextConnectorIdx);
+			// sending only, the group does not need to be joined
+			datagramChannel = DatagramChannel.open(address.getAddress() instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+			datagramChannel.setOption(StandardSocketOptions.SO_REUSEADDR, config.isReuseAddress());
+			if (config.getTrafficClass() > 0) {
+				datagramChannel.setOption(StandardSocketOptions.IP_TOS, config.getTrafficClass());
+			}
+			if (config.getSendBufferSize() > 0) {
+				datagramChannel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
+			}
+			if (config.getMulticastInterfaceAddress() != null) {
+				NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(config.getMulticastInterfaceAddress()));
+				if (networkInterface != null) {
+					datagramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+				}
+			}
+			datagramChannel.connect(address);
+			connection = new MulticastOutgoingConnection(this, datagramChannel, address, connectorHolder.sender, nextConnectorIdx, config.getDatagramMaximumPacketSize());
 			connections.add(connection);
 			connectorHolder.count++;
 			connectionCount++;
@@ -85,14 +99,14 @@ public class MulticastOutgoing implements IUDPTransportOutgoing {
 		}
 		
 		if (connection == null) {
-			if (multicastSocket != null) {
+			if (datagramChannel != null) {
 				try {
-					multicastSocket.close();
+					datagramChannel.close();
 				} catch (Exception e) {
 					log.error("close: {}", e.toString());
 				}
 			}
-			multicastSocket = null;
+			datagramChannel = null;
 		}
 		return connection;
 	}
@@ -108,7 +122,7 @@ public class MulticastOutgoing implements IUDPTransportOutgoing {
 	public void disconnect(IUDPTransportOutgoingConnection connection) {
 		
 		MulticastOutgoingConnection tempConnection = null;
-		MulticastSocket multicastSocket = null;
+		DatagramChannel datagramChannel = null;
 		lock.writeLock().lock();
 		try {
 			if (connection instanceof MulticastOutgoingConnection && connections.contains(connection)) {
@@ -117,7 +131,7 @@ public class MulticastOutgoing implements IUDPTransportOutgoing {
 				ConnectorHolder localConnectorHolder = this.connectors[idx];
 				localConnectorHolder.count -= 1;
 				this.connectionCount -= 1L;
-				multicastSocket = tempConnection.socket;
+				datagramChannel = tempConnection.channel;
 				this.connections.remove(tempConnection);
 			}
 		} catch (Exception e) {
@@ -129,14 +143,14 @@ public class MulticastOutgoing implements IUDPTransportOutgoing {
 		if (tempConnection != null) {
 			synchronized (tempConnection) {
 				tempConnection.isOpen = false;
-				if (multicastSocket != null) {
+				if (datagramChannel != null) {
 					try {
-						multicastSocket.close();
+						datagramChannel.close();
 					} catch (Exception e) {
-						log.error("multicastSocket close: {}", e.toString());
+						log.error("datagramChannel close: {}", e.toString());
 					}
 				}
-				multicastSocket = null;
+				datagramChannel = null;
 			}
 		}
 	}
@@ -1,12 +1,15 @@
 package com.sms.server.net.udp;
 
-import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.buffer.PooledBufferAllocator;
+
 /**
  * Multicast Outgoing Connection
  * @author pengliren
@@ -17,24 +20,34 @@ public class MulticastOutgoingConnection extends UDPTransportOutgoingConnectionB
 	private static final Logger log = LoggerFactory.getLogger(MulticastOutgoingConnection.class);
 	
 	public int connectorIndex = -1;
-	public MulticastSocket socket;
+	public DatagramChannel channel;
 	public UDPSender sender;
+	// reused for every datagram, sender thread only
+	private final ByteBuffer sendBuffer;
 
-	public MulticastOutgoingConnection(IUDPTransportOutgoing udpTransportOutgoing, MulticastSocket multicastSocket, InetSocketAddress address, UDPSender udpSender, int connectorIdx) {
+	public MulticastOutgoingConnection(IUDPTransportOutgoing udpTransportOutgoing, DatagramChannel datagramChannel, InetSocketAddress address, UDPSender udpSender, int connectorIdx, int maxPacketSize) {
 		this.parent = udpTransportOutgoing;
-		this.socket = multicastSocket;
+		this.channel = datagramChannel;
 		this.sender = udpSender;
 		this.connectorIndex = connectorIdx;
 		this.isMulticast = true;
 		this.address = address;
+		this.sendBuffer = ByteBuffer.allocateDirect(maxPacketSize);
 	}
 
 	@Override
 	public synchronized void handleSendMessage(byte[] data, int pos, int len) {
 		try {
 			if (this.isOpen) {
-				DatagramPacket packet = new DatagramPacket(data, pos, len, address.getAddress(), address.getPort());
-				this.socket.send(packet);
+				ByteBuffer buf;
+				if (len <= sendBuffer.capacity()) {
+					sendBuffer.clear();
+					sendBuffer.put(data, pos, len).flip();
+					buf = sendBuffer;
+				} else {
+					buf = ByteBuffer.wrap(data, pos, len);
+				}
+				this.channel.write(buf);
 			}
 		} catch (Exception e) {
 			log.error("handleSendMessage: {}", e.toString());
@@ -42,13 +55,34 @@ public class MulticastOutgoingConnection extends UDPTransportOutgoingConnectionB
 	}
 
 	@Override
-	public synchronized void sendMessage(byte[] data, int pos, int len) {
+	public synchronized void handleSendMessage(IoBuffer data) {
 		try {
 			if (this.isOpen) {
-				this.sender.handleMessage(this, data, pos, len);
+				this.channel.write(data.buf());
 			}
 		} catch (Exception e) {
-			log.error("sendMessage: {}", e.toString());
+			log.error("handleSendMessage: {}", e.toString());
+		}
+	}
+
+	@Override
+	public void sendMessage(byte[] data, int pos, int len) {
+		sendMessage(data, pos, len, 0);
+	}
+
+	@Override
+	public void sendMessage(byte[] data, int pos, int len, long sendTime) {
+		if (this.isOpen) {
+			this.sender.handleMessage(this, data, pos, len, sendTime);
+		}
+	}
+
+	@Override
+	public void sendMessage(IoBuffer data, long sendTime) {
+		if (this.isOpen) {
+			this.sender.handleMessage(this, data, sendTime);
+		} else {
+			PooledBufferAllocator.release(data);
 		}
 	}
 }
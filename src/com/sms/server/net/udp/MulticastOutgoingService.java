@@ -6,22 +6,27 @@ import java.util.concurrent.ConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.ts.IMpegtsTapListener;
+import com.sms.io.ts.MpegtsRun;
+import com.sms.io.ts.MpegtsTap;
 import com.sms.server.Configuration;
 import com.sms.server.api.stream.IBroadcastStream;
-import com.sms.server.api.stream.IStreamListener;
-import com.sms.server.api.stream.IStreamPacket;
 
 /**
  * Multicast Out Stream Service 
+ * <p>
+ * Sends the ts muxed by the {@link MpegtsTap} of a stream, registering a stream subscribes to its tap.
  * @author pengliren
  *
  */
-public class MulticastOutgoingService implements IStreamListener {
+public class MulticastOutgoingService implements IMpegtsTapListener {
 
 	private static Logger log = LoggerFactory.getLogger(MulticastOutgoingService.class);
 	
 	private ConcurrentMap<String, IUDPPacketizer> packetizerMap = new ConcurrentHashMap<String, IUDPPacketizer>();
 	
+	private ConcurrentMap<String, IBroadcastStream> streamMap = new ConcurrentHashMap<String, IBroadcastStream>();
+	
 	private MulticastOutgoing multicastOutgoing;
 
 	private static final class SingletonHolder {
@@ -46,11 +51,17 @@ public class MulticastOutgoingService implements IStreamListener {
 		IUDPTransportOutgoingConnection conn = multicastOutgoing.connect(config, host, port);
 		IUDPPacketizer udpPacketizer = new UDPPacketizerMPEGTS(conn);
 		packetizerMap.put(stream.getPublishedName(), udpPacketizer);
+		streamMap.put(stream.getPublishedName(), stream);
+		MpegtsTap.subscribe(stream, this);
 		log.info("add multicast outgoing stream : {} bind : {}", stream.getPublishedName(), String.format("udp://%s:%d", host, port));
 	}
 	
 	public void unregister(String name) {
 		
+		IBroadcastStream stream = streamMap.remove(name);
+		if(stream != null) {
+			MpegtsTap.unsubscribe(stream, this);
+		}
 		IUDPPacketizer udpPacketizer = packetizerMap.remove(name);
 		if(udpPacketizer != null) {
 			udpPacketizer.stop();
@@ -59,11 +70,17 @@ public class MulticastOutgoingService implements IStreamListener {
 	}
 	
 	@Override
-	public void packetReceived(IBroadcastStream stream, IStreamPacket packet) {
+	public void runReceived(IBroadcastStream stream, MpegtsRun run) {
 		
-		String name = stream.getPublishedName();
-		IUDPPacketizer udpPacketizer = packetizerMap.get(name);
-		udpPacketizer.handleStreamPacket(packet);
+		IUDPPacketizer udpPacketizer = packetizerMap.get(stream.getPublishedName());
+		if(udpPacketizer != null) {
+			udpPacketizer.handleRun(run);
+		}
+	}
+	
+	@Override
+	public void tapClosed(IBroadcastStream stream) {
+		// the packetizer is stopped by unregister
 	}
 	
 	public IUDPPacketizer getUDPPacketizer(String name) {
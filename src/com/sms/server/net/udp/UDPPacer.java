@@ -0,0 +1,90 @@
+package com.sms.server.net.udp;
+
+/**
+ * UDP Pacer
+ * <p>
+ * Computes the send times of the datagrams of a stream from its clock (the PCR of a transport
+ * stream) and its own bitrate. A datagram is not sent before its stream time, and consecutive
+ * datagrams are spread at a little more than the measured bitrate, so a key frame goes out over
+ * the following frame intervals instead of as one burst. The stream clock is followed again when
+ * it jumps or when the spreading falls too far behind it.
+ * @author pengliren
+ *
+ */
+public class UDPPacer {
+
+	/**
+	 * Sending rate relative to the measured bitrate
+	 */
+	private static final double HEADROOM = 1.25;
+
+	/**
+	 * Stream time in ms over which the bitrate is measured
+	 */
+	private static final long RATE_WINDOW = 1000;
+
+	/**
+	 * Stream clock drift in ms at which the time base is reset
+	 */
+	private static final long MAX_DRIFT = 2000;
+
+	/**
+	 * Delay in ms behind the stream clock at which spreading gives up
+	 */
+	private static final long MAX_LAG = 500;
+
+	private long baseTime = -1;
+
+	private long baseStreamTime;
+
+	private double nextSendTime;
+
+	// bytes per ms, 0 while unknown
+	private double rate;
+
+	private long windowStart = -1;
+
+	private long windowBytes;
+
+	/**
+	 * Return the send time of the next datagram.
+	 *
+	 * @param streamTime stream time of the datagram in ms
+	 * @param len datagram length
+	 * @return send time, see {@link UDPSender#now()}
+	 */
+	public long getSendTime(long streamTime, int len) {
+		long now = UDPSender.now();
+		long due = baseTime + (streamTime - baseStreamTime);
+		if (baseTime < 0 || Math.abs(due - now) > MAX_DRIFT) {
+			baseTime = now;
+			baseStreamTime = streamTime;
+			nextSendTime = now;
+			due = now;
+		}
+		updateRate(streamTime, len);
+		double sendTime = Math.max(nextSendTime, due);
+		if (sendTime > due + MAX_LAG) {
+			sendTime = due + MAX_LAG;
+		}
+		if (rate > 0) {
+			nextSendTime = sendTime + len / (rate * HEADROOM);
+		}
+		return (long) sendTime;
+	}
+
+	private void updateRate(long streamTime, int len) {
+		if (windowStart < 0 || streamTime < windowStart) {
+			windowStart = streamTime;
+			windowBytes = 0;
+		}
+		windowBytes += len;
+		long elapsed = streamTime - windowStart;
+		if (elapsed >= RATE_WINDOW) {
+			double sample = windowBytes / (double) elapsed;
+			rate = (rate == 0 ? sample : rate * 0.5 + sample * 0.5);
+			windowStart = streamTime;
+			windowBytes = 0;
+		}
+	}
+}
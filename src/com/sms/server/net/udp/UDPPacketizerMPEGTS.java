@@ -1,37 +1,37 @@
 package com.sms.server.net.udp;
 
 import static com.sms.io.ts.TransportStreamUtils.TIME_SCALE;
+import static com.sms.io.ts.TransportStreamUtils.TS_PACKETLEN;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.mina.core.buffer.IoBuffer;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import com.sms.io.ts.FLV2MPEGTSWriter;
-import com.sms.io.ts.IFLV2MPEGTSWriter;
-import com.sms.server.api.stream.IStreamPacket;
-import com.sms.server.net.rtmp.event.AudioData;
-import com.sms.server.net.rtmp.event.VideoData;
-import com.sms.server.util.SystemTimer;
+import com.sms.io.ts.MpegtsRun;
+import com.sms.server.Configuration;
 /**
  * UDP Mpegts
  * @author pengliren
  *
  */
-public class UDPPacketizerMPEGTS implements IUDPPacketizer, IFLV2MPEGTSWriter {
+public class UDPPacketizerMPEGTS implements IUDPPacketizer {
 
-	private static Logger log = LoggerFactory.getLogger(UDPPacketizerMPEGTS.class);
+	private IUDPTransportOutgoingConnection conn;
 	
-	private FLV2MPEGTSWriter flv2tsWriter;
+	protected int mpegtsPacketsPerBlock = 7;
 	
-	private IUDPTransportOutgoingConnection conn;
+	/**
+	 * Datagrams packed into one send buffer
+	 */
+	private static final int BLOCKS_PER_BUFFER = 32;
 	
-	protected long lastPAT = -1L;
+	// datagrams are slices of it, queued ones are never written again so it is replaced once full
+	private byte[] buffer;
 	
-	protected int mpegtsPacketsPerBlock = 7;
+	// start of the current datagram in the buffer
+	private int blockStart;
 	
-	private IoBuffer buffer;
+	private int bufferPos;
 	
 	private AtomicInteger pcount = new AtomicInteger(0);
 	
@@ -43,55 +43,59 @@ public class UDPPacketizerMPEGTS implements IUDPPacketizer, IFLV2MPEGTSWriter {
 	
 	private boolean init = false;
 	
+	private long lastTs = -1L;
+	
+	// pcr of the last run from the tap
+	private long lastPCR = -1L;
+	
+	private UDPPacer pacer = Configuration.MULTICAST_PACING ? new UDPPacer() : null;
+	
 	public UDPPacketizerMPEGTS(IUDPTransportOutgoingConnection conn) {
 		
 		this.conn = conn;		
 	}
 	
-	@Override
-	public void nextBlock(long ts, byte[] block) {
-		if(buffer == null) {
-			buffer = IoBuffer.allocate(1500).setAutoExpand(true);
-		}
-		
+	private void putPacket(long ts, byte[] data, int offset) {
 		if(pcount.get() >= mpegtsPacketsPerBlock) {
-			buffer.flip();
 			flushBlock();
 			pcount.set(0);
-			buffer.position(0);
 		}
-		buffer.put(block);
+		
+		if (pcount.get() == 0) {
+			int blockSize = mpegtsPacketsPerBlock * TS_PACKETLEN;
+			if (buffer == null || buffer.length - bufferPos < blockSize) {
+				buffer = new byte[blockSize * BLOCKS_PER_BUFFER];
+				bufferPos = 0;
+			}
+			blockStart = bufferPos;
+		}
+		System.arraycopy(data, offset, buffer, bufferPos, TS_PACKETLEN);
+		bufferPos += TS_PACKETLEN;
 		pcount.incrementAndGet();
+		lastTs = ts;
 	}
 	
-	private void flushBlock() {
-
-		byte[] payload = new byte[buffer.remaining()];
-		buffer.get(payload);
-		conn.sendMessage(payload, 0, payload.length);
-	}
-
 	@Override
-	public void handleStreamPacket(IStreamPacket packet) {
-		
-		if (!init) {
-			flv2tsWriter = new FLV2MPEGTSWriter(this, videoConfig, audioConfig);
-			init = true;
-			log.info("flv to mepgts udp stream!");
-		}
+	public void handleRun(MpegtsRun run) {
 		
-		long cts = SystemTimer.currentTimeMillis();
-		long ts = packet.getTimestamp() * TIME_SCALE;
-		if ((lastPAT == -1L) || (cts - lastPAT > 100L)) {
-			lastPAT = cts;
-			flv2tsWriter.addPAT(ts);
+		init = true;
+		lastPCR = run.getPCR();
+		long ts = run.getTimestamp() * TIME_SCALE;
+		byte[] data = run.getBytes();
+		for (int pos = 0; pos + TS_PACKETLEN <= data.length; pos += TS_PACKETLEN) {
+			putPacket(ts, data, pos);
 		}
-		
-		if (packet instanceof VideoData) { // handle video
-			flv2tsWriter.handleVideo((VideoData) packet);
-		} else if (packet instanceof AudioData) {// handle audio
-			flv2tsWriter.handleAudio((AudioData) packet);
+	}
+	
+	private void flushBlock() {
+
+		int len = bufferPos - blockStart;
+		long sendTime = 0;
+		if (pacer != null) {
+			// pace by the pcr, it follows the stream clock steadily
+			sendTime = pacer.getSendTime((lastPCR >= 0 ? lastPCR : lastTs) / TIME_SCALE, len);
 		}
+		conn.sendMessage(buffer, blockStart, len, sendTime);
 	}
 
 	@Override
@@ -0,0 +1,144 @@
+package com.sms.server.net.udp;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+import com.sms.server.util.RingSequencer;
+
+/**
+ * UDP Send Queue
+ * <p>
+ * Bounded ring of datagrams with many producers and a single consumer, sequenced by a
+ * {@link RingSequencer}. Slots are reused, queuing a datagram does not allocate.
+ * @author pengliren
+ *
+ */
+public class UDPSendQueue {
+
+	private final RingSequencer sequencer;
+
+	private final IUDPSender[] senders;
+
+	private final byte[][] datas;
+
+	private final IoBuffer[] buffers;
+
+	private final int[] offsets;
+
+	private final int[] lengths;
+
+	private final long[] times;
+
+	/**
+	 * @param capacity queue capacity, rounded up to a power of two
+	 */
+	public UDPSendQueue(int capacity) {
+		sequencer = new RingSequencer(capacity);
+		int size = sequencer.getCapacity();
+		senders = new IUDPSender[size];
+		datas = new byte[size][];
+		buffers = new IoBuffer[size];
+		offsets = new int[size];
+		lengths = new int[size];
+		times = new long[size];
+	}
+
+	/**
+	 * Queue a datagram.
+	 *
+	 * @param sender connection sending the datagram
+	 * @param data datagram data, must not be modified until it is sent
+	 * @param pos offset of the datagram
+	 * @param len datagram length
+	 * @param time earliest send time, see {@link UDPSender#now()}
+	 * @return false if the queue is full
+	 */
+	public boolean offer(IUDPSender sender, byte[] data, int pos, int len, long time) {
+		long seq = sequencer.claim();
+		if (seq < 0) {
+			return false;
+		}
+		int idx = sequencer.index(seq);
+		senders[idx] = sender;
+		datas[idx] = data;
+		offsets[idx] = pos;
+		lengths[idx] = len;
+		times[idx] = time;
+		sequencer.publish(seq);
+		return true;
+	}
+
+	/**
+	 * Queue a pooled datagram, the consumer releases it once sent.
+	 *
+	 * @param sender connection sending the datagram
+	 * @param data datagram, its remaining bytes are sent
+	 * @param time earliest send time, see {@link UDPSender#now()}
+	 * @return false if the queue is full
+	 */
+	public boolean offer(IUDPSender sender, IoBuffer data, long time) {
+		long seq = sequencer.claim();
+		if (seq < 0) {
+			return false;
+		}
+		int idx = sequencer.index(seq);
+		senders[idx] = sender;
+		buffers[idx] = data;
+		times[idx] = time;
+		sequencer.publish(seq);
+		return true;
+	}
+
+	/**
+	 * Return the slot of the oldest datagram, it stays valid until {@link #remove()}. Consumer only.
+	 *
+	 * @return slot index, -1 if the queue is empty
+	 */
+	public int peek() {
+		return sequencer.peek();
+	}
+
+	/**
+	 * Free the slot of the oldest datagram. Consumer only.
+	 */
+	public void remove() {
+		int idx = sequencer.peek();
+		if (idx >= 0) {
+			senders[idx] = null;
+			datas[idx] = null;
+			buffers[idx] = null;
+			sequencer.remove();
+		}
+	}
+
+	public boolean isEmpty() {
+		return sequencer.isEmpty();
+	}
+
+	public IUDPSender getSender(int idx) {
+		return senders[idx];
+	}
+
+	public byte[] getData(int idx) {
+		return datas[idx];
+	}
+
+	/**
+	 * @param idx slot index
+	 * @return pooled datagram, null if the slot holds a byte array
+	 */
+	public IoBuffer getBuffer(int idx) {
+		return buffers[idx];
+	}
+
+	public int getOffset(int idx) {
+		return offsets[idx];
+	}
+
+	public int getLength(int idx) {
+		return lengths[idx];
+	}
+
+	public long getTime(int idx) {
+		return times[idx];
+	}
+}
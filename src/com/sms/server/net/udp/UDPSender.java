@@ -1,38 +1,132 @@
 package com.sms.server.net.udp;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.buffer.PooledBufferAllocator;
+import com.sms.server.Configuration;
+import com.sms.server.util.CustomizableThreadFactory;
+import com.sms.server.util.timer.HashedWheelTimer;
+import com.sms.server.util.timer.Timeout;
+import com.sms.server.util.timer.Timer;
+import com.sms.server.util.timer.TimerTask;
 
 /**
  * UDP Sender Thread
+ * <p>
+ * Datagrams of all connections of the sender go through one lock-free queue. Each run sends
+ * whatever is queued in batches. Datagrams with a send time in the future wait in a per
+ * connection backlog, so a paced stream does not hold back the other connections, and the
+ * sender wakes up again when the first one is due.
  * @author pengliren
  *
  */
 public class UDPSender implements Runnable {
 
+	private static final Logger log = LoggerFactory.getLogger(UDPSender.class);
+
+	/**
+	 * Datagrams taken from the queue before the backlogs are served
+	 */
+	private static final int BATCH_SIZE = 64;
+
+	/**
+	 * Delays up to this many ms are waited on the sender thread instead of the timer
+	 */
+	private static final long PARK_THRESHOLD = 2;
+
+	private static final long ORIGIN = System.nanoTime();
+
+	private static final Timer timer = new HashedWheelTimer(new CustomizableThreadFactory("UDPPacingTimer-"), 5, TimeUnit.MILLISECONDS);
+
 	private AtomicLong packetCount = new AtomicLong(0);
-	private boolean running = false;
-	private List<UDPMessage> messages = new ArrayList<UDPSender.UDPMessage>();
+	private AtomicLong droppedCount = new AtomicLong(0);
+	private final AtomicBoolean running = new AtomicBoolean();
+	private final UDPSendQueue queue;
+	// paced datagrams per connection, sender thread only
+	private final Map<IUDPSender, Backlog> backlogs = new IdentityHashMap<IUDPSender, Backlog>();
+	private final WakeupTask wakeupTask = new WakeupTask();
 	private Executor executor;
 
 	public UDPSender(Executor executor) {
 		this.executor = executor;
+		this.queue = new UDPSendQueue(Configuration.UDP_SEND_QUEUE_SIZE);
 	}
-	
+
+	/**
+	 * Return the time base of the send times in ms, never negative so 0 means right away.
+	 *
+	 * @return current time
+	 */
+	public static long now() {
+		return (System.nanoTime() - ORIGIN) / 1000000;
+	}
+
 	public long incPacketCount() {
 		return packetCount.incrementAndGet();
 	}
-	 
-	public synchronized void handleMessage(IUDPSender sender, byte[] data, int pos, int len) {
-		this.messages.add(new UDPMessage(sender, data, pos, len));
-		if (!this.running) {
-			this.running = true;
-			this.executor.execute(this);
+
+	/**
+	 * Return the number of datagrams dropped because the queue was full.
+	 *
+	 * @return dropped datagrams
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public void handleMessage(IUDPSender sender, byte[] data, int pos, int len) {
+		handleMessage(sender, data, pos, len, 0);
+	}
+
+	/**
+	 * Queue a datagram, it is sent after the given time.
+	 *
+	 * @param sender connection
+	 * @param data datagram data
+	 * @param pos offset
+	 * @param len length
+	 * @param sendTime earliest send time, see {@link #now()}
+	 */
+	public void handleMessage(IUDPSender sender, byte[] data, int pos, int len, long sendTime) {
+		if (!queue.offer(sender, data, pos, len, sendTime)) {
+			dropped();
+		}
+		wakeup();
+	}
+
+	/**
+	 * Queue a pooled datagram, it is sent after the given time and released afterwards.
+	 *
+	 * @param sender connection
+	 * @param data datagram, its remaining bytes are sent
+	 * @param sendTime earliest send time, see {@link #now()}
+	 */
+	public void handleMessage(IUDPSender sender, IoBuffer data, long sendTime) {
+		if (!queue.offer(sender, data, sendTime)) {
+			PooledBufferAllocator.release(data);
+			dropped();
+		}
+		wakeup();
+	}
+
+	private void dropped() {
+		if (droppedCount.incrementAndGet() % 1000 == 1) {
+			log.warn("UDP send queue full, {} datagrams dropped so far", droppedCount.get());
 		}
 	}
-	
+
 	public Executor getExecutor() {
 		return this.executor;
 	}
@@ -41,34 +135,205 @@ public class UDPSender implements Runnable {
 		this.executor = executor;
 	}
 
+	private void wakeup() {
+		if (running.compareAndSet(false, true)) {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				running.set(false);
+				log.warn("UDP sender rejected: {}", e.getMessage());
+			}
+		}
+	}
+
 	@Override
 	public void run() {
 		while (true) {
-			UDPMessage message = null;
-			synchronized (this) {
-				if (this.messages.size() > 0) {
-					message = (UDPMessage) this.messages.remove(0);
+			int sent = 0;
+			int taken = 0;
+			int idx;
+			long now = now();
+			while (taken++ < BATCH_SIZE && (idx = queue.peek()) >= 0) {
+				IUDPSender handler = queue.getSender(idx);
+				long time = queue.getTime(idx);
+				Backlog backlog = backlogs.isEmpty() ? null : backlogs.get(handler);
+				if (backlog == null && time <= now) {
+					send(handler, queue.getData(idx), queue.getOffset(idx), queue.getLength(idx), queue.getBuffer(idx));
+					sent++;
 				} else {
-					this.running = false;
-					break;
+					// keep the order of the connection
+					if (backlog == null) {
+						backlog = new Backlog(handler);
+						backlogs.put(handler, backlog);
+					}
+					backlog.add(queue.getData(idx), queue.getOffset(idx), queue.getLength(idx), queue.getBuffer(idx), time);
+				}
+				queue.remove();
+			}
+			long next = Long.MAX_VALUE;
+			if (!backlogs.isEmpty()) {
+				now = now();
+				Iterator<Backlog> it = backlogs.values().iterator();
+				while (it.hasNext()) {
+					Backlog backlog = it.next();
+					sent += backlog.sendDue(now);
+					if (backlog.isEmpty()) {
+						it.remove();
+					} else {
+						next = Math.min(next, backlog.getTime());
+					}
 				}
 			}
-			if (message != null)
-				message.handler.handleSendMessage(message.buffer, message.offset, message.len);
+			packetCount.addAndGet(sent);
+			if (!queue.isEmpty()) {
+				continue;
+			}
+			if (next != Long.MAX_VALUE) {
+				long delay = next - now();
+				if (delay <= PARK_THRESHOLD) {
+					if (delay > 0) {
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(delay));
+					}
+					continue;
+				}
+				wakeupTask.schedule(next, delay);
+			}
+			running.set(false);
+			// a datagram queued or a wakeup fired after the last check would not wake us up
+			if ((queue.isEmpty() && (next == Long.MAX_VALUE || wakeupTask.isPending())) || !running.compareAndSet(false, true)) {
+				break;
+			}
 		}
 	}
-	
-	class UDPMessage {
-		public IUDPSender handler = null;
-		public byte[] buffer = null;
-		public int offset = 0;
-		public int len = 0;
-
-		public UDPMessage(IUDPSender sender, byte[] data, int pos, int len) {
-			this.handler = sender;
-			this.buffer = data;
-			this.offset = pos;
-			this.len = len;
+
+	private static void send(IUDPSender handler, byte[] data, int pos, int len, IoBuffer buffer) {
+		if (buffer != null) {
+			try {
+				handler.handleSendMessage(buffer);
+			} finally {
+				PooledBufferAllocator.release(buffer);
+			}
+		} else {
+			handler.handleSendMessage(data, pos, len);
+		}
+	}
+
+	/**
+	 * Wakes up the sender when the first paced datagram is due
+	 */
+	private class WakeupTask implements TimerTask {
+
+		// guarded by this
+		private Timeout timeout;
+
+		private long deadline;
+
+		synchronized void schedule(long time, long delay) {
+			if (timeout != null) {
+				if (deadline <= time) {
+					return;
+				}
+				timeout.cancel();
+			}
+			deadline = time;
+			timeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		synchronized boolean isPending() {
+			return timeout != null;
+		}
+
+		/** {@inheritDoc} */
+		public void run(Timeout expired) {
+			synchronized (this) {
+				if (timeout == expired) {
+					timeout = null;
+				}
+			}
+			wakeup();
+		}
+	}
+
+	/**
+	 * Datagrams of one connection waiting for their send time
+	 */
+	private static class Backlog {
+
+		private final IUDPSender handler;
+
+		private byte[][] datas = new byte[16][];
+
+		private int[] offsets = new int[16];
+
+		private int[] lengths = new int[16];
+
+		private IoBuffer[] buffers = new IoBuffer[16];
+
+		private long[] times = new long[16];
+
+		private int head;
+
+		private int size;
+
+		Backlog(IUDPSender handler) {
+			this.handler = handler;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		long getTime() {
+			return times[head];
+		}
+
+		void add(byte[] data, int pos, int len, IoBuffer buffer, long time) {
+			if (size == datas.length) {
+				grow();
+			}
+			int idx = (head + size) & (datas.length - 1);
+			datas[idx] = data;
+			offsets[idx] = pos;
+			lengths[idx] = len;
+			buffers[idx] = buffer;
+			times[idx] = time;
+			size++;
+		}
+
+		int sendDue(long now) {
+			int sent = 0;
+			while (size > 0 && times[head] <= now) {
+				send(handler, datas[head], offsets[head], lengths[head], buffers[head]);
+				datas[head] = null;
+				buffers[head] = null;
+				head = (head + 1) & (datas.length - 1);
+				size--;
+				sent++;
+			}
+			return sent;
+		}
+
+		private void grow() {
+			int capacity = datas.length * 2;
+			byte[][] d = new byte[capacity][];
+			int[] o = new int[capacity];
+			int[] l = new int[capacity];
+			IoBuffer[] b = new IoBuffer[capacity];
+			long[] t = new long[capacity];
+			for (int i = 0; i < size; i++) {
+				int idx = (head + i) & (datas.length - 1);
+				d[i] = datas[idx];
+				o[i] = offsets[idx];
+				l[i] = lengths[idx];
+				b[i] = buffers[idx];
+				t[i] = times[idx];
+			}
+			datas = d;
+			offsets = o;
+			lengths = l;
+			buffers = b;
+			times = t;
+			head = 0;
 		}
 	}
 }
@@ -11,7 +11,7 @@ public abstract class UDPTransportConnectionBase {
 	
 	protected boolean isMulticast = false;
 	protected InetSocketAddress address = null;
-	protected boolean isOpen = true;
+	protected volatile boolean isOpen = true;
 
 	public boolean isMulticast() {
 		return this.isMulticast;
@@ -1,5 +1,7 @@
 package com.sms.server.net.udp;
 
+import org.apache.mina.core.buffer.IoBuffer;
+
 /**
  * UDP Transport Outgoing Connection Base
  * @author pengliren
@@ -14,4 +16,8 @@ public abstract class UDPTransportOutgoingConnectionBase extends UDPTransportCon
 	}
 
 	public abstract void sendMessage(byte[] data, int pos, int len);
+
+	public abstract void sendMessage(byte[] data, int pos, int len, long sendTime);
+
+	public abstract void sendMessage(IoBuffer data, long sendTime);
 }
@@ -1,7 +1,7 @@
 package com.sms.server.net.udp;
 
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -61,13 +61,17 @@ public class UnicastOutgoing implements IUDPTransportOutgoing {
 	@Override
 	public IUDPTransportOutgoingConnection connect(UDPDatagramConfig config, InetSocketAddress address) {
 		UnicastOutgoingConnection connection = null;
-		DatagramSocket datagramSocket = null;
+		DatagramChannel datagramChannel = null;
+		if (config == null) {
+			config = new UDPDatagramConfig();
+		}
 		lock.writeLock().lock();
 		try {
 			int nextConnectorIdx = getNextConnector();
 			ConnectorHolder connectorHolder = this.connectors[nextConnectorIdx];
-			datagramSocket = new DatagramSocket();
-			connection = new UnicastOutgoingConnection(this, datagramSocket, address, connectorHolder.sender, nextConnectorIdx);
+			datagramChannel = DatagramChannel.open();
+			datagramChannel.bind(null);
+			connection = new UnicastOutgoingConnection(this, datagramChannel, address, connectorHolder.sender, nextConnectorIdx, config.getDatagramMaximumPacketSize());
 			this.connections.add(connection);
 			connectorHolder.count++;
 			this.connectionCount++;
@@ -78,14 +82,14 @@ public class UnicastOutgoing implements IUDPTransportOutgoing {
 		}
 		
 		if (connection == null) {
-			if (datagramSocket != null) {
+			if (datagramChannel != null) {
 				try {
-					datagramSocket.close();
+					datagramChannel.close();
 				} catch (Exception e) {
 					log.error("close: {}", e.toString());
 				}
 			}
-			datagramSocket = null;
+			datagramChannel = null;
 		}
 		return connection;
 	}
@@ -100,7 +104,7 @@ public class UnicastOutgoing implements IUDPTransportOutgoing {
 	@Override
 	public void disconnect(IUDPTransportOutgoingConnection connection) {
 		UnicastOutgoingConnection tempConnection = null;
-		DatagramSocket datagramSocket = null;
+		DatagramChannel datagramChannel = null;
 		lock.writeLock().lock();
 		try {
 			if (connection instanceof UnicastOutgoingConnection && connections.contains(connection)) {
@@ -109,7 +113,7 @@ public class UnicastOutgoing implements IUDPTransportOutgoing {
 				ConnectorHolder localConnectorHolder = this.connectors[idx];
 				localConnectorHolder.count -= 1;
 				this.connectionCount -= 1L;
-				datagramSocket = tempConnection.socket;
+				datagramChannel = tempConnection.channel;
 				this.connections.remove(tempConnection);
 			}
 		} catch (Exception e) {
@@ -121,14 +125,14 @@ public class UnicastOutgoing implements IUDPTransportOutgoing {
 		if (tempConnection != null) {
 			synchronized (tempConnection) {
 				tempConnection.isOpen = false;
-				if (datagramSocket != null) {
+				if (datagramChannel != null) {
 					try {
-						datagramSocket.close();
+						datagramChannel.close();
 					} catch (Exception e) {
-						log.error("datagramSocket close: {}", e.toString());
+						log.error("datagramChannel close: {}", e.toString());
 					}
 				}
-				datagramSocket = null;
+				datagramChannel = null;
 			}
 		}
 	}
@@ -1,12 +1,15 @@
 package com.sms.server.net.udp;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.buffer.PooledBufferAllocator;
+
 /**
  * UnicastOutgingConnection
  * @author pengliren
@@ -17,24 +20,35 @@ public class UnicastOutgoingConnection extends UDPTransportOutgoingConnectionBas
 	private static final Logger log = LoggerFactory.getLogger(UnicastOutgoingConnection.class);
 	
 	public int connectorIndex = -1;
-	public DatagramSocket socket;
+	public DatagramChannel channel;
 	public UDPSender sender;
+	// reused for every datagram, sender thread only
+	private final ByteBuffer sendBuffer;
 	
-	public UnicastOutgoingConnection(IUDPTransportOutgoing udpTransportOutgoing, DatagramSocket datagramSocket, InetSocketAddress address, UDPSender udpSender, int connectorIdx) {
+	public UnicastOutgoingConnection(IUDPTransportOutgoing udpTransportOutgoing, DatagramChannel datagramChannel, InetSocketAddress address, UDPSender udpSender, int connectorIdx, int maxPacketSize) {
 		this.parent = udpTransportOutgoing;
-		this.socket = datagramSocket;
+		this.channel = datagramChannel;
 		this.sender = udpSender;
 		this.connectorIndex = connectorIdx;
 		this.isMulticast = true;
 		this.address = address;
+		this.sendBuffer = ByteBuffer.allocateDirect(maxPacketSize);
 	}
 	
 	@Override
 	public synchronized void handleSendMessage(byte[] data, int pos, int len) {
 		try {
 			if (this.isOpen) {
-				DatagramPacket packet = new DatagramPacket(data, pos, len, address.getAddress(), address.getPort());
-				this.socket.send(packet);
+				ByteBuffer buf;
+				if (len <= sendBuffer.capacity()) {
+					sendBuffer.clear();
+					sendBuffer.put(data, pos, len).flip();
+					buf = sendBuffer;
+				} else {
+					buf = ByteBuffer.wrap(data, pos, len);
+				}
+				// not connected, an unreachable client must not fail the following sends
+				this.channel.send(buf, address);
 			}
 		} catch (Exception e) {
 			log.error("handleSendMessage: {}", e.toString());
@@ -42,13 +56,34 @@ public class UnicastOutgoingConnection extends UDPTransportOutgoingConnectionBas
 	}
 
 	@Override
-	public synchronized void sendMessage(byte[] data, int pos, int len) {
+	public synchronized void handleSendMessage(IoBuffer data) {
 		try {
 			if (this.isOpen) {
-				this.sender.handleMessage(this, data, pos, len);
+				this.channel.send(data.buf(), address);
 			}
 		} catch (Exception e) {
-			log.error("sendMessage: {}", e.toString());
+			log.error("handleSendMessage: {}", e.toString());
+		}
+	}
+
+	@Override
+	public void sendMessage(byte[] data, int pos, int len) {
+		sendMessage(data, pos, len, 0);
+	}
+
+	@Override
+	public void sendMessage(byte[] data, int pos, int len, long sendTime) {
+		if (this.isOpen) {
+			this.sender.handleMessage(this, data, pos, len, sendTime);
+		}
+	}
+
+	@Override
+	public void sendMessage(IoBuffer data, long sendTime) {
+		if (this.isOpen) {
+			this.sender.handleMessage(this, data, sendTime);
+		} else {
+			PooledBufferAllocator.release(data);
 		}
 	}
 
@@ -1,14 +1,33 @@
 package com.sms.server.service;
 
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sms.server.api.IConnection;
 
+/**
+ * Finds the service method matching the arguments of a call.
+ * <p>
+ * The candidates for a service class, method name and argument types are searched once and
+ * cached with the class, the misses in a small LRU of their own, so a call neither lists the
+ * methods of the service nor throws and catches a NoSuchMethodException. What can be told from
+ * the argument types is decided then: the exact match, the candidates that can never match and
+ * the parameters that need no conversion. The conversion of the other parameters depends on the
+ * values and is still tried per call, in the order of the candidates. The result is (method,
+ * params, {@link ServiceMethod}).
+ * @author pengliren
+ *
+ */
 public class ReflectionUtils {
 
 	private static final Logger log = LoggerFactory.getLogger(ReflectionUtils.class);
@@ -16,6 +35,26 @@ public class ReflectionUtils {
 	//used to prevent extra object creation when a method with a set of params is not found
 	private static final Object[] nullReturn = new Object[] { null, null };
 
+	/**
+	 * Cached lookups per service class, method names come from the clients so the caches are bounded
+	 */
+	private static final int MAX_DISPATCH_ENTRIES = 4096;
+
+	/**
+	 * Methods not found, kept apart so unknown names cannot fill the cache of the found ones
+	 */
+	private static final int MAX_MISSING_ENTRIES = 256;
+
+	/**
+	 * Lookups kept with the service class, they go away with the class loader of a stopped application
+	 */
+	private static final ClassValue<DispatchCache> dispatchCaches = new ClassValue<DispatchCache>() {
+		@Override
+		protected DispatchCache computeValue(Class<?> type) {
+			return new DispatchCache();
+		}
+	};
+
 	/**
 	 * Returns (method, params) for the given service or (null, null) if no
 	 * method was found.
@@ -45,68 +84,23 @@ public class ReflectionUtils {
 	 * @return                 Method/params pairs
 	 */
 	public static Object[] findMethodWithExactParameters(Object service, String methodName, Object[] args) {
-		int numParams = (args == null) ? 0 : args.length;
-
-		Method method = null;
-
-		try {
-			//try to skip the listing of all the methods by checking for exactly what
-			//we want first
-			method = service.getClass().getMethod(methodName, ConversionUtils.convertParams(args));
-			log.debug("Exact method found (skipping list): {}", methodName);
-			return new Object[] { method, args };
-		} catch (NoSuchMethodException nsme) {
-			log.debug("Method not found using exact parameter types");
-		}
-
-		List<Method> methods = ConversionUtils.findMethodsByNameAndNumParams(service, methodName, numParams);
-		log.debug("Found {} methods", methods.size());
-		if (methods.isEmpty()) {
-			return new Object[] { null, null };
-		} else if (methods.size() == 1 && args == null) {
-			return new Object[] { methods.get(0), null };
-		} else if (methods.size() > 1) {
-			log.debug("Multiple methods found with same name and parameter count.");
-			log.debug("Parameter conversion will be attempted in order.");
-		}
-
-		Object[] params = null;
-
-		// First search for method with exact parameters
-		for (int i = 0; i < methods.size(); i++) {
-			method = methods.get(i);
-			boolean valid = true;
-			Class<?>[] paramTypes = method.getParameterTypes();
-			for (int j = 0; j < args.length; j++) {
-				if ((args[j] == null && paramTypes[j].isPrimitive())
-						|| (args[j] != null && !args[j].getClass().equals(paramTypes[j]))) {
-					valid = false;
-					break;
-				}
-			}
-
-			if (valid) {
-				return new Object[] { method, args };
-			}
+		Dispatch dispatch = getDispatch(service, methodName, args, false);
+		if (dispatch.exact != null) {
+			return new Object[] { dispatch.exact.getMethod(), args, dispatch.exact };
 		}
-
-		// Then try to convert parameters
-		for (int i = 0; i < methods.size(); i++) {
+		for (Candidate candidate : dispatch.candidates) {
 			try {
-				method = methods.get(i);
-				params = ConversionUtils.convertParams(args, method.getParameterTypes());
+				Object[] params = candidate.convert(args);
 				if (args.length > 0 && (args[0] instanceof IConnection) && (!(params[0] instanceof IConnection))) {
 					// Don't convert first IConnection parameter
 					continue;
 				}
-
-				return new Object[] { method, params };
+				return new Object[] { candidate.method.getMethod(), params, candidate.method };
 			} catch (Exception ex) {
-				log.debug("Parameter conversion failed for {}", method);
+				log.debug("Parameter conversion failed for {}", candidate.method);
 			}
 		}
-
-		return new Object[] { null, null };
+		return nullReturn;
 	}
 
 	/**
@@ -137,54 +131,237 @@ public class ReflectionUtils {
 	 * @return                 Method/params pairs
 	 */
 	public static Object[] findMethodWithListParameters(Object service, String methodName, Object[] args) {
+		Dispatch dispatch = getDispatch(service, methodName, args, true);
+		if (dispatch.exact != null) {
+			return new Object[] { dispatch.exact.getMethod(), args, dispatch.exact };
+		}
+		if (dispatch.candidates.length == 0) {
+			return nullReturn;
+		}
+		ArrayList<Object> argsList = new ArrayList<Object>();
+		if (args != null) {
+			for (Object element : args) {
+				argsList.add(element);
+			}
+		}
+		Object[] listArgs = new Object[] { argsList };
+		for (Candidate candidate : dispatch.candidates) {
+			try {
+				Object[] params = candidate.convert(listArgs);
+				if (argsList.size() > 0 && (argsList.get(0) instanceof IConnection)
+						&& (!(params[0] instanceof IConnection))) {
+					// Don't convert first IConnection parameter
+					continue;
+				}
+				return new Object[] { candidate.method.getMethod(), params, candidate.method };
+			} catch (Exception ex) {
+				log.debug("Parameter conversion failed", ex);
+			}
+		}
+		return nullReturn;
+	}
 
-		Method method = null;
+	private static Dispatch getDispatch(Object service, String methodName, Object[] args, boolean list) {
+		DispatchKey key = new DispatchKey(methodName, ConversionUtils.convertParams(args), list);
+		DispatchCache cache = dispatchCaches.get(service.getClass());
+		Dispatch dispatch = cache.get(key);
+		if (dispatch == null) {
+			dispatch = resolve(service, methodName, key.argTypes, list);
+			cache.put(key, dispatch);
+		}
+		return dispatch;
+	}
 
+	/**
+	 * Search the methods matching the given argument types
+	 */
+	private static Dispatch resolve(Object service, String methodName, Class<?>[] argTypes, boolean list) {
 		try {
 			//try to skip the listing of all the methods by checking for exactly what
 			//we want first
-			method = service.getClass().getMethod(methodName, ConversionUtils.convertParams(args));
+			Method method = service.getClass().getMethod(methodName, argTypes);
 			log.debug("Exact method found (skipping list): {}", methodName);
-			return new Object[] { method, args };
+			return new Dispatch(new ServiceMethod(method), Dispatch.NO_CANDIDATES);
 		} catch (NoSuchMethodException nsme) {
 			log.debug("Method not found using exact parameter types");
 		}
-
-		List<Method> methods = ConversionUtils.findMethodsByNameAndNumParams(service, methodName, 1);
+		List<Method> methods = ConversionUtils.findMethodsByNameAndNumParams(service, methodName, list ? 1 : argTypes.length);
 		log.debug("Found {} methods", methods.size());
 		if (methods.isEmpty()) {
-			return new Object[] { null, null };
+			return Dispatch.NOT_FOUND;
 		} else if (methods.size() > 1) {
 			log.debug("Multiple methods found with same name and parameter count.");
 			log.debug("Parameter conversion will be attempted in order.");
 		}
+		if (!list) {
+			// First search for method with exact parameters
+			for (Method method : methods) {
+				boolean valid = true;
+				Class<?>[] paramTypes = method.getParameterTypes();
+				for (int j = 0; j < argTypes.length; j++) {
+					if ((argTypes[j] == null && paramTypes[j].isPrimitive())
+							|| (argTypes[j] != null && !argTypes[j].equals(paramTypes[j]))) {
+						valid = false;
+						break;
+					}
+				}
+				if (valid) {
+					return new Dispatch(new ServiceMethod(method), Dispatch.NO_CANDIDATES);
+				}
+			}
+		}
+		// Then the methods the parameters might be converted to
+		Class<?>[] sourceTypes = (list ? new Class<?>[] { ArrayList.class } : argTypes);
+		List<Candidate> candidates = new ArrayList<Candidate>(methods.size());
+		for (Method method : methods) {
+			Candidate candidate = Candidate.create(method, sourceTypes);
+			if (candidate != null) {
+				candidates.add(candidate);
+			}
+		}
+		return new Dispatch(null, candidates.toArray(new Candidate[candidates.size()]));
+	}
 
-		ArrayList<Object> argsList = new ArrayList<Object>();
-		if (args != null) {
-			for (Object element : args) {
-				argsList.add(element);
+	/**
+	 * Lookups of one service class: the found methods up to a bound, the misses in a small LRU
+	 */
+	private static final class DispatchCache {
+
+		private final ConcurrentMap<DispatchKey, Dispatch> found = new ConcurrentHashMap<DispatchKey, Dispatch>();
+
+		private final Map<DispatchKey, Dispatch> missing = new LinkedHashMap<DispatchKey, Dispatch>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<DispatchKey, Dispatch> eldest) {
+				return size() > MAX_MISSING_ENTRIES;
+			}
+		};
+
+		Dispatch get(DispatchKey key) {
+			Dispatch dispatch = found.get(key);
+			if (dispatch == null) {
+				synchronized (missing) {
+					dispatch = missing.get(key);
+				}
 			}
+			return dispatch;
 		}
-		args = new Object[] { argsList };
 
-		Object[] params = null;
-		for (int i = 0; i < methods.size(); i++) {
-			try {
-				method = methods.get(i);
-				params = ConversionUtils.convertParams(args, method.getParameterTypes());
-				if (argsList.size() > 0 && (argsList.get(0) instanceof IConnection)
-						&& (!(params[0] instanceof IConnection))) {
-					// Don't convert first IConnection parameter
-					continue;
+		void put(DispatchKey key, Dispatch dispatch) {
+			if (dispatch.exact == null && dispatch.candidates.length == 0) {
+				synchronized (missing) {
+					missing.put(key, dispatch);
 				}
+			} else if (found.size() < MAX_DISPATCH_ENTRIES) {
+				found.put(key, dispatch);
+			} else {
+				log.debug("Dispatch cache full, {} not cached", key.methodName);
+			}
+		}
+	}
 
-				return new Object[] { method, params };
-			} catch (Exception ex) {
-				log.debug("Parameter conversion failed", ex);
+	private static final class DispatchKey {
+
+		private final String methodName;
+
+		private final Class<?>[] argTypes;
+
+		private final boolean list;
+
+		private final int hash;
+
+		DispatchKey(String methodName, Class<?>[] argTypes, boolean list) {
+			this.methodName = methodName;
+			this.argTypes = argTypes;
+			this.list = list;
+			this.hash = (methodName.hashCode() * 31 + Arrays.hashCode(argTypes)) * 2 + (list ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof DispatchKey)) {
+				return false;
 			}
+			DispatchKey other = (DispatchKey) obj;
+			return hash == other.hash && list == other.list && methodName.equals(other.methodName) && Arrays.equals(argTypes, other.argTypes);
 		}
+	}
 
-		return nullReturn;
+	/**
+	 * Outcome of a search: the exact match, or the candidates in the order they are tried
+	 */
+	private static final class Dispatch {
+
+		static final Candidate[] NO_CANDIDATES = new Candidate[0];
+
+		static final Dispatch NOT_FOUND = new Dispatch(null, NO_CANDIDATES);
+
+		final ServiceMethod exact;
+
+		final Candidate[] candidates;
+
+		Dispatch(ServiceMethod exact, Candidate[] candidates) {
+			this.exact = exact;
+			this.candidates = candidates;
+		}
+	}
+
+	/**
+	 * Method reached by converting parameters, the parameters already of the right type are
+	 * passed as they are
+	 */
+	private static final class Candidate {
+
+		final ServiceMethod method;
+
+		final Class<?>[] paramTypes;
+
+		final boolean[] convert;
+
+		private Candidate(ServiceMethod method, Class<?>[] paramTypes, boolean[] convert) {
+			this.method = method;
+			this.paramTypes = paramTypes;
+			this.convert = convert;
+		}
+
+		/**
+		 * @return candidate, null if arguments of the given types can never be converted
+		 */
+		static Candidate create(Method method, Class<?>[] sourceTypes) {
+			Class<?>[] paramTypes = method.getParameterTypes();
+			boolean[] convert = new boolean[paramTypes.length];
+			for (int i = 0; i < paramTypes.length; i++) {
+				Class<?> source = sourceTypes[i];
+				Class<?> target = paramTypes[i];
+				if (source == null) {
+					if (target.isPrimitive()) {
+						return null;
+					}
+				} else if (IConnection.class.isAssignableFrom(source) && !target.equals(IConnection.class)) {
+					// IConnection must match exactly
+					return null;
+				} else {
+					Class<?> wrapper = (target.isPrimitive() ? MethodType.methodType(target).wrap().returnType() : target);
+					convert[i] = !wrapper.isAssignableFrom(source);
+				}
+			}
+			return new Candidate(new ServiceMethod(method), paramTypes, convert);
+		}
+
+		Object[] convert(Object[] args) {
+			Object[] params = new Object[paramTypes.length];
+			for (int i = 0; i < paramTypes.length; i++) {
+				params[i] = (convert[i] ? ConversionUtils.convert(args[i], paramTypes[i]) : args[i]);
+			}
+			return params;
+		}
 	}
 
 }
@@ -10,7 +10,6 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.sms.annotations.DeclarePrivate;
 import com.sms.annotations.DeclareProtected;
 import com.sms.server.api.IConnection;
 import com.sms.server.api.IScope;
@@ -171,15 +170,16 @@ public class ServiceInvoker implements IServiceInvoker {
 		Object result = null;
 		Method method = (Method) methodResult[0];
 		Object[] params = (Object[]) methodResult[1];
+		ServiceMethod serviceMethod = (ServiceMethod) methodResult[2];
 
 		try {
-			if (method.isAnnotationPresent(DeclarePrivate.class)) {
+			if (serviceMethod.isDeclaredPrivate()) {
 				// Method may not be called by clients.
 				log.debug("Method {} is declared private.", method);
 				throw new NotAllowedException("you are not allowed to execute this method");
 			}
 			
-			final DeclareProtected annotation = method.getAnnotation(DeclareProtected.class);
+			final DeclareProtected annotation = serviceMethod.getDeclaredProtected();
 			if (annotation != null) {
 				if (!conn.getClient().hasPermission(conn, annotation.permission())) {
 					// Client doesn't have required permission
@@ -188,13 +188,13 @@ public class ServiceInvoker implements IServiceInvoker {
 				}
 			}
 			
-			log.debug("Invoking method: {}", method.toString());
+			log.debug("Invoking method: {}", method);
 
 			if (method.getReturnType() == Void.class) {
-				method.invoke(service, params);
+				serviceMethod.invoke(service, params);
 				call.setStatus(Call.STATUS_SUCCESS_VOID);
 			} else {
-				result = method.invoke(service, params);
+				result = serviceMethod.invoke(service, params);
 				log.debug("result: {}", result);
 				call.setStatus(result == null ? Call.STATUS_SUCCESS_NULL : Call.STATUS_SUCCESS_RESULT);
 			}
@@ -0,0 +1,141 @@
+package com.sms.server.service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import com.sms.annotations.DeclarePrivate;
+import com.sms.annotations.DeclareProtected;
+
+/**
+ * Service method resolved once per service class, with a method handle taking the service and
+ * the parameters array and the access annotations read ahead of the calls.
+ * @author pengliren
+ *
+ */
+public final class ServiceMethod {
+
+	private static final Object[] NO_PARAMS = new Object[0];
+
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+	private final Method method;
+
+	// null when the method cannot be looked up, the method is invoked by reflection then
+	private final MethodHandle handle;
+
+	private final boolean declaredPrivate;
+
+	private final DeclareProtected declaredProtected;
+
+	public ServiceMethod(Method method) {
+		this.method = method;
+		this.declaredPrivate = method.isAnnotationPresent(DeclarePrivate.class);
+		this.declaredProtected = method.getAnnotation(DeclareProtected.class);
+		MethodHandle mh = null;
+		try {
+			int count = method.getParameterTypes().length;
+			mh = MethodHandles.publicLookup().unreflect(method).asFixedArity();
+			mh = mh.asType(MethodType.genericMethodType(count + 1)).asSpreader(Object[].class, count).asType(INVOKER_TYPE);
+		} catch (IllegalAccessException e) {
+			// public method of a class not visible from here
+			mh = null;
+		}
+		this.handle = mh;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return true if the method may not be called by clients
+	 */
+	public boolean isDeclaredPrivate() {
+		return declaredPrivate;
+	}
+
+	/**
+	 * @return permission protecting the method, null if none
+	 */
+	public DeclareProtected getDeclaredProtected() {
+		return declaredProtected;
+	}
+
+	/**
+	 * Invoke the method, exceptions are reported like {@link Method#invoke(Object, Object...)} does.
+	 *
+	 * @param service service
+	 * @param params converted parameters, null for none
+	 * @return result, null for void methods
+	 * @throws IllegalAccessException if the method is not accessible
+	 * @throws IllegalArgumentException if the parameters do not match the method
+	 * @throws InvocationTargetException if the method throws
+	 */
+	public Object invoke(Object service, Object[] params) throws IllegalAccessException, InvocationTargetException {
+		if (handle == null) {
+			return method.invoke(service, params);
+		}
+		// the exact call site type is taken from the static types of the arguments
+		Object[] args = (params != null ? params : NO_PARAMS);
+		try {
+			return (Object) handle.invokeExact(service, args);
+		} catch (Throwable t) {
+			if ((t instanceof ClassCastException || t instanceof NullPointerException || t instanceof IllegalArgumentException || t instanceof WrongMethodTypeException)
+					&& !accepts(args)) {
+				// thrown by the handle converting the parameters, not by the method
+				throw new IllegalArgumentException(args.length != method.getParameterTypes().length ? "wrong number of arguments" : "argument type mismatch");
+			}
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	/**
+	 * Whether reflection would accept the parameters: the count matches, references are instances
+	 * of their parameter types and primitives are given as wrappers widening to them.
+	 */
+	private boolean accepts(Object[] args) {
+		Class<?>[] paramTypes = method.getParameterTypes();
+		if (args.length != paramTypes.length) {
+			return false;
+		}
+		for (int i = 0; i < args.length; i++) {
+			Class<?> type = paramTypes[i];
+			Object arg = args[i];
+			if (!type.isPrimitive()) {
+				if (arg != null && !type.isInstance(arg)) {
+					return false;
+				}
+			} else if (arg == null || !widens(MethodType.methodType(arg.getClass()).unwrap().returnType(), type)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean widens(Class<?> from, Class<?> to) {
+		if (from == to) {
+			return from.isPrimitive();
+		}
+		if (to == double.class) {
+			return from == float.class || from == long.class || from == int.class || from == char.class || from == short.class || from == byte.class;
+		} else if (to == float.class) {
+			return from == long.class || from == int.class || from == char.class || from == short.class || from == byte.class;
+		} else if (to == long.class) {
+			return from == int.class || from == char.class || from == short.class || from == byte.class;
+		} else if (to == int.class) {
+			return from == char.class || from == short.class || from == byte.class;
+		} else if (to == short.class) {
+			return from == byte.class;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return method.toString();
+	}
+}
@@ -3,6 +3,8 @@ package com.sms.server.so;
 import static com.sms.server.api.so.ISharedObject.TYPE;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -11,6 +13,7 @@ import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +23,7 @@ import com.sms.io.object.Output;
 import com.sms.io.object.Serializer;
 import com.sms.server.AttributeStore;
 import com.sms.server.api.IAttributeStore;
+import com.sms.server.api.IConnection.Encoding;
 import com.sms.server.api.event.IEventListener;
 import com.sms.server.api.persistence.IPersistable;
 import com.sms.server.api.persistence.IPersistenceStore;
@@ -29,6 +33,7 @@ import com.sms.server.api.statistics.ISharedObjectStatistics;
 import com.sms.server.api.statistics.StatisticsCounter;
 import com.sms.server.net.rtmp.RTMPConnection;
 import com.sms.server.net.rtmp.codec.RTMP;
+import com.sms.server.net.rtmp.codec.RTMPProtocolEncoder;
 import com.sms.server.net.rtmp.message.Constants;
 import com.sms.server.so.ISharedObjectEvent.Type;
 
@@ -58,6 +63,11 @@ public class SharedObject extends AttributeStore implements ISharedObjectStatist
 	 */
 	protected static Logger log = LoggerFactory.getLogger(SharedObject.class);
 
+	/**
+	 * Encoder of the sync messages shared by all the listeners
+	 */
+	private static final RTMPProtocolEncoder encoder = new RTMPProtocolEncoder();
+
 	/**
 	 * Shared Object name (identifier)
 	 */
@@ -109,6 +119,26 @@ public class SharedObject extends AttributeStore implements ISharedObjectStatist
 	 */
 	protected volatile ConcurrentLinkedQueue<ISharedObjectEvent> syncEvents = new ConcurrentLinkedQueue<ISharedObjectEvent>();
 
+	/**
+	 * Sync events waiting for the next broadcast
+	 */
+	private final ConcurrentLinkedQueue<PendingSync> pendingSyncs = new ConcurrentLinkedQueue<PendingSync>();
+
+	/**
+	 * Whether a broadcast is scheduled or running, only one job drains the pending syncs at a time
+	 */
+	private final AtomicBoolean broadcastScheduled = new AtomicBoolean();
+
+	private final IScheduledJob broadcastJob = new IScheduledJob() {
+		public void execute(ISchedulingService service) {
+			// the flag is cleared once drained, updates queued meanwhile are sent by this job
+			do {
+				broadcastUpdates();
+				broadcastScheduled.set(false);
+			} while (!pendingSyncs.isEmpty() && broadcastScheduled.compareAndSet(false, true));
+		}
+	};
+
 	/**
 	 * Listeners
 	 */
@@ -300,46 +330,131 @@ public class SharedObject extends AttributeStore implements ISharedObjectStatist
 				con.sendSharedObjectMessage(name, currentVersion, persistent, events);
 			}
 		}
-		// tell all the listeners
+		// tell all the listeners on the next broadcast
 		if (!syncEvents.isEmpty()) {
-			// get all current sync events 
-			final ConcurrentLinkedQueue<ISharedObjectEvent> events = new ConcurrentLinkedQueue<ISharedObjectEvent>();
-			if (syncEvents.size() > SharedObjectService.MAXIMUM_EVENTS_PER_UPDATE) {
-				log.debug("Sync events exceed max: {}", syncEvents.size());
-				for (int i = 0; i < SharedObjectService.MAXIMUM_EVENTS_PER_UPDATE; i++) {
-					events.add(syncEvents.poll());
-				}
+			List<ISharedObjectEvent> events = new ArrayList<ISharedObjectEvent>();
+			ISharedObjectEvent event;
+			while ((event = syncEvents.poll()) != null) {
+				events.add(event);
+			}
+			pendingSyncs.add(new PendingSync(source, currentVersion, events));
+			if (broadcastScheduled.compareAndSet(false, true)) {
+				SharedObjectService.submitJob(broadcastJob);
+			}
+		}
+	}
+
+	/**
+	 * Send the sync events queued since the last broadcast to the listeners. Consecutive updates of
+	 * the same source go out together, with the changes of a key coalesced to the last one.
+	 */
+	protected void broadcastUpdates() {
+		PendingSync batch = null;
+		PendingSync sync;
+		while ((sync = pendingSyncs.poll()) != null) {
+			if (batch != null && batch.source == sync.source) {
+				batch.version = sync.version;
+				batch.events.addAll(sync.events);
 			} else {
-				events.addAll(syncEvents);
-				syncEvents.removeAll(events);
+				if (batch != null) {
+					broadcast(batch);
+				}
+				batch = sync;
 			}
-			// get the listeners
-			Set<IEventListener> listeners = getListeners();
-			// updates all registered clients of this shared object
-			for (IEventListener listener : listeners) {
-				if (listener != source) {
-					if (listener instanceof RTMPConnection) {
-						final RTMPConnection con = (RTMPConnection) listener;
-						if (con.getStateCode() == RTMP.STATE_CONNECTED) {
-							// create a worker
-							IScheduledJob job = new IScheduledJob() {
-								public void execute(ISchedulingService service) {
-									con.sendSharedObjectMessage(name, currentVersion, persistent, events);
-								}
-							};
-							SharedObjectService.submitJob(job);
-						} else {
-							log.debug("Skipping unconnected connection");
-						}					
+		}
+		if (batch != null) {
+			broadcast(batch);
+		}
+	}
+
+	/**
+	 * Encode the events once per object encoding and write them to every listener but the source.
+	 */
+	private void broadcast(PendingSync sync) {
+		List<ISharedObjectEvent> events = coalesce(sync.events);
+		int max = Math.max(1, SharedObjectService.MAXIMUM_EVENTS_PER_UPDATE);
+		for (int from = 0; from < events.size(); from += max) {
+			List<ISharedObjectEvent> chunk = events.subList(from, Math.min(from + max, events.size()));
+			IoBuffer amf0Body = null;
+			IoBuffer amf3Body = null;
+			for (IEventListener listener : getListeners()) {
+				if (listener == sync.source) {
+					// don't re-send update to active client
+					log.debug("Skipped {}", sync.source);
+				} else if (!(listener instanceof RTMPConnection)) {
+					log.warn("Can't send sync message to unknown connection {}", listener);
+				} else if (((RTMPConnection) listener).getStateCode() != RTMP.STATE_CONNECTED) {
+					log.debug("Skipping unconnected connection");
+				} else {
+					RTMPConnection con = (RTMPConnection) listener;
+					IoBuffer body;
+					if (con.getEncoding() == Encoding.AMF3) {
+						if (amf3Body == null) {
+							amf3Body = encode(sync.version, chunk, Encoding.AMF3);
+						}
+						body = amf3Body;
 					} else {
-						log.warn("Can't send sync message to unknown connection {}", listener);
+						if (amf0Body == null) {
+							amf0Body = encode(sync.version, chunk, Encoding.AMF0);
+						}
+						body = amf0Body;
 					}
-				} else {
-					// don't re-send update to active client
-					log.debug("Skipped {}", source);
+					con.sendSharedObjectMessage(name, sync.version, persistent, body);
+				}
+			}
+		}
+	}
+
+	private IoBuffer encode(int currentVersion, List<ISharedObjectEvent> events, Encoding encoding) {
+		IoBuffer body;
+		if (encoding == Encoding.AMF3) {
+			SharedObjectMessage message = new FlexSharedObjectMessage(null, name, currentVersion, persistent);
+			message.addEvents(events);
+			body = encoder.encodeFlexSharedObject(message, encoding);
+		} else {
+			SharedObjectMessage message = new SharedObjectMessage(null, name, currentVersion, persistent);
+			message.addEvents(events);
+			body = encoder.encodeSharedObject(message, encoding);
+		}
+		body.flip();
+		return body.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Drop the changes of a key followed by another change of the same key. Messages, clears and
+	 * updates of several keys at once are kept in place, the changes before them are not merged
+	 * with the ones after them.
+	 * 
+	 * @param events sync events in order
+	 * @return events to send
+	 */
+	static List<ISharedObjectEvent> coalesce(List<ISharedObjectEvent> events) {
+		List<ISharedObjectEvent> result = new ArrayList<ISharedObjectEvent>(events.size());
+		Map<String, Integer> lastChange = new HashMap<String, Integer>();
+		int dropped = 0;
+		for (ISharedObjectEvent event : events) {
+			Type type = event.getType();
+			if ((type == Type.CLIENT_UPDATE_DATA || type == Type.CLIENT_DELETE_DATA) && event.getKey() != null) {
+				Integer previous = lastChange.put(event.getKey(), result.size());
+				if (previous != null) {
+					result.set(previous, null);
+					dropped++;
+				}
+			} else {
+				lastChange.clear();
+			}
+			result.add(event);
+		}
+		if (dropped > 0) {
+			List<ISharedObjectEvent> coalesced = new ArrayList<ISharedObjectEvent>(result.size() - dropped);
+			for (ISharedObjectEvent event : result) {
+				if (event != null) {
+					coalesced.add(event);
 				}
 			}
+			result = coalesced;
 		}
+		return result;
 	}
 
 	/**
@@ -698,6 +813,7 @@ public class SharedObject extends AttributeStore implements ISharedObjectStatist
 		super.removeAttributes();
 		listeners.clear();
 		syncEvents.clear();
+		pendingSyncs.clear();
 		ownerMessage.getEvents().clear();
 	}
 
@@ -773,4 +889,22 @@ public class SharedObject extends AttributeStore implements ISharedObjectStatist
 	public int getTotalSends() {
 		return sendStats.intValue();
 	}
+
+	/**
+	 * Sync events of an update with the listener that made it
+	 */
+	private static final class PendingSync {
+
+		final IEventListener source;
+
+		int version;
+
+		final List<ISharedObjectEvent> events;
+
+		PendingSync(IEventListener source, int version, List<ISharedObjectEvent> events) {
+			this.source = source;
+			this.version = version;
+			this.events = events;
+		}
+	}
 }
@@ -8,6 +8,8 @@ import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.apache.mina.core.buffer.IoBuffer;
+
 import com.sms.server.api.event.IEventListener;
 import com.sms.server.net.rtmp.event.BaseEvent;
 
@@ -37,6 +39,11 @@ public class SharedObjectMessage extends BaseEvent implements ISharedObjectMessa
 	 * Whether SO persistent
 	 */
 	private boolean persistent;
+
+	/**
+	 * Body encoded once for all the connections of the same encoding, read-only, null to encode the events
+	 */
+	private transient IoBuffer body;
 	
 	public SharedObjectMessage() {
 	}
@@ -137,6 +144,22 @@ public class SharedObjectMessage extends BaseEvent implements ISharedObjectMessa
 		return events;
 	}
 
+	/**
+	 * @return body encoded once for all the connections, null if the events are to be encoded
+	 */
+	public IoBuffer getBody() {
+		return body;
+	}
+
+	/**
+	 * Send a body encoded once for all the connections with the encoding of the receiver instead of the events.
+	 *
+	 * @param body read-only body, positioned at its start
+	 */
+	public void setBody(IoBuffer body) {
+		this.body = body;
+	}
+
 	/** {@inheritDoc} */
 	public void addEvent(ISharedObjectEvent.Type type, String key, Object value) {
 		events.add(new SharedObjectEvent(type, key, value));
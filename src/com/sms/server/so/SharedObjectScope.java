@@ -1,6 +1,5 @@
 package com.sms.server.so;
 
-import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +28,7 @@ import com.sms.server.api.so.ISharedObjectSecurityService;
 import com.sms.server.api.statistics.ISharedObjectStatistics;
 import com.sms.server.net.rtmp.status.StatusCodes;
 import com.sms.server.service.ReflectionUtils;
+import com.sms.server.service.ServiceMethod;
 
 /**
  * Special scope for shared objects
@@ -214,7 +214,7 @@ public class SharedObjectScope extends BasicScope implements ISharedObject, Stat
 			}
 			// If method is found...
 			if (methodResult.length > 0 && methodResult[0] != null) {
-				Method method = (Method) methodResult[0];
+				ServiceMethod method = (ServiceMethod) methodResult[2];
 				Object[] params = (Object[]) methodResult[1];
 				//...try to invoke it and handle exceptions
 				try {
@@ -52,6 +52,7 @@ import com.sms.server.messaging.IPushableConsumer;
 import com.sms.server.messaging.InMemoryPushPushPipe;
 import com.sms.server.messaging.OOBControlMessage;
 import com.sms.server.messaging.PipeConnectionEvent;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.net.rtmp.event.AudioData;
 import com.sms.server.net.rtmp.event.IRTMPEvent;
 import com.sms.server.net.rtmp.event.Invoke;
@@ -310,6 +311,7 @@ public class ClientBroadcastStream extends AbstractClientStream implements IClie
 		// notify event listeners
 		checkSendNotifications(event); 
 		// note this timestamp is set in event/body but not in the associated header
+		ChunkedPayloadCache chunkedPayload = null;
 		try {
 			// route to recording
 			if (recording) {
@@ -352,6 +354,16 @@ public class ClientBroadcastStream extends AbstractClientStream implements IClie
 			}
 			// route to live
 			if (livePipe != null) {
+				// share the chunked payload among the subscribers, each of them retains it until encoded
+				if (buf != null && buf.limit() > 0) {
+					if (rtmpEvent instanceof VideoData) {
+						chunkedPayload = new ChunkedPayloadCache(buf);
+						((VideoData) rtmpEvent).setChunkedPayload(chunkedPayload);
+					} else if (rtmpEvent instanceof AudioData) {
+						chunkedPayload = new ChunkedPayloadCache(buf);
+						((AudioData) rtmpEvent).setChunkedPayload(chunkedPayload);
+					}
+				}
 				// create new RTMP message, initialize it and push through pipe
 				RTMPMessage msg = RTMPMessage.build(rtmpEvent, eventTime);
 				livePipe.pushMessage(msg);
@@ -362,15 +374,21 @@ public class ClientBroadcastStream extends AbstractClientStream implements IClie
 			sendRecordFailedNotify(err.getMessage());
 			stop();
 		}
-		// Notify listeners about received packet
-		if (rtmpEvent instanceof IStreamPacket) {
-			for (IStreamListener listener : getStreamListeners()) {
-				try {
-					listener.packetReceived(this, (IStreamPacket) rtmpEvent);
-				} catch (Exception e) {
-					log.error("Error while notifying listener {}", listener, e);
+		// Notify listeners about received packet, rtsp viewers share the rtp payloads through the chunked payload
+		try {
+			if (rtmpEvent instanceof IStreamPacket) {
+				for (IStreamListener listener : getStreamListeners()) {
+					try {
+						listener.packetReceived(this, (IStreamPacket) rtmpEvent);
+					} catch (Exception e) {
+						log.error("Error while notifying listener {}", listener, e);
+					}
 				}
 			}
+		} finally {
+			if (chunkedPayload != null) {
+				chunkedPayload.release();
+			}
 		}
 	}
 
@@ -0,0 +1,166 @@
+package com.sms.server.stream;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.server.util.CustomizableThreadFactory;
+import com.sms.server.util.SystemTimer;
+import com.sms.server.util.timer.HashedWheelTimer;
+import com.sms.server.util.timer.Timeout;
+import com.sms.server.util.timer.Timer;
+import com.sms.server.util.timer.TimerTask;
+
+/**
+ * Pacing Scheduler
+ * <p>
+ * Wakes up vod subscribers only when they can send. A subscriber runs once per wake up
+ * and decides itself when it needs to run again: right away, at a deadline derived from
+ * the media timestamps and the client buffer, or when its connection has written the
+ * queued messages. Deadlines are kept in one timer wheel shared by all subscribers, the
+ * subscribers run on their stream executor.
+ * @author pengliren
+ *
+ */
+public class PacingScheduler {
+
+	private static Logger log = LoggerFactory.getLogger(PacingScheduler.class);
+
+	/**
+	 * Timer wheel resolution in ms
+	 */
+	private static final long TICK_DURATION = 10;
+
+	private final Timer timer = new HashedWheelTimer(new CustomizableThreadFactory("PacingTimerExecutor-"), TICK_DURATION, TimeUnit.MILLISECONDS);
+
+	private static final class SingletonHolder {
+
+		private static final PacingScheduler INSTANCE = new PacingScheduler();
+	}
+
+	protected PacingScheduler() {
+
+	}
+
+	public static PacingScheduler getInstance() {
+
+		return SingletonHolder.INSTANCE;
+	}
+
+	/**
+	 * Create a task running the given job on the executor whenever it is woken up.
+	 *
+	 * @param job job to run
+	 * @param executor executor running the job
+	 * @return idle task
+	 */
+	public PacingTask newTask(Runnable job, Executor executor) {
+
+		return new PacingTask(job, executor);
+	}
+
+	/**
+	 * Subscriber job, runs at most once per wake up. Wake ups while the job is queued are
+	 * merged, a deadline replaces a later one.
+	 */
+	public final class PacingTask implements Runnable, TimerTask {
+
+		private final Runnable job;
+
+		private final Executor executor;
+
+		private final AtomicBoolean queued = new AtomicBoolean();
+
+		private volatile boolean cancelled;
+
+		// guarded by this
+		private Timeout timeout;
+
+		private long deadline;
+
+		private PacingTask(Runnable job, Executor executor) {
+			this.job = job;
+			this.executor = executor;
+		}
+
+		/**
+		 * Run the job as soon as possible.
+		 */
+		public void wakeup() {
+			if (!cancelled && queued.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					queued.set(false);
+					log.warn("Pacing task rejected: {}", e.getMessage());
+				}
+			}
+		}
+
+		/**
+		 * Run the job after the given delay unless it is woken up earlier.
+		 *
+		 * @param delay delay in ms
+		 */
+		public void wakeupAfter(long delay) {
+			if (delay <= 0) {
+				wakeup();
+				return;
+			}
+			long time = SystemTimer.currentTimeMillis() + delay;
+			synchronized (this) {
+				if (cancelled) {
+					return;
+				}
+				if (timeout != null) {
+					if (deadline <= time) {
+						// an earlier wake up is planned already
+						return;
+					}
+					timeout.cancel();
+				}
+				deadline = time;
+				timeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		/**
+		 * Stop running the job, wake ups are ignored from now on.
+		 */
+		public void cancel() {
+			cancelled = true;
+			synchronized (this) {
+				if (timeout != null) {
+					timeout.cancel();
+					timeout = null;
+				}
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/** {@inheritDoc} */
+		public void run(Timeout expired) {
+			synchronized (this) {
+				if (timeout == expired) {
+					timeout = null;
+				}
+			}
+			wakeup();
+		}
+
+		/** {@inheritDoc} */
+		public void run() {
+			queued.set(false);
+			if (!cancelled) {
+				job.run();
+			}
+		}
+	}
+}
@@ -5,8 +5,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.mina.core.buffer.IoBuffer;
@@ -21,6 +21,7 @@ import com.sms.server.api.stream.IAudioStreamCodec;
 import com.sms.server.api.stream.IBroadcastStream;
 import com.sms.server.api.stream.IPlayItem;
 import com.sms.server.api.stream.IPlaylistSubscriberStream;
+import com.sms.server.api.stream.IStreamCapableConnection;
 import com.sms.server.api.stream.IStreamCodecInfo;
 import com.sms.server.api.stream.ISubscriberStream;
 import com.sms.server.api.stream.IVideoStreamCodec;
@@ -41,6 +42,8 @@ import com.sms.server.messaging.IPushableConsumer;
 import com.sms.server.messaging.InMemoryPushPushPipe;
 import com.sms.server.messaging.OOBControlMessage;
 import com.sms.server.messaging.PipeConnectionEvent;
+import com.sms.server.net.rtmp.RTMPConnection;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.net.rtmp.event.Aggregate;
 import com.sms.server.net.rtmp.event.AudioData;
 import com.sms.server.net.rtmp.event.IRTMPEvent;
@@ -52,6 +55,7 @@ import com.sms.server.net.rtmp.message.Constants;
 import com.sms.server.net.rtmp.message.Header;
 import com.sms.server.net.rtmp.status.Status;
 import com.sms.server.net.rtmp.status.StatusCodes;
+import com.sms.server.stream.PacingScheduler.PacingTask;
 import com.sms.server.stream.codec.StreamCodecInfo;
 import com.sms.server.stream.message.RTMPMessage;
 import com.sms.server.stream.message.ResetMessage;
@@ -164,9 +168,19 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	private volatile boolean lastReset = false;
 
 	/**
-	 * Scheduled future job that makes sure messages are sent to the client.
+	 * Maximum number of messages sent per wake up before other subscribers get their turn.
 	 */
-	private volatile ScheduledFuture<?> pullAndPushFuture = null;
+	private static final int MAX_BURST = 64;
+
+	/**
+	 * Maximum time in ms to wait for the connection to write queued messages.
+	 */
+	private static final long MAX_PARK_TIME = 500;
+
+	/**
+	 * Paced job that makes sure messages are sent to the client.
+	 */
+	private volatile PacingTask pullAndPushTask = null;
 
 	/**
 	 * Monitor to guard setup and teardown of pull/push thread.
@@ -721,6 +735,10 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 		synchronized (pendingOperations) {
 			pendingOperations.addLast(new SeekRunnable(position));
 		}
+		PacingTask task = pullAndPushTask;
+		if (task != null) {
+			task.wakeup();
+		}
 	}
 
 	/**
@@ -844,6 +862,15 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	 * @return True if it appears that the client buffer is full, otherwise false.
 	 */
 	private boolean isClientBufferFull(final long now) {
+		return getClientBufferExcess(now) > 0;
+	}
+
+	/**
+	 * Estimate how long the client buffer stays full.
+	 * @param now The current timestamp being used.
+	 * @return Time in ms until more data should be sent, 0 if the client buffer is not full.
+	 */
+	private long getClientBufferExcess(final long now) {
 		// check client buffer length when we've already sent some messages
 		if (lastMessageTs > 0) {
 			// Duration the stream is playing / playback duration
@@ -856,21 +883,58 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 			//Fix for SN-122, this sends double the size of the client buffer
 			if (buffer > 0 && buffered > (buffer * 2)) {
 				// Client is likely to have enough data in the buffer
-				return true;
+				return buffered - (buffer * 2);
 			}
 		}
-		return false;
+		return 0;
+	}
+
+	/**
+	 * Plan the next run of the pull and push job once the client cannot take more data:
+	 * when its buffer has room again or when its connection has written the queued messages.
+	 * 
+	 * @param job pull and push job
+	 */
+	private void waitForClient(PullAndPushRunnable job) {
+		PacingTask task = job.task;
+		long excess = getClientBufferExcess(SystemTimer.currentTimeMillis());
+		if (excess > 0) {
+			task.wakeupAfter(excess);
+			return;
+		}
+		// too many messages queued on the connection
+		IStreamCapableConnection conn = subscriberStream.getConnection();
+		if (conn instanceof RTMPConnection) {
+			if (job.writeQueueListener == null) {
+				job.writeQueueListener = new WriteQueueListener((RTMPConnection) conn, task);
+			}
+			job.writeQueueListener.register();
+			if (((RTMPConnection) conn).getPendingMessages() <= underrunTrigger / 2) {
+				// drained before the listener was in place, no message sent will wake us up
+				task.wakeup();
+				return;
+			}
+		}
+		// in case the connection is not writing at all
+		task.wakeupAfter(MAX_PARK_TIME);
 	}
 
 	/**
 	 * Make sure the pull and push processing is running.
 	 */
 	private void ensurePullAndPushRunning() {
-		if (pullMode && pullAndPushFuture == null) {
+		if (pullMode) {
+			PacingTask task;
 			synchronized (pullAndPushMonitor) {
-				// client buffer is at least 100ms
-				pullAndPushFuture = subscriberStream.getExecutor().scheduleWithFixedDelay(new PullAndPushRunnable(), 0, 10, TimeUnit.MILLISECONDS);
+				task = pullAndPushTask;
+				if (task == null) {
+					PullAndPushRunnable job = new PullAndPushRunnable();
+					task = PacingScheduler.getInstance().newTask(job, subscriberStream.getExecutor());
+					job.task = task;
+					pullAndPushTask = task;
+				}
 			}
+			task.wakeup();
 		}
 	}
 
@@ -879,11 +943,12 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	 */
 	private void clearWaitJobs() {
 		log.debug("Clear wait jobs");
-		if (pullAndPushFuture != null) {
-			pullAndPushFuture.cancel(false);
+		PacingTask task = pullAndPushTask;
+		if (task != null) {
+			task.cancel();
 			synchronized (doingPullMonitor) {
 				releasePendingMessage();
-				pullAndPushFuture = null;
+				pullAndPushTask = null;
 			}
 		}
 		if (waitLiveJob != null) {
@@ -942,11 +1007,19 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 			case Constants.TYPE_AUDIO_DATA:
 				dataReference = ((AudioData) messageIn.getBody()).getData();
 				event = new AudioData(dataReference);
+				if (((AudioData) messageIn.getBody()).getChunkedPayload() != null) {
+					// released once pushed, the consumers retain their own references
+					((AudioData) event).setChunkedPayload(((AudioData) messageIn.getBody()).getChunkedPayload().retain());
+				}
 				event.setTimestamp(messageIn.getBody().getTimestamp());
 				break;
 			case Constants.TYPE_VIDEO_DATA:
 				dataReference = ((VideoData) messageIn.getBody()).getData();
 				event = new VideoData(dataReference);
+				if (((VideoData) messageIn.getBody()).getChunkedPayload() != null) {
+					// released once pushed, the consumers retain their own references
+					((VideoData) event).setChunkedPayload(((VideoData) messageIn.getBody()).getChunkedPayload().retain());
+				}
 				event.setTimestamp(messageIn.getBody().getTimestamp());
 				break;
 			default:
@@ -955,44 +1028,48 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 				event.setTimestamp(messageIn.getBody().getTimestamp());
 				break;
 		}
-		RTMPMessage messageOut = RTMPMessage.build(event);
-		//get the current timestamp from the message
-		long ts = messageOut.getBody().getTimestamp();
-		if (log.isTraceEnabled()) {
-			log.trace("sendMessage: streamStartTS={}, length={}, streamOffset={}, timestamp={}", new Object[] { streamStartTS, currentItem.getLength(), streamOffset, ts });
-		}
-		// don't reset streamStartTS to 0 for live streams 
-		if ((streamStartTS == -1 && (ts > 0 || playDecision != 0)) || streamStartTS > ts) {
-			log.debug("sendMessage: resetting streamStartTS");
-			streamStartTS = ts;
-			messageOut.getBody().setTimestamp(0);
-		}
-
-		//relative timestamp adjustment for live streams
-		if (playDecision == 0 && streamStartTS > 0) {
-			//subtract the offset time of when the stream started playing for the client
-			ts -= streamStartTS;
-			messageOut.getBody().setTimestamp(ts);
+		try {
+			RTMPMessage messageOut = RTMPMessage.build(event);
+			//get the current timestamp from the message
+			long ts = messageOut.getBody().getTimestamp();
 			if (log.isTraceEnabled()) {
-				log.trace("sendMessage (updated): streamStartTS={}, length={}, streamOffset={}, timestamp={}", new Object[] { streamStartTS, currentItem.getLength(), streamOffset,
-						ts });
+				log.trace("sendMessage: streamStartTS={}, length={}, streamOffset={}, timestamp={}", new Object[] { streamStartTS, currentItem.getLength(), streamOffset, ts });
+			}
+			// don't reset streamStartTS to 0 for live streams 
+			if ((streamStartTS == -1 && (ts > 0 || playDecision != 0)) || streamStartTS > ts) {
+				log.debug("sendMessage: resetting streamStartTS");
+				streamStartTS = ts;
+				messageOut.getBody().setTimestamp(0);
 			}
-		}
 
-		if (streamStartTS > -1 && currentItem.getLength() >= 0) {
-			long duration = ts - streamStartTS;
-			if (duration - streamOffset >= currentItem.getLength()) {
-				// Sent enough data to client
-				stop();
-				return;
+			//relative timestamp adjustment for live streams
+			if (playDecision == 0 && streamStartTS > 0) {
+				//subtract the offset time of when the stream started playing for the client
+				ts -= streamStartTS;
+				messageOut.getBody().setTimestamp(ts);
+				if (log.isTraceEnabled()) {
+					log.trace("sendMessage (updated): streamStartTS={}, length={}, streamOffset={}, timestamp={}", new Object[] { streamStartTS, currentItem.getLength(), streamOffset,
+							ts });
+				}
+			}
+
+			if (streamStartTS > -1 && currentItem.getLength() >= 0) {
+				long duration = ts - streamStartTS;
+				if (duration - streamOffset >= currentItem.getLength()) {
+					// Sent enough data to client
+					stop();
+					return;
+				}
 			}
-		}
 		
-		if(playDecision == 0 && lastReset) {
-			ts += lastTs;
-			messageOut.getBody().setTimestamp(ts);
+			if(playDecision == 0 && lastReset) {
+				ts += lastTs;
+				messageOut.getBody().setTimestamp(ts);
+			}
+			doPushMessage(messageOut);
+		} finally {
+			ChunkedPayloadCache.release(event);
 		}
-		doPushMessage(messageOut);
 	}
 
 	/**
@@ -1684,10 +1761,15 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 	}
 
 	/**
-	 * Periodically triggered by executor to send messages to the client.
+	 * Triggered by the pacing scheduler to send messages to the client. Every run sends
+	 * what the client can take and plans the next one.
 	 */
 	private final class PullAndPushRunnable implements Runnable {
 
+		private PacingTask task;
+
+		private WriteQueueListener writeQueueListener;
+
 		/**
 		 * Trigger sending of messages.
 		 */
@@ -1715,49 +1797,55 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 						if (worker != null) {
 							log.debug("Executing pending operation");
 							worker.run();
+							task.wakeup();
 							return;
 						}
 					}
 					// receive then send if message is data (not audio or video)
-					if (subscriberStream.getState() == StreamState.PLAYING && pullMode) {
+					int sent = 0;
+					while (subscriberStream.getState() == StreamState.PLAYING && pullMode && !task.isCancelled()) {
 						if (pendingMessage != null) {
 							IRTMPEvent body = pendingMessage.getBody();
 							if (okayToSendMessage(body)) {
 								sendMessage(pendingMessage);
 								releasePendingMessage();
 							} else {
+								waitForClient(this);
 								return;
 							}
 						} else {
-							while (true) {
-								IMessage msg = msgIn.pullMessage();
-								if (msg == null) {
-									// No more packets to send
-									log.debug("Ran out of packets");
-									runDeferredStop();
-									break;
+							IMessage msg = msgIn.pullMessage();
+							if (msg == null) {
+								// No more packets to send
+								log.debug("Ran out of packets");
+								runDeferredStop();
+								return;
+							} else if (msg instanceof RTMPMessage) {
+								RTMPMessage rtmpMessage = (RTMPMessage) msg;
+								if (!checkSendMessageEnabled(rtmpMessage)) {
+									continue;
+								}
+								// Adjust timestamp when playing lists
+								IRTMPEvent body = rtmpMessage.getBody();
+								body.setTimestamp(body.getTimestamp() + timestampOffset);
+								if (okayToSendMessage(body)) {
+									log.trace("ts: {}", rtmpMessage.getBody().getTimestamp());
+									sendMessage(rtmpMessage);
+									((IStreamData<?>) body).getData().free();
 								} else {
-									if (msg instanceof RTMPMessage) {
-										RTMPMessage rtmpMessage = (RTMPMessage) msg;
-										if (!checkSendMessageEnabled(rtmpMessage)) {
-											continue;
-										}
-										// Adjust timestamp when playing lists
-										IRTMPEvent body = rtmpMessage.getBody();
-										body.setTimestamp(body.getTimestamp() + timestampOffset);
-										if (okayToSendMessage(body)) {
-											log.trace("ts: {}", rtmpMessage.getBody().getTimestamp());
-											sendMessage(rtmpMessage);
-											((IStreamData<?>) body).getData().free();
-										} else {
-											pendingMessage = rtmpMessage;
-										}
-										ensurePullAndPushRunning();
-										break;
-									}
+									pendingMessage = rtmpMessage;
+									waitForClient(this);
+									return;
 								}
+							} else {
+								continue;
 							}
 						}
+						if (++sent >= MAX_BURST) {
+							// give the other subscribers their turn
+							task.wakeup();
+							return;
+						}
 					}
 				} catch (IOException err) {
 					// We couldn't get more data, stop stream.
@@ -1781,6 +1869,43 @@ public final class PlayEngine implements IFilter, IPushableConsumer, IPipeConnec
 
 	}
 
+	/**
+	 * Wakes up the pull and push job once the connection has written enough queued messages.
+	 */
+	private final class WriteQueueListener implements Runnable {
+
+		private final RTMPConnection conn;
+
+		private final PacingTask task;
+
+		private final AtomicBoolean registered = new AtomicBoolean();
+
+		WriteQueueListener(RTMPConnection conn, PacingTask task) {
+			this.conn = conn;
+			this.task = task;
+		}
+
+		void register() {
+			if (registered.compareAndSet(false, true)) {
+				conn.addWriteListener(this);
+			}
+		}
+
+		public void run() {
+			if (task.isCancelled()) {
+				registered.set(false);
+				return;
+			}
+			if (conn.getPendingMessages() > underrunTrigger / 2) {
+				// wait for the next one
+				conn.addWriteListener(this);
+			} else {
+				registered.set(false);
+				task.wakeup();
+			}
+		}
+	}
+
 	/**
 	 * @param maxPendingVideoFrames the maxPendingVideoFrames to set
 	 */
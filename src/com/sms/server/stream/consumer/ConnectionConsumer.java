@@ -131,6 +131,10 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
 					buf = ((AudioData) msg).getData();
 					if (buf != null) {
     					AudioData audioData = new AudioData(buf.asReadOnlyBuffer());
+    					if (((AudioData) msg).getChunkedPayload() != null) {
+    						// released by the encoder
+    						audioData.setChunkedPayload(((AudioData) msg).getChunkedPayload().retain());
+    					}
     					audioData.setHeader(header);
     					audioData.setTimestamp(header.getTimer());
     					audioData.setSourceType(((AudioData)msg).getSourceType());
@@ -144,6 +148,10 @@ public class ConnectionConsumer implements IPushableConsumer, IPipeConnectionLis
 					buf = ((VideoData) msg).getData();
 					if (buf != null) {
     					VideoData videoData = new VideoData(buf.asReadOnlyBuffer());
+    					if (((VideoData) msg).getChunkedPayload() != null) {
+    						// released by the encoder
+    						videoData.setChunkedPayload(((VideoData) msg).getChunkedPayload().retain());
+    					}
     					videoData.setHeader(header);
     					videoData.setTimestamp(header.getTimer());
     					videoData.setSourceType(((VideoData)msg).getSourceType());
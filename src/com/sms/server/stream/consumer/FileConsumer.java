@@ -3,22 +3,13 @@ package com.sms.server.stream.consumer;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.AsyncTagWriter;
 import com.sms.io.IStreamableFile;
 import com.sms.io.IStreamableFileFactory;
 import com.sms.io.IStreamableFileService;
@@ -44,7 +35,6 @@ import com.sms.server.net.rtmp.message.Constants;
 import com.sms.server.stream.IStreamData;
 import com.sms.server.stream.message.RTMPMessage;
 import com.sms.server.stream.message.ResetMessage;
-import com.sms.server.util.CustomizableThreadFactory;
 
 /**
  * Consumer that pushes messages to file. Used when recording live streams.
@@ -56,36 +46,6 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 	 */
 	private static final Logger log = LoggerFactory.getLogger(FileConsumer.class);
 
-	/**
-	 * Executor for all writer jobs
-	 */
-	private static ScheduledExecutorService scheduledExecutorService;
-
-	/**
-	 * Queue writer thread count
-	 */
-	private int schedulerThreadSize = 4;
-
-	/**
-	 * Queue to hold data for delayed writing
-	 */
-	private List<QueuedData> queue = Collections.emptyList();
-
-	/**
-	 * Reentrant lock
-	 */
-	private ReentrantReadWriteLock reentrantLock;
-
-	/**
-	 * Write lock
-	 */
-	private volatile Lock writeLock;
-
-	/**
-	 * Read lock
-	 */
-	private volatile Lock readLock;
-
 	/**
 	 * Scope
 	 */
@@ -128,47 +88,17 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 	private ITag audioConfigurationTag;
 
 	/**
-	 * Number of queued items needed before writes are initiated
-	 */
-	private int queueThreshold = 33;
-
-	/**
-	 * Percentage of the queue which is sliced for writing
-	 */
-	private int percentage = 25;
-
-	/**
-	 * Size of the slice of queued data to write at a time
-	 */
-	private int sliceLength = (queueThreshold / (100 / percentage));
-
-	/**
-	 * Whether or not to use a queue for delaying file writes. The queue is useful
-	 * for keeping Tag items in their expected order based on their time stamp.
+	 * Whether or not to hand the writes to the record writer threads, see {@link AsyncTagWriter}.
+	 * Tags are kept in their expected order based on their time stamp.
 	 */
 	private boolean delayWrite = true;
 
-	/**
-	 * Tracks the last timestamp written to prevent backwards time stamped data.
-	 */
-	private volatile int lastWrittenTs = -1;
-
-	/**
-	 * Keeps track of the last spawned write worker.
-	 */
-	private volatile Future<?> writerFuture;
-
 	private volatile boolean gotVideoKeyFrame;
 
 	/**
 	 * Default ctor
 	 */
 	public FileConsumer() {
-		if (scheduledExecutorService == null) {
-			synchronized (this) {
-				scheduledExecutorService = Executors.newScheduledThreadPool(schedulerThreadSize, new CustomizableThreadFactory("FileConsumerExecutor-"));
-			}
-		}
 	}
 
 	/**
@@ -188,7 +118,6 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 	 * @param message      Message to push
 	 * @throws IOException if message could not be written
 	 */
-	@SuppressWarnings("rawtypes")
 	public void pushMessage(IPipe pipe, IMessage message) throws IOException {
 		if (message instanceof RTMPMessage) {
 			final IRTMPEvent msg = ((RTMPMessage) message).getBody();
@@ -220,79 +149,7 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 			if (writer == null) {
 				init();
 			}
-			// if writes are delayed, queue the data and sort it by time
-			if (!delayWrite) {
-				write(timestamp, msg);
-			} else {
-				QueuedData queued = null;
-				if (msg instanceof IStreamData) {
-					log.debug("Stream data, body saved. Data type: {} class type: {}", dataType, msg.getClass().getName());
-					try {
-						queued = new QueuedData(timestamp, dataType, ((IStreamData) msg).duplicate());
-					} catch (ClassNotFoundException e) {
-						log.warn("Exception queueing stream data", e);
-					}
-				} else {
-					//XXX what type of message are we saving that has no body data??
-					log.debug("Non-stream data, body not saved. Data type: {} class type: {}", dataType, msg.getClass().getName());
-					queued = new QueuedData(timestamp, dataType);
-				}
-				writeLock.lock();
-				try {
-					//add to the queue
-					queue.add(queued);
-				} finally {
-					writeLock.unlock();
-				}
-				int queueSize = 0;
-				readLock.lock();
-				try {
-					queueSize = queue.size();
-				} finally {
-					readLock.unlock();
-				}
-				// when we reach the threshold, sort the entire queue and spawn a worker
-				// to write a slice of the data
-				if (queueSize >= queueThreshold) {
-					Object writeResult = null;
-					// check for existing future
-					if (writerFuture != null) {
-						try {
-							// timeout 1/2 second for every slice entry
-							long timeout = sliceLength * 500L;
-							//wait n seconds for a result from the last writer
-							writeResult = writerFuture.get(timeout, TimeUnit.MILLISECONDS);
-						} catch (Exception e) {
-							log.warn("Exception waiting for write result", e);
-							return;
-						}
-					}
-					log.debug("Write future result (expect null): {}", writeResult);
-					// get the slice
-					final QueuedData[] slice = new QueuedData[sliceLength];
-					log.trace("Slice length: {}", slice.length);
-					writeLock.lock();
-					try {
-						// sort the queue
-						Collections.sort(queue);
-						log.trace("Queue length: {}", queue.size());
-						for (int q = 0; q < sliceLength; q++) {
-							slice[q] = queue.remove(0);
-						}
-						log.trace("Queue length (after removal): {}", queue.size());
-					} finally {
-						writeLock.unlock();
-					}
-					// spawn a writer
-					writerFuture = scheduledExecutorService.submit(new Runnable() {
-						public void run() {
-							log.trace("Spawning queue writer thread");
-							doWrites(slice);
-						}
-					});
-				}
-
-			}
+			write(timestamp, msg);
 		} else if (message instanceof ResetMessage) {
 			startTimestamp = -1;
 		}
@@ -343,14 +200,6 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 	 */
 	private void init() throws IOException {
 		log.debug("Init");
-		// if we plan to use a queue, create one
-		if (delayWrite) {
-			queue = new ArrayList<QueuedData>();
-			// add associated locks
-			reentrantLock = new ReentrantReadWriteLock();
-			writeLock = reentrantLock.writeLock();
-			readLock = reentrantLock.readLock();
-		}
 		IStreamableFileFactory factory = (IStreamableFileFactory) ScopeUtils.getScopeService(scope, IStreamableFileFactory.class, StreamableFileFactory.class);
 		File folder = file.getParentFile();
 		if (!folder.exists()) {
@@ -382,6 +231,10 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 		} else {
 			throw new IllegalStateException("Illegal mode type: " + mode);
 		}
+		// if writes are delayed, the writer threads write the file from now on
+		if (delayWrite && writer != null) {
+			writer = new AsyncTagWriter(writer);
+		}
 	}
 
 	/**
@@ -390,68 +243,14 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 	private void uninit() {
 		log.debug("Uninit");
 		if (writer != null) {
-			if (writerFuture != null) {
-				try {
-					writerFuture.get();
-				} catch (Exception e) {
-					log.warn("Exception waiting for write result on uninit", e);
-				}
-				writerFuture.cancel(true);
-			}
-			writerFuture = null;
-			if (delayWrite) {
-				//write all the queued items
-				doWrites();
-			}
-			//close the writer
+			//close the writer, a delayed writer writes its queued tags first
 			writer.close();
 			writer = null;
 		}
-		if (delayWrite && queue != null) {
-			writeLock.lock();
-			try {
-				//clear the queue
-				queue.clear();
-				queue = null;
-			} finally {
-				writeLock.unlock();
-			}
-		}
 		//clear file ref
 		file = null;
 	}
 
-	/**
-	 * Write all the queued items to the writer.
-	 */
-	public final void doWrites() {
-		QueuedData[] slice = null;
-		writeLock.lock();
-		try {
-			slice = queue.toArray(new QueuedData[0]);
-			queue.removeAll(Arrays.asList(slice));
-		} finally {
-			writeLock.unlock();
-		}
-		doWrites(slice);
-	}
-
-	/**
-	 * Write a slice of the queued items to the writer.
-	 */
-	public final void doWrites(QueuedData[] slice) {
-		//empty the queue
-		for (QueuedData queued : slice) {
-			int tmpTs = queued.getTimestamp();
-			if (lastWrittenTs <= tmpTs) {
-				write(queued);
-				lastWrittenTs = tmpTs;
-			}
-		}
-		//clear and null-out
-		slice = null;
-	}
-
 	/**
 	 * Write incoming data to the file.
 	 * 
@@ -473,93 +272,41 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 		tag.setDataType(dataType);
 		tag.setTimestamp(timestamp);
 		// get data bytes
-		IoBuffer data = ((IStreamData<?>) msg).getData().duplicate();
-		if (data != null) {
-			tag.setBodySize(data.limit());
-			tag.setBody(data);
+		if (msg instanceof IStreamData) {
+			IoBuffer data = ((IStreamData<?>) msg).getData();
+			if (data != null) {
+				if (delayWrite) {
+					// a queued tag keeps its own copy
+					IoBuffer copy = IoBuffer.allocate(data.remaining());
+					copy.put(data.duplicate());
+					copy.flip();
+					data = copy;
+				} else {
+					data = data.duplicate();
+				}
+				tag.setBodySize(data.limit());
+				tag.setBody(data);
+			}
+		} else {
+			log.debug("Non-stream data, body not saved. Data type: {} class type: {}", dataType, msg.getClass().getName());
 		}
 		// only allow blank tags if they are of audio type
 		if (tag.getBodySize() > 0 || dataType == ITag.TYPE_AUDIO) {
+			if (timestamp < 0) {
+				log.warn("Skipping message with negative timestamp.");
+				return;
+			}
 			try {
-				if (timestamp >= 0) {
-					if (!writer.writeTag(tag)) {
-						log.warn("Tag was not written");
-					}
-				} else {
-					log.warn("Skipping message with negative timestamp.");
+				// a delayed writer only drops tags when it falls behind, it counts them
+				if (!writer.writeTag(tag) && !delayWrite) {
+					log.warn("Tag was not written");
 				}
+			} catch (ClosedChannelException cce) {
+				// the channel we tried to write to is closed, we should not try again on that writer
+				log.error("The writer is no longer able to write to the file: {} writable: {}", file.getName(), file.canWrite());
 			} catch (IOException e) {
 				log.error("Error writing tag", e);
-			} finally {
-				if (data != null) {
-					data.clear();
-					data.free();
-				}
-			}		
-		}
-		data = null;
-	}
-
-	/**
-	 * Adjust timestamp and write to the file.
-	 * 
-	 * @param queued queued data for write
-	 */
-	private final void write(QueuedData queued) {
-		if (queued != null) {
-			//get timestamp
-			int timestamp = queued.getTimestamp();
-			log.debug("Write - timestamp: {} type: {}", timestamp, queued.getDataType());
-			//if the last message was a reset or we just started, use the header timer
-			if (startTimestamp == -1) {
-				startTimestamp = timestamp;
-				timestamp = 0;
-			} else {
-				timestamp -= startTimestamp;
 			}
-			// get the type
-			byte dataType = queued.getDataType();
-			// create a tag
-			ITag tag = new Tag();
-			tag.setDataType(dataType);
-			tag.setTimestamp(timestamp);
-			// get queued
-			IoBuffer data = queued.getData();
-			if (data != null) {
-				tag.setBodySize(data.limit());
-				tag.setBody(data);
-			}
-			// only allow blank tags if they are of audio type
-			if (tag.getBodySize() > 0 || dataType == ITag.TYPE_AUDIO) {
-				try {
-					if (timestamp >= 0) {
-						if (!writer.writeTag(tag)) {
-							log.warn("Tag was not written");
-						}
-					} else {
-						log.warn("Skipping message with negative timestamp.");
-					}
-				} catch (ClosedChannelException cce) {
-					// the channel we tried to write to is closed, we should not try again on that writer
-					log.error("The writer is no longer able to write to the file: {} writable: {}", file.getName(), file.canWrite());
-				} catch (IOException e) {
-					log.warn("Error writing tag", e);
-					if (e.getCause() instanceof ClosedChannelException) {
-						// the channel we tried to write to is closed, we should not try again on that writer
-						log.error("The writer is no longer able to write to the file: {} writable: {}", file.getName(), file.canWrite());
-					}
-				} finally {
-					if (data != null) {
-						data.clear();
-						data.free();
-					}
-				}		
-			}
-			data = null;				
-			queued.dispose();
-			queued = null;
-		} else {
-			log.warn("Queued data was null");
 		}
 	}
 
@@ -617,151 +364,21 @@ public class FileConsumer implements Constants, IPushableConsumer, IPipeConnecti
 	}
 
 	/**
-	 * Sets the threshold for the queue. When the threshold is met a worker is spawned
-	 * to empty the sorted queue to the writer.
-	 * 
-	 * @param queueThreshold number of items to queue before spawning worker
-	 */
-	public void setQueueThreshold(int queueThreshold) {
-		this.queueThreshold = queueThreshold;
-	}
-
-	/**
-	 * Returns the size of the delayed writing queue.
-	 * 
-	 * @return queue length
-	 */
-	public int getQueueThreshold() {
-		return queueThreshold;
-	}
-
-	/**
-	 * Sets the amount of queued data items to be written at a time.
+	 * Whether or not the writes are handed to the record writer threads.
 	 * 
-	 * @param sliceLength
-	 */
-	public void setSliceLength(int sliceLength) {
-		this.sliceLength = sliceLength;
-	}
-
-	/**
-	 * Returns the amount of queued data items to be written at a time.
-	 * 
-	 * @return sliceLength
-	 */
-	public int getSliceLength() {
-		return sliceLength;
-	}
-
-	/**
-	 * Whether or not the queue should be utilized.
-	 * 
-	 * @return true if using the queue, false if sending directly to the writer
+	 * @return true if using the writer threads, false if writing directly to the file
 	 */
 	public boolean isDelayWrite() {
 		return delayWrite;
 	}
 
 	/**
-	 * Sets whether or not to use the queue.
+	 * Sets whether or not to hand the writes to the record writer threads.
 	 * 
-	 * @param delayWrite true to use the queue, false if not
+	 * @param delayWrite true to use the writer threads, false if not
 	 */
 	public void setDelayWrite(boolean delayWrite) {
 		this.delayWrite = delayWrite;
 	}
 
-	/**
-	 * @return the schedulerThreadSize
-	 */
-	public int getSchedulerThreadSize() {
-		return schedulerThreadSize;
-	}
-
-	/**
-	 * @param schedulerThreadSize the schedulerThreadSize to set
-	 */
-	public void setSchedulerThreadSize(int schedulerThreadSize) {
-		this.schedulerThreadSize = schedulerThreadSize;
-	}
-
-	/**
-	 * Queued data wrapper.
-	 */
-	private final static class QueuedData implements Comparable<QueuedData> {
-		final int timestamp;
-
-		final byte dataType;
-
-		@SuppressWarnings("rawtypes")
-		final IStreamData streamData;
-
-		QueuedData(int timestamp, byte dataType) {
-			this.timestamp = timestamp;
-			this.dataType = dataType;
-			this.streamData = null;
-		}
-
-		@SuppressWarnings("rawtypes")
-		QueuedData(int timestamp, byte dataType, IStreamData streamData) {
-			this.timestamp = timestamp;
-			this.dataType = dataType;
-			this.streamData = streamData;
-		}
-
-		public int getTimestamp() {
-			return timestamp;
-		}
-
-		public byte getDataType() {
-			return dataType;
-		}
-
-		public IoBuffer getData() {
-			return streamData.getData().asReadOnlyBuffer();
-		}
-
-		@Override
-		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-			result = prime * result + dataType;
-			result = prime * result + timestamp;
-			return result;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) {
-				return true;
-			}
-			if (obj == null || getClass() != obj.getClass()) {
-				return false;
-			}
-			QueuedData other = (QueuedData) obj;
-			if (dataType != other.dataType) {
-				return false;
-			}
-			if (timestamp != other.timestamp) {
-				return false;
-			}
-			return true;
-		}
-
-		@Override
-		public int compareTo(QueuedData other) {
-			if (timestamp > other.timestamp) {
-				return 1;
-			} else if (timestamp < other.timestamp) {
-				return -1;
-			}
-			return 0;
-		}
-
-		public void dispose() {
-			streamData.getData().free();
-		}
-
-	}
-
 }
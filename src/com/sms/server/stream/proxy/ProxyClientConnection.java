@@ -3,6 +3,7 @@ package com.sms.server.stream.proxy;
 import org.apache.mina.core.buffer.IoBuffer;
 
 import com.sms.server.net.rtmp.RTMPConnection;
+import com.sms.server.net.rtmp.codec.ChunkedPayloadCache;
 import com.sms.server.net.rtmp.codec.RTMP;
 import com.sms.server.net.rtmp.message.Packet;
 
@@ -20,7 +21,7 @@ public class ProxyClientConnection extends RTMPConnection {
 
 	@Override
 	public void write(Packet out) {
-
+		ChunkedPayloadCache.release(out.getMessage());
 	}
 
 	@Override
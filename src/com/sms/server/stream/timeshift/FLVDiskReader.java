@@ -44,8 +44,6 @@ public class FLVDiskReader extends FLVReader implements IRecordFLVReader {
 			
 		}
 		setCurrentPosition(flvIndexReader.getPosition(ts).getPosition()-4);
-		flvIndexReader.close();
-		flvIndexReader = null;
 	}
 	
 	@Override
@@ -55,6 +53,7 @@ public class FLVDiskReader extends FLVReader implements IRecordFLVReader {
 		
 		if(flvIndexReader != null) {
 			flvIndexReader.close();
+			flvIndexReader = null;
 		}
 	}
 }
@@ -2,7 +2,6 @@ package com.sms.server.stream.timeshift;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.slf4j.Logger;
@@ -15,6 +14,7 @@ import com.sms.io.IoConstants;
 import com.sms.io.flv.FLVHeader;
 import com.sms.io.flv.impl.Tag;
 import com.sms.io.utils.IOUtils;
+import com.sms.server.stream.timeshift.MappedSegmentPool.Segment;
 import com.sms.server.util.FileUtil;
 
 /**
@@ -32,14 +32,17 @@ public class FLVMemoryReader implements IoConstants, IRecordFLVReader {
 	
 	private IoBuffer in;
 	
+	private Segment segment;
+	
 	private FLVHeader header;
 	
 	private long duration;
 	
-	public FLVMemoryReader(ByteBuffer buffer, String path) throws IOException {
+	public FLVMemoryReader(Segment segment, String path) throws IOException {
 			
 		flvFilePath = path;
-		in = IoBuffer.wrap(buffer);
+		this.segment = segment;
+		in = IoBuffer.wrap(segment.getData());
 		postInitialize();
 	}
 		
@@ -64,15 +67,20 @@ public class FLVMemoryReader implements IoConstants, IRecordFLVReader {
 		}
 		int pos = (int)flvIndexReader.getPosition(ts).getPosition()-4;
 		in.position(pos);
-		flvIndexReader.close();
-		flvIndexReader = null;
 	}
 	
 	@Override
-	public void close() {
+	public synchronized void close() {
 	
 		if(flvIndexReader != null) {
 			flvIndexReader.close();
+			flvIndexReader = null;
+		}
+		if(segment != null) {
+			// the mapping may be unmapped now, it must not be read any more
+			segment.release();
+			segment = null;
+			in = IoBuffer.allocate(0);
 		}
 	}
 
@@ -118,8 +126,30 @@ public class FLVMemoryReader implements IoConstants, IRecordFLVReader {
 	}
 
 	@Override
-	public boolean hasMoreTags() {
-		return in.remaining() > 4;
+	public synchronized boolean hasMoreTags() {
+		return in.remaining() > 4 || (extend() && in.remaining() > 4);
+	}
+	
+	/**
+	 * Switch to a longer mapping once the file being recorded has grown past the current one
+	 */
+	private boolean extend() {
+		
+		if (segment == null) return false;
+		Segment next;
+		try {
+			next = MappedSegmentPool.getInstance().extend(segment);
+		} catch (IOException e) {
+			log.debug("extend mapping of {} failed: {}", flvFilePath, e.toString());
+			return false;
+		}
+		if (next == null) return false;
+		int pos = in.position();
+		in = IoBuffer.wrap(next.getData());
+		in.position(pos);
+		segment.release();
+		segment = next;
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,347 @@
+package com.sms.server.stream.timeshift;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.jmx.JMXAgent;
+import com.sms.jmx.mxbeans.MappedSegmentPoolMXBean;
+import com.sms.server.Configuration;
+import com.sms.server.util.SystemTimer;
+
+/**
+ * Mapped Segment Pool
+ * <p>
+ * Memory maps recorded files for the timeshift readers within a byte budget. A mapping is shared
+ * by all readers of the file, each of them holds a reference until it is closed, the pool holds
+ * one more while the mapping is cached. When a new mapping does not fit in the budget the least
+ * recently used mappings nobody reads are dropped. A mapping is unmapped as soon as its last
+ * reference is released, so the mapped bytes follow the budget instead of the gc. Lookups take
+ * no lock, only mapping new files does.
+ * <p>
+ * A file being recorded is not remapped for every new reader, they share the cached mapping and
+ * a reader that has read all of it extends it, the file is mapped again only when it has grown.
+ * @author pengliren
+ *
+ */
+public class MappedSegmentPool implements MappedSegmentPoolMXBean {
+
+	private static Logger log = LoggerFactory.getLogger(MappedSegmentPool.class);
+
+	private final ConcurrentMap<String, Segment> segments = new ConcurrentHashMap<String, Segment>();
+
+	private final ReentrantLock mapLock = new ReentrantLock();
+
+	private final long maxBytes;
+
+	private final AtomicLong mappedBytes = new AtomicLong();
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private static final class SingletonHolder {
+
+		private static final MappedSegmentPool INSTANCE = new MappedSegmentPool(Configuration.FILECACHE_MAXSIZE * 1024L * 1024L);
+	}
+
+	public static MappedSegmentPool getInstance() {
+
+		return SingletonHolder.INSTANCE;
+	}
+
+	/**
+	 * @param maxBytes budget of mapped bytes
+	 */
+	protected MappedSegmentPool(long maxBytes) {
+
+		this.maxBytes = maxBytes;
+		JMXAgent.registerMBean(this, this.getClass().getName(), MappedSegmentPoolMXBean.class);
+	}
+
+	/**
+	 * Return a mapping of the file, shared with the other readers of the file. The mapping of a
+	 * file being recorded may end before the file does, see {@link #extend(Segment)}.
+	 *
+	 * @param file recorded file
+	 * @return retained segment to be released by the caller, null if it does not fit in the budget
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public Segment acquire(File file) throws IOException {
+
+		String key = file.getAbsolutePath();
+		Segment segment = segments.get(key);
+		if (segment != null && segment.retain()) {
+			hitCount.incrementAndGet();
+			return segment;
+		}
+		mapLock.lock();
+		try {
+			segment = segments.get(key);
+			if (segment != null && segment.retain()) {
+				hitCount.incrementAndGet();
+				return segment;
+			}
+			missCount.incrementAndGet();
+			return mapAndCache(file, key, file.length());
+		} finally {
+			mapLock.unlock();
+		}
+	}
+
+	/**
+	 * Return a longer mapping of a file that has grown since the given segment was mapped. The
+	 * file is only mapped again if no reader extended the mapping that far already.
+	 *
+	 * @param segment segment read up to its end, still retained by the caller
+	 * @return retained longer segment to be released by the caller, null if the file has not
+	 *         grown or the new mapping does not fit in the budget
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public Segment extend(Segment segment) throws IOException {
+
+		File file = new File(segment.key);
+		long length = file.length();
+		if (length <= segment.size) {
+			return null;
+		}
+		Segment current = segments.get(segment.key);
+		if (current != null && current.size > segment.size && current.retain()) {
+			hitCount.incrementAndGet();
+			return current;
+		}
+		mapLock.lock();
+		try {
+			current = segments.get(segment.key);
+			if (current != null && current.size > segment.size && current.retain()) {
+				hitCount.incrementAndGet();
+				return current;
+			}
+			missCount.incrementAndGet();
+			return mapAndCache(file, segment.key, length);
+		} finally {
+			mapLock.unlock();
+		}
+	}
+
+	/**
+	 * Map the file and cache the mapping in place of the previous one, whose readers keep it
+	 * until they close. Called with the map lock held.
+	 */
+	private Segment mapAndCache(File file, String key, long length) throws IOException {
+
+		if (!reserve(length)) {
+			rejectedCount.incrementAndGet();
+			log.info("mapped segment budget exhausted, {} of {} bytes in use", mappedBytes.get(), maxBytes);
+			return null;
+		}
+		Segment mapped;
+		try {
+			mapped = map(file, length);
+		} catch (IOException e) {
+			mappedBytes.addAndGet(-length);
+			throw e;
+		}
+		mapped.retain();
+		Segment previous = segments.put(key, mapped);
+		if (previous != null) {
+			previous.release();
+		}
+		return mapped;
+	}
+
+	/**
+	 * Reserve bytes of the budget, dropping unused mappings from the least recently used on.
+	 * Called with the map lock held.
+	 */
+	private boolean reserve(long length) {
+
+		while (mappedBytes.get() + length > maxBytes) {
+			Segment lru = null;
+			for (Segment segment : segments.values()) {
+				if (segment.isIdle() && (lru == null || segment.accessTime < lru.accessTime)) {
+					lru = segment;
+				}
+			}
+			if (lru == null) {
+				return false;
+			}
+			if (segments.remove(lru.key, lru)) {
+				evictionCount.incrementAndGet();
+				log.debug("evict mapped segment {}", lru.key);
+				lru.release();
+			}
+		}
+		mappedBytes.addAndGet(length);
+		return true;
+	}
+
+	private Segment map(File file, long length) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			return new Segment(file.getAbsolutePath(), buffer, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getMappedBytes() {
+		return mappedBytes.get();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return (total == 0 ? 1.0 : (double) hits / total);
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Mapping of one file
+	 */
+	public class Segment {
+
+		private final String key;
+
+		private final MappedByteBuffer buffer;
+
+		private final long size;
+
+		// the pool holds the first reference
+		private final AtomicInteger refs = new AtomicInteger(1);
+
+		private volatile long accessTime = SystemTimer.currentTimeMillis();
+
+		private Segment(String key, MappedByteBuffer buffer, long size) {
+			this.key = key;
+			this.buffer = buffer;
+			this.size = size;
+		}
+
+		/**
+		 * Return a read-only view of the mapping, valid until the segment is released.
+		 *
+		 * @return file data
+		 */
+		public ByteBuffer getData() {
+			return buffer.asReadOnlyBuffer();
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		private boolean retain() {
+			for (;;) {
+				int count = refs.get();
+				if (count <= 0) {
+					// being unmapped
+					return false;
+				}
+				if (refs.compareAndSet(count, count + 1)) {
+					accessTime = SystemTimer.currentTimeMillis();
+					return true;
+				}
+			}
+		}
+
+		private boolean isIdle() {
+			return refs.get() == 1;
+		}
+
+		/**
+		 * Drop a reference, the file is unmapped with the last one.
+		 */
+		public void release() {
+			if (refs.decrementAndGet() == 0) {
+				mappedBytes.addAndGet(-size);
+				unmap(buffer);
+			}
+		}
+	}
+
+	private static final Method invokeCleaner;
+
+	private static final Object unsafe;
+
+	static {
+		Method method = null;
+		Object instance = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			method = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			instance = field.get(null);
+		} catch (Exception e) {
+			// before java 9 the cleaner of the buffer is used
+			method = null;
+		}
+		invokeCleaner = method;
+		unsafe = instance;
+	}
+
+	/**
+	 * Unmap the buffer right away instead of waiting for the gc, nothing may access it afterwards
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+
+		try {
+			if (invokeCleaner != null) {
+				invokeCleaner.invoke(unsafe, buffer);
+			} else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (Exception e) {
+			log.debug("unmap failed, left to the gc: {}", e.toString());
+		}
+	}
+}
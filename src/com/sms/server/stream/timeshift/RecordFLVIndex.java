@@ -0,0 +1,173 @@
+package com.sms.server.stream.timeshift;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Record FLV Idx file, shared by all readers of the same recording
+ * <p>
+ * The idx file holds fixed width entries, a 4 byte key frame timestamp followed by the 8 byte
+ * position of the tag, in timestamp order. It is memory mapped and binary searched, so a seek
+ * does not read the file. The file stays open while any reader uses it. While the recording is
+ * written the writer reports every entry it appends, the mapping grows on the next seek.
+ * @author pengliren
+ *
+ */
+public class RecordFLVIndex {
+
+	private static Logger log = LoggerFactory.getLogger(RecordFLVIndex.class);
+
+	public static final int ENTRY_SIZE = 12;
+
+	private static final ConcurrentMap<String, RecordFLVIndex> indexes = new ConcurrentHashMap<String, RecordFLVIndex>();
+
+	private final String path;
+
+	private final FileChannel channel;
+
+	// guarded by the class
+	private int refs;
+
+	// entries known to be completely written
+	private volatile int count;
+
+	private volatile ByteBuffer entries;
+
+	// the file has been recreated by a new recording
+	private volatile boolean stale;
+
+	private RecordFLVIndex(String path) throws IOException {
+		this.path = path;
+		this.channel = new RandomAccessFile(path, "r").getChannel();
+		this.count = (int) (channel.size() / ENTRY_SIZE);
+	}
+
+	/**
+	 * Open the index at the given path, or share the one already open.
+	 *
+	 * @param path idx file path
+	 * @return index, to be released
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static synchronized RecordFLVIndex acquire(String path) throws IOException {
+		String key = new File(path).getAbsolutePath();
+		RecordFLVIndex index = indexes.get(key);
+		if (index == null) {
+			index = new RecordFLVIndex(key);
+			indexes.put(key, index);
+		}
+		index.refs++;
+		return index;
+	}
+
+	/**
+	 * Drop a reference, the file is closed with the last one.
+	 */
+	public void release() {
+		synchronized (RecordFLVIndex.class) {
+			if (--refs > 0) {
+				return;
+			}
+			indexes.remove(path, this);
+		}
+		entries = null;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.info("idx file close fail {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Called by the writer once it appended an entry.
+	 *
+	 * @param path idx file path
+	 * @param count number of entries written so far
+	 */
+	public static void appended(String path, int count) {
+		RecordFLVIndex index = indexes.get(path);
+		if (index != null && count > index.count) {
+			index.count = count;
+		}
+	}
+
+	/**
+	 * Called by the writer when it creates the file, readers of the previous file find nothing.
+	 *
+	 * @param path idx file path
+	 */
+	public static void created(String path) {
+		RecordFLVIndex index = indexes.remove(path);
+		if (index != null) {
+			index.stale = true;
+			index.entries = null;
+		}
+	}
+
+	/**
+	 * Return the first key frame at or after the given time, the last one if there is none.
+	 *
+	 * @param timestamp time in seconds
+	 * @return key frame position, timestamp and position 0 if the index is empty
+	 */
+	public KeyFramePosition getPosition(long timestamp) {
+		KeyFramePosition pos = new KeyFramePosition();
+		ByteBuffer buf = map();
+		int n = (buf != null ? buf.limit() / ENTRY_SIZE : 0);
+		if (n == 0) {
+			return pos;
+		}
+		int target = (int) (timestamp * 1000);
+		int low = 0;
+		int high = n - 1;
+		if (buf.getInt(high * ENTRY_SIZE) >= target) {
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (buf.getInt(mid * ENTRY_SIZE) >= target) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+		}
+		pos.setTimestamp(buf.getInt(high * ENTRY_SIZE));
+		pos.setPosition(buf.getLong(high * ENTRY_SIZE + 4));
+		return pos;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	private ByteBuffer map() {
+		ByteBuffer buf = entries;
+		int n = count;
+		if (stale || (buf != null && buf.limit() / ENTRY_SIZE >= n)) {
+			return buf;
+		}
+		synchronized (this) {
+			buf = entries;
+			if (stale || (buf != null && buf.limit() / ENTRY_SIZE >= n)) {
+				return buf;
+			}
+			try {
+				if (n > 0) {
+					// absolute reads only, the mapping is shared by all readers
+					buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) n * ENTRY_SIZE);
+				}
+				entries = buf;
+			} catch (IOException e) {
+				log.info("idx file map fail {}", e.getMessage());
+			}
+			return buf;
+		}
+	}
+}
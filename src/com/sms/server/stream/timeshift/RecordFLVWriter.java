@@ -6,220 +6,133 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sms.io.AsyncTagWriter;
 import com.sms.io.ITag;
 import com.sms.io.flv.impl.FLVWriter;
-import com.sms.server.util.CustomizableThreadFactory;
 import com.sms.server.util.FileUtil;
 
 /**
- * FLV Writer
+ * Record FLV Writer
+ * <p>
+ * Tags are written on the record writer threads, see {@link AsyncTagWriter}. Key frame index
+ * entries are collected while the tags are buffered and written in one go once the tags they
+ * point to are in the file, readers never find an entry beyond the written data.
  * @author pengliren
  *
  */
-public class RecordFLVWriter extends FLVWriter {
+public class RecordFLVWriter extends AsyncTagWriter {
 
 	private static Logger log = LoggerFactory.getLogger(RecordFLVWriter.class);
 
-	private DataOutputStream indexOps = null;
+	private FileChannel indexChannel;
 	
-	private List<QueuedData> queue = Collections.emptyList();
+	private String indexPath;
 	
-	private static int schedulerThreadSize = 4;
+	// committed entries
+	private int indexCount;
 	
-	private static ScheduledExecutorService scheduledExecutorService;
-	
-	private volatile Future<?> writerFuture;
-	
-	private ReentrantReadWriteLock reentrantLock;
-
-	private volatile Lock writeLock;
-
-	private volatile Lock readLock;
-	
-	private int queueThreshold = 33;
-	
-	private int percentage = 25;
+	// entries waiting for the commit of their tags, writer thread only
+	private ByteBuffer pendingIndex = ByteBuffer.allocate(RecordFLVIndex.ENTRY_SIZE * 64);
 
-	private int sliceLength = (queueThreshold / (100 / percentage));
-	
-	static {
-		scheduledExecutorService = Executors.newScheduledThreadPool(schedulerThreadSize, new CustomizableThreadFactory("RecordFLVWriterExecutor-"));
-	}
+	// catalog entry told how far the file is written
+	private volatile TimeshiftCatalog.RecordFile catalogFile;
 
 	public RecordFLVWriter(File file, boolean append) {
-		super(file, append);
+		super(new FLVWriter(file, append));
 
+		indexPath = new StringBuilder(FileUtil.getFileName(file)).append(".idx").toString();
+		RecordFLVIndex.created(indexPath);
 		try {
-			indexOps = new DataOutputStream(new FileOutputStream(
-					new StringBuilder(file.getPath().substring(0,
-							file.getPath().lastIndexOf('.'))).append(".idx")
-							.toString()));
+			indexChannel = new FileOutputStream(indexPath).getChannel();
 		} catch (FileNotFoundException e) {
 			log.info("FileNotFoundException");
 		}
-		
-		queue = new ArrayList<QueuedData>(40);
-		// add associated locks
-		reentrantLock = new ReentrantReadWriteLock();
-		writeLock = reentrantLock.writeLock();
-		readLock = reentrantLock.readLock();
 	}
 
+	/**
+	 * Set the catalog entry of the file, it is updated on the writer thread when tags are
+	 * committed and finished once the file is closed.
+	 *
+	 * @param catalogFile catalog entry
+	 */
+	public void setCatalogFile(TimeshiftCatalog.RecordFile catalogFile) {
+
+		this.catalogFile = catalogFile;
+	}
+
+	/**
+	 * Queue a tag, see {@link AsyncTagWriter#writeTag(ITag)}.
+	 * 
+	 * @param tag tag
+	 */
 	public void putTag(ITag tag) {
 
-		writeLock.lock();
-		try {
-			//add to the queue
-			queue.add(new QueuedData(tag));
-		} finally {
-			writeLock.unlock();
-		}
-		
-		int queueSize = 0;
-		readLock.lock();
-		try {
-			queueSize = queue.size();
-		} finally {
-			readLock.unlock();
-		}
+		writeTag(tag);
+	}
+	
+	@Override
+	protected boolean doWrite(ITag tag) throws IOException {
 		
-		// when we reach the threshold, sort the entire queue and spawn a worker
-		// to write a slice of the data
-		if (queueSize >= queueThreshold) {
-			Object writeResult = null;
-			// check for existing future
-			if (writerFuture != null) {
-				try {
-						// timeout 1/2 second for every slice entry
-						long timeout = sliceLength * 500L;
-						//wait n seconds for a result from the last writer
-						writeResult = writerFuture.get(timeout, TimeUnit.MILLISECONDS);
-					} catch (InterruptedException e) {
-						log.info("Exception waiting for write result {}", e.getMessage());
-						return;
-					} catch (ExecutionException e) {
-						log.info("Exception waiting for write result {}", e.getMessage());
-						return;
-					} catch (TimeoutException e) {
-						log.info("Exception waiting for write result {}", e.getMessage());
-						return;
-					}
-					
+		if (indexChannel != null && tag.getDataType() == ITag.TYPE_VIDEO && tag.getBody().get(tag.getBody().position()) == 0x17) {
+			if (pendingIndex.remaining() < RecordFLVIndex.ENTRY_SIZE) {
+				ByteBuffer grown = ByteBuffer.allocate(pendingIndex.capacity() * 2);
+				pendingIndex.flip();
+				grown.put(pendingIndex);
+				pendingIndex = grown;
 			}
-			log.debug("Write future result (expect null): {}", writeResult);
-			// get the slice
-			final QueuedData[] slice = new QueuedData[sliceLength];
-			log.debug("Slice length: {}", slice.length);
-			writeLock.lock();
-			try {
-				// sort the queue
-				Collections.sort(queue);
-				log.debug("Queue length: {}", queue.size());
-				for (int q = 0; q < sliceLength; q++) {
-					slice[q] = queue.remove(0);
-				}
-				log.debug("Queue length (after removal): {}", queue.size());
-			} finally {
-				writeLock.unlock();
-			}
-			writerFuture = scheduledExecutorService.submit(new Runnable() {
-				public void run() {
-					log.debug("Spawning queue writer thread");
-					try {
-						doWrites(slice);
-					} catch (IOException e) {
-						log.info("record write {}", e.getMessage());					
-					}
-				}
-			});
+			pendingIndex.putInt(tag.getTimestamp()).putLong(getWriter().getBytesWritten());
 		}
+		return super.doWrite(tag);
 	}
 	
-	private void doWrites(QueuedData[] slice) throws IOException {
+	@Override
+	protected void doCommit() throws IOException {
 		
-		//empty the queue
-		ITag tag;
-		for (QueuedData queued : slice) {
-			tag = queued.tag;
-			if (tag.getDataType() == ITag.TYPE_VIDEO) {
-
-				if (indexOps != null && tag.getBody().get(0) == 0x17) {
-					indexOps.writeInt(tag.getTimestamp());
-					indexOps.writeLong(this.getBytesWritten());
-				}
-			}			
-			super.writeTag(tag);
+		super.doCommit();
+		if (indexChannel != null && pendingIndex.position() > 0) {
+			int count = pendingIndex.position() / RecordFLVIndex.ENTRY_SIZE;
+			pendingIndex.flip();
+			while (pendingIndex.hasRemaining()) {
+				indexChannel.write(pendingIndex);
+			}
+			pendingIndex.clear();
+			indexCount += count;
+			RecordFLVIndex.appended(indexPath, indexCount);
 		}
-		//clear and null-out
-		slice = null;
+		updateCatalog();
 	}
 	
-	public final void doWrites() throws IOException {
-		QueuedData[] slice = null;
-		writeLock.lock();
-		try {
-			slice = queue.toArray(new QueuedData[0]);
-			queue.removeAll(Arrays.asList(slice));
-		} finally {
-			writeLock.unlock();
-		}
-		doWrites(slice);
-	}
-
 	@Override
-	public void close() {
+	protected void doClose() {
 		
-		if (writerFuture != null) {
-			try {
-				writerFuture.get();
-			} catch (Exception e) {
-				log.info("Exception waiting for write result on close", e);
-			}		
-			
-			writerFuture.cancel(true);
+		super.doClose();
+		if (indexChannel != null) {
 			try {
-				doWrites();
-			} catch (IOException e) {
-				log.info("Exception waiting for write result on close", e);
-			}
-		}
-		writerFuture = null;
-		super.close();
-		if (indexOps != null) {
-			try {
-				indexOps.close();
+				indexChannel.close();
 			} catch (IOException e) {
 				log.info("idx File close Exception");
 			}
 		}
-		
-		if (queue != null) {
-			writeLock.lock();
-			try {
-				//clear the queue
-				queue.clear();
-				queue = null;
-			} finally {
-				writeLock.unlock();
-			}
+		TimeshiftCatalog.RecordFile file = updateCatalog();
+		if (file != null) {
+			file.finished();
 		}
 	}
+
+	private TimeshiftCatalog.RecordFile updateCatalog() {
+
+		TimeshiftCatalog.RecordFile file = catalogFile;
+		if (file != null && getLastWrittenTimestamp() >= 0) {
+			file.update(getLastWrittenTimestamp());
+		}
+		return file;
+	}
 	
 	public static void generateFlvIndexFile(String flvPath) {
 		
@@ -280,29 +193,4 @@ public class RecordFLVWriter extends FLVWriter {
 			log.info("flv close Exception");
 		}
 	}
-	
-	private final static class QueuedData implements Comparable<QueuedData> {
-
-		final ITag tag;
-		
-		final int timestamp;
-		
-		QueuedData(ITag tag) {
-			
-			this.tag = tag;
-			timestamp = tag.getTimestamp();
-		}
-		
-		@Override
-		public int compareTo(QueuedData other) {
-			
-			if (timestamp > other.timestamp) {
-				return 1;
-			} else if (timestamp < other.timestamp) {
-				return -1;
-			}
-			return 0;
-		}
-		
-	}
 }
@@ -87,6 +87,8 @@ public class RecordableBroadcastStream extends ClientBroadcastStream implements
 			log.info("exception {}", e.getMessage());
 		}
 	    writer = new RecordFLVWriter(recordFile, false);
+	    // updated by the writer as the tags reach the file
+	    writer.setCatalogFile(TimeshiftCatalog.getInstance().fileStarted(recordFile));
 		
 		lastRecordTime = SystemTimer.currentTimeMillis();
 		lastStreamTime = currentStreamTime;
@@ -111,6 +113,7 @@ public class RecordableBroadcastStream extends ClientBroadcastStream implements
 	
 	private void closeWriter() {
 		if (writer != null) {
+			// the catalog entry is finished by the writer once closed
 			writer.close();
 			writer = null;
 		}
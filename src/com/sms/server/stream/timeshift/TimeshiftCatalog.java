@@ -0,0 +1,353 @@
+package com.sms.server.stream.timeshift;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sms.io.flv.impl.FLVReader;
+import com.sms.server.util.SystemTimer;
+
+/**
+ * Timeshift Catalog
+ * <p>
+ * Recorded files of every stream day directory, shared by all timeshift viewers. A directory is
+ * scanned once, then the recorder reports the files it starts and how far it has written them.
+ * Directories are checked again when they change, so files removed by retention drop out; the
+ * files of a recorded directory keep their entries then. Files are kept sorted by start time,
+ * the file covering a point in time is found by binary search. Directories nobody has looked at
+ * for a while and nobody records to are evicted, a past day is scanned again when needed.
+ * @author pengliren
+ *
+ */
+public class TimeshiftCatalog {
+
+	private static Logger log = LoggerFactory.getLogger(TimeshiftCatalog.class);
+
+	private static final Pattern FILE_PATTERN = Pattern.compile("^\\d{14}.flv$");
+
+	/**
+	 * Minimum interval in ms between two checks of a directory nobody records to
+	 */
+	private static final long CHECK_INTERVAL = 5000;
+
+	/**
+	 * Time in ms after which a directory not used and not recorded to is evicted
+	 */
+	private static final long IDLE_TIME = 10 * 60 * 1000;
+
+	private final ConcurrentMap<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+	private volatile long lastEviction = SystemTimer.currentTimeMillis();
+
+	private static final class SingletonHolder {
+
+		private static final TimeshiftCatalog INSTANCE = new TimeshiftCatalog();
+	}
+
+	protected TimeshiftCatalog() {
+
+	}
+
+	public static TimeshiftCatalog getInstance() {
+
+		return SingletonHolder.INSTANCE;
+	}
+
+	/**
+	 * Return the files of the given directory that end at or after the given time and
+	 * sort after the given file name.
+	 *
+	 * @param path stream day directory
+	 * @param time wall clock time in ms
+	 * @param after file name, empty for all
+	 * @return files in start time order
+	 */
+	public List<RecordFile> getFiles(String path, long time, String after) {
+
+		RecordFile[] files = getDirectory(path).getFiles();
+		List<RecordFile> result = new ArrayList<RecordFile>();
+		for (int i = indexOf(files, time); i < files.length; i++) {
+			if (files[i].getName().compareTo(after) > 0) {
+				result.add(files[i]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Called by the recorder when it starts a file.
+	 *
+	 * @param file recorded file
+	 * @return catalog entry to update while recording
+	 */
+	public RecordFile fileStarted(File file) {
+
+		Directory directory = getDirectory(file.getParent());
+		RecordFile recordFile = new RecordFile(file, parseStartTime(file.getName()), 0);
+		recordFile.recording = true;
+		directory.add(recordFile);
+		return recordFile;
+	}
+
+	private Directory getDirectory(String path) {
+
+		long now = SystemTimer.currentTimeMillis();
+		if (now - lastEviction >= CHECK_INTERVAL) {
+			lastEviction = now;
+			evict(now);
+		}
+		String key = new File(path).getAbsolutePath();
+		Directory directory = directories.get(key);
+		if (directory == null) {
+			Directory created = new Directory(key);
+			directory = directories.putIfAbsent(key, created);
+			if (directory == null) {
+				directory = created;
+			}
+		}
+		directory.lastAccess = now;
+		return directory;
+	}
+
+	/**
+	 * Drop the directories idle for a while, the past days mostly
+	 */
+	private void evict(long now) {
+
+		Iterator<Directory> it = directories.values().iterator();
+		while (it.hasNext()) {
+			Directory directory = it.next();
+			if (now - directory.lastAccess >= IDLE_TIME && !directory.isRecording()) {
+				log.debug("catalog evict {}", directory.dir);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Index of the first file ending at or after the given time, files do not overlap so end times are sorted
+	 */
+	private static int indexOf(RecordFile[] files, long time) {
+
+		int low = 0;
+		int high = files.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (files[mid].getEndTime() < time) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static long parseStartTime(String name) {
+
+		try {
+			return new SimpleDateFormat("yyyyMMddHHmmss").parse(name.substring(0, 14)).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Files of one stream day directory
+	 */
+	private static class Directory {
+
+		private final File dir;
+
+		private volatile RecordFile[] files;
+
+		private volatile boolean recorded;
+
+		private volatile long lastCheck;
+
+		private volatile long lastAccess = SystemTimer.currentTimeMillis();
+
+		// guarded by this
+		private long lastModified;
+
+		Directory(String path) {
+			this.dir = new File(path);
+		}
+
+		RecordFile[] getFiles() {
+			RecordFile[] current = files;
+			if (current != null && SystemTimer.currentTimeMillis() - lastCheck < CHECK_INTERVAL) {
+				return current;
+			}
+			synchronized (this) {
+				if (files == null || changed()) {
+					scan();
+				}
+				return files;
+			}
+		}
+
+		boolean isRecording() {
+			RecordFile[] current = files;
+			if (current != null) {
+				for (RecordFile file : current) {
+					if (file.recording) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		synchronized void add(RecordFile file) {
+			if (files == null) {
+				scan();
+			}
+			recorded = true;
+			List<RecordFile> list = new ArrayList<RecordFile>(Arrays.asList(files));
+			for (int i = list.size() - 1; i >= 0; i--) {
+				RecordFile existing = list.get(i);
+				if (existing.getName().equals(file.getName())) {
+					list.remove(i);
+				} else if (existing.recording) {
+					// the recorder moved on without closing it
+					existing.recording = false;
+				}
+			}
+			list.add(file);
+			RecordFile[] updated = list.toArray(new RecordFile[list.size()]);
+			Arrays.sort(updated);
+			files = updated;
+			// the new file is known, later changes are someone else's
+			lastModified = dir.lastModified();
+		}
+
+		private boolean changed() {
+			lastCheck = SystemTimer.currentTimeMillis();
+			return dir.lastModified() != lastModified;
+		}
+
+		private void scan() {
+			lastCheck = SystemTimer.currentTimeMillis();
+			lastModified = dir.lastModified();
+			File[] found = null;
+			if (dir.isDirectory()) {
+				found = dir.listFiles(new FileFilter() {
+					@Override
+					public boolean accept(File pathname) {
+						return FILE_PATTERN.matcher(pathname.getName()).matches();
+					}
+				});
+			}
+			// the entries of a recorded directory are kept up to date by the recorder
+			Map<String, RecordFile> known = new HashMap<String, RecordFile>();
+			if (recorded && files != null) {
+				for (RecordFile file : files) {
+					known.put(file.getName(), file);
+				}
+			}
+			List<RecordFile> list = new ArrayList<RecordFile>();
+			if (found != null) {
+				for (File file : found) {
+					RecordFile existing = known.remove(file.getName());
+					if (existing != null) {
+						list.add(existing);
+						continue;
+					}
+					long start = parseStartTime(file.getName());
+					if (start < 0) {
+						log.info("catalog parse file fail {}", file.getName());
+						continue;
+					}
+					list.add(new RecordFile(file, start, FLVReader.getDuration(file)));
+				}
+			}
+			for (RecordFile file : known.values()) {
+				if (file.recording) {
+					// not on the disk yet
+					list.add(file);
+				}
+			}
+			RecordFile[] scanned = list.toArray(new RecordFile[list.size()]);
+			Arrays.sort(scanned);
+			files = scanned;
+			log.debug("catalog {} files: {}", dir, scanned.length);
+		}
+	}
+
+	/**
+	 * One recorded file
+	 */
+	public static class RecordFile implements Comparable<RecordFile> {
+
+		private final File file;
+
+		private final String name;
+
+		private final long startTime;
+
+		private volatile long duration;
+
+		private volatile boolean recording;
+
+		RecordFile(File file, long startTime, long duration) {
+			this.file = file;
+			this.name = file.getName();
+			this.startTime = startTime;
+			this.duration = duration;
+		}
+
+		/**
+		 * Called by the recorder while it writes the file.
+		 *
+		 * @param duration duration written so far in ms
+		 */
+		public void update(long duration) {
+			this.duration = duration;
+		}
+
+		/**
+		 * Called by the recorder once the file is complete.
+		 */
+		public void finished() {
+			recording = false;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getEndTime() {
+			return startTime + duration;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public boolean isRecording() {
+			return recording;
+		}
+
+		@Override
+		public int compareTo(RecordFile other) {
+			return name.compareTo(other.name);
+		}
+	}
+}
@@ -1,20 +1,17 @@
 package com.sms.server.stream.timeshift;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.regex.Pattern;
+import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.sms.io.ITag;
-import com.sms.io.flv.impl.FLVReader;
 import com.sms.server.messaging.IMessage;
 import com.sms.server.messaging.IMessageComponent;
 import com.sms.server.messaging.IPassive;
@@ -34,6 +31,7 @@ import com.sms.server.net.rtmp.message.Constants;
 import com.sms.server.stream.ISeekableProvider;
 import com.sms.server.stream.IStreamTypeAwareProvider;
 import com.sms.server.stream.message.RTMPMessage;
+import com.sms.server.stream.timeshift.TimeshiftCatalog.RecordFile;
 
 /**
  * Timeshift Provider
@@ -136,39 +134,15 @@ public class TimeshiftingProvider implements IPassive, ISeekableProvider, IPulla
 	
 	private void refreshFilelist() {
 		
-		File streamDir = new File(streamPath);		
-		File[] files =null ;
-		if(streamDir.exists() && streamDir.isDirectory()){
-			files= streamDir.listFiles(new FileFilter(){
-				@Override
-				public boolean accept(File pathname) {
-					String filename = pathname.getName();
-					if(!Pattern.matches("^\\d{14}.flv$", filename)){
-						return false;
-					}
-					if(filename.compareTo(lastFilename)<1) return false;
-					try {
-						long start = sdf.parse(filename.substring(0, 14)).getTime();
-						long end = start + FLVReader.getDuration(pathname);
-						if(end < compareTime) return false;
-						if(end > endTime) endTime = end;
-					} catch (ParseException e) {
-						log.info("refreshFilelist parse file fail");
-						return false;
-					}
-					return true;
-				}});
-		}
-		
-		if(files != null && files.length>0 ){
-			String[] filepaths = new String[files.length];
-			for(int i = 0; i < files.length; i++) filepaths[i] = files[i].getName();
-			Arrays.sort(filepaths);
-			for(int i = 0; i < filepaths.length; i++){
-				fileList.add(filepaths[i]);
+		// the catalog is shared by all viewers, the directory is not scanned per viewer
+		List<RecordFile> files = TimeshiftCatalog.getInstance().getFiles(streamPath, compareTime, lastFilename);
+		if(!files.isEmpty()){
+			for(RecordFile file : files){
+				fileList.add(file.getName());
+				if(file.getEndTime() > endTime) endTime = file.getEndTime();
 			}
 			compareTime = endTime;
-			lastFilename = filepaths[filepaths.length-1];
+			lastFilename = files.get(files.size()-1).getName();
 		}
 	}
 	
@@ -0,0 +1,102 @@
+package com.sms.server.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring Sequencer
+ * <p>
+ * Slot sequencing of a bounded ring with many producers and a single consumer, the ring keeps
+ * its entries in arrays of its own indexed by slot. Producers claim a slot with a CAS on the tail
+ * and publish it through the slot sequence, neither side takes a lock and slots are reused.
+ * @author pengliren
+ *
+ */
+public class RingSequencer {
+
+	private final int mask;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	// consumer only
+	private long head;
+
+	/**
+	 * @param capacity ring capacity, rounded up to a power of two
+	 */
+	public RingSequencer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mask = size - 1;
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Claim the next slot, it has to be filled and then published.
+	 *
+	 * @return sequence of the slot, -1 if the ring is full
+	 */
+	public long claim() {
+		for (;;) {
+			long t = tail.get();
+			long seq = sequences.get((int) (t & mask));
+			if (seq == t) {
+				if (tail.compareAndSet(t, t + 1)) {
+					return t;
+				}
+			} else if (seq < t) {
+				// the consumer has not freed the slot yet
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Return the slot index of a claimed sequence.
+	 *
+	 * @param sequence sequence returned by {@link #claim()}
+	 * @return slot index
+	 */
+	public int index(long sequence) {
+		return (int) (sequence & mask);
+	}
+
+	/**
+	 * Make a filled slot visible to the consumer.
+	 *
+	 * @param sequence sequence returned by {@link #claim()}
+	 */
+	public void publish(long sequence) {
+		sequences.lazySet((int) (sequence & mask), sequence + 1);
+	}
+
+	/**
+	 * Return the slot of the oldest entry, it stays valid until {@link #remove()}. Consumer only.
+	 *
+	 * @return slot index, -1 if the ring is empty
+	 */
+	public int peek() {
+		int idx = (int) (head & mask);
+		return sequences.get(idx) == head + 1 ? idx : -1;
+	}
+
+	/**
+	 * Free the slot of the oldest entry, clear it before. Consumer only.
+	 */
+	public void remove() {
+		sequences.lazySet((int) (head & mask), head + mask + 1);
+		head++;
+	}
+
+	public boolean isEmpty() {
+		return peek() < 0;
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+}